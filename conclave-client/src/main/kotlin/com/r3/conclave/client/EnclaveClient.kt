@@ -14,7 +14,10 @@ import java.io.Closeable
 import java.io.IOException
 import java.security.PrivateKey
 import java.security.PublicKey
-import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.Executor
 
 /**
  * Represents a client of an enclave. [EnclaveClient] manages the encryption of requests that
@@ -41,24 +44,23 @@ import java.util.concurrent.ScheduledExecutorService
  * is the synchronous response from the enclave, if it produced one.
  *
  * For receiving asychronous responses, i.e. those which the enclave produces for the client but which are produced
- * due to other clients, [pollMail] will return the next asynchronous response if one is available.
+ * due to other clients, [pollMail] will return the next asynchronous response if one is available. To drain a backlog
+ * of responses, [pollMailBatch] returns several at once and can decrypt them in parallel on [decryptionExecutor].
  *
  * ### Thread safety
  *
- * [EnclaveClient] is not thread-safe. [sendMail] and [pollMail] must be called from the same thread. If the client
- * wants to poll for asychronous mail in a background thread then that same thread must also be used for sending mail.
- * A simple way to achieve this is to use a single-threaded [ScheduledExecutorService]. The following (incomplete) code
- * sample shows how this might be done.
+ * [EnclaveClient] is thread-safe. Mail on different topics can be sent from different threads in parallel, whilst
+ * mail on the same topic are sent one at a time so that they reach the enclave in the order of their sequence numbers.
+ * [pollMail] can be called from a background thread whilst other threads are sending mail, and [save] can be called at
+ * any time without waiting for any mail which are in flight. For example:
  *
  * ```java
- *     ScheduledExecutorService singleThreadWorker = Executors.newSingleThreadScheduledExecutor();
+ *     ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
  *     BlockingQueue<EnclaveMail> receivedMail = new LinkedBlockingQueue<>();
  *
- *     private ScheduledFuture<?> pollingTask;
- *
  *     void start() throws InvalidEnclaveException, IOException {
  *          enclaveClient.start(enclaveTransport);
- *          pollingTask = singleThreadWorker.scheduleAtFixedRate(() -> {
+ *          poller.scheduleAtFixedRate(() -> {
  *              try {
  *                  EnclaveMail mail = enclaveClient.pollMail();
  *                  if (mail != null) {
@@ -69,17 +71,14 @@ import java.util.concurrent.ScheduledExecutorService
  *              }
  *          }, 0, 5, TimeUnit.SECONDS);  // Poll every 5 seconds
  *     }
+ * ```
  *
- *     Future<EnclaveMail> sendMail(byte[] body) {
- *          return singleThreadWorker.submit(() -> enclaveClient.sendMail(body));
- *     }
+ * The [PostOffice] instances returned by [postOffice] and [postOffices] are not thread-safe. They should not be used
+ * directly whilst other threads are sending mail on the same topic.
  *
- *     void close() throws IOException {
- *          if (pollTask != null)
- *              pollingTask.cancel(true);
- *          enclaveClient.close();
- *     }
- * ```
+ * Rollback detection (see below) relies on the client receiving mail in the order the enclave produces it. Responses
+ * to mail sent in parallel may arrive in a different order, which can look like a rollback. If the enclave has
+ * rollback detection enabled then mail which change its state should not be sent in parallel.
  *
  * ### Enclave rollback
  *
@@ -153,9 +152,44 @@ open class EnclaveClient private constructor(
     var enclaveConstraint: EnclaveConstraint
 
     private val stateManager: StateManager<State>
+
+    /**
+     * Guards [_postOffices], [sequenceNumbers] and the switch to a new [EnclaveInstanceInfo] when the enclave is
+     * restarted. It's only held for short periods and never whilst communicating with the host.
+     */
+    private val postOfficesLock = Any()
     private val _postOffices = HashMap<String, PostOffice>()
+    /**
+     * The next sequence number of each topic as of the last mail sent. These are published after encryption so that
+     * [save] doesn't need to wait for any mail which are in flight.
+     */
+    private val sequenceNumbers = HashMap<String, Long>()
+    /** Mail on the same topic are sent one at a time, in sequence number order. */
+    private val topicLocks = ConcurrentHashMap<String, Any>()
+    /** Makes sure only one thread downloads the new [EnclaveInstanceInfo] when the enclave is restarted. */
+    private val restartLock = Any()
+
+    private val stateIdLock = Any()
+    @Volatile
     private var _lastSeenStateId: EnclaveStateId? = null
 
+    /** Mail which have been retrieved from the host but not yet returned by [pollMail]. */
+    private val bufferedMail = ArrayDeque<Pair<ByteArray, EnclaveInstanceInfo>>()
+    /**
+     * The exception from processing a polled mail which [pollMailBatch] deferred so that it could return the mail
+     * before it. It's thrown by the next poll. Guarded by [bufferedMail].
+     */
+    private var deferredPollException: Exception? = null
+
+    /**
+     * The executor [pollMailBatch] uses to decrypt mail in parallel. If `null`, which is the default, mail are
+     * decrypted on the calling thread.
+     *
+     * The client does not take ownership of the executor and will not shut it down when it's closed.
+     */
+    @Volatile
+    var decryptionExecutor: Executor? = null
+
     init {
         if (savedClient == null) {
             this.clientPrivateKey = clientPrivateKey!!
@@ -218,15 +252,23 @@ open class EnclaveClient private constructor(
      * @throws IllegalStateException If the client has already been started or has been closed.
      */
     @Throws(IOException::class, InvalidEnclaveException::class)
-    fun start(transport: EnclaveTransport) {
+    fun start(transport: EnclaveTransport): Unit = synchronized(stateManager) {
         val newState = stateManager.checkStateIs<New> { "The client has not been started or has been closed." }
-        val enclaveInstanceInfo = transport.enclaveInstanceInfo()
-        enclaveConstraint.check(enclaveInstanceInfo)
+        val clientConnection = transport.connect(this)
+        val enclaveInstanceInfo = try {
+            latestEnclaveInstanceInfo(transport, clientConnection).also(enclaveConstraint::check)
+        } catch (e: Exception) {
+            clientConnection.disconnect()
+            throw e
+        }
         if (newState.previousEnclaveKey == enclaveInstanceInfo.encryptionKey) {
-            for ((topic, sequenceNumber) in newState.previousSequenceNumbers) {
-                val postOffice = enclaveInstanceInfo.createPostOffice(clientPrivateKey, topic)
-                postOffice.setNextSequenceNumber(sequenceNumber)
-                _postOffices[topic] = postOffice
+            synchronized(postOfficesLock) {
+                for ((topic, sequenceNumber) in newState.previousSequenceNumbers) {
+                    val postOffice = enclaveInstanceInfo.createPostOffice(clientPrivateKey, topic)
+                    postOffice.setNextSequenceNumber(sequenceNumber)
+                    _postOffices[topic] = postOffice
+                    sequenceNumbers[topic] = sequenceNumber
+                }
             }
         } else {
             // If the enclave's key has changed (i.e. it has restarted) since the last time the client was running then
@@ -234,10 +276,18 @@ open class EnclaveClient private constructor(
             // can be created if and when the user next uses those topics.
         }
 
-        val clientConnection = transport.connect(this)
         stateManager.state = Running(transport, clientConnection, enclaveInstanceInfo)
     }
 
+    private fun latestEnclaveInstanceInfo(
+        transport: EnclaveTransport,
+        clientConnection: EnclaveTransport.ClientConnection
+    ): EnclaveInstanceInfo {
+        // The host may be running several instances of the enclave, in which case the connection knows which one
+        // this client is routed to.
+        return clientConnection.enclaveInstanceInfo() ?: transport.enclaveInstanceInfo()
+    }
+
     /**
      * Encrypt and send a mail message with the given body to the host using the transport for delivery to the enclave.
      * The mail will have a topic of "default" and an empty envelope.
@@ -289,38 +339,24 @@ open class EnclaveClient private constructor(
      */
     @Throws(IOException::class)
     fun sendMail(topic: String, body: ByteArray, envelope: ByteArray?): EnclaveMail? {
-        val runningState = stateManager.checkStateIs<Running> { "The client is not running." }
-        val (transport, clientHandle) = runningState
-
-        for (i in 0 until MAX_RETRY_ATTEMPTS) {
-            val encryptedMailBytes = postOffice(topic).encryptMail(body, envelope)
-
-            val response = try {
-                clientHandle.sendMail(encryptedMailBytes)
-            } catch (e: MailDecryptionException) {
-                // The enclave was unable to decrypt our mail. Hopefully it's because the enclave was restarted and thus
-                // has a new encryption key. Let's re-download the EII and try again with the new key.
-                val newEnclaveInstanceInfo = transport.enclaveInstanceInfo()
-                if (newEnclaveInstanceInfo.encryptionKey == runningState.enclaveInstanceInfo.encryptionKey) {
-                    // Turns out the enclave's key hasn't changed, which means something else has happened, probably a
-                    // bug in the transport layer not picking up the new EII. Either way the exception needs to be
-                    // propagated to the caller.
-                    throw IOException(e)
+        val runningState = checkRunning()
+        val clientHandle = runningState.clientConnection
+
+        synchronized(topicLock(topic)) {
+            for (i in 0 until MAX_RETRY_ATTEMPTS) {
+                val (postOffice, enclaveInstanceInfo) = currentPostOffice(runningState, topic)
+                val encryptedMailBytes = postOffice.encryptMail(body, envelope)
+                publishSequenceNumber(postOffice)
+
+                val response = try {
+                    clientHandle.sendMail(encryptedMailBytes)
+                } catch (e: MailDecryptionException) {
+                    updateRestartedEnclave(runningState, enclaveInstanceInfo, e)
+                    continue
                 }
-                try {
-                    enclaveConstraint.check(newEnclaveInstanceInfo)
-                } catch (e: InvalidEnclaveException) {
-                    throw IOException("The enclave has a new EnclaveInstanceInfo which no longer satisfies the " +
-                            "client's constraints", e)
-                }
-                // All existing post office instances are now invalid as they're using the old encryption key.
-                resetPostOffices(newEnclaveInstanceInfo)
-                runningState.enclaveInstanceInfo = newEnclaveInstanceInfo
-                onEnclaveRestarted()
-                continue
-            }
 
-            return response?.let { processMail(it, runningState.enclaveInstanceInfo) }
+                return response?.let { processMail(it, enclaveInstanceInfo) }
+            }
         }
 
         // If we get here it's then reasonable to assume something is wrong with the host/transport and we need to abort.
@@ -328,10 +364,156 @@ open class EnclaveClient private constructor(
                 "trying to send it mail.")
     }
 
+    /**
+     * Encrypt and send several mail messages with the given bodies and topic to the host in a single batch, for
+     * delivery to the enclave in the given order. This is more efficient than calling [sendMail] for each body if the
+     * transport supports batches (see [EnclaveTransport.ClientConnection.sendMailBatch]), as it avoids a round trip
+     * to the host per mail.
+     *
+     * This method will block until the enclave has processed all the mail. The synchronous responses are returned in
+     * the same order as the bodies, with `null` for a mail which had no response. If the enclave is restarted part way
+     * through the batch then the remaining mail are re-encrypted and sent again, as with [sendMail].
+     *
+     * If the enclave threw an exception during the processing of any of the mail then this method will throw an
+     * [EnclaveException] once the whole batch has been delivered. The responses to the other mail in the batch are not
+     * lost and will be returned by [pollMail] instead.
+     *
+     * @param topic The topic to use in the mail. See [EnclaveMail.topic].
+     * @param bodies The bodies of the mail that are to be encrypted with the client's private key.
+     *
+     * @throws IOException If the mail could not be sent to the host or the responses could not be processed.
+     * @throws EnclaveException If the enclave threw an exception for any of the mail.
+     * @throws EnclaveRollbackException If the client has detected that the enclave's state has been rolled back.
+     * @throws IllegalStateException If the client is not running.
+     */
+    @Throws(IOException::class)
+    fun sendMailBatch(topic: String, bodies: List<ByteArray>): List<EnclaveMail?> {
+        val runningState = checkRunning()
+        val clientHandle = runningState.clientConnection
+        synchronized(topicLock(topic)) {
+            return sendMailBatch(runningState, clientHandle, topic, bodies)
+        }
+    }
+
+    private fun sendMailBatch(
+        runningState: Running,
+        clientHandle: EnclaveTransport.ClientConnection,
+        topic: String,
+        bodies: List<ByteArray>
+    ): List<EnclaveMail?> {
+        val responses = arrayOfNulls<Pair<ByteArray, EnclaveInstanceInfo>>(bodies.size)
+        var enclaveException: EnclaveException? = null
+        var pending = bodies.indices.toList()
+        var attempts = 0
+        while (pending.isNotEmpty()) {
+            if (attempts++ == MAX_RETRY_ATTEMPTS) {
+                throw IOException("Aborted attempt to send mail as the enclave has been restarted several times " +
+                        "whilst trying to send it mail.")
+            }
+            val (postOffice, enclaveInstanceInfo) = currentPostOffice(runningState, topic)
+            val encryptedMails = pending.map { postOffice.encryptMail(bodies[it]) }
+            publishSequenceNumber(postOffice)
+            val results = clientHandle.sendMailBatch(encryptedMails)
+            if (results.size != pending.size) {
+                throw IOException("Expected ${pending.size} delivery results but received ${results.size}")
+            }
+            val undecryptable = ArrayList<Int>()
+            var mailDecryptionException: MailDecryptionException? = null
+            for ((index, result) in pending.zip(results)) {
+                when (val exception = result.exception) {
+                    null -> responses[index] = result.response?.let { Pair(it, enclaveInstanceInfo) }
+                    is MailDecryptionException -> {
+                        undecryptable += index
+                        mailDecryptionException = exception
+                    }
+                    else -> if (enclaveException == null) enclaveException = exception as EnclaveException
+                }
+            }
+            if (mailDecryptionException != null) {
+                updateRestartedEnclave(runningState, enclaveInstanceInfo, mailDecryptionException)
+            }
+            pending = undecryptable
+        }
+
+        if (enclaveException != null) {
+            // Don't lose the responses to the mail which were successfully processed.
+            synchronized(bufferedMail) {
+                responses.filterNotNullTo(bufferedMail)
+            }
+            throw enclaveException
+        }
+        return responses.map { response -> response?.let { processMail(it.first, it.second) } }
+    }
+
+    /**
+     * Returns the post office for the topic along with the [EnclaveInstanceInfo] it was created from.
+     */
+    private fun currentPostOffice(runningState: Running, topic: String): Pair<PostOffice, EnclaveInstanceInfo> {
+        synchronized(postOfficesLock) {
+            val enclaveInstanceInfo = runningState.enclaveInstanceInfo
+            val postOffice = _postOffices.computeIfAbsent(topic) {
+                enclaveInstanceInfo.createPostOffice(clientPrivateKey, topic)
+            }
+            return Pair(postOffice, enclaveInstanceInfo)
+        }
+    }
+
+    private fun publishSequenceNumber(postOffice: PostOffice) {
+        synchronized(postOfficesLock) {
+            // Ignore post offices which have been replaced due to an enclave restart.
+            if (_postOffices[postOffice.topic] === postOffice) {
+                sequenceNumbers[postOffice.topic] = postOffice.nextSequenceNumber
+            }
+        }
+    }
+
+    private fun topicLock(topic: String): Any = topicLocks.computeIfAbsent(topic) { Any() }
+
+    private fun updateRestartedEnclave(
+        runningState: Running,
+        enclaveInstanceInfoUsed: EnclaveInstanceInfo,
+        e: MailDecryptionException
+    ) {
+        synchronized(restartLock) {
+            if (runningState.enclaveInstanceInfo !== enclaveInstanceInfoUsed) {
+                // Another thread has already detected the restart and switched to the new EnclaveInstanceInfo.
+                return
+            }
+            // The enclave was unable to decrypt our mail. Hopefully it's because the enclave was restarted and thus
+            // has a new encryption key. Let's re-download the EII and try again with the new key.
+            val newEnclaveInstanceInfo = latestEnclaveInstanceInfo(
+                runningState.transport,
+                runningState.clientConnection
+            )
+            if (newEnclaveInstanceInfo.encryptionKey == enclaveInstanceInfoUsed.encryptionKey) {
+                // Turns out the enclave's key hasn't changed, which means something else has happened, probably a
+                // bug in the transport layer not picking up the new EII. Either way the exception needs to be
+                // propagated to the caller.
+                throw IOException(e)
+            }
+            try {
+                enclaveConstraint.check(newEnclaveInstanceInfo)
+            } catch (e: InvalidEnclaveException) {
+                throw IOException("The enclave has a new EnclaveInstanceInfo which no longer satisfies the " +
+                        "client's constraints", e)
+            }
+            synchronized(postOfficesLock) {
+                // All existing post office instances are now invalid as they're using the old encryption key.
+                resetPostOffices(newEnclaveInstanceInfo)
+                runningState.enclaveInstanceInfo = newEnclaveInstanceInfo
+            }
+        }
+        onEnclaveRestarted()
+    }
+
     /**
      * Polls the host for the next asynchronous mail response from the enclave, if there is one, and returns it
      * decrypted. Otherwise returns `null`.
      *
+     * Only one mail is retrieved from the host at a time, so that mail aren't held by the client where they would be
+     * lost if it was saved and closed. Use [pollMailBatch] to retrieve several mail in one go. Responses which
+     * [sendMailBatch] or [pollMailBatch] couldn't return are returned first.
+     *
      * @return The next asynchronous mail response decrypted, or `null` if there isn't one.
      * @throws IOException If the client is unable to poll the host or retrieve the mail.
      * @throws EnclaveRollbackException If the client has detected that the enclave's state has been rolled back.
@@ -339,9 +521,71 @@ open class EnclaveClient private constructor(
      */
     @Throws(IOException::class)
     fun pollMail(): EnclaveMail? {
-        val (_, clientHandle, enclaveInstanceInfo) = stateManager.checkStateIs<Running> { "The client is not running." }
-        val responseBytes = clientHandle.pollMail()
-        return responseBytes?.let { processMail(it, enclaveInstanceInfo) }
+        val runningState = checkRunning()
+        // Polled mail are processed in the order they were retrieved, so that rollback detection sees them in the
+        // order the enclave produced them.
+        synchronized(bufferedMail) {
+            throwDeferredPollException()
+            val (responseBytes, responseEnclaveInstanceInfo) = bufferedMail.removeFirstOrNull()
+                ?: Pair(runningState.clientConnection.pollMail() ?: return null, runningState.enclaveInstanceInfo)
+            return processMail(responseBytes, responseEnclaveInstanceInfo)
+        }
+    }
+
+    /**
+     * Polls the host for up to [maxMail] asynchronous mail responses from the enclave and returns them decrypted, in
+     * the order the enclave produced them. This is more efficient than repeatedly calling [pollMail] when there's a
+     * backlog of mail, for example after reconnecting, as the mail are retrieved together and, if [decryptionExecutor]
+     * is set, decrypted in parallel. The rollback checks are still done in order on the calling thread.
+     *
+     * If one of the mail cannot be processed then the mail before it are returned and the exception is thrown by the
+     * next call to [pollMail] or [pollMailBatch]. The exception is only thrown straight away if it's from the first
+     * mail. Either way the mail after the failed one are kept and returned by the following polls.
+     *
+     * @return The decrypted mail, which is empty if there aren't any.
+     * @throws IOException If the client is unable to poll the host or retrieve the mail.
+     * @throws EnclaveRollbackException If the client has detected that the enclave's state has been rolled back.
+     * @throws IllegalStateException If the client is not running.
+     */
+    @Throws(IOException::class)
+    fun pollMailBatch(maxMail: Int): List<EnclaveMail> {
+        require(maxMail >= 0) { "maxMail cannot be negative" }
+        val runningState = checkRunning()
+        synchronized(bufferedMail) {
+            throwDeferredPollException()
+            if (bufferedMail.size < maxMail) {
+                fillBufferedMail(runningState, maxMail - bufferedMail.size)
+            }
+            val batch = ArrayList(bufferedMail.subList(0, minOf(maxMail, bufferedMail.size)))
+            // Decrypt before removing the mail from the buffer so that none are lost if the executor rejects them.
+            val decryptedMail = decryptMail(batch)
+            repeat(batch.size) { bufferedMail.removeFirst() }
+            val mails = ArrayList<EnclaveMail>(batch.size)
+            for ((index, decrypted) in decryptedMail.withIndex()) {
+                try {
+                    mails += checkForRollback(decrypted.get())
+                } catch (e: Exception) {
+                    // The mail after the failed one are decrypted again by the next poll, even if the exception is
+                    // thrown straight away.
+                    bufferedMail.addAll(0, batch.subList(index + 1, batch.size))
+                    if (mails.isEmpty()) throw e
+                    deferredPollException = e
+                    break
+                }
+            }
+            return mails
+        }
+    }
+
+    private fun fillBufferedMail(runningState: Running, maxMail: Int) {
+        val enclaveInstanceInfo = runningState.enclaveInstanceInfo
+        runningState.clientConnection.pollMailBatch(maxMail).mapTo(bufferedMail) { Pair(it, enclaveInstanceInfo) }
+    }
+
+    private fun throwDeferredPollException() {
+        val e = deferredPollException ?: return
+        deferredPollException = null
+        throw e
     }
 
     /**
@@ -393,9 +637,8 @@ open class EnclaveClient private constructor(
      * @throws IllegalStateException If the client has not been started.
      */
     fun postOffice(topic: String): PostOffice {
-        return _postOffices.computeIfAbsent(topic) {
-            enclaveInstanceInfo.createPostOffice(clientPrivateKey, topic)
-        }
+        val runningState = currentOrPreviousRunningState
+        return currentPostOffice(runningState, topic).first
     }
 
     /**
@@ -403,7 +646,7 @@ open class EnclaveClient private constructor(
      *
      * The returned [Set] is a copy. Adding or removing from it does not affect the client.
      */
-    val postOffices: Set<PostOffice> get() = _postOffices.values.toSet()
+    val postOffices: Set<PostOffice> get() = synchronized(postOfficesLock) { _postOffices.values.toSet() }
 
     /**
      * Serializes the state of the client to a byte array so that it can be safely persisted and restored if the client is
@@ -423,15 +666,13 @@ open class EnclaveClient private constructor(
      * @see EnclaveClient.restoreState
      */
     fun save(): ByteArray {
-        val state = stateManager.state
-        val enclaveKey = when (state) {
-            is New -> state.previousEnclaveKey
-            is Running -> state.enclaveInstanceInfo.encryptionKey
-            is Closed -> state.running?.enclaveInstanceInfo?.encryptionKey
-        }
-        val sequenceNumbers = when (state) {
-            is New -> state.previousSequenceNumbers.map { it.toPair() }
-            else -> _postOffices.map { Pair(it.key, it.value.nextSequenceNumber) }
+        val state = synchronized(stateManager) { stateManager.state }
+        // The enclave key and sequence numbers are read together so that they're consistent with each other if the
+        // enclave is being restarted.
+        val (enclaveKey, sequenceNumbers) = when (state) {
+            is New -> Pair(state.previousEnclaveKey, state.previousSequenceNumbers.map { it.toPair() })
+            is Running -> snapshotSequenceNumbers(state)
+            is Closed -> state.running?.let(::snapshotSequenceNumbers) ?: Pair(null, emptyList())
         }
         return writeData {
             write(MAGIC)
@@ -447,17 +688,34 @@ open class EnclaveClient private constructor(
         }
     }
 
+    private fun snapshotSequenceNumbers(runningState: Running): Pair<PublicKey, List<Pair<String, Long>>> {
+        synchronized(postOfficesLock) {
+            val sequenceNumbers = _postOffices.map { (topic, postOffice) ->
+                // Post offices which haven't been used by this client may have been used directly by the caller.
+                Pair(topic, sequenceNumbers[topic] ?: postOffice.nextSequenceNumber)
+            }
+            return Pair(runningState.enclaveInstanceInfo.encryptionKey, sequenceNumbers)
+        }
+    }
+
     /**
      * Closes the client and disconnects it from the enclave transport. This is a no-op if the client is already closed.
      */
     @Throws(IOException::class)
     override fun close() {
-        val runningState = when (val state = stateManager.state) {
-            is New -> null
-            is Running -> state
-            is Closed -> return
+        val runningState = synchronized(stateManager) {
+            val runningState = when (val state = stateManager.state) {
+                is New -> null
+                is Running -> state
+                is Closed -> return
+            }
+            stateManager.state = Closed(runningState)
+            runningState
+        }
+        synchronized(bufferedMail) {
+            bufferedMail.clear()
+            deferredPollException = null
         }
-        stateManager.state = Closed(runningState)
         runningState?.clientConnection?.disconnect()
     }
 
@@ -465,8 +723,12 @@ open class EnclaveClient private constructor(
         encryptedMail: ByteArray,
         enclaveInstanceInfo: EnclaveInstanceInfo,
     ): DecryptedEnclaveMail {
-        val mail = try {
-            AbstractPostOffice.decryptMail(
+        return checkForRollback(decryptMail(encryptedMail, enclaveInstanceInfo))
+    }
+
+    private fun decryptMail(encryptedMail: ByteArray, enclaveInstanceInfo: EnclaveInstanceInfo): DecryptedEnclaveMail {
+        try {
+            return AbstractPostOffice.decryptMail(
                 encryptedMail,
                 clientPrivateKey,
                 enclaveInstanceInfo.encryptionKey
@@ -474,7 +736,50 @@ open class EnclaveClient private constructor(
         } catch (e: MailDecryptionException) {
             throw IOException("Unable to decrypt received mail", e)
         }
+    }
 
+    /**
+     * Decrypts the mail on [decryptionExecutor] if there is one. The results are in the same order as [mails], with
+     * any exceptions only thrown when [DecryptionResult.get] is called, so that they can be dealt with in order.
+     */
+    private fun decryptMail(mails: List<Pair<ByteArray, EnclaveInstanceInfo>>): List<DecryptionResult> {
+        val executor = decryptionExecutor
+        if (executor == null || mails.size < 2) {
+            return mails.map { (encryptedMail, enclaveInstanceInfo) ->
+                DecryptionResult.of { decryptMail(encryptedMail, enclaveInstanceInfo) }
+            }
+        }
+        val futures = mails.map { (encryptedMail, enclaveInstanceInfo) ->
+            CompletableFuture.supplyAsync({
+                DecryptionResult.of { decryptMail(encryptedMail, enclaveInstanceInfo) }
+            }, executor)
+        }
+        return try {
+            futures.map { it.join() }
+        } catch (e: CompletionException) {
+            // DecryptionResult catches the exceptions from decrypting, so this can only be from the executor.
+            throw e.cause ?: e
+        }
+    }
+
+    private class DecryptionResult private constructor(
+        private val mail: DecryptedEnclaveMail?,
+        private val exception: Exception?
+    ) {
+        fun get(): DecryptedEnclaveMail = mail ?: throw exception!!
+
+        companion object {
+            fun of(block: () -> DecryptedEnclaveMail): DecryptionResult {
+                return try {
+                    DecryptionResult(block(), null)
+                } catch (e: Exception) {
+                    DecryptionResult(null, e)
+                }
+            }
+        }
+    }
+
+    private fun checkForRollback(mail: DecryptedEnclaveMail): DecryptedEnclaveMail {
         // See if the mail has a private header. If it does then the enclave has been configured for rollback detection
         // and has sent us the necessary information to detect if the host has rolled back its state.
         mail.privateHeader?.deserialise {
@@ -483,29 +788,35 @@ open class EnclaveClient private constructor(
             val receivedStateId = readEnclaveStateId()
             val expectedPreviousStateId = nullableRead { readEnclaveStateId() }
 
-            val previousStateId = _lastSeenStateId
-            if (receivedStateId != previousStateId) {
-                // We update the last seen state first so that the client can continue to receive mail if they wish
-                // after the exception is thrown.
-                _lastSeenStateId = receivedStateId
-                if (previousStateId != expectedPreviousStateId && !ignoreEnclaveRollback()) {
-                    throw EnclaveRollbackException("Possible dropped mail or enclave state rollback by the host " +
-                            "detected. Expected $_lastSeenStateId but got $expectedPreviousStateId.", mail)
+            synchronized(stateIdLock) {
+                val previousStateId = _lastSeenStateId
+                if (receivedStateId != previousStateId) {
+                    // We update the last seen state first so that the client can continue to receive mail if they wish
+                    // after the exception is thrown.
+                    _lastSeenStateId = receivedStateId
+                    if (previousStateId != expectedPreviousStateId && !ignoreEnclaveRollback()) {
+                        throw EnclaveRollbackException("Possible dropped mail or enclave state rollback by the host " +
+                                "detected. Expected $_lastSeenStateId but got $expectedPreviousStateId.", mail)
+                    }
+                } else {
+                    // If the state ID hasn't changed then it probably means the enclave has sent multiple mail from
+                    // the same receiveMail/receiveFromUntrustedHost invocation. Or it could mean the host is replaying
+                    // the same mail to us. We may want to add replay, re-order and dropped mail detection support. But
+                    // this is something slightly different to roll back detection and would need to be handled
+                    // separately, probably by checking the sequence numbers. https://r3-cev.atlassian.net/browse/CON-625
                 }
-            } else {
-                // If the state ID hasn't changed then it probably means the enclave has sent multiple mail from the
-                // same receiveMail/receiveFromUntrustedHost invocation. Or it could mean the host is replaying the same
-                // mail to us. We may want to add replay, re-order and dropped mail detection support. But this is
-                // something slightly different to roll back detection and would need to be handled separately, probably
-                // by checking the sequence numbers. https://r3-cev.atlassian.net/browse/CON-625
             }
         }
 
         return mail
     }
 
+    private fun checkRunning(): Running {
+        return synchronized(stateManager) { stateManager.checkStateIs { "The client is not running." } }
+    }
+
     private val currentOrPreviousRunningState: Running get() {
-        return when (val state = stateManager.state) {
+        return when (val state = synchronized(stateManager) { stateManager.state }) {
             is New -> throw IllegalStateException("Client has not been started.")
             is Running -> state
             is Closed -> checkNotNull(state.running) { "Client was never started." }
@@ -520,6 +831,7 @@ open class EnclaveClient private constructor(
                 minSizePolicy = old.minSizePolicy
             }
         }
+        sequenceNumbers.replaceAll { _, _ -> 0 }
     }
 
 
@@ -532,7 +844,7 @@ open class EnclaveClient private constructor(
         data class Running(
             val transport: EnclaveTransport,
             val clientConnection: EnclaveTransport.ClientConnection,
-            var enclaveInstanceInfo: EnclaveInstanceInfo
+            @Volatile var enclaveInstanceInfo: EnclaveInstanceInfo
         ) : State()
 
         data class Closed(val running: Running?) : State()
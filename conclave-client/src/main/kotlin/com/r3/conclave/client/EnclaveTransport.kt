@@ -50,6 +50,20 @@ interface EnclaveTransport {
      * connected to a single [EnclaveTransport] and each connection must be able to disambiguate between all of them.
      */
     interface ClientConnection {
+        /**
+         * Retrieve the latest version of the [EnclaveInstanceInfo] of the enclave this client's mail are delivered
+         * to, or null if it's the same as [EnclaveTransport.enclaveInstanceInfo]. The client uses this in preference to
+         * [EnclaveTransport.enclaveInstanceInfo] when it starts and when it detects the enclave has restarted.
+         *
+         * The default implementation returns null. Override this method if the host can run more than one instance
+         * of the enclave, each with its own [EnclaveInstanceInfo], and routes the client to one of them.
+         *
+         * @throws IOException If there's an I/O error.
+         * @throws IllegalArgumentException If there's an issue deserializing the [EnclaveInstanceInfo].
+         */
+        @Throws(IOException::class)
+        fun enclaveInstanceInfo(): EnclaveInstanceInfo? = null
+
         /**
          * Send the encrypted mail bytes to the host for delivery to the enclave. This method must block until the
          * enclave processes the mail. If the enclave produces a synchronous response mail then that is returned back
@@ -82,6 +96,50 @@ interface EnclaveTransport {
         @Throws(IOException::class)
         fun pollMail(): ByteArray?
 
+        /**
+         * Send several encrypted mail to the host in one go for delivery to the enclave, in the given order. Every
+         * mail in the batch must be delivered, even if the enclave is unable to decrypt or throws an exception for
+         * one of them, and a [MailDeliveryResult] returned for each one.
+         *
+         * The default implementation calls [sendMail] for each mail. Override this method if the host supports
+         * receiving multiple mail in one request.
+         *
+         * @param encryptedMails The mail bytes to send to the host for delivery to the enclave.
+         * @return The outcome of the delivery of each mail, in the same order.
+         * @throws IOException If there's an I/O error or some other issue with the sending or receiving.
+         */
+        @Throws(IOException::class)
+        fun sendMailBatch(encryptedMails: List<ByteArray>): List<MailDeliveryResult> {
+            return encryptedMails.map { encryptedMail ->
+                try {
+                    MailDeliveryResult(sendMail(encryptedMail), null)
+                } catch (e: MailDecryptionException) {
+                    MailDeliveryResult(null, e)
+                } catch (e: EnclaveException) {
+                    MailDeliveryResult(null, e)
+                }
+            }
+        }
+
+        /**
+         * Retrieve up to [maxMail] of the next available asychronous encrypted mail responses from the enclave, in
+         * the order they were produced.
+         *
+         * The default implementation calls [pollMail] until it returns null or [maxMail] mail have been retrieved.
+         * Override this method if the host supports returning multiple mail in one request.
+         *
+         * @return The next asychronous mail responses as encrypted bytes, or an empty list if there aren't any.
+         * @throws IOException If there's an issue polling or receiving the asychronous mail.
+         */
+        @Throws(IOException::class)
+        fun pollMailBatch(maxMail: Int): List<ByteArray> {
+            val mails = ArrayList<ByteArray>()
+            while (mails.size < maxMail) {
+                mails += pollMail() ?: break
+            }
+            return mails
+        }
+
         /**
          * Disconnect the client from the [EnclaveTransport].
          *
@@ -90,4 +148,21 @@ interface EnclaveTransport {
         @Throws(IOException::class)
         fun disconnect()
     }
+
+    /**
+     * The outcome of delivering one mail in a batch via [ClientConnection.sendMailBatch].
+     *
+     * @property response The synchronous mail response from the enclave, or null if there wasn't one or the
+     * delivery failed.
+     * @property exception Null if the mail was successfully delivered. Otherwise a [MailDecryptionException] if the
+     * enclave was unable to decrypt the mail or an [EnclaveException] if the enclave threw an exception.
+     */
+    class MailDeliveryResult(val response: ByteArray?, val exception: Exception?) {
+        init {
+            require(response == null || exception == null) { "A failed delivery cannot have a response." }
+            require(exception == null || exception is MailDecryptionException || exception is EnclaveException) {
+                "Only MailDecryptionException and EnclaveException can be reported for a mail."
+            }
+        }
+    }
 }
@@ -0,0 +1,211 @@
+package com.r3.conclave.client
+
+import com.r3.conclave.client.internal.kds.KDSPublicKeyResponse
+import com.r3.conclave.common.EnclaveConstraint
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.common.InvalidEnclaveException
+import com.r3.conclave.common.kds.KDSKeySpec
+import com.r3.conclave.common.kds.MasterKeyType
+import com.r3.conclave.mail.Curve25519PublicKey
+import com.r3.conclave.utilities.internal.*
+import java.io.IOException
+import java.net.URL
+import java.nio.file.Files
+import java.nio.file.NoSuchFileException
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.security.SignatureException
+import java.time.Duration
+import java.time.Instant
+import java.time.Period
+import java.time.ZoneId
+import java.util.concurrent.ConcurrentHashMap
+
+/**
+ * A thread-safe cache of KDS public keys for use with [PostOfficeBuilder.usingKDS]. Without a cache, every call to
+ * [PostOfficeBuilder.usingKDS] makes a public key request to the KDS and verifies the KDS enclave's attestation and the
+ * signature on the public key. With a cache this is only done once per KDS URL, [KDSKeySpec] and KDS enclave
+ * constraint, until the cached public key is older than [timeToLive]. If the constraint has a
+ * [EnclaveConstraint.maxAttestationAge], the public key is also requested again once the KDS enclave's attestation is
+ * older than that.
+ *
+ * If a [file] is given, the cached public keys are also written to it so that they survive a restart of the
+ * application. The file isn't trusted: the KDS responses it holds are verified again the first time they're used
+ * after being loaded, and any which fail are requested from the KDS instead.
+ *
+ * @param timeToLive How long a public key is cached for before it's requested from the KDS again.
+ * @param file Optional file to persist the cached public keys to.
+ */
+class KDSPublicKeyCache @JvmOverloads constructor(
+    val timeToLive: Duration = Duration.ofHours(1),
+    val file: Path? = null
+) {
+    private val entries = ConcurrentHashMap<Key, Entry>()
+    private val fileLock = Any()
+
+    init {
+        require(!timeToLive.isNegative && !timeToLive.isZero) { "timeToLive must be positive" }
+        if (file != null) {
+            load(file)
+        }
+    }
+
+    /** The number of public keys in the cache, including any which have expired but have not yet been replaced. */
+    val size: Int get() = entries.size
+
+    /**
+     * Remove the public keys for [keySpec] from the cache, for all KDS URLs and KDS enclave constraints. This should be
+     * called if the key spec's policy constraint is changed to exclude enclaves it previously allowed, or if a
+     * destination enclave reports that it can't get the private key from the KDS.
+     */
+    fun invalidate(keySpec: KDSKeySpec) {
+        if (entries.keys.removeIf { it.keySpec == keySpec }) {
+            save()
+        }
+    }
+
+    /**
+     * Remove all the public keys from the cache.
+     */
+    fun clear() {
+        entries.clear()
+        save()
+    }
+
+    internal fun getPublicKey(
+        kdsHostUrl: URL,
+        keySpec: KDSKeySpec,
+        kdsEnclaveConstraint: EnclaveConstraint,
+        verify: (KDSPublicKeyResponse) -> Unit,
+        fetch: () -> KDSPublicKeyResponse
+    ): Curve25519PublicKey {
+        // The constraint is mutable, so the key holds a snapshot of it rather than the caller's object.
+        val key = Key(kdsHostUrl.toString(), keySpec, kdsEnclaveConstraint.toString())
+        val maxAttestationAge = kdsEnclaveConstraint.maxAttestationAge
+        val entry = entries[key]
+        if (entry != null && Instant.now().isBefore(entry.expiresAt)) {
+            if (entry.verified || isValid(entry, verify)) {
+                return entry.publicKey
+            }
+        }
+        // Concurrent misses for the same key may both go to the KDS. This is harmless as they'll get the same key.
+        val response = try {
+            fetch()
+        } catch (e: InvalidEnclaveException) {
+            // The KDS enclave no longer meets the constraint, so don't let any previous response be used.
+            entries.remove(key)
+            save()
+            throw e
+        }
+        entries[key] = Entry(response, expiryOf(response, maxAttestationAge), verified = true)
+        save()
+        return Curve25519PublicKey(response.publicKey)
+    }
+
+    /**
+     * A response no longer passes the constraint once the KDS enclave's attestation is older than [maxAttestationAge],
+     * so it's not cached beyond that even if [timeToLive] is longer.
+     */
+    private fun expiryOf(response: KDSPublicKeyResponse, maxAttestationAge: Period?): Instant {
+        val expiresAt = Instant.now().plus(timeToLive)
+        if (maxAttestationAge == null) return expiresAt
+        val attestationTime = EnclaveInstanceInfo.deserialize(response.kdsAttestationReport).securityInfo.timestamp
+        val attestationExpiresAt = attestationTime.atZone(ZoneId.systemDefault()).plus(maxAttestationAge).toInstant()
+        return minOf(expiresAt, attestationExpiresAt)
+    }
+
+    /**
+     * Only entries loaded from the file need to be verified. Those received from the KDS were verified before they
+     * were cached.
+     */
+    private fun isValid(entry: Entry, verify: (KDSPublicKeyResponse) -> Unit): Boolean {
+        try {
+            verify(entry.response)
+        } catch (e: InvalidEnclaveException) {
+            return false
+        } catch (e: SignatureException) {
+            return false
+        } catch (e: IllegalArgumentException) {
+            return false
+        }
+        entry.verified = true
+        return true
+    }
+
+    private fun load(file: Path) {
+        val bytes = try {
+            Files.readAllBytes(file)
+        } catch (e: NoSuchFileException) {
+            return
+        }
+        try {
+            bytes.deserialise {
+                require(readInt() == FILE_VERSION) { "Unknown KDS public key cache file version" }
+                repeat(readInt()) {
+                    val key = Key(
+                        readUTF(),
+                        KDSKeySpec(readUTF(), MasterKeyType.fromID(readByte().toInt()), readUTF()),
+                        EnclaveConstraint.parse(readUTF()).toString()
+                    )
+                    val expiresAt = Instant.ofEpochMilli(readLong())
+                    val response = KDSPublicKeyResponse(
+                        readIntLengthPrefixBytes(),
+                        readIntLengthPrefixBytes(),
+                        readIntLengthPrefixBytes()
+                    )
+                    if (Instant.now().isBefore(expiresAt)) {
+                        entries[key] = Entry(response, expiresAt, verified = false)
+                    }
+                }
+            }
+        } catch (e: Exception) {
+            // A corrupt file is no worse than not having one. It will be replaced once a public key is cached.
+            entries.clear()
+        }
+    }
+
+    private fun save() {
+        val file = file ?: return
+        synchronized(fileLock) {
+            val bytes = writeData {
+                val snapshot = entries.entries.toList()
+                writeInt(FILE_VERSION)
+                writeInt(snapshot.size)
+                for ((key, entry) in snapshot) {
+                    writeUTF(key.kdsHostUrl)
+                    writeUTF(key.keySpec.name)
+                    writeByte(key.keySpec.masterKeyType.id)
+                    writeUTF(key.keySpec.policyConstraint)
+                    writeUTF(key.kdsEnclaveConstraint)
+                    writeLong(entry.expiresAt.toEpochMilli())
+                    writeIntLengthPrefixBytes(entry.response.publicKey)
+                    writeIntLengthPrefixBytes(entry.response.signature)
+                    writeIntLengthPrefixBytes(entry.response.kdsAttestationReport)
+                }
+            }
+            val tempFile = file.resolveSibling("${file.fileName}.tmp")
+            try {
+                Files.write(tempFile, bytes)
+                Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING)
+            } catch (e: IOException) {
+                // The cache still works without the file, it just won't survive a restart.
+            }
+        }
+    }
+
+    private data class Key(
+        val kdsHostUrl: String,
+        val keySpec: KDSKeySpec,
+        /** The string form of the constraint, see [EnclaveConstraint.parse]. */
+        val kdsEnclaveConstraint: String
+    )
+
+    private class Entry(val response: KDSPublicKeyResponse, val expiresAt: Instant, @Volatile var verified: Boolean) {
+        val publicKey = Curve25519PublicKey(response.publicKey)
+    }
+
+    private companion object {
+        private const val FILE_VERSION = 1
+    }
+}
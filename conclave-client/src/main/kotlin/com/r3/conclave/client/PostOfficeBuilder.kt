@@ -119,6 +119,46 @@ class PostOfficeBuilder private constructor(
             }
         }
 
+        /**
+         * Create a new [PostOfficeBuilder] which will get the public key for encrypting mail from a KDS, using
+         * [publicKeyCache] to avoid requesting and verifying the same public key every time. This is otherwise the
+         * same as [usingKDS], and only blocks if the public key isn't already cached.
+         *
+         * @param kdsHostUrl URL to the KDS without any path components.
+         * @param keySpec The key specification the KDS will use to derive the public key.
+         * @param kdsEnclaveConstraint The enclave constraint to identify and validate the KDS enclave which generated
+         * the public key.
+         * @param publicKeyCache The cache of public keys to use.
+         *
+         * @return A new [PostOfficeBuilder] configured to use the public key from the KDS.
+         *
+         * @throws IOException If the public key could not be retrieved from the KDS.
+         * @throws SignatureException If the signature validation on the public key response fails.
+         * @throws InvalidEnclaveException If the KDS enclave producing the public key fails the constraints check. Any
+         * public key for this key spec already in the cache is invalidated.
+         */
+        @Throws(SignatureException::class, IOException::class, InvalidEnclaveException::class)
+        @JvmStatic
+        fun usingKDS(
+            kdsHostUrl: URL,
+            keySpec: KDSKeySpec,
+            kdsEnclaveConstraint: EnclaveConstraint,
+            publicKeyCache: KDSPublicKeyCache
+        ): PostOfficeBuilder {
+            val destinationPublicKey = publicKeyCache.getPublicKey(
+                kdsHostUrl,
+                keySpec,
+                kdsEnclaveConstraint,
+                verify = { verifySignature(keySpec, it, kdsEnclaveConstraint) },
+                fetch = {
+                    requestKdsPublicKey(kdsHostUrl, keySpec).use {
+                        parseKdsResponse(it, keySpec, kdsEnclaveConstraint)
+                    }
+                }
+            )
+            return PostOfficeBuilder(destinationPublicKey, KdsKeySpecKeyDerivation(keySpec))
+        }
+
         /**
          * Create a new [PostOfficeBuilder] which will get the public key from an [InputStream] representing the
          * response to a KDS public key request. It is the caller's job to first make the HTTP REST for the public key
@@ -154,6 +194,16 @@ class PostOfficeBuilder private constructor(
             keySpec: KDSKeySpec,
             kdsEnclaveConstraint: EnclaveConstraint
         ): PostOfficeBuilder {
+            val kdsPublicKeyResponse = parseKdsResponse(responseStream, keySpec, kdsEnclaveConstraint)
+            val destinationPublicKey = Curve25519PublicKey(kdsPublicKeyResponse.publicKey)
+            return PostOfficeBuilder(destinationPublicKey, KdsKeySpecKeyDerivation(keySpec))
+        }
+
+        private fun parseKdsResponse(
+            responseStream: InputStream,
+            keySpec: KDSKeySpec,
+            kdsEnclaveConstraint: EnclaveConstraint
+        ): KDSPublicKeyResponse {
             val body = responseStream.reader().readText()
             val jsonResponse = try {
                 jsonMapper.readTree(body)
@@ -180,11 +230,8 @@ class PostOfficeBuilder private constructor(
             if (kdsPublicKeyResponse == null) {
                 throw IOException("Invalid KDS public key response: $body")
             }
-            if (!checkSignature(keySpec, kdsPublicKeyResponse, kdsEnclaveConstraint)) {
-                throw SignatureException("Invalid KDS signature")
-            }
-            val destinationPublicKey = Curve25519PublicKey(kdsPublicKeyResponse.publicKey)
-            return PostOfficeBuilder(destinationPublicKey, KdsKeySpecKeyDerivation(keySpec))
+            verifySignature(keySpec, kdsPublicKeyResponse, kdsEnclaveConstraint)
+            return kdsPublicKeyResponse
         }
 
         /**
@@ -222,6 +269,16 @@ class PostOfficeBuilder private constructor(
             return con.inputStream
         }
 
+        private fun verifySignature(
+            keySpec: KDSKeySpec,
+            kdsPublicResponse: KDSPublicKeyResponse,
+            kdsEnclaveConstraint: EnclaveConstraint
+        ) {
+            if (!checkSignature(keySpec, kdsPublicResponse, kdsEnclaveConstraint)) {
+                throw SignatureException("Invalid KDS signature")
+            }
+        }
+
         private fun checkSignature(
             keySpec: KDSKeySpec,
             kdsPublicResponse: KDSPublicKeyResponse,
@@ -3,6 +3,7 @@ package com.r3.conclave.client
 import com.r3.conclave.common.*
 import com.r3.conclave.enclave.Enclave
 import com.r3.conclave.internaltesting.MockEnclaveTransport
+import com.r3.conclave.internaltesting.threadWithFuture
 import com.r3.conclave.mail.Curve25519PrivateKey
 import com.r3.conclave.mail.Curve25519PublicKey
 import com.r3.conclave.mail.EnclaveMail
@@ -15,6 +16,9 @@ import org.junit.jupiter.api.assertThrows
 import org.junit.jupiter.params.ParameterizedTest
 import org.junit.jupiter.params.provider.CsvSource
 import org.junit.jupiter.params.provider.ValueSource
+import java.io.IOException
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
 
 class EnclaveClientTest {
     private var _enclaveTransport: MockEnclaveTransport? = null
@@ -104,6 +108,82 @@ class EnclaveClientTest {
         }.withMessage("The enclave has a new EnclaveInstanceInfo which no longer satisfies the client's constraints")
     }
 
+    @Test
+    fun `send mail batch`() {
+        enclaveTransport.startEnclave()
+        val client = enclaveTransport.startNewClient()
+        val responses = client.sendMailBatch("default", listOf("A", "B", "C").map { it.toByteArray() })
+        assertThat(responses.map { it?.bodyAsBytes?.let(::String) }).containsExactly("A", "B", "C")
+        // The single mail API continues with the same sequence numbers.
+        assertThat(client.sendMail("D".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("D")
+    }
+
+    @Test
+    fun `send mail batch after enclave restart`() {
+        enclaveTransport.startEnclave()
+        val client = enclaveTransport.startNewClient()
+        client.sendMail("Hello".toByteArray())
+        enclaveTransport.restartEnclave()
+        val responses = client.sendMailBatch("default", listOf("A", "B").map { it.toByteArray() })
+        assertThat(responses.map { it?.bodyAsBytes?.let(::String) }).containsExactly("A", "B")
+    }
+
+    @Test
+    fun `responses to the rest of the batch can be polled for if the enclave throws an exception`() {
+        enclaveTransport.startEnclave()
+        val client = enclaveTransport.startNewClient()
+        assertThatExceptionOfType(EnclaveException::class.java).isThrownBy {
+            client.sendMailBatch("default", listOf("A", "throw", "C").map { it.toByteArray() })
+        }
+        assertThat(client.pollMail()?.bodyAsBytes?.let(::String)).isEqualTo("A")
+        assertThat(client.pollMail()?.bodyAsBytes?.let(::String)).isEqualTo("C")
+        assertThat(client.pollMail()).isNull()
+    }
+
+    @Test
+    fun `mail on different topics can be sent concurrently`() {
+        enclaveTransport.startEnclave()
+        val client = enclaveTransport.startNewClient()
+        val topics = List(8) { "topic-$it" }
+        topics.map { topic ->
+            threadWithFuture {
+                repeat(20) { index ->
+                    val response = client.sendMail(topic, "$topic $index".toByteArray(), null)
+                    assertThat(response?.bodyAsBytes?.let(::String)).isEqualTo("$topic $index")
+                }
+            }
+        }.forEach { it.join() }
+
+        val restoredSequenceNumbers = EnclaveClient(client.save()).let { restoredClient ->
+            restoredClient.start(enclaveTransport)
+            restoredClient.postOffices.associate { it.topic to it.nextSequenceNumber }
+        }
+        assertThat(restoredSequenceNumbers).isEqualTo(topics.associateWith { 20L })
+    }
+
+    @Test
+    fun `enclave restart detected by concurrent senders`() {
+        enclaveTransport.startEnclave()
+        val restartCount = AtomicInteger()
+        val client = object : EnclaveClient(enclaveConstraint()) {
+            override fun onEnclaveRestarted() {
+                restartCount.incrementAndGet()
+            }
+        }
+        client.start(enclaveTransport)
+        val topics = List(8) { "topic-$it" }
+        topics.forEach { client.sendMail(it, "Hello".toByteArray(), null) }
+
+        enclaveTransport.restartEnclave()
+        topics.map { topic ->
+            threadWithFuture {
+                val response = client.sendMail(topic, topic.toByteArray(), null)
+                assertThat(response?.bodyAsBytes?.let(::String)).isEqualTo(topic)
+            }
+        }.forEach { it.join() }
+        assertThat(restartCount.get()).isEqualTo(1)
+    }
+
     @Test
     fun `polling for mail returns asychronous mail response`() {
         testingAsyncMail = true
@@ -125,6 +205,66 @@ class EnclaveClientTest {
         assertThat(client2.pollMail()?.let { String(it.bodyAsBytes) }).isEqualTo("World")
     }
 
+    @Test
+    fun `polling for mail leaves the rest of the mail with the host`() {
+        testingAsyncMail = true
+        enclaveTransport.startEnclave()
+        val client1 = enclaveTransport.startNewClient()
+        val client2 = enclaveTransport.startNewClient()
+        for (i in 1..3) {
+            client1.sendMail("$i".toByteArray())
+            client2.sendMail("x".toByteArray())
+        }
+        assertThat(client1.pollMail()?.let { String(it.bodyAsBytes) }).isEqualTo("1")
+
+        val clientState = client1.save()
+        client1.close()
+        val restoredClient = EnclaveClient(clientState)
+        restoredClient.start(enclaveTransport)
+        assertThat(restoredClient.pollMailBatch(10).map { String(it.bodyAsBytes) }).containsExactly("2", "3")
+    }
+
+    @Test
+    fun `polling for a batch of mail decrypts them in parallel and returns them in order`() {
+        testingAsyncMail = true
+        enclaveTransport.startEnclave()
+        val client1 = enclaveTransport.startNewClient()
+        val client2 = enclaveTransport.startNewClient()
+        val executor = Executors.newFixedThreadPool(4)
+        client1.decryptionExecutor = executor
+        try {
+            // Each mail from client2 causes client1's previous mail to be posted back to it asynchronously.
+            for (i in 1..20) {
+                client1.sendMail("$i".toByteArray())
+                client2.sendMail("x".toByteArray())
+            }
+            val polled = client1.pollMailBatch(15) + client1.pollMailBatch(15)
+            assertThat(polled.map { String(it.bodyAsBytes) }).containsExactlyElementsOf((1..20).map { "$it" })
+            assertThat(client1.pollMailBatch(15)).isEmpty()
+        } finally {
+            executor.shutdown()
+        }
+    }
+
+    @Test
+    fun `mail after a failed first mail in a batch are not lost`() {
+        testingAsyncMail = true
+        enclaveTransport.startEnclave()
+        val transport = CorruptFirstPollTransport(enclaveTransport)
+        // The corrupted mail is dropped, which would otherwise be reported as a rollback.
+        val client1 = object : EnclaveClient(enclaveConstraint()) {
+            override fun ignoreEnclaveRollback(): Boolean = true
+        }
+        client1.start(transport)
+        val client2 = enclaveTransport.startNewClient()
+        for (i in 1..3) {
+            client1.sendMail("$i".toByteArray())
+            client2.sendMail("x".toByteArray())
+        }
+        assertThrows<IOException> { client1.pollMailBatch(10) }
+        assertThat(client1.pollMailBatch(10).map { String(it.bodyAsBytes) }).containsExactly("2", "3")
+    }
+
     @Test
     fun `rollback detected by default with the exception containing the received mail, and client can continue to receive mail`() {
         mockConfiguration.enablePersistentMap = true
@@ -233,10 +373,30 @@ class EnclaveClientTest {
         }
     }
 
+    /**
+     * Replaces the first mail of the first batch polled from the host with one which can't be decrypted.
+     */
+    private class CorruptFirstPollTransport(private val delegate: EnclaveTransport) : EnclaveTransport by delegate {
+        private var corrupted = false
+
+        override fun connect(client: EnclaveClient): EnclaveTransport.ClientConnection {
+            val connection = delegate.connect(client)
+            return object : EnclaveTransport.ClientConnection by connection {
+                override fun pollMailBatch(maxMail: Int): List<ByteArray> {
+                    val mails = connection.pollMailBatch(maxMail)
+                    if (corrupted || mails.isEmpty()) return mails
+                    corrupted = true
+                    return listOf(ByteArray(mails[0].size)) + mails.drop(1)
+                }
+            }
+        }
+    }
+
     private fun randomHash(): SHA256Hash = SHA256Hash.wrap(ByteArray(32).also(Noise::random))
 
     class EchoEnclave : Enclave() {
         override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            if (String(mail.bodyAsBytes) == "throw") throw EnclaveException("throw")
             postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
         }
     }
@@ -1,9 +1,13 @@
 package com.r3.conclave.client
 
+import com.r3.conclave.common.SHA256Hash
+import com.r3.conclave.common.kds.KDSKeySpec
+import com.r3.conclave.common.kds.MasterKeyType
 import com.r3.conclave.enclave.Enclave
 import com.r3.conclave.host.EnclaveHost
 import com.r3.conclave.host.MailCommand
 import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.internaltesting.kds.MockKDS
 import com.r3.conclave.mail.Curve25519PrivateKey
 import com.r3.conclave.mail.EnclaveMail
 import com.r3.conclave.mail.PostOffice
@@ -11,9 +15,20 @@ import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Files
+import java.nio.file.Path
+import java.security.PublicKey
+import java.time.Duration
+import java.util.*
 
 class PostOfficeBuilderTest {
     private lateinit var enclaveHost: EnclaveHost
+    private val kdsKeySpec = KDSKeySpec(
+        "name",
+        MasterKeyType.DEVELOPMENT,
+        "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
+    )
     private var enclaveResponse: ByteArray? = null
 
     @BeforeEach
@@ -62,6 +77,76 @@ class PostOfficeBuilderTest {
         assertThat(postOffice.senderPrivateKey).isEqualTo(privateKey)
     }
 
+    @Test
+    fun `usingKDS with a public key cache only requests the public key once`() {
+        MockKDS().use { kds ->
+            val cache = KDSPublicKeyCache()
+            val publicKey = kdsPublicKey(kds, cache)
+            val cachedPublicKey = kdsPublicKey(kds, cache)
+            assertThat(cachedPublicKey).isEqualTo(publicKey)
+            assertThat(kds.publicKeyRequestCount).hasValue(1)
+
+            cache.invalidate(kdsKeySpec)
+            kdsPublicKey(kds, cache)
+            assertThat(kds.publicKeyRequestCount).hasValue(2)
+        }
+    }
+
+    @Test
+    fun `cached KDS public keys are not affected by later changes to the constraint`() {
+        MockKDS().use { kds ->
+            val cache = KDSPublicKeyCache()
+            val constraint = kds.enclaveConstraint
+            PostOfficeBuilder.usingKDS(kds.url, kdsKeySpec, constraint, cache)
+            constraint.acceptableCodeHashes.clear()
+            constraint.acceptableCodeHashes += SHA256Hash.wrap(ByteArray(32))
+            kdsPublicKey(kds, cache)
+            assertThat(kds.publicKeyRequestCount).hasValue(1)
+        }
+    }
+
+    @Test
+    fun `KDS public keys are expired from the cache`() {
+        MockKDS().use { kds ->
+            val cache = KDSPublicKeyCache(timeToLive = Duration.ofMillis(1))
+            kdsPublicKey(kds, cache)
+            Thread.sleep(2)
+            kdsPublicKey(kds, cache)
+            assertThat(kds.publicKeyRequestCount).hasValue(2)
+        }
+    }
+
+    @Test
+    fun `KDS public key cache can be persisted`(@TempDir dir: Path) {
+        val file = dir.resolve("kds-public-keys")
+        MockKDS().use { kds ->
+            val publicKey = kdsPublicKey(kds, KDSPublicKeyCache(file = file))
+            val cachedPublicKey = kdsPublicKey(kds, KDSPublicKeyCache(file = file))
+            assertThat(cachedPublicKey).isEqualTo(publicKey)
+            assertThat(kds.publicKeyRequestCount).hasValue(1)
+        }
+    }
+
+    @Test
+    fun `tampered KDS public key cache file is not used`(@TempDir dir: Path) {
+        val file = dir.resolve("kds-public-keys")
+        MockKDS().use { kds ->
+            val publicKey = kdsPublicKey(kds, KDSPublicKeyCache(file = file))
+            val fileBytes = Files.readAllBytes(file)
+            val publicKeyIndex = Collections.indexOfSubList(fileBytes.asList(), publicKey.encoded.asList())
+            fileBytes[publicKeyIndex]++
+            Files.write(file, fileBytes)
+
+            val cachedPublicKey = kdsPublicKey(kds, KDSPublicKeyCache(file = file))
+            assertThat(cachedPublicKey).isEqualTo(publicKey)
+            assertThat(kds.publicKeyRequestCount).hasValue(2)
+        }
+    }
+
+    private fun kdsPublicKey(kds: MockKDS, cache: KDSPublicKeyCache): PublicKey {
+        return PostOfficeBuilder.usingKDS(kds.url, kdsKeySpec, kds.enclaveConstraint, cache).build().destinationPublicKey
+    }
+
     private fun deliverAndReceiveMail(postOffice: PostOffice, payload: String): String {
         val encryptedMail = postOffice.encryptMail(payload.toByteArray())
         enclaveHost.deliverMail(encryptedMail, null)
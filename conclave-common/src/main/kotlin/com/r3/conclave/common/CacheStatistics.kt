@@ -0,0 +1,26 @@
+package com.r3.conclave.common
+
+/**
+ * A point-in-time snapshot of the usage of one of Conclave's internal caches.
+ *
+ * @property size The number of entries in the cache when the snapshot was taken.
+ * @property maxSize The maximum number of entries the cache will hold, or zero if it's unbounded.
+ * @property hitCount The number of lookups which found an existing entry.
+ * @property missCount The number of lookups which did not find an entry, either because there was never one or because
+ * it had been evicted.
+ * @property evictionCount The number of entries which have been removed to keep the cache within its size limit or
+ * because they had expired.
+ */
+@Beta
+class CacheStatistics(
+    val size: Int,
+    val maxSize: Int,
+    val hitCount: Long,
+    val missCount: Long,
+    val evictionCount: Long
+) {
+    override fun toString(): String {
+        return "CacheStatistics(size=$size, maxSize=$maxSize, hitCount=$hitCount, missCount=$missCount, " +
+                "evictionCount=$evictionCount)"
+    }
+}
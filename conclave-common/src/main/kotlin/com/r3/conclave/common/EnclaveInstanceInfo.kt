@@ -4,6 +4,7 @@ import com.r3.conclave.common.internal.EnclaveInstanceInfoImpl
 import com.r3.conclave.common.internal.SignatureSchemeEdDSA
 import com.r3.conclave.common.internal.attestation.Attestation
 import com.r3.conclave.mail.*
+import com.r3.conclave.mail.internal.MailProtocol
 import com.r3.conclave.utilities.internal.getIntLengthPrefixBytes
 import com.r3.conclave.utilities.internal.getSlice
 import java.nio.BufferUnderflowException
@@ -98,6 +99,7 @@ interface EnclaveInstanceInfo {
     companion object {
         private val magic = ByteBuffer.wrap("EII".toByteArray())
         private val signatureScheme = SignatureSchemeEdDSA()
+        private val mailProtocolValues = MailProtocol.values()
 
         /**
          * Deserializes an [EnclaveInstanceInfo] from the given bytes.
@@ -123,7 +125,13 @@ interface EnclaveInstanceInfo {
                 val attestation = Attestation.getFromBuffer(buffer)
                 // New fields need to be behind an availability check before being read. Use dis.available() to check if there
                 // are more bytes available and only parse them if there are. If not then provide defaults.
-                return EnclaveInstanceInfoImpl(dataSigningKey, encryptionKey, attestation)
+                val mailProtocol = if (buffer.hasRemaining()) {
+                    // A protocol from a newer version that we don't know about is ignored.
+                    mailProtocolValues.getOrNull(buffer.get().toInt()) ?: MailProtocol.SENDER_KEY_TRANSMITTED_V2
+                } else {
+                    MailProtocol.SENDER_KEY_TRANSMITTED_V2
+                }
+                return EnclaveInstanceInfoImpl(dataSigningKey, encryptionKey, attestation, mailProtocol)
             } catch (e: BufferUnderflowException) {
                 throw IllegalArgumentException("Truncated EnclaveInstanceInfo bytes", e)
             } catch (e: Exception) {
@@ -37,6 +37,18 @@ import java.util.*
  * information.
  *
  * @property maxPersistentMapSize The maximum size of the persistent map in bytes. Default value is 16MiB.
+ *
+ * @property maxClientCacheSize The maximum number of entries the enclave keeps in each of its per-client caches, which
+ * hold the enclave's post offices and the sequence numbers of received mail. Zero, the default, means no limit.
+ *
+ * @property clientCacheExpirySeconds The number of seconds after which an unused entry is evicted from the enclave's
+ * per-client caches. Zero, the default, means entries do not expire.
+ *
+ * @property evictedClientHistorySize The maximum number of evicted clients whose sequence numbers the enclave remembers.
+ * Once it's reached the enclave refuses mail from new clients. Zero means no limit. The default is 100,000.
+ *
+ * @property maxKdsKeyCacheSize The maximum number of KDS private keys the enclave caches for decrypting mail. Zero, the
+ * default, means no limit.
  */
 class MockConfiguration {
     var codeHash: SHA256Hash? = null
@@ -62,4 +74,28 @@ class MockConfiguration {
 
     var enablePersistentMap: Boolean? = null
     var maxPersistentMapSize: Long? = null
+
+    var maxClientCacheSize: Int? = null
+        set(data) {
+            require(data == null || data >= 0) { "Max client cache size cannot be negative" }
+            field = data
+        }
+
+    var clientCacheExpirySeconds: Long? = null
+        set(data) {
+            require(data == null || data >= 0) { "Client cache expiry cannot be negative" }
+            field = data
+        }
+
+    var evictedClientHistorySize: Int? = null
+        set(data) {
+            require(data == null || data >= 0) { "Evicted client history size cannot be negative" }
+            field = data
+        }
+
+    var maxKdsKeyCacheSize: Int? = null
+        set(data) {
+            require(data == null || data >= 0) { "Max KDS key cache size cannot be negative" }
+            field = data
+        }
 }
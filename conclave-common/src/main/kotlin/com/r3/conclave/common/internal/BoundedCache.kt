@@ -0,0 +1,158 @@
+package com.r3.conclave.common.internal
+
+import com.r3.conclave.common.CacheStatistics
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * A cache which holds at most [maxSize] entries, evicting the least recently used entry when it's full. Entries can
+ * also be made to expire if they haven't been accessed for [expireAfterAccessNanos]. A value of zero for either
+ * disables that limit. If both are zero then the cache is backed by a [ConcurrentHashMap] and no lock is taken.
+ *
+ * [onEviction] is called for every entry removed due to the size limit or expiry, but not for entries removed
+ * explicitly with [remove]. It's called whilst holding the cache's lock, so it must not access the cache itself.
+ *
+ * This class is thread-safe.
+ */
+class BoundedCache<K : Any, V : Any>(
+    val maxSize: Int,
+    private val expireAfterAccessNanos: Long = 0,
+    private val onEviction: ((K, V) -> Unit)? = null,
+    private val nanoTime: () -> Long = System::nanoTime
+) {
+    init {
+        require(maxSize >= 0) { "maxSize cannot be negative." }
+        require(expireAfterAccessNanos >= 0) { "expireAfterAccessNanos cannot be negative." }
+    }
+
+    private class Entry<V>(val value: V, var lastAccess: Long)
+
+    private val isBounded = maxSize > 0 || expireAfterAccessNanos > 0
+    private val unboundedMap: ConcurrentHashMap<K, V>? = if (isBounded) null else ConcurrentHashMap()
+    // Access-ordered, so iteration starts with the least recently used entry. Guarded by this.
+    private val boundedMap: LinkedHashMap<K, Entry<V>>? = if (isBounded) LinkedHashMap(16, 0.75f, true) else null
+
+    private val hitCount = LongAdder()
+    private val missCount = LongAdder()
+    private val evictionCount = LongAdder()
+
+    val size: Int get() = unboundedMap?.size ?: synchronized(this) { boundedMap!!.size }
+
+    operator fun get(key: K): V? {
+        val value = if (unboundedMap != null) {
+            unboundedMap[key]
+        } else {
+            synchronized(this) { getUnexpired(key)?.value }
+        }
+        (if (value != null) hitCount else missCount).increment()
+        return value
+    }
+
+    fun computeIfAbsent(key: K, mappingFunction: (K) -> V): V {
+        if (unboundedMap != null) {
+            unboundedMap[key]?.let {
+                hitCount.increment()
+                return it
+            }
+            missCount.increment()
+            return unboundedMap.computeIfAbsent(key, mappingFunction)
+        }
+        synchronized(this) {
+            val entry = getUnexpired(key)
+            if (entry != null) {
+                hitCount.increment()
+                return entry.value
+            }
+            missCount.increment()
+            val value = mappingFunction(key)
+            putEntry(key, value)
+            return value
+        }
+    }
+
+    operator fun set(key: K, value: V) {
+        if (unboundedMap != null) {
+            unboundedMap[key] = value
+        } else {
+            synchronized(this) { putEntry(key, value) }
+        }
+    }
+
+    fun remove(key: K): V? {
+        return if (unboundedMap != null) {
+            unboundedMap.remove(key)
+        } else {
+            synchronized(this) { boundedMap!!.remove(key)?.value }
+        }
+    }
+
+    /**
+     * Calls [action] on a snapshot of the current, unexpired entries. This does not count as an access.
+     */
+    fun forEach(action: (K, V) -> Unit) {
+        val snapshot = if (unboundedMap != null) {
+            unboundedMap.entries.map { Pair(it.key, it.value) }
+        } else {
+            synchronized(this) {
+                evictExpired(nanoTime())
+                boundedMap!!.map { (key, entry) -> Pair(key, entry.value) }
+            }
+        }
+        for ((key, value) in snapshot) {
+            action(key, value)
+        }
+    }
+
+    fun statistics(): CacheStatistics {
+        return CacheStatistics(size, maxSize, hitCount.sum(), missCount.sum(), evictionCount.sum())
+    }
+
+    private fun getUnexpired(key: K): Entry<V>? {
+        val map = boundedMap!!
+        val entry = map[key] ?: return null
+        val now = nanoTime()
+        if (isExpired(entry, now)) {
+            map.remove(key)
+            evicted(key, entry)
+            return null
+        }
+        entry.lastAccess = now
+        return entry
+    }
+
+    private fun putEntry(key: K, value: V) {
+        val map = boundedMap!!
+        val now = nanoTime()
+        map[key] = Entry(value, now)
+        evictExpired(now)
+        if (maxSize > 0) {
+            val iterator = map.entries.iterator()
+            while (map.size > maxSize) {
+                val eldest = iterator.next()
+                iterator.remove()
+                evicted(eldest.key, eldest.value)
+            }
+        }
+    }
+
+    private fun evictExpired(now: Long) {
+        if (expireAfterAccessNanos == 0L) return
+        val iterator = boundedMap!!.entries.iterator()
+        while (iterator.hasNext()) {
+            val eldest = iterator.next()
+            // Entries are in access order so we can stop at the first one which hasn't expired.
+            if (!isExpired(eldest.value, now)) break
+            iterator.remove()
+            evicted(eldest.key, eldest.value)
+        }
+    }
+
+    private fun isExpired(entry: Entry<V>, now: Long): Boolean {
+        return expireAfterAccessNanos > 0 && now - entry.lastAccess >= expireAfterAccessNanos
+    }
+
+    private fun evicted(key: K, entry: Entry<V>) {
+        evictionCount.increment()
+        onEviction?.invoke(key, entry.value)
+    }
+}
@@ -17,7 +17,17 @@ typealias ByteCursor<T> = Cursor<T, ByteBuffer>
  * @param R the pointed-to data's Kotlin representation type.
  */
 // TODO Endianness should be a property of the Encoder, not the Cursor
-class Cursor<out T : Encoder<R>, R> private constructor(val encoder: T, private val underlyingBuffer: ByteBuffer) {
+class Cursor<out T : Encoder<R>, R> private constructor(val encoder: T, underlyingBuffer: ByteBuffer) {
+    // The position and limit of this buffer are never changed, and its byte order is only set here.
+    private val underlyingBuffer = underlyingBuffer.order(ByteOrder.LITTLE_ENDIAN)
+
+    /**
+     * For a [VariableStruct], the offsets of its fields which come after a variable sized field. These are found in
+     * one pass over the struct the first time one of these fields is accessed.
+     */
+    @Volatile
+    private var variableFieldOffsets: IntArray? = null
+
     companion object {
         /**
          * Allocates a new cursor for an empty fixed size value [T].
@@ -107,11 +117,68 @@ class Cursor<out T : Encoder<R>, R> private constructor(val encoder: T, private
 
     override fun toString(): String = CursorPrettyPrint.print(this)
 
+    /**
+     * Two cursors are equal if they have the same encoder and their encoded bytes are equal. The bytes are compared in
+     * place.
+     */
     override fun equals(other: Any?): Boolean {
-        return this === other || other is Cursor<*, *> && this.encoder == other.encoder && this.read() == other.read()
+        return this === other ||
+                other is Cursor<*, *> && this.encoder == other.encoder && this.underlyingBuffer == other.underlyingBuffer
+    }
+
+    override fun hashCode(): Int = 31 * encoder.hashCode() + underlyingBuffer.hashCode()
+
+    /**
+     * Read an integer field directly from its offset in the struct, without creating a [Cursor] for the field.
+     */
+    fun <FT : FixedEncoder<Int>> readInt(field: AbstractStruct.Field<T, FT>): Int {
+        val index = fieldIndex(field)
+        return when (field.type) {
+            is UInt16 -> underlyingBuffer.getShort(index).toInt() and 0xFFFF
+            is Int32 -> underlyingBuffer.getInt(index)
+            else -> get(field).read()
+        }
+    }
+
+    /**
+     * Read a long field directly from its offset in the struct, without creating a [Cursor] for the field.
+     */
+    fun <FT : FixedEncoder<Long>> readLong(field: AbstractStruct.Field<T, FT>): Long {
+        val index = fieldIndex(field)
+        return when (field.type) {
+            is UInt32 -> underlyingBuffer.getInt(index).toLong() and 0xFFFFFFFFL
+            is Int64 -> underlyingBuffer.getLong(index)
+            else -> get(field).read()
+        }
     }
 
-    override fun hashCode(): Int = 31 * encoder.hashCode() + read().hashCode()
+    /**
+     * Compares the bytes of the field in place with the remaining bytes of [other], without creating a [Cursor] for
+     * the field. The position of [other] is not changed.
+     */
+    fun <FT : FixedEncoder<*>> contentEquals(field: AbstractStruct.Field<T, FT>, other: ByteBuffer): Boolean {
+        val size = field.type.size
+        if (other.remaining() != size) return false
+        val index = fieldIndex(field)
+        val otherIndex = other.position()
+        for (i in 0 until size) {
+            if (underlyingBuffer.get(index + i) != other.get(otherIndex + i)) return false
+        }
+        return true
+    }
+
+    /**
+     * Returns the absolute index of the field in [underlyingBuffer].
+     */
+    private fun fieldIndex(field: AbstractStruct.Field<*, *>): Int {
+        val fixedOffset = field.fixedOffset
+        if (fixedOffset != -1) {
+            return underlyingBuffer.position() + fixedOffset
+        }
+        val offsets = variableFieldOffsets ?: (encoder as VariableStruct).variableFieldOffsets(underlyingBuffer)
+            .also { variableFieldOffsets = it }
+        return underlyingBuffer.position() + offsets[field.variableIndex]
+    }
 
     /**
      * Allows field modifications like so:
@@ -134,8 +201,8 @@ class Cursor<out T : Encoder<R>, R> private constructor(val encoder: T, private
      * ```
      */
     operator fun <FT : Encoder<FR>, FR> get(field: AbstractStruct.Field<T, FT>): Cursor<FT, FR> {
-        val buffer = this.buffer
-        field.align(buffer)
+        val buffer = underlyingBuffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        (buffer as Buffer).position(fieldIndex(field))
         (buffer as Buffer).limit(buffer.position() + field.type.size(buffer))
         return Cursor(field.type, buffer)
     }
@@ -10,7 +10,9 @@ enum class EnclaveCallType {
     GET_ENCLAVE_INSTANCE_INFO_QUOTE,
     GET_KDS_PERSISTENCE_KEY_SPEC,
     SET_KDS_PERSISTENCE_KEY,
-    CALL_MESSAGE_HANDLER;
+    CALL_MESSAGE_HANDLER,
+    GET_KDS_PREFETCH_KEY_SPECS,
+    SET_KDS_PRIVATE_KEY;
 
     fun toByte(): Byte = ordinal.toByte()
 
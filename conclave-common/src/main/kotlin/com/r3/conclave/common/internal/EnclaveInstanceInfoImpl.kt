@@ -10,6 +10,7 @@ import com.r3.conclave.common.internal.SgxReportBody.reportData
 import com.r3.conclave.common.internal.attestation.Attestation
 import com.r3.conclave.mail.Curve25519PublicKey
 import com.r3.conclave.mail.PostOffice
+import com.r3.conclave.mail.internal.MailProtocol
 import com.r3.conclave.utilities.internal.toHexString
 import com.r3.conclave.utilities.internal.writeData
 import com.r3.conclave.utilities.internal.writeIntLengthPrefixBytes
@@ -17,10 +18,16 @@ import java.security.PrivateKey
 import java.security.PublicKey
 import java.security.Signature
 
+/**
+ * @property mailProtocol The mail protocol the enclave would like senders to use. This isn't covered by the attestation
+ * but every enclave which advertises a protocol can decrypt all of them, and so the host can only make mail slower by
+ * changing it.
+ */
 class EnclaveInstanceInfoImpl(
     override val dataSigningKey: PublicKey,
     override val encryptionKey: Curve25519PublicKey,
-    val attestation: Attestation
+    val attestation: Attestation,
+    val mailProtocol: MailProtocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
 ) : EnclaveInstanceInfo {
     override val enclaveInfo: EnclaveInfo
     override val securityInfo: SGXEnclaveSecurityInfo
@@ -37,8 +44,8 @@ class EnclaveInstanceInfoImpl(
         enclaveInfo = EnclaveInfo(
             codeHash = SHA256Hash.get(reportBody[mrenclave].read()),
             codeSigningKeyHash = SHA256Hash.get(reportBody[mrsigner].read()),
-            productID = reportBody[isvProdId].read(),
-            revocationLevel = reportBody[isvSvn].read() - 1,
+            productID = reportBody.readInt(isvProdId),
+            revocationLevel = reportBody.readInt(isvSvn) - 1,
             enclaveMode = attestation.enclaveMode
         )
 
@@ -62,6 +69,11 @@ class EnclaveInstanceInfoImpl(
             writeIntLengthPrefixBytes(dataSigningKey.encoded)
             writeIntLengthPrefixBytes(encryptionKey.encoded)
             attestation.writeTo(this)
+            // Only written if it's not the default so that older versions, which don't support any other protocol,
+            // produce the same bytes.
+            if (mailProtocol != MailProtocol.SENDER_KEY_TRANSMITTED_V2) {
+                writeByte(mailProtocol.ordinal)
+            }
         }
     }
 
@@ -78,6 +90,7 @@ class EnclaveInstanceInfoImpl(
         if (dataSigningKey != other.dataSigningKey) return false
         if (encryptionKey != other.encryptionKey) return false
         if (attestation != other.attestation) return false
+        if (mailProtocol != other.mailProtocol) return false
 
         return true
     }
@@ -86,6 +99,7 @@ class EnclaveInstanceInfoImpl(
         var result = dataSigningKey.hashCode()
         result = 31 * result + encryptionKey.hashCode()
         result = 31 * result + attestation.hashCode()
+        result = 31 * result + mailProtocol.hashCode()
         return result
     }
 
@@ -106,6 +120,7 @@ class EnclaveInstanceInfoImpl(
         PostOffice(senderPrivateKey, topic) {
         override val destinationPublicKey: PublicKey get() = this@EnclaveInstanceInfoImpl.encryptionKey
         override val keyDerivation: ByteArray get() = this@EnclaveInstanceInfoImpl.keyDerivation
+        override val mailProtocol: MailProtocol get() = this@EnclaveInstanceInfoImpl.mailProtocol
     }
 
     companion object {
@@ -79,7 +79,17 @@ abstract class ByteBufferEncoder : FixedEncoder<ByteBuffer>() {
 interface AbstractStruct {
     interface Field<in S : Encoder<*>, T : Encoder<*>> {
         val type: T
-        fun align(buffer: ByteBuffer)
+
+        /**
+         * The offset of the field from the start of the struct, or -1 if it comes after a variable sized field, in
+         * which case its offset is at [variableIndex] in [VariableStruct.variableFieldOffsets].
+         */
+        val fixedOffset: Int
+
+        /**
+         * The index of the field's offset in [VariableStruct.variableFieldOffsets], or -1 if it has a [fixedOffset].
+         */
+        val variableIndex: Int
     }
 }
 
@@ -92,15 +102,12 @@ abstract class Struct : AbstractStruct, ByteBufferEncoder() {
     final override val size get() = structSize
 
     private inner class Field<in S : Struct, T : FixedEncoder<*>>(override val type: T) : AbstractStruct.Field<S, T> {
-        private val offset = structSize
+        override val fixedOffset = structSize
+        override val variableIndex: Int get() = -1
 
         init {
             structSize += type.size
         }
-
-        override fun align(buffer: ByteBuffer) {
-            buffer.addPosition(offset)
-        }
     }
 
     protected fun <S : Struct, T : FixedEncoder<*>> S.field(type: T): AbstractStruct.Field<S, T> = Field(type)
@@ -116,8 +123,9 @@ abstract class VariableStruct : AbstractStruct, VariableEncoder<ByteBuffer>() {
 
     private inner class Field<in S : VariableStruct, T : Encoder<*>>(override val type: T) :
         AbstractStruct.Field<S, T> {
-        private val fixedOffset = startingFixedSize
-        private val encodersIndex = fieldEncoders?.size ?: -1
+        // The first variable sized field is at the end of the fixed size fields, and so doesn't need an index.
+        override val variableIndex = fieldEncoders?.size ?: -1
+        override val fixedOffset = if (variableIndex == -1) startingFixedSize else -1
 
         init {
             if (type is FixedEncoder<*> && fieldEncoders == null) {
@@ -129,16 +137,6 @@ abstract class VariableStruct : AbstractStruct, VariableEncoder<ByteBuffer>() {
             }
             structMinSize += type.minSize
         }
-
-        override fun align(buffer: ByteBuffer) {
-            buffer.addPosition(fixedOffset)
-            val encoders = fieldEncoders
-            if (encoders != null) {
-                for (i in 0 until encodersIndex) {
-                    encoders[i].skip(buffer)
-                }
-            }
-        }
     }
 
     final override val minSize: Int get() = structMinSize
@@ -159,6 +157,21 @@ abstract class VariableStruct : AbstractStruct, VariableEncoder<ByteBuffer>() {
         return buffer.getSlice(size).asReadOnlyBuffer()
     }
 
+    /**
+     * Returns the offsets, relative to the current position of [buffer], of the fields which come after the first
+     * variable sized field, in a single pass over the struct. The buffer is not changed by this method.
+     */
+    fun variableFieldOffsets(buffer: ByteBuffer): IntArray {
+        val encoders = fieldEncoders ?: return IntArray(0)
+        val slice = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+        slice.addPosition(startingFixedSize)
+        return IntArray(encoders.size) { index ->
+            val offset = slice.position()
+            encoders[index].skip(slice)
+            offset
+        }
+    }
+
     protected fun <S : VariableStruct, T : Encoder<*>> S.field(type: T): AbstractStruct.Field<S, T> = Field(type)
 }
 
@@ -264,7 +264,7 @@ object SgxSignedQuote : VariableStruct() {
 }
 
 fun ByteCursor<SgxSignedQuote>.toEcdsaP256AuthData(): ByteCursor<SgxEcdsa256BitQuoteAuthData> {
-    check(this[quote][signType].read() == SgxQuoteSignType.ECDSA_P256) {
+    check(this[quote].readInt(signType) == SgxQuoteSignType.ECDSA_P256) {
         "Not a ECDSA-256-with-P-256 auth data."
     }
     return Cursor.slice(SgxEcdsa256BitQuoteAuthData, this[signature].read())
@@ -619,7 +619,7 @@ object SgxQeCertData : VariableStruct() {
 }
 
 fun ByteCursor<SgxQeCertData>.toPckCertPath(): CertPath {
-    check(this[type].read() == 5) { "Not a PCK cert path: ${this[type].read()}" }
+    check(readInt(type) == 5) { "Not a PCK cert path: ${readInt(type)}" }
     // There's a trailing byte which we ignore
     return AttestationUtils.parsePemCertPath(this[data].read(), trailingBytes = 1)
 }
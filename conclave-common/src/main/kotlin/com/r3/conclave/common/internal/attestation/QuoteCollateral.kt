@@ -10,6 +10,7 @@ import java.nio.ByteBuffer
 import java.security.cert.CertPath
 import java.security.cert.CertificateFactory
 import java.security.cert.X509CRL
+import java.util.*
 
 data class QuoteCollateral(
     val version: Int,
@@ -21,6 +22,9 @@ data class QuoteCollateral(
     val rawQeIdentityIssuerChain: OpaqueBytes,
     val rawSignedQeIdentity: OpaqueBytes
 ) {
+    // The collateral is tens of kilobytes and is used as a cache key, so its hash code is only computed once.
+    private var cachedHashCode = 0
+
     val rootCaCrl: X509CRL by lazy { parseCRL(rawRootCaCrl) }
 
     val pckCrl: X509CRL by lazy { parseCRL(rawPckCrl) }
@@ -37,6 +41,24 @@ data class QuoteCollateral(
         SignedEnclaveIdentity.fromJson(attestationObjectMapper.readTree(rawSignedQeIdentity.inputStream()))
     }
 
+    override fun hashCode(): Int {
+        var result = cachedHashCode
+        if (result == 0) {
+            result = Objects.hash(
+                version,
+                rawPckCrlIssuerChain,
+                rawRootCaCrl,
+                rawPckCrl,
+                rawTcbInfoIssuerChain,
+                rawSignedTcbInfo,
+                rawQeIdentityIssuerChain,
+                rawSignedQeIdentity
+            )
+            cachedHashCode = result
+        }
+        return result
+    }
+
     private fun parseCertPath(bytes: OpaqueBytes): CertPath {
         return AttestationUtils.parsePemCertPath(bytes.inputStream())
     }
@@ -23,7 +23,10 @@ import com.r3.conclave.common.internal.attestation.AttestationUtils.parseRawEcds
 import com.r3.conclave.common.internal.attestation.AttestationUtils.sgxExtension
 import com.r3.conclave.common.internal.attestation.QuoteVerifier.EnclaveReportStatus.*
 import com.r3.conclave.common.internal.attestation.QuoteVerifier.ErrorStatus.*
+import com.r3.conclave.utilities.internal.EnclaveContext
+import com.r3.conclave.utilities.internal.addPosition
 import com.r3.conclave.utilities.internal.digest
+import com.r3.conclave.utilities.internal.getRemainingBytes
 import com.r3.conclave.utilities.internal.getUnsignedInt
 import com.r3.conclave.utilities.internal.rootX509Cert
 import com.r3.conclave.utilities.internal.x509Certs
@@ -33,6 +36,7 @@ import java.security.PublicKey
 import java.security.Signature
 import java.security.cert.*
 import java.time.Instant
+import java.util.concurrent.CompletableFuture
 import javax.security.auth.x500.X500Principal
 
 object QuoteVerifier {
@@ -66,6 +70,12 @@ object QuoteVerifier {
 
     private const val QUOTE_VERSION = 3
 
+    /** Everything in the auth data after the ISV report signature depends only on the platform's quoting enclave. */
+    private val QE_DATA_OFFSET = SgxEcdsa256BitSignature.size
+
+    private const val MAX_CACHED_COLLATERALS = 16
+    private const val MAX_CACHED_PLATFORMS = 256
+
     private const val INTEL_SUBJECT_PREFIX = "C=US, ST=CA, L=Santa Clara, O=Intel Corporation, "
     private val SGX_ROOT_CA_DN = X500Principal(INTEL_SUBJECT_PREFIX + "CN=Intel SGX Root CA")
     private val SGX_INTERMEDIATE_DN_PLATFORM = X500Principal(INTEL_SUBJECT_PREFIX + "CN=Intel SGX PCK Platform CA")
@@ -102,47 +112,147 @@ object QuoteVerifier {
         collateralVersions = listOf(qveCollateralVersion1, qveCollateralVersion3, qveCollateralVersion31, qveCollateralVersion4)
     }
 
+    /**
+     * The results of the checks which only depend on the collateral, which is the same for all quotes from platforms
+     * of the same type.
+     */
+    private val verifiedCollaterals = BoundedCache<QuoteCollateral, CollateralVerification>(MAX_CACHED_COLLATERALS)
+
+    /**
+     * The results of the checks which only depend on the collateral and the platform's quoting enclave, i.e. everything
+     * in the quote's auth data apart from the signature over the quote itself.
+     */
+    private val verifiedPlatforms = BoundedCache<PlatformKey, PlatformVerification>(MAX_CACHED_PLATFORMS)
+
+    private val ecdsaVerifier = ThreadLocal.withInitial { Signature.getInstance("SHA256withECDSA") }
+    private val pkixValidator = ThreadLocal.withInitial { CertPathValidator.getInstance("PKIX") }
+
     // QuoteVerification/QvE/Enclave/qve.cpp:sgx_qve_verify_quote
     fun verify(
         signedQuote: ByteCursor<SgxSignedQuote>,
         collateral: QuoteCollateral
     ): Pair<VerificationStatus, Instant> {
         val authData = signedQuote.toEcdsaP256AuthData()
-        val pckCertPath = authData[qeCertData].toPckCertPath()
+
+        // The checks are memoised independently of their outcome, and so the first failure is reported in the same
+        // order as if they were done every time.
+        val collateralVerification = verifiedCollaterals[collateral]
+            ?: verifyCollateral(collateral).also { verifiedCollaterals[collateral] = it }
+        val qeData = authData.buffer.apply { addPosition(QE_DATA_OFFSET) }.getRemainingBytes()
+        // The cached collateral is used from here on. Its TCB info has already been parsed, and the platform cache key
+        // compares equal to it by identity rather than by comparing all of its bytes again.
+        val cachedCollateral = collateralVerification.collateral
+        val platformKey = PlatformKey(cachedCollateral, OpaqueBytes(qeData))
+        val platformVerification = verifiedPlatforms[platformKey]
+            ?: verifyPlatform(authData, collateralVerification).also { verifiedPlatforms[platformKey] = it }
 
         val verificationStatus = try {
-            verifyCollateralVersion(collateral.version)
-            verifyPckCertificate(pckCertPath, collateral)
-            verifyTcbInfo(collateral)
-            verifyQeIdentity(collateral)
+            collateralVerification.versionCheck.rethrow()
+            platformVerification.pckCertificateCheck.rethrow()
+            collateralVerification.tcbInfoCheck.rethrow()
+            collateralVerification.qeIdentityCheck.rethrow()
             verifyQuote(
                 signedQuote[quote],
                 authData,
-                pckCertPath.x509Certs[0],
-                collateral.pckCrl,
-                collateral.signedTcbInfo.tcbInfo,
-                collateral.signedQeIdentity.enclaveIdentity
+                platformVerification,
+                collateralVerification.tcbInfo
             )
         } catch (e: VerificationException) {
             e.status
         }
 
-        val latestIssueTime = getLatestIssueTime(pckCertPath, collateral)
+        return Pair(verificationStatus, platformVerification.latestIssueTime)
+    }
+
+    private fun verifyCollateral(collateral: QuoteCollateral): CollateralVerification {
+        // Parsed up front as every verification needs them, whatever the outcome of the checks.
+        val tcbInfo = collateral.signedTcbInfo.tcbInfo
+        val qeIdentity = collateral.signedQeIdentity.enclaveIdentity
+        val versionCheck = runCheck { verifyCollateralVersion(collateral.version) }
+        // The TCB info and QE identity are signed independently of each other. Threads are a limited resource inside
+        // an enclave though, so they're only verified in parallel outside of one.
+        val tcbInfoCheck = if (EnclaveContext.isInsideEnclave()) {
+            CompletableFuture.completedFuture(runCheck { verifyTcbInfo(collateral) })
+        } else {
+            CompletableFuture.supplyAsync { runCheck { verifyTcbInfo(collateral) } }
+        }
+        val qeIdentityCheck = runCheck { verifyQeIdentity(collateral) }
+        return CollateralVerification(
+            collateral,
+            tcbInfo,
+            qeIdentity,
+            versionCheck,
+            tcbInfoCheck.join(),
+            qeIdentityCheck
+        )
+    }
 
-        return Pair(verificationStatus, latestIssueTime)
+    private fun verifyPlatform(
+        authData: ByteCursor<SgxEcdsa256BitQuoteAuthData>,
+        collateralVerification: CollateralVerification
+    ): PlatformVerification {
+        val collateral = collateralVerification.collateral
+        val tcbInfo = collateralVerification.tcbInfo
+        val pckCertPath = authData[qeCertData].toPckCertPath()
+        val pckCertificateCheck = runCheck { verifyPckCertificate(pckCertPath, collateral) }
+        var pckExtension: SGXExtensionASN1Parser? = null
+        var qeIdentityStatus: EnclaveReportStatus? = null
+        val qeCheck = runCheck {
+            val pckCert = pckCertPath.x509Certs[0]
+            val pckCrl = collateral.pckCrl
+
+            verify(SGX_PCK_DN == pckCert.subjectX500Principal, INVALID_PCK_CERT)
+            verify(
+                listOf(SGX_INTERMEDIATE_DN_PLATFORM, SGX_INTERMEDIATE_DN_PROCESSOR).contains(pckCrl.issuerX500Principal),
+                INVALID_PCK_CRL
+            )
+
+            verify(pckCrl.issuerX500Principal == pckCert.issuerX500Principal, INVALID_PCK_CRL)
+            verify(!pckCrl.isRevoked(pckCert), PCK_REVOKED)
+
+            val extension = pckCert.sgxExtension
+            pckExtension = extension
+
+            verify(extension.getBytes(SGX_FMSPC_OID) == tcbInfo.fmspc.buffer(), TCB_INFO_MISMATCH)
+            verify(extension.getBytes(SGX_PCEID_OID) == tcbInfo.pceId.buffer(), TCB_INFO_MISMATCH)
+            verifyQeReportSignature(authData, pckCert)
+            verifyAttestationKeyAndQeReportDataHash(authData)
+
+            val status = verifyEnclaveReport(authData[qeReport], collateralVerification.qeIdentity)
+            when (status) {
+                MISCSELECT_MISMATCH,
+                ATTRIBUTES_MISMATCH,
+                MRSIGNER_MISMATCH,
+                ISVPRODID_MISMATCH -> throw VerificationException(QE_IDENTITY_MISMATCH)
+
+                else -> {
+                }
+            }
+            qeIdentityStatus = status
+        }
+        return PlatformVerification(
+            pckCertificateCheck,
+            qeCheck,
+            pckExtension,
+            qeIdentityStatus,
+            getLatestIssueTime(pckCertPath, collateralVerification)
+        )
     }
 
-    private fun getLatestIssueTime(pckCertPath: CertPath, collateral: QuoteCollateral): Instant {
+    private fun getLatestIssueTime(pckCertPath: CertPath, collateralVerification: CollateralVerification): Instant {
+        val collateral = collateralVerification.collateral
+        val tcbInfo = collateralVerification.tcbInfo
+        val qeIdentity = collateralVerification.qeIdentity
         var latestIssueTime = pckCertPath.rootX509Cert.notBefore.toInstant()
         latestIssueTime = pckCertPath.x509Certs.maxOf(latestIssueTime) { it.notBefore.toInstant() }
         latestIssueTime = maxOf(collateral.rootCaCrl.thisUpdate.toInstant(), latestIssueTime)
         latestIssueTime = maxOf(collateral.pckCrl.thisUpdate.toInstant(), latestIssueTime)
         latestIssueTime = collateral.tcbInfoIssuerChain.x509Certs.maxOf(latestIssueTime) { it.notBefore.toInstant() }
-        latestIssueTime = maxOf(collateral.signedTcbInfo.tcbInfo.issueDate, latestIssueTime)
-        latestIssueTime = collateral.signedTcbInfo.tcbInfo.tcbLevels.maxOf(latestIssueTime) { it.tcbDate }
+        latestIssueTime = maxOf(tcbInfo.issueDate, latestIssueTime)
+        latestIssueTime = tcbInfo.tcbLevels.maxOf(latestIssueTime) { it.tcbDate }
         latestIssueTime = collateral.qeIdentityIssuerChain.x509Certs.maxOf(latestIssueTime) { it.notBefore.toInstant() }
-        latestIssueTime = maxOf(collateral.signedQeIdentity.enclaveIdentity.issueDate, latestIssueTime)
-        latestIssueTime = collateral.signedQeIdentity.enclaveIdentity.tcbLevels.maxOf(latestIssueTime) { it.tcbDate }
+        latestIssueTime = maxOf(qeIdentity.issueDate, latestIssueTime)
+        latestIssueTime = qeIdentity.tcbLevels.maxOf(latestIssueTime) { it.tcbDate }
         return latestIssueTime
     }
 
@@ -156,51 +266,25 @@ object QuoteVerifier {
     private fun verifyQuote(
         quote: ByteCursor<SgxQuote>,
         authData: ByteCursor<SgxEcdsa256BitQuoteAuthData>,
-        pckCert: X509Certificate,
-        pckCrl: X509CRL,
-        tcbInfo: TcbInfo,
-        qeIdentity: EnclaveIdentity
+        platformVerification: PlatformVerification,
+        tcbInfo: TcbInfo
     ): TcbStatus {
-        verify(quote[version].read() == QUOTE_VERSION, UNSUPPORTED_QUOTE_FORMAT)
+        verify(quote.readInt(version) == QUOTE_VERSION, UNSUPPORTED_QUOTE_FORMAT)
 
-        verify(SGX_PCK_DN == pckCert.subjectX500Principal, INVALID_PCK_CERT)
-        verify(
-            listOf(SGX_INTERMEDIATE_DN_PLATFORM, SGX_INTERMEDIATE_DN_PROCESSOR).contains(pckCrl.issuerX500Principal),
-            INVALID_PCK_CRL
-        )
-
-        verify(pckCrl.issuerX500Principal == pckCert.issuerX500Principal, INVALID_PCK_CRL)
-        verify(!pckCrl.isRevoked(pckCert), PCK_REVOKED)
-
-        val pckExtension = pckCert.sgxExtension
-
-        verify(pckExtension.getBytes(SGX_FMSPC_OID) == tcbInfo.fmspc.buffer(), TCB_INFO_MISMATCH)
-        verify(pckExtension.getBytes(SGX_PCEID_OID) == tcbInfo.pceId.buffer(), TCB_INFO_MISMATCH)
-        verifyQeReportSignature(authData, pckCert)
-        verifyAttestationKeyAndQeReportDataHash(authData)
-
-        val qeIdentityStatus = verifyEnclaveReport(authData[qeReport], qeIdentity)
-        when (qeIdentityStatus) {
-            MISCSELECT_MISMATCH,
-            ATTRIBUTES_MISMATCH,
-            MRSIGNER_MISMATCH,
-            ISVPRODID_MISMATCH -> throw VerificationException(QE_IDENTITY_MISMATCH)
-
-            else -> {
-            }
-        }
+        // The PCK certificate and QE report checks which come next don't depend on the quote itself.
+        platformVerification.qeCheck.rethrow()
 
         verifyIsvReportSignature(authData, quote)
 
-        val tcbLevelStatus = checkTcbLevel(pckExtension, tcbInfo)
-        return convergeTcbStatus(tcbLevelStatus, qeIdentityStatus)
+        val tcbLevelStatus = checkTcbLevel(platformVerification.pckExtension!!, tcbInfo)
+        return convergeTcbStatus(tcbLevelStatus, platformVerification.qeIdentityStatus)
     }
 
     private fun verifyIsvReportSignature(
         authData: ByteCursor<SgxEcdsa256BitQuoteAuthData>,
         quote: ByteCursor<SgxQuote>
     ) {
-        Signature.getInstance("SHA256withECDSA").apply {
+        ecdsaVerifier.get().apply {
             initVerify(authData[ecdsaAttestationKey].toPublicKey())
             update(quote.buffer)
             verify(verify(authData[ecdsa256BitSignature].toDerEncoding()), INVALID_QUOTE_SIGNATURE)
@@ -208,7 +292,7 @@ object QuoteVerifier {
     }
 
     private fun verifyQeReportSignature(authData: ByteCursor<SgxEcdsa256BitQuoteAuthData>, pckCert: X509Certificate) {
-        Signature.getInstance("SHA256withECDSA").apply {
+        ecdsaVerifier.get().apply {
             initVerify(pckCert)
             update(authData[qeReport].buffer)
             verify(verify(authData[qeReportSignature].toDerEncoding()), INVALID_QE_REPORT_SIGNATURE)
@@ -298,7 +382,7 @@ object QuoteVerifier {
         // JSON objects are *unordered* key/value pairs, and the encoding for any hex fields for this API accepts both
         // upper and lower case chars. So for these reasons we play it safe and verify over the body as it appears in the
         // raw JSON.
-        val verifier = Signature.getInstance("SHA256withECDSA")
+        val verifier = ecdsaVerifier.get()
         verifier.initVerify(cert)
         val signedBytesLimit = rawJson.buffer().lastIndexOf(JSON_SIGNATURE_MARKER) + 1
         val signedBytesView = rawJson.buffer().setView(prefix.length, signedBytesLimit)
@@ -331,7 +415,7 @@ object QuoteVerifier {
             isRevocationEnabled = false
             date = certTime
         }
-        CertPathValidator.getInstance("PKIX").validate(chain, pkixParameters)
+        pkixValidator.get().validate(chain, pkixParameters)
     }
 
     private fun verifyAgainstCrl(cert: X509Certificate, crl: X509CRL) {
@@ -379,7 +463,7 @@ object QuoteVerifier {
         // enclave report body is in little-endian.
         val miscselectMask = enclaveIdentity.miscselectMask.buffer().getUnsignedInt()
         val miscselect = enclaveIdentity.miscselect.buffer().getUnsignedInt()
-        if ((enclaveReportBody[miscSelect].read() and miscselectMask) != miscselect) {
+        if ((enclaveReportBody.readLong(miscSelect) and miscselectMask) != miscselect) {
             return MISCSELECT_MISMATCH
         }
 
@@ -391,15 +475,15 @@ object QuoteVerifier {
                 return ATTRIBUTES_MISMATCH
         }
 
-        if (enclaveReportBody[mrsigner].read() != enclaveIdentity.mrsigner.buffer()) {
+        if (!enclaveReportBody.contentEquals(mrsigner, enclaveIdentity.mrsigner.buffer())) {
             return MRSIGNER_MISMATCH
         }
 
-        if (enclaveReportBody[isvProdId].read() != enclaveIdentity.isvprodid) {
+        if (enclaveReportBody.readInt(isvProdId) != enclaveIdentity.isvprodid) {
             return ISVPRODID_MISMATCH
         }
 
-        val isvSvn = enclaveReportBody[isvSvn].read()
+        val isvSvn = enclaveReportBody.readInt(isvSvn)
         val tcbStatus = getTcbStatus(isvSvn, enclaveIdentity.tcbLevels)
         if (tcbStatus != EnclaveTcbStatus.UpToDate) {
             return if (tcbStatus == EnclaveTcbStatus.Revoked) ISVSVN_REVOKED else ISVSVN_OUT_OF_DATE
@@ -518,6 +602,58 @@ object QuoteVerifier {
         return this
     }
 
+    /**
+     * Run a check, capturing its outcome so that it can be memoised and [rethrow]n later.
+     */
+    private inline fun runCheck(block: () -> Unit): CheckResult {
+        return try {
+            block()
+            CheckResult.PASSED
+        } catch (e: VerificationException) {
+            CheckResult(e.status, null)
+        } catch (e: Exception) {
+            CheckResult(null, e)
+        }
+    }
+
+    private class CheckResult(private val status: ErrorStatus?, private val exception: Exception?) {
+        /**
+         * The result may be shared by several threads, so the captured exception is wrapped in a new one each time
+         * rather than being thrown, and its stack trace and suppressed exceptions modified, more than once.
+         */
+        fun rethrow() {
+            if (exception != null) {
+                throw IllegalStateException("Unable to verify the quote: ${exception.message}", exception)
+            }
+            if (status != null) throw VerificationException(status)
+        }
+
+        companion object {
+            val PASSED = CheckResult(null, null)
+        }
+    }
+
+    private class CollateralVerification(
+        /** The collateral the checks were done on, which is also the key for this in [verifiedCollaterals]. */
+        val collateral: QuoteCollateral,
+        val tcbInfo: TcbInfo,
+        val qeIdentity: EnclaveIdentity,
+        val versionCheck: CheckResult,
+        val tcbInfoCheck: CheckResult,
+        val qeIdentityCheck: CheckResult
+    )
+
+    private data class PlatformKey(val collateral: QuoteCollateral, val qeData: OpaqueBytes)
+
+    private class PlatformVerification(
+        val pckCertificateCheck: CheckResult,
+        val qeCheck: CheckResult,
+        /** Only null if [qeCheck] failed. */
+        val pckExtension: SGXExtensionASN1Parser?,
+        val qeIdentityStatus: EnclaveReportStatus?,
+        val latestIssueTime: Instant
+    )
+
     private class VerificationException(val status: ErrorStatus, cause: Throwable? = null) : Exception(cause)
 }
 
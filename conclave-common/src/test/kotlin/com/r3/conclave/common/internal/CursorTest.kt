@@ -0,0 +1,58 @@
+package com.r3.conclave.common.internal
+
+import com.r3.conclave.common.internal.SgxReportBody.isvProdId
+import com.r3.conclave.common.internal.SgxReportBody.isvSvn
+import com.r3.conclave.common.internal.SgxReportBody.miscSelect
+import com.r3.conclave.common.internal.SgxReportBody.mrenclave
+import com.r3.conclave.common.internal.SgxReportBody.mrsigner
+import com.r3.conclave.utilities.internal.getRemainingBytes
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.random.Random
+
+class CursorTest {
+    private val reportBodyBytes = Random.nextBytes(SgxReportBody.size)
+    private val reportBody = Cursor.wrap(SgxReportBody, reportBodyBytes)
+
+    @Test
+    fun `flyweight accessors match reading the field cursors`() {
+        assertThat(reportBody.readInt(isvProdId)).isEqualTo(reportBody[isvProdId].read())
+        assertThat(reportBody.readInt(isvSvn)).isEqualTo(reportBody[isvSvn].read())
+        assertThat(reportBody.readLong(miscSelect)).isEqualTo(reportBody[miscSelect].read())
+        assertThat(reportBody.contentEquals(mrsigner, reportBody[mrsigner].read())).isTrue
+        assertThat(reportBody.contentEquals(mrsigner, reportBody[mrenclave].read())).isFalse
+        assertThat(reportBody.contentEquals(mrsigner, ByteBuffer.allocate(1))).isFalse
+    }
+
+    @Test
+    fun `cursors are equal if their bytes are equal`() {
+        val padded = ByteArray(reportBodyBytes.size + 10)
+        reportBodyBytes.copyInto(padded, destinationOffset = 5)
+        val other = Cursor.wrap(SgxReportBody, padded, 5, reportBodyBytes.size)
+        assertThat(other).isEqualTo(reportBody)
+        assertThat(other.hashCode()).isEqualTo(reportBody.hashCode())
+        assertThat(other[mrsigner]).isEqualTo(reportBody[mrsigner])
+
+        padded[5] = (padded[5] + 1).toByte()
+        assertThat(other).isNotEqualTo(reportBody)
+    }
+
+    @Test
+    fun `fields after variable sized fields`() {
+        val fixedSize = 2 * SgxEcdsa256BitSignature.size + SgxEcdsa256BitPubkey.size + SgxReportBody.size
+        val certData = byteArrayOf(1, 2, 3, 4)
+        val buffer = ByteBuffer.allocate(fixedSize + 2 + 3 + 2 + 4 + certData.size).order(ByteOrder.LITTLE_ENDIAN)
+        buffer.put(Random.nextBytes(fixedSize))
+        buffer.putShort(3).put(byteArrayOf(7, 8, 9))
+        buffer.putShort(5).putInt(certData.size).put(certData)
+        val authData = Cursor.wrap(SgxEcdsa256BitQuoteAuthData, buffer.array())
+
+        assertThat(authData[SgxEcdsa256BitQuoteAuthData.qeAuthData].read().getRemainingBytes())
+            .containsExactly(7, 8, 9)
+        val qeCertData = authData[SgxEcdsa256BitQuoteAuthData.qeCertData]
+        assertThat(qeCertData.readInt(SgxQeCertData.type)).isEqualTo(5)
+        assertThat(qeCertData[SgxQeCertData.data].read().getRemainingBytes()).isEqualTo(certData)
+    }
+}
@@ -1,10 +1,14 @@
 package com.r3.conclave.common.internal
 
+import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.common.OpaqueBytes
 import com.r3.conclave.common.SHA256Hash
 import com.r3.conclave.common.SHA512Hash
 import com.r3.conclave.common.internal.attestation.MockAttestation
 import com.r3.conclave.mail.Curve25519PrivateKey
+import com.r3.conclave.mail.internal.MailProtocol
+import com.r3.conclave.mail.internal.MailProtocol.SENDER_KEY_TRANSMITTED_V2
+import com.r3.conclave.mail.internal.MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.assertThatIllegalArgumentException
 import org.junit.jupiter.api.Test
@@ -72,11 +76,25 @@ class EnclaveInstanceInfoImplTest {
         assertThat(securityInfo.cpuSVN).isEqualTo(cpuSvn)
     }
 
-    private fun newInstance(): EnclaveInstanceInfoImpl {
+    @Test
+    fun `mail protocol is only serialised if it's not the default`() {
+        val default = newInstance()
+        val chaChaPoly = newInstance(SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY)
+        assertThat(chaChaPoly.serialize()).hasSize(default.serialize().size + 1)
+        assertThat(EnclaveInstanceInfo.deserialize(chaChaPoly.serialize())).isEqualTo(chaChaPoly)
+        assertThat(EnclaveInstanceInfo.deserialize(default.serialize())).isEqualTo(default)
+
+        // A protocol from a newer version is ignored.
+        val unknownProtocol = EnclaveInstanceInfo.deserialize(default.serialize() + 100.toByte())
+        assertThat((unknownProtocol as EnclaveInstanceInfoImpl).mailProtocol).isEqualTo(SENDER_KEY_TRANSMITTED_V2)
+    }
+
+    private fun newInstance(mailProtocol: MailProtocol = SENDER_KEY_TRANSMITTED_V2): EnclaveInstanceInfoImpl {
         return EnclaveInstanceInfoImpl(
             signingKeyPair.public,
             encryptionPrivateKey.publicKey,
-            MockAttestation(timestamp, reportBody.asReadOnly(), false)
+            MockAttestation(timestamp, reportBody.asReadOnly(), false),
+            mailProtocol
         )
     }
 }
@@ -5,7 +5,9 @@ import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.common.OpaqueBytes
 import com.r3.conclave.common.internal.Cursor
 import com.r3.conclave.common.internal.EnclaveInstanceInfoImpl
+import com.r3.conclave.common.internal.SgxQuote.reportBody
 import com.r3.conclave.common.internal.SgxQuote.signType
+import com.r3.conclave.common.internal.SgxReportBody
 import com.r3.conclave.common.internal.SgxQuote.version
 import com.r3.conclave.common.internal.SgxSignedQuote
 import com.r3.conclave.common.internal.SgxSignedQuote.quote
@@ -104,6 +106,20 @@ class QuoteVerifierTest {
         assertThat(verificationStatus).isEqualTo(QuoteVerifier.ErrorStatus.UNSUPPORTED_QUOTE_FORMAT)
     }
 
+    @Test
+    fun `tampered quote fails even though its platform and collateral have already been verified`() {
+        val (signedQuote, collateral) = loadSampleDcapAttestation()
+        assertThat(QuoteVerifier.verify(signedQuote, collateral).first).isEqualTo(TcbStatus.UpToDate)
+
+        val tamperedSignedQuote = Cursor.wrap(SgxSignedQuote, signedQuote.bytes)
+        val reportData = tamperedSignedQuote[quote][reportBody][SgxReportBody.reportData]
+        val tamperedReportData = reportData.bytes.also { it[0]++ }
+        reportData.write(ByteBuffer.wrap(tamperedReportData))
+
+        val (verificationStatus) = QuoteVerifier.verify(tamperedSignedQuote, collateral)
+        assertThat(verificationStatus).isEqualTo(QuoteVerifier.ErrorStatus.INVALID_QUOTE_SIGNATURE)
+    }
+
     @Test
     fun `invalid attestation key type`() {
         val (signedQuote, collateral) = loadSampleDcapAttestation()
@@ -20,6 +20,7 @@ import com.r3.conclave.mail.*
 import com.r3.conclave.mail.internal.DecryptedEnclaveMail
 import com.r3.conclave.mail.internal.EnclaveStateId
 import com.r3.conclave.mail.internal.MailDecryptingStream
+import com.r3.conclave.mail.internal.MailProtocol
 import com.r3.conclave.mail.internal.noise.protocol.Noise
 import com.r3.conclave.mail.internal.readEnclaveStateId
 import com.r3.conclave.utilities.internal.*
@@ -35,6 +36,7 @@ import java.security.PublicKey
 import java.security.Signature
 import java.time.Instant
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.locks.ReentrantLock
 import java.util.function.Function
 import kotlin.concurrent.withLock
@@ -88,9 +90,20 @@ abstract class Enclave {
     private val enclaveMessageHandler = EnclaveMessageHandler()
 
     private val lastSeenStateIds = HashMap<PublicKey, EnclaveStateId>()
-    private val postOffices = HashMap<PublicKeyAndTopic, SessionEnclavePostOffice>()
+
+    // The next sequence numbers of post offices which have been evicted from [postOffices]. Guarded by the postOffices
+    // cache lock as it's only accessed from within its eviction and mapping functions.
+    private val evictedPostOfficeSequenceNumbers by lazy { FingerprintCounterTable() }
+    private val postOffices by lazy {
+        BoundedCache<PublicKeyAndTopic, SessionEnclavePostOffice>(
+            env.maxClientCacheSize,
+            TimeUnit.SECONDS.toNanos(env.clientCacheExpirySeconds),
+            onEviction = { key, postOffice ->
+                evictedPostOfficeSequenceNumbers.put(key.fingerprint, postOffice.retire())
+            }
+        )
+    }
     private val lock = ReentrantLock()
-    private val enclaveQuiescentCondition = lock.newCondition()
 
     /**
      * Guarded by [lock]
@@ -98,9 +111,11 @@ abstract class Enclave {
     private val enclaveStateManager = StateManager<EnclaveState>(New)
 
     /**
-     * Guarded by [lock]
+     * Tracks the receive calls executing in a multi-threaded enclave. This is only opened once the enclave has started
+     * and is closed when it's stopped, which means a successful [ReceiveCallTracker.tryEnter] implies the enclave is
+     * in the [Started] state without needing to take [lock].
      */
-    private var numberReceiveCallsExecuting = 0
+    private val receiveCallTracker = ReceiveCallTracker()
 
     private val _persistentMap = LinkedHashMap<String, ByteArray>()
 
@@ -179,7 +194,8 @@ abstract class Enclave {
         return EnclaveInstanceInfoImpl(
                 signatureKey,
                 encryptionKeyPair.public as Curve25519PublicKey,
-                attestation
+                attestation,
+                env.preferredMailProtocol
         )
     }
 
@@ -198,6 +214,31 @@ abstract class Enclave {
      */
     protected open val threadSafe: Boolean get() = false
 
+    /**
+     * The KDS key specs whose private keys the host should fetch when the enclave starts, rather than when the first
+     * mail encrypted with each of them arrives. This removes the KDS round trip from the first mail for each key spec.
+     * The host may also be configured with key specs to prefetch, see `KDSConfiguration.prefetchKeySpecs`.
+     *
+     * The private keys are held in the same cache as the keys for received mail, and so there's no benefit in
+     * prefetching more keys than the `maxKdsKeyCacheSize` enclave configuration option.
+     */
+    protected open val kdsPrefetchKeySpecs: Collection<KDSKeySpec> get() = emptyList()
+
+    /**
+     * Usage statistics for the enclave's internal per-client caches, keyed by cache name. The size of these caches
+     * can be limited with the `maxClientCacheSize`, `clientCacheExpirySeconds` and `maxKdsKeyCacheSize` enclave
+     * configuration options.
+     */
+    @Beta
+    protected fun getInternalCacheStatistics(): Map<String, CacheStatistics> {
+        return mapOf(
+            "postOffices" to postOffices.statistics(),
+            "sequenceWatermarks" to enclaveMessageHandler.sequenceWatermarks.statistics(),
+            "kdsPrivateKeys" to enclaveMessageHandler.kdsPrivateKeyCache.statistics(),
+            "staticDHResults" to enclaveMessageHandler.staticDHResults.statistics()
+        )
+    }
+
     /**
      * Override this method to receive bytes from the untrusted host via [com.r3.conclave.host.EnclaveHost.callEnclave].
      *
@@ -264,6 +305,8 @@ abstract class Enclave {
             registerCallHandler(EnclaveCallType.STOP_ENCLAVE, StopCallHandler())
             registerCallHandler(EnclaveCallType.GET_KDS_PERSISTENCE_KEY_SPEC, GetKdsPersistenceKeySpecCallHandler())
             registerCallHandler(EnclaveCallType.SET_KDS_PERSISTENCE_KEY, setKdsPersistenceKeyCallHandler)
+            registerCallHandler(EnclaveCallType.GET_KDS_PREFETCH_KEY_SPECS, GetKdsPrefetchKeySpecsCallHandler())
+            registerCallHandler(EnclaveCallType.SET_KDS_PRIVATE_KEY, SetKdsPrivateKeyCallHandler())
             registerCallHandler(EnclaveCallType.GET_ENCLAVE_INSTANCE_INFO_QUOTE, getEnclaveInstanceInfoQuoteCallHandler)
             registerCallHandler(EnclaveCallType.CALL_MESSAGE_HANDLER, enclaveMessageHandler)
         }
@@ -562,6 +605,43 @@ abstract class Enclave {
         }
     }
 
+    /**
+     * Handler which services requests from the host for the KDS key specs it should prefetch.
+     */
+    private inner class GetKdsPrefetchKeySpecsCallHandler : CallHandler {
+        override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
+            val keySpecs = kdsPrefetchKeySpecs
+            if (keySpecs.isEmpty()) return null
+            val bytes = writeData {
+                writeInt(keySpecs.size)
+                for (keySpec in keySpecs) {
+                    writeIntLengthPrefixString(keySpec.name)
+                    writeByte(keySpec.masterKeyType.id)
+                    writeIntLengthPrefixString(keySpec.policyConstraint)
+                }
+            }
+            return ByteBuffer.wrap(bytes)
+        }
+    }
+
+    /**
+     * Handler which handles KDS private keys the host has prefetched for mail the enclave has yet to receive.
+     */
+    private inner class SetKdsPrivateKeyCallHandler : CallHandler {
+        override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
+            val kdsConfig = checkNotNull(env.kdsConfiguration) {
+                "Host is attempting to send in a KDS private key even though the enclave is not configured to use a KDS"
+            }
+            val privateKeyResponse = setKdsPersistenceKeyCallHandler.getKdsPrivateKeyResponse(parameterBuffer)
+            // This is no different to the host providing the KDS response with a mail. The KDS response is verified
+            // in the same way, and the key spec in a mail's header is also chosen by the sender.
+            val keySpec = privateKeyResponse.keySpec
+            val encodedPrivateKey = privateKeyResponse.getPrivateKey(kdsConfig, expectedKeySpec = keySpec)
+            enclaveMessageHandler.kdsPrivateKeyCache[keySpec] = Curve25519PrivateKey(encodedPrivateKey)
+            return null
+        }
+    }
+
     /**
      * Handler which handles start requests from the host.
      */
@@ -595,6 +675,7 @@ abstract class Enclave {
                 } catch (t: Throwable) {
                     throw EnclaveStartException("Unable to start enclave", t)
                 }
+                receiveCallTracker.open()
             }
             return null
         }
@@ -607,10 +688,12 @@ abstract class Enclave {
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
             lock.withLock {
                 enclaveStateManager.transitionStateFrom<Started>(to = Closed)
-                // Wait until all receive calls being processed have completed
-                while (numberReceiveCallsExecuting > 0) {
-                    enclaveQuiescentCondition.await()
-                }
+                receiveCallTracker.close()
+            }
+            // Wait until all receive calls being processed have completed. This is done outside the lock so that
+            // any new calls which are blocked on it can fail fast with the Closed state.
+            receiveCallTracker.awaitQuiescence()
+            lock.withLock {
                 // This method call must be at the top so the enclave derived class can release its resources
                 // Any code that releases resources used by the enclave must be placed after the function
                 // onShutdown
@@ -642,13 +725,28 @@ abstract class Enclave {
     }
 
     private inner class EnclaveMessageHandler : CallHandler {
-        private val kdsPrivateKeyCache = ConcurrentHashMap<KDSKeySpec, PrivateKey>()
+        val kdsPrivateKeyCache by lazy { BoundedCache<KDSKeySpec, PrivateKey>(env.maxKdsKeyCacheSize) }
+        // Saves repeating the static-static DH calculation for senders which have sent mail to the enclave before.
+        val staticDHResults by lazy {
+            StaticDHResultCache(env.maxClientCacheSize, TimeUnit.SECONDS.toNanos(env.clientCacheExpirySeconds))
+        }
 
         private val currentEnclaveCall = ThreadLocal<Long>()
         private val enclaveCalls = ConcurrentHashMap<Long, StateManager<CallState>>()
+        // The watermarks of sender + topic pairs which have been evicted from [sequenceWatermarks]. Their values are
+        // restored if the pair is seen again so that evicting a watermark never allows mail to be replayed. Guarded by
+        // the sequenceWatermarks cache lock as it's only accessed from within its eviction and mapping functions.
+        private val evictedSequenceWatermarks by lazy { FingerprintCounterTable() }
         // Maps sender + topic pairs to the highest sequence number seen so far. Sequence numbers must start from zero
         // and can only increment by one for each delivered mail.
-        private val sequenceWatermarks = HashMap<PublicKeyAndTopic, SequenceWatermark>()
+        // This is accessed outside of the enclave lock for multi-threaded enclaves.
+        val sequenceWatermarks by lazy {
+            BoundedCache<PublicKeyAndTopic, SequenceWatermark>(
+                env.maxClientCacheSize,
+                TimeUnit.SECONDS.toNanos(env.clientCacheExpirySeconds),
+                onEviction = { key, watermark -> evictedSequenceWatermarks.put(key.fingerprint, watermark.retire()) }
+            )
+        }
         /**
          * Holds the current [ReceiveContext], or null if there isn't a receive* action being executed of if the thread
          * is multi-threaded, in which case this is always null.
@@ -692,6 +790,7 @@ abstract class Enclave {
             // determines this by examining the mail's unencrypted derivation header.
             val kdsPrivateKeyResponse = input.getNullable { setKdsPersistenceKeyCallHandler.getKdsPrivateKeyResponse(this) }
             val mailStream = getMailDecryptingStream(input)
+            mailStream.staticDHCache = staticDHResults
 
             val keyDerivation = MailKeyDerivation.deserialiseFromMailStream(mailStream)
             val mail = when (keyDerivation) {
@@ -723,8 +822,13 @@ abstract class Enclave {
                 "Enclave received a Mail which is encrypted using a KDS private key, but the enclave has not been" +
                         " configured to use a KDS."
             }
-            checkNotNull(kdsPrivateKeyResponse) {
-                "The mail is encrypted with a KDS private key but the host has not provided the KDS response."
+            if (kdsPrivateKeyResponse == null) {
+                // The host only provides the KDS response if it thinks the enclave doesn't have the private key cached.
+                // The private key may have been evicted from the cache however, and so this exception tells the host
+                // to retry with the KDS response. MailDecryptionException is used as it's preserved in release mode.
+                throw MailDecryptionException(
+                    "The mail is encrypted with a KDS private key but the host has not provided the KDS response."
+                )
             }
 
             val encodedPrivateKey = kdsPrivateKeyResponse.getPrivateKey(kdsConfig, expectedKeySpec = keySpec)
@@ -779,8 +883,16 @@ abstract class Enclave {
 
         private fun checkMailOrdering(mail: EnclaveMail) {
             val key = PublicKeyAndTopic(mail.authenticatedSender, mail.topic)
-            val watermark = sequenceWatermarks.computeIfAbsent(key) { SequenceWatermark() }
-            watermark.checkOrdering(mail)
+            while (true) {
+                val watermark = sequenceWatermarks.computeIfAbsent(key) {
+                    val value = evictedSequenceWatermarks.remove(key.fingerprint)
+                        ?: -1L.also { checkNewClientAllowed(evictedSequenceWatermarks) }
+                    SequenceWatermark(value)
+                }
+                // If the watermark was evicted after it was looked up then its value has been handed on to the one
+                // which will replace it, so the mail needs to be checked against that instead.
+                if (watermark.checkOrdering(mail)) return
+            }
         }
 
         private fun sendSealedState(hostThreadId: Long, receiveContext: ReceiveContext) {
@@ -891,25 +1003,32 @@ abstract class Enclave {
                     }
                 }
             } else {
-                lock.withLock {
-                    enclaveStateManager.checkStateIs<Started>()
-                    preReceive()
-                    ++numberReceiveCallsExecuting
+                // Multi-threaded enclaves only need to keep track of the number of executing calls so that the
+                // enclave can be stopped cleanly. This is done without the lock so that concurrent calls do not
+                // contend on it.
+                if (!receiveCallTracker.tryEnter()) {
+                    enterReceiveCallTrackerSlowPath()
                 }
-
                 try {
+                    preReceive()
                     return receiveMethod()
                 } finally {
-                    lock.withLock {
-                        --numberReceiveCallsExecuting
-                        if (numberReceiveCallsExecuting == 0) {
-                            enclaveQuiescentCondition.signal()
-                        }
-                    }
+                    receiveCallTracker.exit()
                 }
             }
         }
 
+        /**
+         * The enclave is either still starting up, or it's been stopped (or is in the process of being stopped). Take
+         * the lock to wait for any in-progress start to complete and to then report the correct state.
+         */
+        private fun enterReceiveCallTrackerSlowPath() {
+            lock.withLock {
+                enclaveStateManager.checkStateIs<Started>()
+                check(receiveCallTracker.tryEnter()) { "Enclave is not accepting calls." }
+            }
+        }
+
         private fun <T> executeReceive(receiveMethod: () -> T, receiveContext: ReceiveContext): T {
             check(currentReceiveContext == null) {
                 "deliverMail cannot be called in a callback to another deliverMail when the persistent map is enabled."
@@ -964,11 +1083,29 @@ abstract class Enclave {
         }
     }
 
-    private class SequenceWatermark {
-        // The -1 default allows us to check the first mail in this sequence is zero.
-        private var value = -1L
+    /**
+     * @property value The sequence number of the last mail seen. The -1 default allows us to check the first mail in
+     * this sequence is zero.
+     */
+    private class SequenceWatermark(private var value: Long = -1L) {
+        private var retired = false
+
+        /**
+         * Called when this watermark is evicted. Returns its final value, after which it can't be used to accept mail.
+         */
+        @Synchronized
+        fun retire(): Long {
+            retired = true
+            return value
+        }
 
-        fun checkOrdering(mail: EnclaveMail) {
+        /**
+         * Returns false without checking the mail if this watermark has been retired.
+         */
+        // Synchronized as multi-threaded enclaves can receive mail for the same sender and topic concurrently.
+        @Synchronized
+        fun checkOrdering(mail: EnclaveMail): Boolean {
+            if (retired) return false
             val expected = value + 1
             check(mail.sequenceNumber == expected) {
                 when {
@@ -989,6 +1126,7 @@ abstract class Enclave {
                 }
             }
             value++
+            return true
         }
     }
 
@@ -1046,7 +1184,7 @@ abstract class Enclave {
      * If the destination is an enclave then use the overload which takes in an [EnclaveInstanceInfo] instead.
      */
     protected fun postOffice(destinationPublicKey: PublicKey, topic: String): EnclavePostOffice {
-        return getCachedPostOffice(destinationPublicKey, topic, null)
+        return getCachedPostOffice(destinationPublicKey, topic, null, null)
     }
 
     /**
@@ -1069,15 +1207,17 @@ abstract class Enclave {
      * authenticated sender as the destination public key.
      */
     protected fun postOffice(mail: EnclaveMail): EnclavePostOffice {
-        val kdsPrivateKey = (mail as DecryptedEnclaveMail).kdsPrivateKey
+        mail as DecryptedEnclaveMail
+        val kdsPrivateKey = mail.kdsPrivateKey
+        // Reply with the same protocol as the mail, which the sender must therefore support.
         return if (kdsPrivateKey == null) {
-            getCachedPostOffice(mail.authenticatedSender, mail.topic, null)
+            getCachedPostOffice(mail.authenticatedSender, mail.topic, null, mail.protocol)
         } else {
             // If the mail was encrypted with a custom KDS private key then return a new post office instance with that
             // key each time. There's no benefit to caching KdsEnclavePostOffice since the KDS response mail do not
             // have an increasing sequence number (they are all set to 0). Caching would also cause problems if the
             // client uses another KDS key for the same (authenticatedSender, topic) pair.
-            KdsEnclavePostOffice(mail.authenticatedSender, mail.topic, kdsPrivateKey)
+            KdsEnclavePostOffice(mail.authenticatedSender, mail.topic, kdsPrivateKey, mail.protocol)
         }
     }
 
@@ -1093,7 +1233,12 @@ abstract class Enclave {
      */
     protected fun postOffice(enclaveInstanceInfo: EnclaveInstanceInfo, topic: String): EnclavePostOffice {
         enclaveInstanceInfo as EnclaveInstanceInfoImpl
-        return getCachedPostOffice(enclaveInstanceInfo.encryptionKey, topic, enclaveInstanceInfo.keyDerivation)
+        return getCachedPostOffice(
+            enclaveInstanceInfo.encryptionKey,
+            topic,
+            enclaveInstanceInfo.keyDerivation,
+            enclaveInstanceInfo.mailProtocol
+        )
     }
 
     /**
@@ -1110,16 +1255,39 @@ abstract class Enclave {
         return postOffice(enclaveInstanceInfo, "default")
     }
 
+    /**
+     * The enclave never forgets the sequence numbers of evicted clients, as that would allow their mail to be replayed.
+     * Instead, once [evictedHistory] holds [EnclaveEnvironment.evictedClientHistorySize] clients, new clients are
+     * refused until returning clients free up space in it.
+     */
+    private fun checkNewClientAllowed(evictedHistory: FingerprintCounterTable) {
+        val limit = env.evictedClientHistorySize
+        check(limit == 0 || evictedHistory.size < limit) {
+            "The enclave is not accepting new clients as it's already remembering the limit of $limit evicted " +
+                    "clients. See evictedClientHistorySize."
+        }
+    }
+
+    /**
+     * @param mailProtocol The protocol the destination is known to support, or null to keep using the protocol the
+     * cached post office was last told about. Post offices start off with the protocol that every version supports.
+     */
     private fun getCachedPostOffice(
         destinationPublicKey: PublicKey,
         topic: String,
-        keyDerivation: ByteArray?
+        keyDerivation: ByteArray?,
+        mailProtocol: MailProtocol?
     ): SessionEnclavePostOffice {
-        synchronized(postOffices) {
-            return postOffices.computeIfAbsent(PublicKeyAndTopic(destinationPublicKey, topic)) {
-                SessionEnclavePostOffice(destinationPublicKey, topic, keyDerivation)
-            }
+        val postOffice = postOffices.computeIfAbsent(PublicKeyAndTopic(destinationPublicKey, topic)) { key ->
+            val sequenceNumber = evictedPostOfficeSequenceNumbers.remove(key.fingerprint)
+                ?: 0L.also { checkNewClientAllowed(evictedPostOfficeSequenceNumbers) }
+            SessionEnclavePostOffice(destinationPublicKey, topic, keyDerivation, sequenceNumber)
         }
+        // The post office is shared by all the threads, so avoid writing to it when the protocol hasn't changed.
+        if (mailProtocol != null && postOffice.mailProtocol != mailProtocol) {
+            postOffice.mailProtocol = mailProtocol
+        }
+        return postOffice
     }
 
     /**
@@ -1146,16 +1314,49 @@ abstract class Enclave {
         destinationPublicKey: PublicKey,
         topic: String,
         override val keyDerivation: ByteArray?,
+        private var sequenceNumber: Long
     ) : EnclavePostOffice(destinationPublicKey, topic) {
-        private var sequenceNumber: Long = 0
-
         init {
             minSizePolicy = defaultMinSizePolicy
         }
 
-        override val nextSequenceNumber: Long get() = sequenceNumber
+        // Set once this post office has been evicted from [postOffices] and its sequence number handed on to the post
+        // office which replaces it. Guarded by this.
+        private var retired = false
+
+        override val nextSequenceNumber: Long get() {
+            synchronized(this) {
+                if (!retired) return sequenceNumber
+            }
+            return currentPostOffice().nextSequenceNumber
+        }
+
+        // Updated by any thread which looks up this post office, and read once per mail by encryptMail.
+        @Volatile
+        public override var mailProtocol: MailProtocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
+
+        override fun getAndIncrementSequenceNumber(): Long {
+            synchronized(this) {
+                if (!retired) return sequenceNumber++
+            }
+            // This instance may still be held by the enclave, or by another thread which looked it up before it was
+            // evicted. Continue the sequence of the post office which replaced it so that no number is used twice.
+            return currentPostOffice().getAndIncrementSequenceNumber()
+        }
+
+        /**
+         * Called when this post office is evicted. Returns its next sequence number, after which it no longer assigns
+         * sequence numbers itself.
+         */
+        @Synchronized
+        fun retire(): Long {
+            retired = true
+            return sequenceNumber
+        }
 
-        override fun getAndIncrementSequenceNumber(): Long = sequenceNumber++
+        private fun currentPostOffice(): SessionEnclavePostOffice {
+            return getCachedPostOffice(destinationPublicKey, topic, keyDerivation, null)
+        }
 
         override val senderPrivateKey: PrivateKey get() = encryptionKeyPair.private
 
@@ -1174,11 +1375,13 @@ abstract class Enclave {
      *
      * @property senderPrivateKey The KDS private key that was used to decrypt the incoming the KDS mail and which is
      * now used as the sender key for any response mail.
+     * @property mailProtocol The protocol of the incoming KDS mail, which is also used for the response mail.
      */
     private inner class KdsEnclavePostOffice(
         destinationPublicKey: PublicKey,
         topic: String,
         override val senderPrivateKey: PrivateKey,
+        override val mailProtocol: MailProtocol
     ) : EnclavePostOffice(destinationPublicKey, topic) {
         init {
             minSizePolicy = defaultMinSizePolicy
@@ -1193,7 +1396,19 @@ abstract class Enclave {
     // sizes within any given topic.
     private val defaultMinSizePolicy = MinSizePolicy.movingAverage()
 
-    private data class PublicKeyAndTopic(val publicKey: PublicKey, val topic: String)
+    private data class PublicKeyAndTopic(val publicKey: PublicKey, val topic: String) {
+        /**
+         * A 64-bit hash of this pair, used to remember the state of pairs which have been evicted from the enclave's
+         * caches.
+         */
+        val fingerprint: Long get() {
+            val hash = digest("SHA-256") {
+                update(publicKey.encoded)
+                update(topic.toByteArray())
+            }
+            return ByteBuffer.wrap(hash).long
+        }
+    }
 
     private sealed class EnclaveState {
         object New : EnclaveState()
@@ -4,6 +4,7 @@ import com.r3.conclave.common.EnclaveMode
 import com.r3.conclave.common.internal.*
 import com.r3.conclave.common.internal.attestation.Attestation
 import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
+import com.r3.conclave.mail.internal.MailProtocol
 import java.nio.ByteBuffer
 import java.security.KeyPair
 import java.security.PublicKey
@@ -22,6 +23,10 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
             setProperty("maxPersistentMapSize", (16 * 1024 * 1024).toString())
             setProperty("inMemoryFileSystemSize", (64 * 1024 * 1024).toString())
             setProperty("persistentFileSystemSize", 0.toString())
+            setProperty("maxClientCacheSize", 0.toString())
+            setProperty("clientCacheExpirySeconds", 0.toString())
+            setProperty("evictedClientHistorySize", 100_000.toString())
+            setProperty("maxKdsKeyCacheSize", 0.toString())
             // If this property is not set to true, then the kds is assumed not to be in use, and won't be configured
             // during enclave startup. By default, the KDS is not enabled.
             setProperty("kds.configurationPresent", "false")
@@ -55,6 +60,24 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
     open val maxPersistentMapSize: Long = enclaveProperties.getProperty("maxPersistentMapSize").toLong()
     open val inMemoryFileSystemSize: Long = enclaveProperties.getProperty("inMemoryFileSystemSize").toLong()
     open val persistentFileSystemSize: Long = enclaveProperties.getProperty("persistentFileSystemSize").toLong()
+    // These have defaults as they're not present in the properties of enclaves built with older versions of the plugin.
+    open val maxClientCacheSize: Int = enclaveProperties.getProperty("maxClientCacheSize", "0").toInt()
+    open val clientCacheExpirySeconds: Long = enclaveProperties.getProperty("clientCacheExpirySeconds", "0").toLong()
+    open val evictedClientHistorySize: Int =
+        enclaveProperties.getProperty("evictedClientHistorySize", "100000").toInt()
+    open val maxKdsKeyCacheSize: Int = enclaveProperties.getProperty("maxKdsKeyCacheSize", "0").toInt()
+
+    /**
+     * The mail protocol this enclave asks senders to use, which it advertises in its
+     * [com.r3.conclave.common.EnclaveInstanceInfo]. A GraalVM native image doesn't have the JIT intrinsics which make
+     * AES-GCM fast, and so ChaChaPoly is preferred there.
+     */
+    open val preferredMailProtocol: MailProtocol =
+        if (System.getProperty("org.graalvm.nativeimage.imagecode") != null) {
+            MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY
+        } else {
+            MailProtocol.SENDER_KEY_TRANSMITTED_V2
+        }
 
     // KDS configuration from build system
     open val kdsConfiguration: EnclaveKdsConfig? = kdsConfig ?: EnclaveKdsConfig.loadConfiguration(enclaveProperties)
@@ -142,10 +165,11 @@ abstract class EnclaveEnvironment(enclaveProperties: Properties, kdsConfig: Encl
     fun setEnclaveInfo(signatureKey: PublicKey, encryptionKeyPair: KeyPair) {
         val encodedSigningKey = signatureKey.encoded                    // 44 bytes
         val encodedEncryptionKey = encryptionKeyPair.public.encoded     // 32 bytes
-        val payloadSize = encodedSigningKey.size + encodedEncryptionKey.size
+        val payloadSize = encodedSigningKey.size + encodedEncryptionKey.size + 1
         val buffer = ByteBuffer.allocate(payloadSize).apply {
             put(encodedSigningKey)
             put(encodedEncryptionKey)
+            put(preferredMailProtocol.ordinal.toByte())
         }
         hostInterface.executeOutgoingCall(HostCallType.SET_ENCLAVE_INFO, buffer)
     }
@@ -0,0 +1,97 @@
+package com.r3.conclave.enclave.internal
+
+/**
+ * A compact open-addressing map from 64-bit fingerprints to 64-bit counters. The enclave uses this to remember the
+ * sequence numbers of per-client entries which have been evicted from its caches, at a cost of about 17 bytes per entry
+ * rather than the few hundred bytes taken up by the keys and objects of the evicted entry.
+ *
+ * This class is not thread-safe.
+ */
+class FingerprintCounterTable {
+    private var keys = LongArray(INITIAL_CAPACITY)
+    private var values = LongArray(INITIAL_CAPACITY)
+    private var used = BooleanArray(INITIAL_CAPACITY)
+
+    var size: Int = 0
+        private set
+
+    fun put(fingerprint: Long, counter: Long) {
+        if ((size + 1) * 4 > keys.size * 3) {
+            resize(keys.size * 2)
+        }
+        var index = indexFor(fingerprint, keys.size)
+        while (used[index]) {
+            if (keys[index] == fingerprint) {
+                values[index] = counter
+                return
+            }
+            index = (index + 1) and (keys.size - 1)
+        }
+        used[index] = true
+        keys[index] = fingerprint
+        values[index] = counter
+        size++
+    }
+
+    /**
+     * Removes the counter for the given fingerprint and returns it, or returns null if there isn't one.
+     */
+    fun remove(fingerprint: Long): Long? {
+        val mask = keys.size - 1
+        var index = indexFor(fingerprint, keys.size)
+        while (used[index]) {
+            if (keys[index] == fingerprint) {
+                val counter = values[index]
+                deleteAt(index)
+                return counter
+            }
+            index = (index + 1) and mask
+        }
+        return null
+    }
+
+    private fun deleteAt(deleted: Int) {
+        // Backward shift deletion, so that lookups for entries which were displaced past the deleted slot still work.
+        val mask = keys.size - 1
+        var gap = deleted
+        var index = (deleted + 1) and mask
+        while (used[index]) {
+            val home = indexFor(keys[index], keys.size)
+            // Move the entry into the gap if its home slot is not cyclically within (gap, index].
+            val distanceToIndex = (index - home) and mask
+            val distanceToGap = (gap - home) and mask
+            if (distanceToGap < distanceToIndex) {
+                keys[gap] = keys[index]
+                values[gap] = values[index]
+                gap = index
+            }
+            index = (index + 1) and mask
+        }
+        used[gap] = false
+        size--
+    }
+
+    private fun resize(newCapacity: Int) {
+        val oldKeys = keys
+        val oldValues = values
+        val oldUsed = used
+        keys = LongArray(newCapacity)
+        values = LongArray(newCapacity)
+        used = BooleanArray(newCapacity)
+        size = 0
+        for (i in oldKeys.indices) {
+            if (oldUsed[i]) {
+                put(oldKeys[i], oldValues[i])
+            }
+        }
+    }
+
+    private companion object {
+        private const val INITIAL_CAPACITY = 16
+
+        private fun indexFor(fingerprint: Long, capacity: Int): Int {
+            // The fingerprints are already uniformly distributed hash outputs.
+            return (fingerprint xor (fingerprint ushr 32)).toInt() and (capacity - 1)
+        }
+    }
+}
@@ -83,6 +83,18 @@ class MockEnclaveEnvironment(
     override val maxPersistentMapSize: Long
         get() = configuration.maxPersistentMapSize ?: super.maxPersistentMapSize
 
+    override val maxClientCacheSize: Int
+        get() = configuration.maxClientCacheSize ?: super.maxClientCacheSize
+
+    override val clientCacheExpirySeconds: Long
+        get() = configuration.clientCacheExpirySeconds ?: super.clientCacheExpirySeconds
+
+    override val evictedClientHistorySize: Int
+        get() = configuration.evictedClientHistorySize ?: super.evictedClientHistorySize
+
+    override val maxKdsKeyCacheSize: Int
+        get() = configuration.maxKdsKeyCacheSize ?: super.maxKdsKeyCacheSize
+
     override val enclaveMode: EnclaveMode
         get() = EnclaveMode.MOCK
 
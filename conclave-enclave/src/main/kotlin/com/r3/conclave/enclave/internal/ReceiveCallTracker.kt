@@ -0,0 +1,74 @@
+package com.r3.conclave.enclave.internal
+
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Keeps count of the receive calls executing inside a multi-threaded enclave without taking a shared lock, and lets
+ * the enclave wait for them all to complete when it's shutting down.
+ *
+ * A single [AtomicInteger] holds both the number of calls executing and whether new calls are being admitted. The
+ * tracker starts off closed, is opened once the enclave has started and is closed again when the enclave is stopped.
+ * Once closed no more calls are admitted and [awaitQuiescence] returns when the last executing call has exited.
+ *
+ * This class is thread-safe.
+ */
+class ReceiveCallTracker {
+    private companion object {
+        private const val CLOSED = 1 shl 30
+    }
+
+    private val state = AtomicInteger(CLOSED)
+    private val quiescentLatch = CountDownLatch(1)
+
+    /**
+     * The number of calls currently executing.
+     */
+    val executingCount: Int get() = state.get() and CLOSED.inv()
+
+    /**
+     * Start admitting calls. This can only be done once.
+     */
+    fun open() {
+        check(state.compareAndSet(CLOSED, 0)) { "Receive call tracker has already been opened." }
+    }
+
+    /**
+     * Attempt to register a new executing call. Returns false if the tracker is not open, in which case the call must
+     * not proceed. A successful call must be paired with a call to [exit].
+     */
+    fun tryEnter(): Boolean {
+        while (true) {
+            val current = state.get()
+            if (current and CLOSED != 0) return false
+            if (state.compareAndSet(current, current + 1)) return true
+        }
+    }
+
+    fun exit() {
+        // Only the last call to exit after the tracker has been closed will see exactly CLOSED.
+        if (state.decrementAndGet() == CLOSED) {
+            quiescentLatch.countDown()
+        }
+    }
+
+    /**
+     * Stop admitting calls. Calls which are already executing are not affected. Use [awaitQuiescence] to wait for
+     * them to complete.
+     */
+    fun close() {
+        val previous = state.getAndUpdate { it or CLOSED }
+        if (previous and CLOSED.inv() == 0) {
+            // There weren't any calls executing so there's nothing to wait for.
+            quiescentLatch.countDown()
+        }
+    }
+
+    /**
+     * Block until all the calls admitted before [close] have exited.
+     */
+    fun awaitQuiescence() {
+        check(state.get() and CLOSED != 0) { "Receive call tracker has not been closed." }
+        quiescentLatch.await()
+    }
+}
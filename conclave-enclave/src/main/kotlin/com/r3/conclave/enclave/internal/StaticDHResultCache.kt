@@ -0,0 +1,68 @@
+package com.r3.conclave.enclave.internal
+
+import com.r3.conclave.common.CacheStatistics
+import com.r3.conclave.common.OpaqueBytes
+import com.r3.conclave.common.internal.BoundedCache
+import com.r3.conclave.mail.internal.noise.protocol.DHState
+import com.r3.conclave.mail.internal.noise.protocol.StaticDHCache
+
+/**
+ * Caches the results of the static-static DH calculation in the mail handshake, keyed by the enclave's public key and
+ * the sender's public key. Mail from a sender the enclave has recently received mail from can then be decrypted with
+ * one scalar multiplication rather than two.
+ *
+ * The results are secret keys. Each one is wiped when it's evicted from the cache, and once wiped it can no longer be
+ * read, even by a thread which looked it up before the eviction.
+ *
+ * This class is thread-safe.
+ */
+class StaticDHResultCache(maxSize: Int, expireAfterAccessNanos: Long) : StaticDHCache {
+    private val cache = BoundedCache<OpaqueBytes, SharedKey>(
+        maxSize,
+        expireAfterAccessNanos,
+        onEviction = { _, sharedKey -> sharedKey.destroy() }
+    )
+
+    val size: Int get() = cache.size
+
+    fun statistics(): CacheStatistics = cache.statistics()
+
+    override fun get(local: DHState, remote: DHState, sharedKey: ByteArray): Boolean {
+        val cached = cache[keyFor(local, remote)] ?: return false
+        return cached.copyTo(sharedKey)
+    }
+
+    override fun put(local: DHState, remote: DHState, sharedKey: ByteArray) {
+        val key = keyFor(local, remote)
+        val newValue = SharedKey(sharedKey.clone())
+        // If another thread cached the same result first then keep that one and wipe ours.
+        if (cache.computeIfAbsent(key) { newValue } !== newValue) {
+            newValue.destroy()
+        }
+    }
+
+    private fun keyFor(local: DHState, remote: DHState): OpaqueBytes {
+        val localLength = local.publicKeyLength
+        val bytes = ByteArray(localLength + remote.publicKeyLength)
+        local.getPublicKey(bytes, 0)
+        remote.getPublicKey(bytes, localLength)
+        return OpaqueBytes(bytes)
+    }
+
+    private class SharedKey(private val bytes: ByteArray) {
+        private var destroyed = false
+
+        @Synchronized
+        fun copyTo(destination: ByteArray): Boolean {
+            if (destroyed) return false
+            bytes.copyInto(destination)
+            return true
+        }
+
+        @Synchronized
+        fun destroy() {
+            bytes.fill(0)
+            destroyed = true
+        }
+    }
+}
@@ -14,8 +14,12 @@ import java.nio.ByteBuffer
  */
 class KdsPrivateKeyResponse(private val mail: EnclaveMail, val kdsEnclaveInstanceInfo: EnclaveInstanceInfo) {
 
+    /**
+     * The key spec the KDS derived the private key for. This is not verified until [getPrivateKey] is called.
+     */
+    val keySpec: KDSKeySpec by lazy { deserialiseKeySpecFromEnvelope() }
+
     fun getPrivateKey(kdsConfig: EnclaveKdsConfig, expectedKeySpec: KDSKeySpec): ByteArray {
-        val keySpec = deserialiseKeySpecFromEnvelope()
 
         // Make sure the private key is actually for the request that was made.
         require(keySpec == expectedKeySpec) {
@@ -0,0 +1,16 @@
+package com.r3.conclave.enclave.internal
+
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.Test
+
+class FingerprintCounterTableTest {
+    @Test
+    fun `counters are removed once they've been returned`() {
+        val table = FingerprintCounterTable()
+        repeat(1000) { table.put(it * 7919L, it.toLong()) }
+        assertThat(table.size).isEqualTo(1000)
+        repeat(1000) { assertThat(table.remove(it * 7919L)).isEqualTo(it.toLong()) }
+        assertThat(table.size).isZero
+        assertThat(table.remove(0)).isNull()
+    }
+}
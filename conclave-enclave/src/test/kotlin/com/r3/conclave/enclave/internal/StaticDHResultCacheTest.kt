@@ -0,0 +1,80 @@
+package com.r3.conclave.enclave.internal
+
+import com.r3.conclave.mail.Curve25519PrivateKey
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.mail.internal.EnclaveMailHeaderImpl
+import com.r3.conclave.mail.internal.MailDecryptingStream
+import com.r3.conclave.mail.internal.MailEncryptingStream
+import com.r3.conclave.mail.internal.noise.protocol.DHState
+import com.r3.conclave.mail.internal.noise.protocol.Noise
+import com.r3.conclave.utilities.internal.readFully
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+
+class StaticDHResultCacheTest {
+    private val receivingPrivateKey = Curve25519PrivateKey.random()
+    private val cache = StaticDHResultCache(maxSize = 2, expireAfterAccessNanos = 0)
+
+    @Test
+    fun `mail from the same sender is decrypted using the cached result`() {
+        val senderPrivateKey = Curve25519PrivateKey.random()
+        for (i in 1..3) {
+            val message = "message $i".toByteArray()
+            assertThat(decrypt(encrypt(message, senderPrivateKey))).isEqualTo(message)
+        }
+        val statistics = cache.statistics()
+        assertThat(statistics.size).isEqualTo(1)
+        assertThat(statistics.hitCount).isEqualTo(2)
+    }
+
+    @Test
+    fun `cached result is used instead of calculating it`() {
+        val senderPrivateKey = Curve25519PrivateKey.random()
+        val (local, remote) = dhStates(senderPrivateKey)
+        cache.put(local, remote, ByteArray(local.sharedKeyLength) { 1 })
+        assertThatThrownBy { decrypt(encrypt("message".toByteArray(), senderPrivateKey)) }
+            .isInstanceOf(MailDecryptionException::class.java)
+    }
+
+    @Test
+    fun `evicted results are wiped`() {
+        val senderPrivateKey = Curve25519PrivateKey.random()
+        val (local, remote) = dhStates(senderPrivateKey)
+        val sharedKey = ByteArray(local.sharedKeyLength) { 1 }
+        cache.put(local, remote, sharedKey)
+
+        val copy = ByteArray(sharedKey.size)
+        assertThat(cache.get(local, remote, copy)).isTrue
+        assertThat(copy).isEqualTo(sharedKey)
+
+        repeat(2) {
+            val (otherLocal, otherRemote) = dhStates(Curve25519PrivateKey.random())
+            cache.put(otherLocal, otherRemote, sharedKey)
+        }
+        assertThat(cache.size).isEqualTo(2)
+        assertThat(cache.get(local, remote, ByteArray(sharedKey.size))).isFalse
+    }
+
+    private fun dhStates(senderPrivateKey: Curve25519PrivateKey): Pair<DHState, DHState> {
+        val local = Noise.createDH("25519").apply { setPrivateKey(receivingPrivateKey.encoded, 0) }
+        val remote = Noise.createDH("25519").apply { setPublicKey(senderPrivateKey.publicKey.encoded, 0) }
+        return Pair(local, remote)
+    }
+
+    private fun encrypt(message: ByteArray, senderPrivateKey: Curve25519PrivateKey): ByteArray {
+        val header = EnclaveMailHeaderImpl(0, "topic", null, null)
+        val output = ByteArrayOutputStream()
+        MailEncryptingStream(output, receivingPrivateKey.publicKey, header, null, senderPrivateKey, 0).use {
+            it.write(message)
+        }
+        return output.toByteArray()
+    }
+
+    private fun decrypt(bytes: ByteArray): ByteArray {
+        val stream = MailDecryptingStream(bytes, receivingPrivateKey)
+        stream.staticDHCache = cache
+        return stream.readFully()
+    }
+}
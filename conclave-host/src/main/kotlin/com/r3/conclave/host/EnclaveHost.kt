@@ -1,13 +1,11 @@
 package com.r3.conclave.host
 
-import com.fasterxml.jackson.databind.MapperFeature
-import com.fasterxml.jackson.databind.json.JsonMapper
 import com.r3.conclave.common.*
 import com.r3.conclave.common.internal.*
 import com.r3.conclave.common.internal.InternalCallType.*
 import com.r3.conclave.common.internal.attestation.Attestation
+import com.r3.conclave.common.internal.attestation.DcapAttestation
 import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
-import com.r3.conclave.common.internal.kds.KDSErrorResponse
 import com.r3.conclave.common.kds.KDSKeySpec
 import com.r3.conclave.host.EnclaveHost.CallState.*
 import com.r3.conclave.host.EnclaveHost.HostState.*
@@ -16,21 +14,33 @@ import com.r3.conclave.host.internal.EnclaveScanner.ScanResult
 import com.r3.conclave.host.internal.attestation.*
 import com.r3.conclave.host.internal.fatfs.FileSystemHandler
 import com.r3.conclave.host.internal.gramine.GramineEnclaveHandle
-import com.r3.conclave.host.internal.kds.KDSPrivateKeyRequest
+import com.r3.conclave.host.internal.kds.KDSPrivateKeyClient
 import com.r3.conclave.host.internal.kds.KDSPrivateKeyResponse
 import com.r3.conclave.host.kds.KDSConfiguration
 import com.r3.conclave.mail.Curve25519PublicKey
 import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.mail.internal.MailProtocol
 import com.r3.conclave.utilities.internal.*
 import java.io.DataOutputStream
 import java.io.IOException
-import java.net.HttpURLConnection
-import java.net.URL
 import java.nio.ByteBuffer
 import java.nio.file.Path
 import java.security.PublicKey
+import java.time.Duration
+import java.time.Instant
 import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CompletionException
 import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CopyOnWriteArrayList
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.Executors
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.SynchronousQueue
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
 import java.util.function.Consumer
 import java.util.function.Function
 
@@ -60,7 +70,25 @@ class EnclaveHost private constructor(
     companion object {
         private val log = loggerFor<EnclaveHost>()
         private val signatureScheme = SignatureSchemeEdDSA()
-        private val jsonMapper = JsonMapper.builder().enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS).build()
+        private val startupThreadCount = AtomicInteger()
+        // Used for the startup phases which can run in parallel. The threads are only kept around for a short while
+        // after startup so that restarting several enclaves at once doesn't need new threads each time.
+        private val startupExecutor = ThreadPoolExecutor(0, Int.MAX_VALUE, 10, TimeUnit.SECONDS, SynchronousQueue()) {
+            Thread(it, "enclave-startup-${startupThreadCount.incrementAndGet()}").apply { isDaemon = true }
+        }
+        private const val KDS_PREFETCH_THREADS = 4
+        private val kdsPrefetchThreadCount = AtomicInteger()
+        // The KDS key prefetches are queued on their own small pool, rather than each getting a startup thread, so that
+        // an enclave with many prefetch key specs, or many enclaves starting at once, don't flood the KDS with requests.
+        private val kdsPrefetchExecutor = ThreadPoolExecutor(
+            KDS_PREFETCH_THREADS,
+            KDS_PREFETCH_THREADS,
+            10,
+            TimeUnit.SECONDS,
+            LinkedBlockingQueue()
+        ) {
+            Thread(it, "enclave-kds-prefetch-${kdsPrefetchThreadCount.incrementAndGet()}").apply { isDaemon = true }
+        }.apply { allowCoreThreadTimeOut(true) }
 
         /**
          * Diagnostics output outlining CPU capabilities. This is a free text field and should only be used for
@@ -234,7 +262,8 @@ class EnclaveHost private constructor(
             return EnclaveHost(enclaveHandle)
         }
 
-        private fun createEnclaveHost(result: ScanResult, mockConfiguration: MockConfiguration?): EnclaveHost {
+        @JvmSynthetic
+        internal fun createEnclaveHost(result: ScanResult, mockConfiguration: MockConfiguration?): EnclaveHost {
             try {
                 return when (result) {
                     is ScanResult.Mock -> {
@@ -314,7 +343,7 @@ class EnclaveHost private constructor(
         }
     }
 
-    private var kdsConfiguration: KDSConfiguration? = null
+    private var kdsPrivateKeyClient: KDSPrivateKeyClient? = null
     private var fileSystemHandler: FileSystemHandler? = null
 
     private val hostStateManager = StateManager<HostState>(New)
@@ -322,7 +351,15 @@ class EnclaveHost private constructor(
 
     @PotentialPackagePrivate("Access for EnclaveHostMockTest")
     private val enclaveMessageHandler = EnclaveMessageHandler()
+    @Volatile
     private var _enclaveInstanceInfo: EnclaveInstanceInfoImpl? = null
+    /**
+     * Serialises attestation updates without holding the host's own lock, which would otherwise hold up [close] and
+     * anything else synchronized on the host whilst the attestation service is contacted.
+     */
+    private val attestationLock = Any()
+    private val enclaveInstanceInfoListeners = CopyOnWriteArrayList<Consumer<EnclaveInstanceInfo>>()
+    private var attestationRefresher: ScheduledExecutorService? = null
 
     private lateinit var commandsCallback: Consumer<List<MailCommand>>
 
@@ -413,6 +450,15 @@ class EnclaveHost private constructor(
         // This can throw IllegalArgumentException which we don't want wrapped in a EnclaveLoadException.
         attestationService = AttestationServiceFactory.getService(enclaveMode, attestationParameters)
 
+        val timer = StartupPhaseTimer()
+        // Preparing the file system doesn't depend on the enclave and so it's done in parallel with loading it.
+        val fileSystemHandlerFuture = CompletableFuture.supplyAsync({
+            if (enclaveFileSystemFile != null) {
+                log.info("Setting up persistent enclave file system...")
+            }
+            timer.time("fileSystem") { prepareFileSystemHandler(enclaveFileSystemFile) }
+        }, startupExecutor)
+
         try {
             this.commandsCallback = commandsCallback
 
@@ -424,39 +470,102 @@ class EnclaveHost private constructor(
             }
 
             // Initialise the enclave before fetching enclave instance info
-            enclaveHandle.initialise(attestationParameters)
-            updateAttestation()
+            timer.time("load") { enclaveHandle.initialise(attestationParameters) }
+
+            // The attestation service may need to go over the network, which we can overlap with getting the KDS
+            // persistence key spec from the enclave. Only the quote needs to be taken from the enclave beforehand.
+            val signedQuote = timer.time("quote") { enclaveHandle.getEnclaveInstanceInfoQuote() }
+            log.debug { "Got quote $signedQuote" }
+            val attestationFuture = CompletableFuture.supplyAsync({
+                timer.time("attestation") { attestationService.attestQuote(signedQuote) }
+            }, startupExecutor)
+            // TODO We can avoid this ECALL if we get the enclave to send its persistence key spec when it's
+            //  first initialised.
+            val persistenceKeySpec = if (kdsConfiguration != null) enclaveHandle.getKdsPersistenceKeySpec() else null
+            val prefetchKeySpecs = if (kdsConfiguration != null) {
+                (kdsConfiguration.prefetchKeySpecs + enclaveHandle.getKdsPrefetchKeySpecs()).distinct()
+            } else {
+                emptyList()
+            }
+            var prefetchedKeys = emptyList<Pair<KDSKeySpec, CompletableFuture<KDSPrivateKeyResponse>>>()
+            updateEnclaveInstanceInfo(attestationFuture.getOrThrowCause())
             log.debug { enclaveInstanceInfo.toString() }
 
             // Once the EnclaveInstanceInfo has been updated, we can do a KDS request for the persistence key.
             if (kdsConfiguration != null) {
-                this.kdsConfiguration = kdsConfiguration
-                // TODO We can avoid this ECALL if we get the enclave to send its persistence key spec when it's
-                //  first initialised.
-                val persistenceKeySpec = enclaveHandle.getKdsPersistenceKeySpec()
+                val kdsPrivateKeyClient = KDSPrivateKeyClient(kdsConfiguration) { enclaveInstanceInfo }
+                this.kdsPrivateKeyClient = kdsPrivateKeyClient
+                // The prefetched keys are requested concurrently with the rest of the startup, and with each other up to
+                // the size of the prefetch pool. Startup doesn't wait for them, and mail which needs a key before its
+                // prefetch has finished waits for the prefetch rather than requesting the key again.
+                prefetchedKeys = prefetchKeySpecs.map { keySpec ->
+                    val future = CompletableFuture.supplyAsync({
+                        kdsPrivateKeyClient.getPrivateKey(keySpec)
+                    }, kdsPrefetchExecutor)
+                    enclaveMessageHandler.pendingKdsPrefetches[keySpec] = future
+                    keySpec to future
+                }
                 //  If the enclave is configured also with KDS spec for persistence, we trigger the private key request.
-                //    Note that the kdsConfiguration is also used in the context of KdsPostOffice
+                //    Note that the kdsPrivateKeyClient is also used in the context of KdsPostOffice
                 if (persistenceKeySpec != null) {
-                    val kdsResponse = executeKdsPrivateKeyRequest(persistenceKeySpec, kdsConfiguration)
-                    enclaveHandle.setKdsPersistenceKey(kdsResponse)
+                    timer.time("kdsPersistenceKey") {
+                        val kdsResponse = kdsPrivateKeyClient.getPrivateKey(persistenceKeySpec)
+                        enclaveHandle.setKdsPersistenceKey(kdsResponse)
+                    }
                 }
             }
 
-            if (enclaveFileSystemFile != null) {
-                log.info("Setting up persistent enclave file system...")
-            }
-            fileSystemHandler = prepareFileSystemHandler(enclaveFileSystemFile)
-            enclaveHandle.startEnclave(sealedState)
+            fileSystemHandler = fileSystemHandlerFuture.getOrThrowCause()
+            timer.time("start") { enclaveHandle.startEnclave(sealedState) }
             if (enclaveFileSystemFile != null) {
                 log.info("Setup of the file system completed successfully.")
             }
 
             hostStateManager.state = Started
+            // The enclave can only be given the keys once it's started.
+            for ((keySpec, future) in prefetchedKeys) {
+                future.whenCompleteAsync({ response, error ->
+                    setPrefetchedKdsPrivateKey(keySpec, response, error)
+                }, kdsPrefetchExecutor)
+            }
+            log.info("Enclave $enclaveClassName started: ${timer.summary()}")
         } catch (e: Exception) {
+            enclaveMessageHandler.pendingKdsPrefetches.clear()
+            // Don't leave the file system files open if it was prepared but something else failed.
+            fileSystemHandlerFuture.thenAccept { it?.close() }
+            fileSystemHandler = null
             throw EnclaveLoadException("Unable to start enclave", e)
         }
     }
 
+    /**
+     * Prefetching is only an optimisation, and so a key which can't be fetched is requested again by the first mail
+     * which needs it.
+     */
+    private fun setPrefetchedKdsPrivateKey(keySpec: KDSKeySpec, response: KDSPrivateKeyResponse?, error: Throwable?) {
+        try {
+            if (error != null) {
+                val cause = (error as? CompletionException)?.cause ?: error
+                log.warn("Unable to prefetch the KDS private key for $keySpec", cause)
+            } else if (hostStateManager.state is Started) {
+                enclaveHandle.setKdsPrivateKey(response!!)
+                enclaveMessageHandler.seenKdsKeySpecs += keySpec
+            }
+        } catch (e: Exception) {
+            log.warn("Unable to give the enclave the prefetched KDS private key for $keySpec", e)
+        } finally {
+            enclaveMessageHandler.pendingKdsPrefetches -= keySpec
+        }
+    }
+
+    private fun <T> CompletableFuture<T>.getOrThrowCause(): T {
+        try {
+            return get()
+        } catch (e: ExecutionException) {
+            throw e.cause ?: e
+        }
+    }
+
     private fun prepareFileSystemHandler(enclaveFileSystemFile: Path?): FileSystemHandler? {
         return if (isFileSystemSupported()) {
             val fileSystemFilePaths = if (enclaveFileSystemFile != null) listOf(enclaveFileSystemFile) else emptyList()
@@ -472,60 +581,90 @@ class EnclaveHost private constructor(
         return enclaveMode != EnclaveMode.MOCK && enclaveHandle is NativeEnclaveHandle
     }
 
-    private fun executeKdsPrivateKeyRequest(
-        keySpec: KDSKeySpec,
-        kdsConfiguration: KDSConfiguration
-    ): KDSPrivateKeyResponse {
-        val url = URL("${kdsConfiguration.url}/private")
-        val con: HttpURLConnection = url.openConnection() as HttpURLConnection
-        con.connectTimeout = kdsConfiguration.timeout.toMillis().toInt()
-        con.readTimeout = kdsConfiguration.timeout.toMillis().toInt()
-        con.requestMethod = "POST"
-        con.setRequestProperty("Content-Type", "application/json; utf-8")
-        con.setRequestProperty("API-VERSION", "1")
-        con.doOutput = true
-
-        val kdsPrivateKeyRequest = KDSPrivateKeyRequest(
-            // TODO Cache the serialised bytes
-            appAttestationReport = enclaveInstanceInfo.serialize(),
-            name = keySpec.name,
-            masterKeyType = keySpec.masterKeyType,
-            policyConstraint = keySpec.policyConstraint
-        )
-
-        con.outputStream.use {
-            jsonMapper.writeValue(it, kdsPrivateKeyRequest)
-        }
-
-        if (con.responseCode != HttpURLConnection.HTTP_OK) {
-            val errorText = (con.errorStream ?: con.inputStream).use { it.reader().readText() }
-            val kdsErrorResponse =  try {
-                jsonMapper.readValue(errorText, KDSErrorResponse::class.java)
-            } catch (e: Exception) {
-                // It is likely that the error response is not a KDSErrorResponse if an exception is raised
-                // The best thing to do in those cases is to return the response code
-                throw IOException("HTTP response code: ${con.responseCode}, HTTP response message: $errorText")
+    /**
+     * Perform a fresh attestation with the attestation service. On successful completion the [enclaveInstanceInfo]
+     * property may be updated to a newer one. If so make sure to provide this to end clients.
+     *
+     * Note that an attestation is already performed on startup. It's recommended to call this method if a long time
+     * has passed and clients may want a more fresh version, or to use [startAttestationRefresh] instead.
+     *
+     * Reading [enclaveInstanceInfo] is not blocked whilst this is in progress, and continues to return the previous
+     * [EnclaveInstanceInfo] until the new one is ready.
+     */
+    fun updateAttestation() {
+        synchronized(attestationLock) {
+            hostStateManager.checkStateIsNot<Closed> { "The enclave host has been closed." }
+            val attestation = getAttestation()
+            updateEnclaveInstanceInfo(attestation)
+            val enclaveInstanceInfo = this.enclaveInstanceInfo
+            for (listener in enclaveInstanceInfoListeners) {
+                try {
+                    listener.accept(enclaveInstanceInfo)
+                } catch (e: Exception) {
+                    log.warn("EnclaveInstanceInfo listener failed", e)
+                }
             }
-            throw IOException(kdsErrorResponse.reason)
         }
+    }
 
-        val kdsPrivateKeyResponse = con.inputStream.use {
-            jsonMapper.readValue(it, KDSPrivateKeyResponse::class.java)
-        }
-        return kdsPrivateKeyResponse
+    /**
+     * Register a listener to be notified with the new [EnclaveInstanceInfo] whenever the attestation is updated, either
+     * by [updateAttestation] or by the background refresh (see [startAttestationRefresh]). The listener is called on
+     * the thread which updated the attestation, after [enclaveInstanceInfo] has been updated, and must not block.
+     */
+    fun addEnclaveInstanceInfoListener(listener: Consumer<EnclaveInstanceInfo>) {
+        enclaveInstanceInfoListeners += listener
+    }
+
+    fun removeEnclaveInstanceInfoListener(listener: Consumer<EnclaveInstanceInfo>) {
+        enclaveInstanceInfoListeners -= listener
     }
 
     /**
-     * Perform a fresh attestation with the attestation service. On successful completion the [enclaveInstanceInfo]
-     * property may be updated to a newer one. If so make sure to provide this to end clients.
+     * Regenerate the enclave's attestation in the background every [period], so that clients are given a fresh
+     * [enclaveInstanceInfo] without any thread having to wait for the attestation service. For DCAP attestations, the
+     * attestation is also refreshed once the collateral it was verified with is due to be updated, if that's sooner.
      *
-     * Note that an attestation is already performed on startup. It's recommended to call this method if a long time
-     * has passed and clients may want a more fresh version.
+     * Failed refreshes are logged and retried after [period]. The background refresh stops when the host is closed.
+     *
+     * @throws IllegalArgumentException If [period] is not positive.
+     * @throws IllegalStateException If the host has not been started or the refresh has already been started.
      */
     @Synchronized
-    fun updateAttestation() {
-        val attestation = getAttestation()
-        updateEnclaveInstanceInfo(attestation)
+    fun startAttestationRefresh(period: Duration) {
+        require(!period.isNegative && !period.isZero) { "The refresh period must be positive." }
+        hostStateManager.checkStateIs<Started> { "The enclave host has not been started." }
+        check(attestationRefresher == null) { "The attestation refresh has already been started." }
+        val refresher = Executors.newSingleThreadScheduledExecutor {
+            Thread(it, "enclave-attestation-refresh").apply { isDaemon = true }
+        }
+        attestationRefresher = refresher
+        fun scheduleRefresh(delay: Duration) {
+            refresher.schedule({
+                if (refresher.isShutdown) return@schedule
+                val nextDelay = try {
+                    updateAttestation()
+                    nextRefreshDelay(period)
+                } catch (e: Exception) {
+                    log.warn("Unable to refresh the enclave's attestation, will retry in $period", e)
+                    period
+                }
+                scheduleRefresh(nextDelay)
+            }, delay.toNanos(), TimeUnit.NANOSECONDS)
+        }
+        scheduleRefresh(nextRefreshDelay(period))
+    }
+
+    private fun nextRefreshDelay(period: Duration): Duration {
+        val attestation = _enclaveInstanceInfo?.attestation as? DcapAttestation ?: return period
+        val nextUpdate = minOf(
+            attestation.collateral.signedTcbInfo.tcbInfo.nextUpdate,
+            attestation.collateral.signedQeIdentity.enclaveIdentity.nextUpdate
+        )
+        val untilNextUpdate = Duration.between(Instant.now(), nextUpdate)
+        // If the collateral is already past its next update then the attestation service hasn't got the new one yet,
+        // and there's no point refreshing any sooner than usual.
+        return if (untilNextUpdate.isNegative || untilNextUpdate > period) period else untilNextUpdate
     }
 
     private fun getAttestation(): Attestation {
@@ -538,7 +677,8 @@ class EnclaveHost private constructor(
         _enclaveInstanceInfo = EnclaveInstanceInfoImpl(
             setEnclaveInfoCallHandler.enclaveInfo.signatureKey,
             setEnclaveInfoCallHandler.enclaveInfo.encryptionKey,
-            attestation
+            attestation,
+            setEnclaveInfoCallHandler.enclaveInfo.mailProtocol
         )
     }
 
@@ -712,20 +852,29 @@ class EnclaveHost private constructor(
         //
         // could yield a secondary error if an exception was thrown in enclave.start without this.
         if (hostStateManager.state !is Started) return
-        try {
-            // Ask the enclave to close so all its resources are released before the enclave is destroyed
-            enclaveHandle.stopEnclave()
+        attestationRefresher?.shutdownNow()
+        attestationRefresher = null
+        // Wait for any attestation update to finish, and prevent new ones, as they call into the enclave.
+        synchronized(attestationLock) {
+            try {
+                // Ask the enclave to close so all its resources are released before the enclave is destroyed
+                enclaveHandle.stopEnclave()
 
-            // Destroy the enclave
-            enclaveHandle.destroy()
+                // Destroy the enclave
+                enclaveHandle.destroy()
 
-            fileSystemHandler?.close()
-        } finally {
-            hostStateManager.state = Closed
+                fileSystemHandler?.close()
+            } finally {
+                hostStateManager.state = Closed
+            }
         }
     }
 
-    private class EnclaveInfo(val signatureKey: PublicKey, val encryptionKey: Curve25519PublicKey)
+    private class EnclaveInfo(
+        val signatureKey: PublicKey,
+        val encryptionKey: Curve25519PublicKey,
+        val mailProtocol: MailProtocol
+    )
 
     /**
      * Handler for servicing attestation requests from the enclave.
@@ -749,7 +898,8 @@ class EnclaveHost private constructor(
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
             val signatureKey = signatureScheme.decodePublicKey(parameterBuffer.getBytes(44))
             val encryptionKey = Curve25519PublicKey(parameterBuffer.getBytes(32))
-            _enclaveInfo = EnclaveInfo(signatureKey, encryptionKey)
+            val mailProtocol = MailProtocol.values()[parameterBuffer.get().toInt()]
+            _enclaveInfo = EnclaveInfo(signatureKey, encryptionKey, mailProtocol)
             return null
         }
     }
@@ -774,7 +924,9 @@ class EnclaveHost private constructor(
         // Try to reduce the number of HTTP requests to the KDS, which also has the benefit for reducing the number
         // large ECALLs containing the KDS mail response and the KDE EII bytes (since the enclave also caches the
         // private key).
-        private val seenKdsKeySpecs = ConcurrentHashMap.newKeySet<KDSKeySpec>()
+        val seenKdsKeySpecs = ConcurrentHashMap.newKeySet<KDSKeySpec>()
+        // The KDS private keys which are still being prefetched, or which the enclave hasn't been given yet.
+        val pendingKdsPrefetches = ConcurrentHashMap<KDSKeySpec, CompletableFuture<KDSPrivateKeyResponse>>()
 
         override fun handleCall(parameterBuffer: ByteBuffer): ByteBuffer? {
             val type = callTypeValues[parameterBuffer.get().toInt()]
@@ -854,8 +1006,34 @@ class EnclaveHost private constructor(
             //    release mode enclaves.
             val mailKeyDerivation = MailKeyDerivation.deserialiseFromMailBytes(mailBytes)
             val kdsKeySpec = (mailKeyDerivation as? KdsKeySpecKeyDerivation)?.keySpec
-            val privateKeyResponse = kdsKeySpec?.let { getKdsPrivateKeyResponse(kdsKeySpec) }
+            var privateKeyResponse = kdsKeySpec?.let { getKdsPrivateKeyResponse(kdsKeySpec) }
 
+            try {
+                deliverMailIntoEnclave(mailBytes, privateKeyResponse, callback, routingHint)
+            } catch (e: MailDecryptionException) {
+                if (kdsKeySpec == null || privateKeyResponse != null) throw e
+                // The enclave may have evicted the private key for this key spec from its cache, in which case it
+                // needs the KDS response again. The enclave checks this before doing anything with the mail and so
+                // it's safe to retry. If the mail really can't be decrypted then this will fail again.
+                seenKdsKeySpecs -= kdsKeySpec
+                privateKeyResponse = getKdsPrivateKeyResponse(kdsKeySpec)
+                deliverMailIntoEnclave(mailBytes, privateKeyResponse, callback, routingHint)
+            }
+
+            if (privateKeyResponse != null) {
+                // It's important that we mark this key spec as having been seen only after the enclave has processed
+                // the mail. In the presence of multiple threads, only here can we guarantee that it has cached the
+                // private key for itself.
+                seenKdsKeySpecs += kdsKeySpec
+            }
+        }
+
+        private fun deliverMailIntoEnclave(
+            mailBytes: ByteArray,
+            privateKeyResponse: KDSPrivateKeyResponse?,
+            callback: EnclaveCallback?,
+            routingHint: String?
+        ) {
             callIntoEnclave(callback) { threadID ->
                 val routingHintBytes = routingHint?.toByteArray()
                 val routingHintSize = nullableSize(routingHintBytes) { it.intLengthPrefixSize }
@@ -867,27 +1045,25 @@ class EnclaveHost private constructor(
                     buffer.put(mailBytes)
                 }
             }
-
-            if (privateKeyResponse != null) {
-                // It's important that we mark this key spec as having been seen only after the enclave has processed
-                // the mail. In the presence of multiple threads, only here can we guarantee that it has cached the
-                // private key for itself.
-                seenKdsKeySpecs += kdsKeySpec
-            }
         }
 
         private fun getKdsPrivateKeyResponse(keySpec: KDSKeySpec): KDSPrivateKeyResponse? {
             // As an optimisation avoid sending the KDS response mail and KDS EII if the enclave has already cached
             // the private key. However we can't guarantee that the enclave has cached the private key until after
             // deliverMail has returned which is why we don't update the cache here.
-            return if (keySpec !in seenKdsKeySpecs) {
-                val kdsConfig = checkNotNull(kdsConfiguration) {
-                    "Mail is encrypted with KDS private key but host has not been provided with KDS configuration."
+            if (keySpec in seenKdsKeySpecs) return null
+            val prefetch = pendingKdsPrefetches[keySpec]
+            if (prefetch != null) {
+                try {
+                    return prefetch.getOrThrowCause()
+                } catch (e: Exception) {
+                    // The prefetch failed, so request the key again as if it had never been prefetched.
                 }
-                executeKdsPrivateKeyRequest(keySpec, kdsConfig)
-            } else {
-                null
             }
+            val kdsPrivateKeyClient = checkNotNull(kdsPrivateKeyClient) {
+                "Mail is encrypted with KDS private key but host has not been provided with KDS configuration."
+            }
+            return kdsPrivateKeyClient.getPrivateKey(keySpec)
         }
 
         // Sets up the state tracking and handle re-entrancy.
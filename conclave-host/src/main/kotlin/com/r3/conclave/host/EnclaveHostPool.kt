@@ -0,0 +1,371 @@
+package com.r3.conclave.host
+
+import com.r3.conclave.common.Beta
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.common.EnclaveMode
+import com.r3.conclave.common.MockConfiguration
+import com.r3.conclave.common.SHA256Hash
+import com.r3.conclave.common.internal.BoundedCache
+import com.r3.conclave.common.internal.KdsKeySpecKeyDerivation
+import com.r3.conclave.common.internal.MailKeyDerivation
+import com.r3.conclave.host.internal.EnclaveScanner
+import com.r3.conclave.host.internal.loggerFor
+import com.r3.conclave.host.kds.KDSConfiguration
+import com.r3.conclave.mail.MailDecryptionException
+import java.io.IOException
+import java.nio.file.Path
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import java.util.function.Function
+import java.util.function.IntFunction
+
+/**
+ * A pool of instances of the same enclave, which spreads the load of [deliverMail] and [callEnclave] across them. A
+ * single [EnclaveHost] is limited by the number of threads its enclave can run and, for enclaves which are not
+ * thread-safe, by the enclave's lock. Loading several instances of the enclave removes that limit.
+ *
+ * Each instance has its own encryption key and so mail which has been encrypted using an instance's
+ * [EnclaveInstanceInfo] can only be decrypted by that instance. The mail doesn't identify the key it was encrypted
+ * with, and so the pool routes such mail using its routing hint: each routing hint maps to one instance, given by
+ * [getInstanceIndex]. A client must therefore be given the [EnclaveInstanceInfo] returned by [getEnclaveInstanceInfo]
+ * for the routing hint its mail will be delivered with. To allow clients to use any instance, have them encrypt their
+ * mail with a key from the key derivation service (KDS) instead, using `PostOfficeBuilder.usingKDS`. All the instances
+ * derive the same private key from the KDS and so KDS mail is sent to the least loaded instance, unless its routing
+ * hint has already been assigned to an instance.
+ *
+ * The instances do not share any state. Enclaves which need a consistent view of their data across the instances
+ * will need to keep it outside the enclave, for example in a database accessed via the host. Each instance emits its
+ * own sealed state through its commands callback, which needs to be stored against the instance's index and given
+ * back to the same instance when the pool is next started.
+ *
+ * Get an [EnclaveHostPool] using one of the static [load] methods.
+ */
+@Beta
+class EnclaveHostPool private constructor(private val hosts: List<EnclaveHost>) : AutoCloseable {
+    /**
+     * Suppress kotlin specific companion objects from our API documentation.
+     * The public items within the object are still published in the documentation.
+     * @suppress
+     */
+    companion object {
+        private val log = loggerFor<EnclaveHostPool>()
+
+        /**
+         * The maximum number of routing hints the pool will remember the assigned instance for.
+         */
+        private const val MAX_STICKY_ROUTES = 100_000
+
+        /**
+         * Load [size] instances of the signed enclave for the given enclave class name.
+         *
+         * @param enclaveClassName The name of the enclave class to load.
+         * @param size The number of instances of the enclave to load.
+         * @param mockConfiguration Defines the configuration to use when loading the enclave in mock mode. This
+         *                          parameter is ignored when not using mock mode.
+         *
+         * @throws IllegalArgumentException if [size] is not positive or there is no enclave file for the given class
+         *                                  name.
+         * @throws IllegalStateException if more than one enclave file is found.
+         * @throws EnclaveLoadException if the enclave does not load correctly or if the platform does
+         *                              not support enclaves in the required mode.
+         * @throws PlatformSupportException if the mode is not mock and the host OS is not Linux or if the CPU doesn't
+         *                                  support SGX enclave in simulation mode or higher.
+         */
+        @JvmStatic
+        @Throws(EnclaveLoadException::class, PlatformSupportException::class)
+        fun load(enclaveClassName: String, size: Int, mockConfiguration: MockConfiguration?): EnclaveHostPool {
+            require(size > 0) { "The pool size must be positive." }
+            val scanResult = EnclaveScanner().findEnclave(enclaveClassName)
+            return EnclaveHostPool(List(size) { EnclaveHost.createEnclaveHost(scanResult, mockConfiguration) })
+        }
+
+        /**
+         * Scan the classpath and load [size] instances of the single signed enclave that is found.
+         *
+         * @param size The number of instances of the enclave to load.
+         * @param mockConfiguration Defines the configuration to use when loading the enclave in mock mode. This
+         *                          parameter is ignored when not using mock mode.
+         *
+         * @throws IllegalArgumentException if [size] is not positive.
+         * @throws IllegalStateException if no enclave file is found or if more than one enclave file is found.
+         * @throws EnclaveLoadException if the enclave does not load correctly or if the platform does
+         *                              not support enclaves in the required mode.
+         * @throws PlatformSupportException if the mode is not mock and the host OS is not Linux or if the CPU doesn't
+         *                                  support SGX enclave in simulation mode or higher.
+         */
+        @JvmStatic
+        @Throws(EnclaveLoadException::class, PlatformSupportException::class)
+        fun load(size: Int, mockConfiguration: MockConfiguration?): EnclaveHostPool {
+            require(size > 0) { "The pool size must be positive." }
+            val scanResult = EnclaveScanner().findEnclave()
+            return EnclaveHostPool(List(size) { EnclaveHost.createEnclaveHost(scanResult, mockConfiguration) })
+        }
+
+        // The internal modifier prevents this from appearing in the API docs, however because we shade Kotlin it will
+        // still be available to Java users. We solve that by making it synthetic which hides it from the Java compiler.
+        @JvmSynthetic
+        @JvmStatic
+        internal fun internalCreate(hosts: List<EnclaveHost>): EnclaveHostPool {
+            require(hosts.isNotEmpty()) { "The pool size must be positive." }
+            return EnclaveHostPool(hosts)
+        }
+    }
+
+    private val inFlightCounts = List(hosts.size) { AtomicInteger() }
+    private val nextRoundRobin = AtomicInteger()
+    private val stickyRoutes = BoundedCache<String, Int>(MAX_STICKY_ROUTES)
+
+    /**
+     * The number of enclave instances in the pool.
+     */
+    val size: Int get() = hosts.size
+
+    /**
+     * The name of the sub-class of Enclave that was loaded.
+     */
+    val enclaveClassName: String get() = hosts[0].enclaveClassName
+
+    /**
+     * The mode the enclave instances are running in.
+     */
+    val enclaveMode: EnclaveMode get() = hosts[0].enclaveMode
+
+    /**
+     * The [EnclaveInstanceInfo] of each instance in the pool, in instance index order. Each instance is of the same
+     * enclave and so they will all have the same code measurement, but will differ in their encryption keys. Clients
+     * which are not using KDS mail need to be given the [EnclaveInstanceInfo] of the instance they will be
+     * communicating with.
+     *
+     * @throws IllegalStateException if the pool has not been started.
+     */
+    val enclaveInstanceInfos: List<EnclaveInstanceInfo> get() = hosts.map { it.enclaveInstanceInfo }
+
+    /**
+     * Returns the index of the instance which mail with the given routing hint is delivered to, if the mail is not
+     * encrypted with a KDS key. This only depends on the routing hint and the size of the pool.
+     */
+    fun getInstanceIndex(routingHint: String): Int {
+        // Routing hints come from clients, and String.hashCode collisions are trivial to construct, so a SHA-256 hash
+        // is used to stop a client from steering its mail, or that of others, onto a single instance.
+        val hash = SHA256Hash.hash(routingHint.toByteArray())
+        return Math.floorMod(hash.buffer().int, hosts.size)
+    }
+
+    /**
+     * Returns the [EnclaveInstanceInfo] a client needs to encrypt its mail with if the mail is going to be delivered
+     * with the given routing hint, and isn't going to be encrypted with a KDS key.
+     *
+     * @throws IllegalStateException if the pool has not been started.
+     */
+    fun getEnclaveInstanceInfo(routingHint: String): EnclaveInstanceInfo {
+        return hosts[getInstanceIndex(routingHint)].enclaveInstanceInfo
+    }
+
+    /**
+     * Returns the [EnclaveHost] for the instance at the given index. This can be used for instance specific
+     * operations, such as accessing the mock enclave.
+     */
+    fun getHost(index: Int): EnclaveHost = hosts[index]
+
+    /**
+     * Start all the enclave instances in the pool, without any sealed state or persistent file system. See
+     * [EnclaveHost.start] for more details. If any of the instances fail to start then all the instances are closed.
+     *
+     * @param commandsCallbackFactory Given the index of an instance, returns the callback to use for the
+     * [MailCommand]s emitted by that instance. Each instance invokes its own callback serially, but the callbacks of
+     * different instances can be invoked concurrently.
+     *
+     * @throws EnclaveLoadException If an enclave instance could not be started.
+     */
+    @Throws(EnclaveLoadException::class)
+    fun start(
+        attestationParameters: AttestationParameters?,
+        kdsConfiguration: KDSConfiguration?,
+        commandsCallbackFactory: IntFunction<Consumer<List<MailCommand>>>
+    ) {
+        start(attestationParameters, null, null, kdsConfiguration, commandsCallbackFactory)
+    }
+
+    /**
+     * Start all the enclave instances in the pool. See [EnclaveHost.start] for more details. If any of the instances
+     * fail to start then all the instances are closed.
+     *
+     * @param sealedStateFactory Given the index of an instance, returns the last sealed state emitted by that instance
+     * via [MailCommand.StoreSealedState], or null if it has none. Sealed states are specific to the instance which
+     * emitted them and must not be given to a different instance. This can be null if none of the instances have any
+     * sealed state.
+     *
+     * @param enclaveFileSystemFile File where the encrypted file system of the first instance is persisted to. The
+     * other instances each use a file next to it, with the instance index appended to the file name (`<file>.1`,
+     * `<file>.2`, etc.). This means the enclave's file system is kept when going from one instance to several. This can
+     * be null if the enclave doesn't use a persistent file system.
+     *
+     * @param commandsCallbackFactory Given the index of an instance, returns the callback to use for the
+     * [MailCommand]s emitted by that instance. Each instance invokes its own callback serially, but the callbacks of
+     * different instances can be invoked concurrently.
+     *
+     * @throws EnclaveLoadException If an enclave instance could not be started.
+     */
+    @Throws(EnclaveLoadException::class)
+    @Synchronized
+    fun start(
+        attestationParameters: AttestationParameters?,
+        sealedStateFactory: IntFunction<ByteArray?>?,
+        enclaveFileSystemFile: Path?,
+        kdsConfiguration: KDSConfiguration?,
+        commandsCallbackFactory: IntFunction<Consumer<List<MailCommand>>>
+    ) {
+        try {
+            for ((index, host) in hosts.withIndex()) {
+                host.start(
+                    attestationParameters,
+                    sealedStateFactory?.apply(index),
+                    enclaveFileSystemFile?.let { instanceFile(it, index) },
+                    kdsConfiguration,
+                    commandsCallbackFactory.apply(index)
+                )
+            }
+        } catch (e: Exception) {
+            closeAll(e)
+            throw e
+        }
+        log.info("Started pool of ${hosts.size} $enclaveClassName enclave instances")
+    }
+
+    private fun instanceFile(file: Path, index: Int): Path {
+        return if (index == 0) file else file.resolveSibling("${file.fileName}.$index")
+    }
+
+    /**
+     * Update the attestation of all the enclave instances.
+     *
+     * @see EnclaveHost.updateAttestation
+     */
+    fun updateAttestation() {
+        hosts.forEach(EnclaveHost::updateAttestation)
+    }
+
+    /**
+     * Passes the given byte array to the least loaded enclave instance.
+     *
+     * @see EnclaveHost.callEnclave
+     */
+    fun callEnclave(bytes: ByteArray): ByteArray? {
+        return onInstance(leastLoadedInstance()) { it.callEnclave(bytes) }
+    }
+
+    /**
+     * Passes the given byte array to the least loaded enclave instance.
+     *
+     * @see EnclaveHost.callEnclave
+     */
+    fun callEnclave(bytes: ByteArray, callback: Function<ByteArray, ByteArray?>): ByteArray? {
+        return onInstance(leastLoadedInstance()) { it.callEnclave(bytes, callback) }
+    }
+
+    /**
+     * Delivers the given encrypted mail bytes to an enclave instance in the pool which can decrypt it. See the class
+     * documentation for how the instance is chosen.
+     *
+     * @return The index of the instance that received the mail.
+     *
+     * @throws MailDecryptionException If the instance the mail was routed to was not able to decrypt it.
+     * @throws IllegalArgumentException If the mail is not encrypted with a KDS key, there is no routing hint and there
+     * is more than one instance in the pool.
+     *
+     * @see EnclaveHost.deliverMail
+     */
+    @Throws(MailDecryptionException::class, IOException::class)
+    fun deliverMail(mail: ByteArray, routingHint: String?): Int {
+        return deliverMailInternal(mail, routingHint) { host -> host.deliverMail(mail, routingHint) }
+    }
+
+    /**
+     * Delivers the given encrypted mail bytes to an enclave instance in the pool which can decrypt it. See the class
+     * documentation for how the instance is chosen.
+     *
+     * @return The index of the instance that received the mail.
+     *
+     * @throws MailDecryptionException If the instance the mail was routed to was not able to decrypt it.
+     * @throws IllegalArgumentException If the mail is not encrypted with a KDS key, there is no routing hint and there
+     * is more than one instance in the pool.
+     *
+     * @see EnclaveHost.deliverMail
+     */
+    @Throws(MailDecryptionException::class, IOException::class)
+    fun deliverMail(mail: ByteArray, routingHint: String?, callback: Function<ByteArray, ByteArray?>): Int {
+        return deliverMailInternal(mail, routingHint) { host -> host.deliverMail(mail, routingHint, callback) }
+    }
+
+    private fun deliverMailInternal(mail: ByteArray, routingHint: String?, deliver: (EnclaveHost) -> Unit): Int {
+        if (MailKeyDerivation.deserialiseFromMailBytes(mail) !is KdsKeySpecKeyDerivation) {
+            // Only the instance which owns the encryption key can decrypt this mail, and the client will have been
+            // given the key of the instance its routing hint maps to.
+            val instance = when {
+                routingHint != null -> getInstanceIndex(routingHint)
+                hosts.size == 1 -> 0
+                else -> throw IllegalArgumentException(
+                    "Mail which is not encrypted with a KDS key needs a routing hint to be delivered to a pool of " +
+                            "more than one enclave instance."
+                )
+            }
+            onInstance(instance, deliver)
+            return instance
+        }
+
+        // Every instance can decrypt KDS mail.
+        val stickyInstance = routingHint?.let { stickyRoutes[it] }
+        val instance = stickyInstance ?: leastLoadedInstance()
+        onInstance(instance, deliver)
+        if (routingHint != null && instance != stickyInstance) {
+            stickyRoutes[routingHint] = instance
+        }
+        return instance
+    }
+
+    private inline fun <T> onInstance(index: Int, block: (EnclaveHost) -> T): T {
+        val inFlightCount = inFlightCounts[index]
+        inFlightCount.incrementAndGet()
+        try {
+            return block(hosts[index])
+        } finally {
+            inFlightCount.decrementAndGet()
+        }
+    }
+
+    private fun leastLoadedInstance(): Int {
+        // Start the scan at a different instance each time so that ties are broken in a round-robin fashion.
+        val start = Math.floorMod(nextRoundRobin.getAndIncrement(), hosts.size)
+        var best = start
+        var bestCount = inFlightCounts[start].get()
+        for (offset in 1 until hosts.size) {
+            val index = (start + offset) % hosts.size
+            val count = inFlightCounts[index].get()
+            if (count < bestCount) {
+                best = index
+                bestCount = count
+            }
+        }
+        return best
+    }
+
+    /**
+     * Close all the enclave instances in the pool.
+     */
+    @Synchronized
+    override fun close() {
+        closeAll(null)
+    }
+
+    private fun closeAll(cause: Exception?) {
+        var closeException: Exception? = cause
+        for (host in hosts) {
+            try {
+                host.close()
+            } catch (e: Exception) {
+                if (closeException == null) closeException = e else closeException.addSuppressed(e)
+            }
+        }
+        if (cause == null && closeException != null) throw closeException
+    }
+}
@@ -109,6 +109,30 @@ interface EnclaveHandle {
         enclaveInterface.executeOutgoingCall(EnclaveCallType.SET_KDS_PERSISTENCE_KEY, kdsResponseBuffer)
     }
 
+    /**
+     * Get the KDS key specs the enclave would like the host to prefetch.
+     */
+    fun getKdsPrefetchKeySpecs(): List<KDSKeySpec> {
+        val buffer = enclaveInterface.executeOutgoingCall(EnclaveCallType.GET_KDS_PREFETCH_KEY_SPECS)
+            ?: return emptyList()
+        return List(buffer.getInt()) {
+            val name = buffer.getIntLengthPrefixString()
+            val masterKeyType = MasterKeyType.fromID(buffer.get().toInt())
+            val policyConstraint = buffer.getIntLengthPrefixString()
+            KDSKeySpec(name, masterKeyType, policyConstraint)
+        }
+    }
+
+    /**
+     * Provide the enclave with a KDS private key before it's needed by any mail.
+     */
+    fun setKdsPrivateKey(kdsResponse: KDSPrivateKeyResponse) {
+        val kdsResponseBuffer = ByteBuffer.allocate(kdsResponse.size).apply {
+            putKdsPrivateKeyResponse(kdsResponse)
+        }
+        enclaveInterface.executeOutgoingCall(EnclaveCallType.SET_KDS_PRIVATE_KEY, kdsResponseBuffer)
+    }
+
     /**
      * Send a command to the enclave message handler.
      */
@@ -81,6 +81,25 @@ abstract class EnclaveHostService : AutoCloseable {
         }
     }
 
+    /**
+     * Remove and return up to [maxMail] of the queued asynchronous mail for the given routing hint, in the order they
+     * were posted by the enclave.
+     */
+    fun pollMail(routingHint: String, maxMail: Int): List<ByteArray> {
+        require(maxMail >= 0) { "maxMail cannot be negative" }
+        synchronized(asynchronousResponses) {
+            val queue = asynchronousResponses[routingHint] ?: return emptyList()
+            val mails = ArrayList<ByteArray>(minOf(maxMail, queue.size))
+            while (mails.size < maxMail) {
+                mails += queue.poll() ?: break
+            }
+            if (queue.isEmpty()) {
+                asynchronousResponses.remove(routingHint)
+            }
+            return mails
+        }
+    }
+
     private fun processPostMail(routingHint: String?, encryptedMail: ByteArray) {
         checkNotNull(routingHint) { "Null routing hint not supported by this host." }
         if (synchronousResponse.get() == routingHint) {
@@ -4,6 +4,7 @@ import com.r3.conclave.common.EnclaveMode
 import com.r3.conclave.common.MockConfiguration
 import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
 import com.r3.conclave.host.EnclaveHost
+import com.r3.conclave.host.EnclaveHostPool
 import java.net.URL
 
 /**
@@ -26,3 +27,16 @@ fun createMockHost(
 ): EnclaveHost {
     return EnclaveHost.internalCreateMock(enclaveClass, mockConfiguration, enclaveKdsConfig)
 }
+
+/**
+ * [EnclaveHostPool.internalCreate] is internal and so isn't visible to the rest of the codebase. This creates a pool of
+ * mock hosts for testing.
+ */
+fun createMockHostPool(
+    enclaveClass: Class<*>,
+    size: Int,
+    mockConfiguration: MockConfiguration? = null,
+    enclaveKdsConfig: EnclaveKdsConfig? = null
+): EnclaveHostPool {
+    return EnclaveHostPool.internalCreate(List(size) { createMockHost(enclaveClass, mockConfiguration, enclaveKdsConfig) })
+}
@@ -0,0 +1,34 @@
+package com.r3.conclave.host.internal
+
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+
+/**
+ * Records how long each phase of the enclave startup takes. Phases can run concurrently and so the sum of the phase
+ * durations can be more than the total startup time.
+ *
+ * This class is thread-safe.
+ */
+class StartupPhaseTimer {
+    private class Phase(val name: String, val durationNanos: Long)
+
+    private val startNanos = System.nanoTime()
+    private val phases = ConcurrentLinkedQueue<Phase>()
+
+    fun <T> time(name: String, block: () -> T): T {
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            phases += Phase(name, System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Returns a summary of the phase durations and the total time since this timer was created, in milliseconds.
+     */
+    fun summary(): String {
+        val total = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos)
+        return phases.joinToString(prefix = "total=${total}ms, ") { "${it.name}=${TimeUnit.NANOSECONDS.toMillis(it.durationNanos)}ms" }
+    }
+}
@@ -0,0 +1,426 @@
+package com.r3.conclave.host.internal.gramine
+
+import com.r3.conclave.host.internal.loggerFor
+import com.r3.conclave.utilities.internal.toHexString
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.net.URL
+import java.nio.channels.FileChannel
+import java.nio.channels.FileLock
+import java.nio.channels.OverlappingFileLockException
+import java.nio.file.*
+import java.nio.file.StandardOpenOption.*
+import java.nio.file.attribute.FileTime
+import java.nio.file.attribute.PosixFilePermission
+import java.nio.file.attribute.PosixFilePermissions
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.time.Duration
+import java.util.concurrent.ExecutorService
+import java.util.concurrent.Executors
+import java.util.concurrent.Future
+import java.util.concurrent.Semaphore
+import java.util.zip.GZIPInputStream
+import java.util.zip.ZipInputStream
+import kotlin.io.path.*
+import kotlin.streams.toList
+
+/**
+ * Extracts Gramine enclave bundles into a cache directory so that they only need to be extracted once, rather than on
+ * every start of the enclave. Each extraction of a bundle goes into a new sub-directory, named after the SHA-256 hash of
+ * the bundle, along with a manifest of the sizes and hashes of the extracted files. A pointer file for the bundle hash
+ * names the directory to use. Every extracted file is hashed and checked against the manifest before the directory is
+ * reused. If any of them have been modified then the bundle is extracted into a new directory and the pointer is
+ * replaced. The bundle itself is only hashed if its size or modification time has changed since it was last seen.
+ *
+ * The manifest can only be trusted if nobody else can write to the cache directory. The cache directory is created with
+ * owner-only permissions, and is refused if it's owned by another user or if other users can write to it.
+ *
+ * The extracted directories are shared by all the enclaves using the same bundle, including enclaves in other
+ * processes, and so must be treated as read-only. A directory is never modified or deleted while it's in use: each user
+ * holds a shared file lock on the directory's lock file until the [ExtractedBundle] is closed. Directories which are no
+ * longer the current one for their bundle, or haven't been used for [retention], are deleted once they are no longer
+ * locked.
+ */
+class GramineBundleCache(
+    private val cacheDirectory: Path,
+    private val retention: Duration = Duration.ofDays(7)
+) {
+    companion object {
+        /**
+         * The system property for overriding the cache directory. By default it's a directory inside the system's
+         * temporary directory.
+         */
+        const val CACHE_DIRECTORY_PROPERTY = "conclave.gramine.bundleCacheDir"
+
+        private val logger = loggerFor<GramineBundleCache>()
+        private const val MANIFEST_FILE = ".conclave-bundle-manifest"
+        private const val MANIFEST_VERSION = "3"
+        private const val GRAMINE_ENTRY_POINT = "java"
+        /** Files up to this size are written to disk in parallel by the extraction threads. */
+        private const val MAX_BUFFERED_FILE_SIZE = 4L * 1024 * 1024
+        /** The maximum number of bytes buffered in memory waiting to be written by the extraction threads. */
+        private const val MAX_BUFFERED_BYTES = 64 * 1024 * 1024
+        private val bundleDirectoryName = Regex("[0-9A-F]{64}-[0-9A-F]+")
+
+        // The leases held by this process, keyed by lock file. A process can only hold one lock on a file, so enclaves
+        // in the same process using the same directory share a lease. Guarded by itself.
+        private val leases = HashMap<Path, Lease>()
+        private val random = SecureRandom()
+        private val ownerOnly = PosixFilePermissions.fromString("rwx------")
+
+        val default: GramineBundleCache by lazy {
+            // The temporary directory is shared by all users, so each user has their own cache directory.
+            val cacheDirectory = System.getProperty(CACHE_DIRECTORY_PROPERTY)?.let(::Path)
+                ?: (Path(System.getProperty("java.io.tmpdir")) / "conclave-gramine-bundles-${System.getProperty("user.name")}")
+            GramineBundleCache(cacheDirectory)
+        }
+    }
+
+    /**
+     * An extracted bundle directory, which is kept from being deleted until this is closed.
+     */
+    inner class ExtractedBundle internal constructor(val directory: Path, private val lease: Lease) : AutoCloseable {
+        private var closed = false
+
+        @Synchronized
+        override fun close() {
+            if (closed) return
+            closed = true
+            release(lease)
+        }
+    }
+
+    /**
+     * Returns the directory containing the extracted contents of the given bundle, extracting it if it's not already
+     * in the cache or if the cached copy fails verification. The returned [ExtractedBundle] must be closed once the
+     * directory is no longer needed.
+     */
+    @Synchronized
+    fun getExtractedBundle(bundleUrl: URL): ExtractedBundle {
+        createCacheDirectory()
+        val bundleHash = bundleHash(bundleUrl)
+        val pointerFile = cacheDirectory / "$bundleHash.current"
+
+        val extracted = reuseExtractedBundle(bundleHash, pointerFile) ?: extractBundle(bundleUrl, bundleHash, pointerFile)
+        try {
+            cleanUp(extracted.directory)
+        } catch (e: IOException) {
+            logger.debug("Unable to clean up the Gramine bundle cache", e)
+        }
+        return extracted
+    }
+
+    /**
+     * Creates the cache directory if it doesn't exist, and checks that only the current user can modify its contents.
+     */
+    private fun createCacheDirectory() {
+        val isPosix = "posix" in cacheDirectory.fileSystem.supportedFileAttributeViews()
+        if (!cacheDirectory.exists(LinkOption.NOFOLLOW_LINKS)) {
+            cacheDirectory.toAbsolutePath().parent.createDirectories()
+            try {
+                if (isPosix) {
+                    cacheDirectory.createDirectory(PosixFilePermissions.asFileAttribute(ownerOnly))
+                } else {
+                    cacheDirectory.createDirectory()
+                }
+            } catch (e: FileAlreadyExistsException) {
+                // Created by another process in the meantime, which is checked below like any other existing directory.
+            }
+        }
+        check(cacheDirectory.isDirectory(LinkOption.NOFOLLOW_LINKS)) {
+            "The Gramine bundle cache $cacheDirectory is not a directory. Use the $CACHE_DIRECTORY_PROPERTY system " +
+                    "property to choose a different one."
+        }
+        val owner = cacheDirectory.getOwner(LinkOption.NOFOLLOW_LINKS)
+        val currentUser = cacheDirectory.fileSystem.userPrincipalLookupService
+            .lookupPrincipalByName(System.getProperty("user.name"))
+        check(owner == currentUser) {
+            "The Gramine bundle cache $cacheDirectory is owned by $owner rather than the current user. Use the " +
+                    "$CACHE_DIRECTORY_PROPERTY system property to choose a different one."
+        }
+        if (isPosix) {
+            val permissions = cacheDirectory.getPosixFilePermissions(LinkOption.NOFOLLOW_LINKS)
+            check(PosixFilePermission.GROUP_WRITE !in permissions && PosixFilePermission.OTHERS_WRITE !in permissions) {
+                "The Gramine bundle cache $cacheDirectory can be modified by other users. Remove their write " +
+                        "permission or use the $CACHE_DIRECTORY_PROPERTY system property to choose a different directory."
+            }
+        }
+    }
+
+    private fun reuseExtractedBundle(bundleHash: String, pointerFile: Path): ExtractedBundle? {
+        val directoryName = readPointer(pointerFile) ?: return null
+        if (!directoryName.startsWith("$bundleHash-")) return null
+        val directory = cacheDirectory / directoryName
+        val lease = lease(directory)
+        // The directory is checked once it's locked, as it may have been cleaned up by another process beforehand.
+        if (directory.isDirectory() && isIntact(directory)) {
+            logger.debug("Reusing extracted Gramine bundle {}", directory)
+            return ExtractedBundle(directory, lease)
+        }
+        release(lease)
+        logger.warn("Extracted Gramine bundle $directory has been modified, extracting it again")
+        return null
+    }
+
+    private fun extractBundle(bundleUrl: URL, bundleHash: String, pointerFile: Path): ExtractedBundle {
+        // The directory is locked before it's created, so that it can't be cleaned up whilst it's being extracted.
+        val directory = cacheDirectory / "$bundleHash-${java.lang.Long.toHexString(random.nextLong()).uppercase()}"
+        val lease = lease(directory)
+        try {
+            directory.createDirectory()
+            extractBundle(bundleUrl, directory)
+            writeManifest(directory)
+            // Another thread or process may have extracted the same bundle at the same time, in which case the last
+            // one to finish becomes the current one.
+            writeAtomically(pointerFile, directory.name)
+            logger.debug("Extracted Gramine bundle to {}", directory)
+            return ExtractedBundle(directory, lease)
+        } catch (e: Exception) {
+            directory.toFile().deleteRecursively()
+            release(lease)
+            // Nothing else uses this lock file as the directory name is unique to this extraction.
+            lockFileFor(directory).deleteIfExists()
+            throw e
+        }
+    }
+
+    /**
+     * The bundle's hash is remembered along with its size and modification time, so that the bundle only needs to be
+     * hashed again if either of them has changed.
+     */
+    private fun bundleHash(bundleUrl: URL): String {
+        val connection = bundleUrl.openConnection()
+        val stamp = "${connection.contentLengthLong} ${connection.lastModified}"
+        val stampIsUsable = connection.contentLengthLong >= 0 && connection.lastModified > 0
+        val sourceFile = cacheDirectory / "${sha256(bundleUrl.toString().byteInputStream())}.source"
+        if (stampIsUsable) {
+            val previous = try {
+                sourceFile.readText().split(' ')
+            } catch (e: IOException) {
+                null
+            }
+            if (previous != null && previous.size == 3 && "${previous[0]} ${previous[1]}" == stamp) {
+                return previous[2]
+            }
+        }
+        val bundleHash = connection.getInputStream().use { sha256(it) }
+        if (stampIsUsable) {
+            writeAtomically(sourceFile, "$stamp $bundleHash")
+        }
+        return bundleHash
+    }
+
+    private fun extractBundle(bundleUrl: URL, outputDirectory: Path) {
+        val executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors())
+        try {
+            ZipInputStream(bundleUrl.openStream()).use { zip ->
+                while (true) {
+                    val entry = zip.nextEntry ?: break
+                    val path = resolveEntry(outputDirectory, entry.name)
+                    if (entry.isDirectory) {
+                        path.createDirectories()
+                    } else {
+                        path.parent.createDirectories()
+                        Files.copy(zip, path)
+                        if (entry.name.endsWith("tar.gz")) {
+                            unTarFile(path, outputDirectory, executor)
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow()
+        }
+
+        // Do this once the whole bundle has been extracted, rather than on each file.
+        if (!containsPythonFiles(outputDirectory)) {
+            Files.walk(outputDirectory).use { paths ->
+                paths.filter { it.name == GRAMINE_ENTRY_POINT && it.isRegularFile() }
+                    .forEach { it.toFile().setExecutable(true) }
+            }
+        }
+    }
+
+    /**
+     * Decompression of the tar.gz has to be done sequentially, but writing the files to disk does not. Smaller files
+     * are buffered in memory and written by the executor whilst the next entries are being decompressed.
+     */
+    private fun unTarFile(tarGz: Path, outputDirectory: Path, executor: ExecutorService) {
+        val bufferedBytes = Semaphore(MAX_BUFFERED_BYTES)
+        val writes = ArrayList<Future<*>>()
+        TarArchiveInputStream(GZIPInputStream(tarGz.inputStream())).use { tis ->
+            while (true) {
+                val tarEntry = tis.nextTarEntry ?: break
+                val outputFile = resolveEntry(outputDirectory, tarEntry.name)
+                if (tarEntry.isDirectory) {
+                    outputFile.createDirectories()
+                } else if (tarEntry.size <= MAX_BUFFERED_FILE_SIZE) {
+                    val size = tarEntry.size.toInt()
+                    bufferedBytes.acquire(size)
+                    val bytes = tis.readBytes()
+                    writes += executor.submit {
+                        try {
+                            outputFile.parent.createDirectories()
+                            outputFile.writeBytes(bytes)
+                        } finally {
+                            bufferedBytes.release(size)
+                        }
+                    }
+                } else {
+                    outputFile.parent.createDirectories()
+                    Files.copy(tis, outputFile)
+                }
+            }
+        }
+        writes.forEach { it.get() }
+    }
+
+    private fun resolveEntry(outputDirectory: Path, name: String): Path {
+        val path = outputDirectory.resolve(name).normalize()
+        require(path.startsWith(outputDirectory)) { "Bundle entry $name is outside of the bundle directory" }
+        return path
+    }
+
+    private fun containsPythonFiles(directory: Path): Boolean {
+        return Files.walk(directory).use { paths -> paths.anyMatch { it.extension == "py" } }
+    }
+
+    private fun writeManifest(directory: Path) {
+        val lines = regularFiles(directory).parallelStream().map { file ->
+            "${sha256Of(file)} ${file.fileSize()} ${directory.relativize(file)}"
+        }.toList()
+        (directory / MANIFEST_FILE).writeLines(listOf(MANIFEST_VERSION) + lines)
+    }
+
+    private fun isIntact(directory: Path): Boolean {
+        val manifestFile = directory / MANIFEST_FILE
+        if (!manifestFile.exists()) return false
+        val lines = manifestFile.readLines()
+        if (lines.firstOrNull() != MANIFEST_VERSION) return false
+        return lines.subList(1, lines.size).parallelStream().allMatch { line ->
+            val parts = line.split(' ', limit = 3)
+            if (parts.size != 3) return@allMatch false
+            val (hash, size, relativePath) = parts
+            val file = directory / relativePath
+            // The size check is a cheap way of spotting most changes before hashing the file.
+            file.isRegularFile() && file.fileSize() == size.toLongOrNull() && sha256Of(file) == hash
+        }
+    }
+
+    /**
+     * Deletes the directories which aren't in use, and which either aren't the current directory for their bundle or
+     * haven't been used for longer than [retention].
+     */
+    private fun cleanUp(currentDirectory: Path) {
+        val expiry = FileTime.fromMillis(System.currentTimeMillis() - retention.toMillis())
+        val directories = Files.list(cacheDirectory).use { paths ->
+            paths.filter { it.isDirectory() && bundleDirectoryName.matches(it.name) && it != currentDirectory }.toList()
+        }
+        for (directory in directories) {
+            val pointerFile = cacheDirectory / "${directory.name.substringBefore('-')}.current"
+            val isCurrent = readPointer(pointerFile) == directory.name
+            val lockFile = lockFileFor(directory)
+            val lastUsed = if (lockFile.exists()) lockFile.getLastModifiedTime() else directory.getLastModifiedTime()
+            if (isCurrent && lastUsed > expiry) continue
+            if (deleteIfUnused(directory) && isCurrent) {
+                pointerFile.deleteIfExists()
+                logger.debug("Deleted Gramine bundle {} which has not been used since {}", directory, lastUsed)
+            }
+        }
+    }
+
+    private fun deleteIfUnused(directory: Path): Boolean {
+        val lockFile = lockFileFor(directory)
+        synchronized(leases) {
+            if (lockFile in leases) return false
+            FileChannel.open(lockFile, CREATE, READ, WRITE).use { channel ->
+                val lock = try {
+                    channel.tryLock()
+                } catch (e: OverlappingFileLockException) {
+                    null
+                } ?: return false
+                try {
+                    directory.toFile().deleteRecursively()
+                    lockFile.deleteIfExists()
+                } finally {
+                    lock.release()
+                }
+            }
+        }
+        return true
+    }
+
+    internal class Lease(val lockFile: Path, val channel: FileChannel, val lock: FileLock) {
+        var count = 0
+    }
+
+    private fun lease(directory: Path): Lease {
+        val lockFile = lockFileFor(directory)
+        synchronized(leases) {
+            val lease = leases.getOrPut(lockFile) {
+                val channel = FileChannel.open(lockFile, CREATE, READ, WRITE)
+                try {
+                    Lease(lockFile, channel, channel.lock(0, Long.MAX_VALUE, true))
+                } catch (e: Exception) {
+                    channel.close()
+                    throw e
+                }
+            }
+            lease.count++
+            // The modification time of the lock file records when the directory was last used.
+            lockFile.setLastModifiedTime(FileTime.fromMillis(System.currentTimeMillis()))
+            return lease
+        }
+    }
+
+    private fun release(lease: Lease) {
+        synchronized(leases) {
+            if (--lease.count == 0) {
+                leases.remove(lease.lockFile)
+                lease.channel.close()
+            }
+        }
+    }
+
+    private fun lockFileFor(directory: Path): Path = directory.resolveSibling("${directory.name}.lock")
+
+    private fun readPointer(pointerFile: Path): String? {
+        return try {
+            pointerFile.readText().trim().takeIf { bundleDirectoryName.matches(it) }
+        } catch (e: IOException) {
+            null
+        }
+    }
+
+    private fun writeAtomically(file: Path, text: String) {
+        val tempFile = Files.createTempFile(cacheDirectory, file.name, ".tmp")
+        try {
+            tempFile.writeText(text)
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+        } catch (e: Exception) {
+            tempFile.deleteIfExists()
+            throw e
+        }
+    }
+
+    private fun regularFiles(directory: Path): List<Path> {
+        return Files.walk(directory).use { paths ->
+            paths.filter { it.isRegularFile() && it.name != MANIFEST_FILE }.toList()
+        }
+    }
+
+    private fun sha256Of(file: Path): String = file.inputStream().use { sha256(it) }
+
+    private fun sha256(input: InputStream): String {
+        val digest = MessageDigest.getInstance("SHA-256")
+        val buffer = ByteArray(DEFAULT_BUFFER_SIZE)
+        while (true) {
+            val read = input.read(buffer)
+            if (read == -1) break
+            digest.update(buffer, 0, read)
+        }
+        return digest.digest().toHexString()
+    }
+}
@@ -14,18 +14,11 @@ import com.r3.conclave.host.internal.attestation.EnclaveQuoteService
 import com.r3.conclave.host.internal.attestation.EnclaveQuoteServiceGramineDCAP
 import com.r3.conclave.host.internal.attestation.EnclaveQuoteServiceMock
 import com.r3.conclave.host.internal.loggerFor
-import org.apache.commons.compress.archivers.tar.TarArchiveInputStream
-import java.io.IOException
 import java.net.URL
-import java.nio.file.Files
 import java.nio.file.Path
 import java.util.concurrent.TimeUnit
-import java.util.zip.GZIPInputStream
-import java.util.zip.ZipInputStream
-import kotlin.io.path.createDirectories
 import kotlin.io.path.div
 import kotlin.io.path.exists
-import kotlin.io.path.inputStream
 
 class GramineEnclaveHandle(
     override val enclaveMode: EnclaveMode,
@@ -51,7 +44,12 @@ class GramineEnclaveHandle(
 
     private val enclaveManifestPath: Path
 
-    private val workingDirectory: Path = Files.createTempDirectory("$enclaveClassName-gramine")
+    /**
+     * The extracted enclave bundle. This is shared with any other enclaves using the same bundle and so must not be
+     * modified. It's kept from being cleaned up from the cache until the enclave is destroyed.
+     */
+    private val extractedBundle: GramineBundleCache.ExtractedBundle
+    private val workingDirectory: Path
 
     override val enclaveInterface: SocketHostEnclaveInterface
 
@@ -63,8 +61,14 @@ class GramineEnclaveHandle(
         }
 
         NativeLoader.loadHostLibraries(enclaveMode)
-        unzipEnclaveBundle()
-        enclaveManifestPath = getManifestFromUnzippedBundle()
+        extractedBundle = GramineBundleCache.default.getExtractedBundle(zipFileUrl)
+        workingDirectory = extractedBundle.directory
+        enclaveManifestPath = try {
+            getManifestFromUnzippedBundle()
+        } catch (e: Exception) {
+            extractedBundle.close()
+            throw e
+        }
 
         /** Create a socket host interface. */
         enclaveInterface = SocketHostEnclaveInterface()
@@ -136,12 +140,7 @@ class GramineEnclaveHandle(
             gramineProcess.destroyForcibly()
         }
 
-        /** Clean up temporary files. */
-        try {
-            workingDirectory.toFile().deleteRecursively()
-        } catch (e: IOException) {
-            logger.debug("Unable to delete temp directory $workingDirectory", e)
-        }
+        extractedBundle.close()
     }
 
     private fun getManifestFromUnzippedBundle(): Path {
@@ -158,55 +157,6 @@ class GramineEnclaveHandle(
         }
     }
 
-    private fun isPythonEnclave(): Boolean {
-        workingDirectory.toFile().walk().forEach {
-            if (it.extension == "py") {
-                return true
-            }
-        }
-        return false
-    }
-
-    private fun unTarFile(tarGz: Path, outputDir: Path) {
-        TarArchiveInputStream(GZIPInputStream(tarGz.inputStream())).use { tis ->
-            var tarEntry = tis.nextTarEntry
-
-            while (tarEntry != null) {
-                val outputFile = outputDir / tarEntry.name
-                if (tarEntry.isDirectory) {
-                    outputFile.createDirectories()
-                } else {
-                    outputDir.toFile().mkdirs()
-                    Files.copy(tis, outputFile)
-
-                    if (outputFile.toFile().name == GRAMINE_ENTRY_POINT && !isPythonEnclave()) {
-                        outputFile.toFile().setExecutable(true)
-                    }
-                }
-                tarEntry = tis.nextTarEntry
-            }
-        }
-    }
-
-    private fun unzipEnclaveBundle() {
-        ZipInputStream(zipFileUrl.openStream()).use { zip ->
-            while (true) {
-                val entry = zip.nextEntry ?: break
-                val path = workingDirectory.resolve(entry.name)
-
-                if (entry.isDirectory) {
-                    path.createDirectories()
-                } else {
-                    Files.copy(zip, path)
-
-                    if (entry.name.endsWith("tar.gz")) {
-                        unTarFile(path, workingDirectory)
-                    }
-                }
-            }
-        }
-    }
-
     private fun prepareCommand(port: Int): List<String> {
         val gramineCommand = listOf(getGramineExecutable(enclaveMode))
         val javaCommand = getJavaCommand(port)
@@ -0,0 +1,153 @@
+package com.r3.conclave.host.internal.kds
+
+import com.fasterxml.jackson.databind.MapperFeature
+import com.fasterxml.jackson.databind.json.JsonMapper
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.common.internal.kds.KDSErrorResponse
+import com.r3.conclave.common.kds.KDSKeySpec
+import com.r3.conclave.host.internal.loggerFor
+import com.r3.conclave.host.kds.KDSConfiguration
+import com.r3.conclave.utilities.internal.readFully
+import java.io.IOException
+import java.net.HttpURLConnection
+import java.net.URL
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+
+/**
+ * Requests private keys from the KDS on behalf of an enclave.
+ *
+ * Concurrent requests for the same [KDSKeySpec] are coalesced into a single HTTP request, which is useful when many
+ * mail encrypted with a key the enclave hasn't seen yet arrive at once. Requests which fail with an I/O error or a
+ * server error are retried, backing off exponentially from [KDSConfiguration.retryBackoff].
+ *
+ * Response bodies are always read to the end so that [HttpURLConnection] can return the connection to its keep-alive
+ * cache and reuse it for the next request.
+ *
+ * @param enclaveInstanceInfo Provides the enclave's current [EnclaveInstanceInfo], which is sent with each request.
+ */
+class KDSPrivateKeyClient(
+    val configuration: KDSConfiguration,
+    private val enclaveInstanceInfo: () -> EnclaveInstanceInfo
+) {
+    private val url = URL("${configuration.url}/private")
+    private val inFlightRequests = ConcurrentHashMap<KDSKeySpec, CompletableFuture<KDSPrivateKeyResponse>>()
+    @Volatile
+    private var serializedEnclaveInstanceInfo: Pair<EnclaveInstanceInfo, ByteArray>? = null
+
+    /**
+     * Get the private key for [keySpec] from the KDS. If a request for the same key spec is already in progress then
+     * this waits for its response rather than making another one.
+     *
+     * @throws IOException If the KDS could not be reached or returned an error.
+     */
+    @Throws(IOException::class)
+    fun getPrivateKey(keySpec: KDSKeySpec): KDSPrivateKeyResponse {
+        val newRequest = CompletableFuture<KDSPrivateKeyResponse>()
+        val existingRequest = inFlightRequests.putIfAbsent(keySpec, newRequest)
+        if (existingRequest != null) {
+            return try {
+                existingRequest.get()
+            } catch (e: ExecutionException) {
+                throw e.cause ?: e
+            }
+        }
+        try {
+            val response = executeWithRetries(keySpec)
+            newRequest.complete(response)
+            return response
+        } catch (e: Throwable) {
+            newRequest.completeExceptionally(e)
+            throw e
+        } finally {
+            // The response is only shared with the requests which were waiting for it. Later requests go to the KDS
+            // again, as the host only asks for a key if the enclave doesn't have it cached.
+            inFlightRequests.remove(keySpec, newRequest)
+        }
+    }
+
+    private fun executeWithRetries(keySpec: KDSKeySpec): KDSPrivateKeyResponse {
+        var backoff = configuration.retryBackoff
+        var attempt = 0
+        while (true) {
+            try {
+                return execute(keySpec)
+            } catch (e: NonRetryableException) {
+                throw e.cause
+            } catch (e: IOException) {
+                if (attempt >= configuration.maxRetries) throw e
+                attempt++
+                logger.warn("KDS private key request for $keySpec failed, retrying in ${backoff.toMillis()} ms: $e")
+                Thread.sleep(backoff.toMillis())
+                backoff = backoff.multipliedBy(2)
+            }
+        }
+    }
+
+    private fun execute(keySpec: KDSKeySpec): KDSPrivateKeyResponse {
+        val con = url.openConnection() as HttpURLConnection
+        con.connectTimeout = configuration.timeout.toMillis().toInt()
+        con.readTimeout = configuration.timeout.toMillis().toInt()
+        con.requestMethod = "POST"
+        con.setRequestProperty("Content-Type", "application/json; utf-8")
+        con.setRequestProperty("API-VERSION", "1")
+        con.doOutput = true
+
+        val kdsPrivateKeyRequest = KDSPrivateKeyRequest(
+            appAttestationReport = serializeEnclaveInstanceInfo(),
+            name = keySpec.name,
+            masterKeyType = keySpec.masterKeyType,
+            policyConstraint = keySpec.policyConstraint
+        )
+
+        con.outputStream.use {
+            jsonMapper.writeValue(it, kdsPrivateKeyRequest)
+        }
+
+        val responseCode = con.responseCode
+        if (responseCode != HttpURLConnection.HTTP_OK) {
+            val errorText = (con.errorStream ?: con.inputStream).readFully().decodeToString()
+            val kdsErrorResponse = try {
+                jsonMapper.readValue(errorText, KDSErrorResponse::class.java)
+            } catch (e: Exception) {
+                // It is likely that the error response is not a KDSErrorResponse if an exception is raised
+                // The best thing to do in those cases is to return the response code
+                failed(responseCode, "HTTP response code: $responseCode, HTTP response message: $errorText")
+            }
+            failed(responseCode, kdsErrorResponse.reason)
+        }
+
+        return jsonMapper.readValue(con.inputStream.readFully(), KDSPrivateKeyResponse::class.java)
+    }
+
+    /**
+     * The [EnclaveInstanceInfo] only changes when the enclave is re-attested, and so its serialized bytes are cached
+     * rather than being created for every request.
+     */
+    private fun serializeEnclaveInstanceInfo(): ByteArray {
+        val current = enclaveInstanceInfo()
+        val cached = serializedEnclaveInstanceInfo
+        if (cached != null && cached.first === current) {
+            return cached.second
+        }
+        val bytes = current.serialize()
+        serializedEnclaveInstanceInfo = Pair(current, bytes)
+        return bytes
+    }
+
+    /**
+     * Only server errors are worth retrying. Anything else will fail again in the same way.
+     */
+    private fun failed(responseCode: Int, message: String): Nothing {
+        val exception = IOException(message)
+        throw if (responseCode >= 500) exception else NonRetryableException(exception)
+    }
+
+    private class NonRetryableException(override val cause: IOException) : Exception(cause)
+
+    private companion object {
+        private val logger = loggerFor<KDSPrivateKeyClient>()
+        private val jsonMapper = JsonMapper.builder().enable(MapperFeature.ACCEPT_CASE_INSENSITIVE_ENUMS).build()
+    }
+}
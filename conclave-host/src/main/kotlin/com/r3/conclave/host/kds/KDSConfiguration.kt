@@ -1,9 +1,30 @@
 package com.r3.conclave.host.kds
 
+import com.r3.conclave.common.kds.KDSKeySpec
 import java.time.Duration
 
 // This class is intentionally not a Kotlin data class. data classes don't work well in Java and cause API nightmares,
 // as we've learned from Corda. Also, default values don't work in Java
 class KDSConfiguration constructor(val url: String) {
         var timeout: Duration = Duration.ofSeconds(10)
+
+        /**
+         * The number of times a request to the KDS is retried if it fails with an I/O error or a server error. Errors
+         * returned by the KDS for invalid requests are not retried.
+         */
+        var maxRetries: Int = 2
+
+        /**
+         * How long to wait before the first retry. The wait doubles for each subsequent retry.
+         */
+        var retryBackoff: Duration = Duration.ofMillis(500)
+
+        /**
+         * KDS key specs whose private keys are fetched when the enclave starts, in addition to any the enclave itself
+         * asks for, so that the first mail encrypted with each of them doesn't have to wait for the KDS. The keys are
+         * fetched concurrently in the background, and the enclave is started without waiting for them. Mail which
+         * needs a key that's still being fetched waits for it. If a key can't be fetched, it's requested again when
+         * it's first needed.
+         */
+        var prefetchKeySpecs: List<KDSKeySpec> = emptyList()
 }
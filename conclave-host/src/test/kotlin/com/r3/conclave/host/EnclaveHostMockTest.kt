@@ -2,8 +2,12 @@ package com.r3.conclave.host
 
 import com.r3.conclave.common.*
 import com.r3.conclave.common.internal.StateManager
+import com.r3.conclave.common.kds.KDSKeySpec
 import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.internal.EnclaveHandle
+import com.r3.conclave.host.internal.MockEnclaveHandle
 import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.host.kds.KDSConfiguration
 import com.r3.conclave.internaltesting.threadWithFuture
 import com.r3.conclave.mail.PostOffice
 import com.r3.conclave.utilities.internal.deserialise
@@ -70,6 +74,40 @@ class EnclaveHostMockTest {
         }.withMessage("The enclave host has not been started.")
     }
 
+    /**
+     * Loading the enclave overlaps with preparing the file system, and getting the KDS key specs from the enclave
+     * overlaps with the attestation.
+     */
+    @ParameterizedTest
+    @ValueSource(strings = ["initialise", "getKdsPersistenceKeySpec"])
+    fun `enclave does not start if a startup phase fails whilst another is running in parallel`(failingCall: String) {
+        checkLeakedCallbacks = false
+        val mockHandle = MockEnclaveHandle(SimpleReturnEnclave(), null, null)
+        val failingHandle = object : EnclaveHandle by mockHandle {
+            override fun initialise(attestationParameters: AttestationParameters?) {
+                if (failingCall == "initialise") throw IllegalStateException("$failingCall failed")
+                mockHandle.initialise(attestationParameters)
+            }
+
+            override fun getKdsPersistenceKeySpec(): KDSKeySpec? {
+                if (failingCall == "getKdsPersistenceKeySpec") throw IllegalStateException("$failingCall failed")
+                return mockHandle.getKdsPersistenceKeySpec()
+            }
+        }
+        val host = EnclaveHost::class.java.getDeclaredConstructor(EnclaveHandle::class.java)
+            .apply { isAccessible = true }
+            .newInstance(failingHandle)
+        assertThatExceptionOfType(EnclaveLoadException::class.java)
+            .isThrownBy { host.start(null, null, null, KDSConfiguration("http://localhost:1")) { } }
+            .havingCause()
+            .isInstanceOf(IllegalStateException::class.java)
+            .withMessage("$failingCall failed")
+        assertThatIllegalStateException().isThrownBy {
+            host.callEnclave(byteArrayOf())
+        }.withMessage("The enclave host has not been started.")
+        host.close()
+    }
+
     @Test
     fun `callEnclave after close`() {
         val host = createMockHost(SimpleReturnEnclave::class.java)
@@ -0,0 +1,202 @@
+package com.r3.conclave.host
+
+import com.r3.conclave.client.PostOfficeBuilder
+import com.r3.conclave.common.MockConfiguration
+import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
+import com.r3.conclave.common.kds.KDSKeySpec
+import com.r3.conclave.common.kds.MasterKeyType
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.internal.createMockHostPool
+import com.r3.conclave.host.kds.KDSConfiguration
+import com.r3.conclave.internaltesting.kds.MockKDS
+import com.r3.conclave.mail.Curve25519PrivateKey
+import com.r3.conclave.mail.EnclaveMail
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.mail.PostOffice
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatThrownBy
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.RegisterExtension
+import java.util.Collections
+import java.util.function.Consumer
+import java.util.function.IntFunction
+
+class EnclaveHostPoolMockTest {
+    companion object {
+        private const val POOL_SIZE = 3
+    }
+
+    @RegisterExtension
+    private val mockKds = MockKDS()
+    private val enclaveKdsConfig = EnclaveKdsConfig(
+        kdsEnclaveConstraint = mockKds.enclaveConstraint,
+        persistenceKeySpec = null
+    )
+
+    private val pool = createMockHostPool(CountingEnclave::class.java, POOL_SIZE, null, enclaveKdsConfig)
+    private val postedMailByInstance = List(POOL_SIZE) { Collections.synchronizedList(ArrayList<MailCommand.PostMail>()) }
+
+    @AfterEach
+    fun close() {
+        pool.close()
+    }
+
+    private fun startPool() {
+        pool.start(null, KDSConfiguration(mockKds.url.toString()), IntFunction { index ->
+            Consumer { commands -> commands.filterIsInstance<MailCommand.PostMail>().forEach(postedMailByInstance[index]::add) }
+        })
+    }
+
+    private fun mailCount(index: Int): Int = (pool.getHost(index).mockEnclave as CountingEnclave).mailCount
+
+    @Test
+    fun `each instance has its own encryption key`() {
+        startPool()
+        val encryptionKeys = pool.enclaveInstanceInfos.map { it.encryptionKey }
+        assertThat(encryptionKeys).hasSize(POOL_SIZE).doesNotHaveDuplicates()
+        assertThat(pool.enclaveInstanceInfos.map { it.enclaveInfo.codeHash }.toSet()).hasSize(1)
+    }
+
+    @Test
+    fun `mail is delivered to the instance its routing hint maps to`() {
+        startPool()
+        val routingHint = "client"
+        val index = pool.getInstanceIndex(routingHint)
+        assertThat(pool.getEnclaveInstanceInfo(routingHint)).isEqualTo(pool.enclaveInstanceInfos[index])
+        val postOffice = pool.getEnclaveInstanceInfo(routingHint).createPostOffice(Curve25519PrivateKey.random(), "topic")
+        repeat(2) {
+            assertThat(pool.deliverMail(postOffice.encryptMail(byteArrayOf()), routingHint)).isEqualTo(index)
+        }
+        // The reply is emitted through the callback of the instance which received the mail.
+        assertThat(postedMailByInstance[index]).hasSize(2)
+        assertThat(mailCount(index)).isEqualTo(2)
+        assertThat((0 until POOL_SIZE).sumOf { mailCount(it) }).isEqualTo(2)
+    }
+
+    @Test
+    fun `routing hints with colliding string hash codes are spread across the instances`() {
+        // "Aa" and "BB" have the same String.hashCode, and so do all the strings made up of them.
+        val routingHints = (0 until 16).map { bits ->
+            (0 until 4).joinToString("") { if (bits and (1 shl it) == 0) "Aa" else "BB" }
+        }
+        assertThat(routingHints.map { it.hashCode() }.toSet()).hasSize(1)
+        assertThat(routingHints.map(pool::getInstanceIndex).toSet()).hasSizeGreaterThan(1)
+    }
+
+    @Test
+    fun `each instance is restarted with its own sealed state`() {
+        val mockConfiguration = MockConfiguration().apply { enablePersistentMap = true }
+        val sealedStates = arrayOfNulls<ByteArray>(POOL_SIZE)
+        fun startPersistentPool(): EnclaveHostPool {
+            val persistentPool = createMockHostPool(PersistentMapEnclave::class.java, POOL_SIZE, mockConfiguration)
+            persistentPool.start(null, IntFunction { sealedStates[it] }, null, null, IntFunction { index ->
+                Consumer { commands ->
+                    val storeCommand = commands.filterIsInstance<MailCommand.StoreSealedState>().lastOrNull()
+                    if (storeCommand != null) sealedStates[index] = storeCommand.sealedState
+                }
+            })
+            return persistentPool
+        }
+
+        startPersistentPool().use { persistentPool ->
+            for (index in 0 until POOL_SIZE) {
+                persistentPool.getHost(index).callEnclave("instance $index".toByteArray())
+            }
+        }
+        assertThat(sealedStates.toList()).doesNotContainNull()
+
+        startPersistentPool().use { persistentPool ->
+            for (index in 0 until POOL_SIZE) {
+                val enclave = persistentPool.getHost(index).mockEnclave as PersistentMapEnclave
+                assertThat(enclave.storedValue).isEqualTo("instance $index")
+            }
+        }
+    }
+
+    @Test
+    fun `mail which is not KDS mail needs a routing hint`() {
+        startPool()
+        val mail = pool.enclaveInstanceInfos[0].createPostOffice().encryptMail(byteArrayOf())
+        assertThatThrownBy { pool.deliverMail(mail, null) }.isInstanceOf(IllegalArgumentException::class.java)
+        (0 until POOL_SIZE).forEach { assertThat(mailCount(it)).isZero }
+    }
+
+    @Test
+    fun `mail encrypted for a different instance than the routing hint maps to is not tried on the others`() {
+        startPool()
+        val routingHint = "client"
+        val otherIndex = (pool.getInstanceIndex(routingHint) + 1) % POOL_SIZE
+        val mail = pool.enclaveInstanceInfos[otherIndex].createPostOffice().encryptMail(byteArrayOf())
+        assertThatThrownBy { pool.deliverMail(mail, routingHint) }.isInstanceOf(MailDecryptionException::class.java)
+        (0 until POOL_SIZE).forEach { assertThat(mailCount(it)).isZero }
+    }
+
+    @Test
+    fun `KDS mail can be delivered to any instance`() {
+        startPool()
+        val postOffice = createKdsPostOffice()
+        val instances = (1..POOL_SIZE).map { pool.deliverMail(postOffice.encryptMail(byteArrayOf()), null) }
+        // With no load the instances are picked in turn.
+        assertThat(instances.toSet()).hasSize(POOL_SIZE)
+        (0 until POOL_SIZE).forEach { assertThat(mailCount(it)).isEqualTo(1) }
+    }
+
+    @Test
+    fun `KDS mail with the same routing hint sticks to the same instance`() {
+        startPool()
+        val postOffice = createKdsPostOffice()
+        val first = pool.deliverMail(postOffice.encryptMail(byteArrayOf()), "client-1")
+        repeat(5) {
+            assertThat(pool.deliverMail(postOffice.encryptMail(byteArrayOf()), "client-1")).isEqualTo(first)
+        }
+        assertThat(mailCount(first)).isEqualTo(6)
+    }
+
+    @Test
+    fun `callEnclave is spread across the instances`() {
+        startPool()
+        repeat(POOL_SIZE * 2) { pool.callEnclave(byteArrayOf()) }
+        (0 until POOL_SIZE).forEach {
+            assertThat((pool.getHost(it).mockEnclave as CountingEnclave).callCount).isEqualTo(2)
+        }
+    }
+
+    private fun createKdsPostOffice(): PostOffice {
+        val keySpec = KDSKeySpec(
+            "name",
+            MasterKeyType.DEVELOPMENT,
+            "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
+        )
+        return PostOfficeBuilder
+            .usingKDS(mockKds.url, keySpec, enclaveKdsConfig.kdsEnclaveConstraint)
+            .setSenderPrivateKey(Curve25519PrivateKey.random())
+            .build()
+    }
+
+    class PersistentMapEnclave : Enclave() {
+        val storedValue: String? get() = persistentMap["value"]?.let(::String)
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray? {
+            persistentMap["value"] = bytes
+            return null
+        }
+    }
+
+    class CountingEnclave : Enclave() {
+        @Volatile
+        var mailCount = 0
+        @Volatile
+        var callCount = 0
+
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            mailCount++
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+        }
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray? {
+            callCount++
+            return null
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package com.r3.conclave.host
 
 import com.r3.conclave.client.PostOfficeBuilder
+import com.r3.conclave.common.CacheStatistics
 import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.common.EnclaveStartException
 import com.r3.conclave.common.MockConfiguration
+import com.r3.conclave.common.internal.EnclaveInstanceInfoImpl
 import com.r3.conclave.common.internal.kds.EnclaveKdsConfig
 import com.r3.conclave.common.kds.KDSKeySpec
 import com.r3.conclave.common.kds.MasterKeyType
@@ -13,6 +15,7 @@ import com.r3.conclave.host.internal.createMockHost
 import com.r3.conclave.host.kds.KDSConfiguration
 import com.r3.conclave.internaltesting.kds.MockKDS
 import com.r3.conclave.mail.*
+import com.r3.conclave.mail.internal.MailProtocol
 import com.r3.conclave.utilities.internal.deserialise
 import com.r3.conclave.utilities.internal.readIntLengthPrefixBytes
 import com.r3.conclave.utilities.internal.writeData
@@ -20,6 +23,7 @@ import com.r3.conclave.utilities.internal.writeIntLengthPrefixBytes
 import org.assertj.core.api.Assertions.*
 import org.junit.jupiter.api.Assertions.assertArrayEquals
 import org.junit.jupiter.api.Assertions.assertEquals
+import org.junit.jupiter.api.Assertions.assertTimeoutPreemptively
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertDoesNotThrow
 import org.junit.jupiter.api.assertThrows
@@ -30,6 +34,7 @@ import org.junit.jupiter.params.provider.MethodSource
 import org.junit.jupiter.params.provider.ValueSource
 import java.security.PrivateKey
 import java.security.PublicKey
+import java.time.Duration
 import javax.crypto.AEADBadTagException
 
 class EnclaveMailMockTest {
@@ -191,6 +196,87 @@ class EnclaveMailMockTest {
         noop.deliverMail(secondSender, "test")
     }
 
+    @Test
+    fun `sequence numbers are still checked after the client cache has evicted the sender`() {
+        mockConfiguration.maxClientCacheSize = 2
+        val host = createMockHost(CacheStatisticsEnclave::class.java, mockConfiguration)
+        host.start(null, null, null) { }
+        val senders = List(3) { Curve25519PrivateKey.random() }
+
+        val firstMails = senders.map { buildMail(host, sequenceNumber = 0, senderPrivateKey = it) }
+        firstMails.forEach { host.deliverMail(it, null) }
+        // The first sender has been evicted but the enclave must still reject a replay of its mail.
+        assertThatIllegalStateException()
+            .isThrownBy { host.deliverMail(firstMails[0], null) }
+            .withMessageContaining("Mail with sequence number 0 on topic topic-123 has already been seen, was expecting 1 instead.")
+        host.deliverMail(buildMail(host, sequenceNumber = 1, senderPrivateKey = senders[0]), null)
+
+        val statistics = (host.mockEnclave as CacheStatisticsEnclave).statistics.getValue("sequenceWatermarks")
+        assertThat(statistics.size).isEqualTo(2)
+        assertThat(statistics.maxSize).isEqualTo(2)
+        assertThat(statistics.evictionCount).isGreaterThanOrEqualTo(2)
+    }
+
+    @Test
+    fun `new senders are refused rather than forgetting evicted ones once the eviction history is full`() {
+        mockConfiguration.maxClientCacheSize = 1
+        mockConfiguration.evictedClientHistorySize = 1
+        val host = createMockHost(CacheStatisticsEnclave::class.java, mockConfiguration)
+        host.start(null, null, null) { }
+        val senders = List(3) { Curve25519PrivateKey.random() }
+
+        val firstMail = buildMail(host, sequenceNumber = 0, senderPrivateKey = senders[0])
+        host.deliverMail(firstMail, null)
+        // This evicts the first sender, which fills the eviction history.
+        host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = senders[1]), null)
+        assertThatIllegalStateException()
+            .isThrownBy { host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = senders[2]), null) }
+            .withMessageContaining("The enclave is not accepting new clients")
+        // The first sender is still remembered.
+        assertThatIllegalStateException()
+            .isThrownBy { host.deliverMail(firstMail, null) }
+            .withMessageContaining("Mail with sequence number 0 on topic topic-123 has already been seen")
+        host.deliverMail(buildMail(host, sequenceNumber = 1, senderPrivateKey = senders[0]), null)
+    }
+
+    @Test
+    fun `enclave post office sequence numbers continue after the client cache has evicted the recipient`() {
+        mockConfiguration.maxClientCacheSize = 1
+        val host = createMockHost(CacheStatisticsEnclave::class.java, mockConfiguration)
+        val postedMail = ArrayList<ByteArray>()
+        host.start(null, null, null) { commands ->
+            commands.filterIsInstance<MailCommand.PostMail>().mapTo(postedMail) { it.encryptedBytes }
+        }
+
+        val sender = Curve25519PrivateKey.random()
+        host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = sender), null)
+        // Evict the first sender's post office by having another sender take its place.
+        host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = Curve25519PrivateKey.random()), null)
+        host.deliverMail(buildMail(host, sequenceNumber = 1, senderPrivateKey = sender), null)
+
+        assertThat(postedMail).hasSize(3)
+        assertThat(getMailSequenceNumber(postedMail[0])).isEqualTo(0)
+        assertThat(getMailSequenceNumber(postedMail[2])).isEqualTo(1)
+    }
+
+    @Test
+    fun `a post office kept by the enclave after it has been evicted does not reuse sequence numbers`() {
+        mockConfiguration.maxClientCacheSize = 1
+        val host = createMockHost(RetainedPostOfficeEnclave::class.java, mockConfiguration)
+        val postedMail = ArrayList<ByteArray>()
+        host.start(null, null, null) { commands ->
+            commands.filterIsInstance<MailCommand.PostMail>().mapTo(postedMail) { it.encryptedBytes }
+        }
+
+        val sender = Curve25519PrivateKey.random()
+        host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = sender), null)
+        host.deliverMail(buildMail(host, sequenceNumber = 0, senderPrivateKey = Curve25519PrivateKey.random()), null)
+        host.deliverMail(buildMail(host, sequenceNumber = 1, senderPrivateKey = sender), null)
+
+        assertThat(postedMail).hasSize(6)
+        assertThat(listOf(0, 1, 4, 5).map { getMailSequenceNumber(postedMail[it]) }).containsExactly(0, 1, 2, 3)
+    }
+
     @Test
     fun `sequence numbers must start from zero`() {
         noop.start(null, null, null) { }
@@ -228,6 +314,40 @@ class EnclaveMailMockTest {
         }
     }
 
+    @Test
+    fun `replies use the same mail protocol as the received mail`() {
+        class EchoEnclave : Enclave() {
+            override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+                postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+            }
+        }
+
+        val postedMail = ArrayList<ByteArray>()
+        val enclaveHost = createMockHost(EchoEnclave::class.java)
+        enclaveHost.start(null, null, null) { commands ->
+            commands.filterIsInstance<MailCommand.PostMail>().mapTo(postedMail) { it.encryptedBytes }
+        }
+        val eii = enclaveHost.enclaveInstanceInfo as EnclaveInstanceInfoImpl
+        // A mock enclave doesn't run in a native image and so prefers AES-GCM.
+        assertThat(eii.mailProtocol).isEqualTo(MailProtocol.SENDER_KEY_TRANSMITTED_V2)
+
+        val chaChaPolyEii = EnclaveInstanceInfoImpl(
+            eii.dataSigningKey,
+            eii.encryptionKey,
+            eii.attestation,
+            MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY
+        )
+        val postOffice = chaChaPolyEii.createPostOffice(privateKey, "topic")
+        val mail = postOffice.encryptMail(messageBytes)
+        assertThat(mailProtocolOf(mail)).isEqualTo(MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY)
+
+        enclaveHost.deliverMail(mail, null)
+        val reply = postedMail.single()
+        assertThat(mailProtocolOf(reply)).isEqualTo(MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY)
+        assertThat(postOffice.decryptMail(reply).bodyAsBytes).isEqualTo(messageBytes)
+        enclaveHost.close()
+    }
+
     @Test
     fun `different KDS keys can be used for the same topic and sender`() {
         class EchoEnclave : Enclave() {
@@ -287,21 +407,101 @@ class EnclaveMailMockTest {
         return Mail.getUnauthenticatedHeader(mailBytes).sequenceNumber
     }
 
+    @Test
+    fun `host provides the KDS private key again if the enclave has evicted it`() {
+        mockConfiguration.maxKdsKeyCacheSize = 1
+        val enclaveHost = createMockHost(NoopEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        enclaveHost.start(null, null, null, hostKdsConfig) { }
+
+        val firstKeyPostOffice = createKdsPostOffice("first")
+        val secondKeyPostOffice = createKdsPostOffice("second")
+        enclaveHost.deliverMail(firstKeyPostOffice.encryptMail(byteArrayOf()), null)
+        // This evicts the first key from the enclave's cache.
+        enclaveHost.deliverMail(secondKeyPostOffice.encryptMail(byteArrayOf()), null)
+        assertDoesNotThrow {
+            enclaveHost.deliverMail(firstKeyPostOffice.encryptMail(byteArrayOf()), null)
+        }
+    }
+
+    @Test
+    fun `KDS private keys configured on the host are prefetched at startup`() {
+        hostKdsConfig.prefetchKeySpecs = listOf(kdsKeySpec("first"), kdsKeySpec("second"))
+        val enclaveHost = createMockHost(NoopEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        enclaveHost.start(null, null, null, hostKdsConfig) { }
+
+        // The mail waits for the prefetches if they haven't finished yet.
+        enclaveHost.deliverMail(createKdsPostOffice("first").encryptMail(byteArrayOf()), null)
+        enclaveHost.deliverMail(createKdsPostOffice("second").encryptMail(byteArrayOf()), null)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(2)
+    }
+
+    @Test
+    fun `KDS private keys declared by the enclave are prefetched at startup`() {
+        val enclaveHost = createMockHost(KdsPrefetchEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        enclaveHost.start(null, null, null, hostKdsConfig) { }
+
+        enclaveHost.deliverMail(createKdsPostOffice("prefetch").encryptMail(byteArrayOf()), null)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(1)
+        // Keys which weren't prefetched are still requested when they're needed.
+        enclaveHost.deliverMail(createKdsPostOffice("other").encryptMail(byteArrayOf()), null)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(2)
+    }
+
+    @Test
+    fun `the number of KDS private keys prefetched at the same time is limited`() {
+        mockKds.privateKeyResponseDelay = Duration.ofMillis(100)
+        hostKdsConfig.prefetchKeySpecs = (1..10).map { kdsKeySpec("key-$it") }
+        val enclaveHost = createMockHost(NoopEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        enclaveHost.start(null, null, null, hostKdsConfig) { }
+        for (i in 1..10) {
+            enclaveHost.deliverMail(createKdsPostOffice("key-$i").encryptMail(byteArrayOf()), null)
+        }
+        assertThat(mockKds.privateKeyRequestCount).hasValue(10)
+        assertThat(mockKds.maxConcurrentPrivateKeyRequests.get()).isBetween(1, 4)
+    }
+
+    @Test
+    fun `enclave starts without waiting for KDS private keys to be prefetched`() {
+        mockKds.privateKeyResponseDelay = Duration.ofSeconds(5)
+        hostKdsConfig.prefetchKeySpecs = listOf(kdsKeySpec("slow"))
+        val enclaveHost = createMockHost(NoopEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        assertTimeoutPreemptively(Duration.ofSeconds(3)) {
+            enclaveHost.start(null, null, null, hostKdsConfig) { }
+        }
+        enclaveHost.close()
+    }
+
+    @Test
+    fun `enclave still starts if a KDS private key cannot be prefetched`() {
+        mockKds.privateKeyRequestFailureCode = 400
+        mockKds.privateKeyRequestFailures.set(1)
+        hostKdsConfig.prefetchKeySpecs = listOf(kdsKeySpec("name"))
+        val enclaveHost = createMockHost(NoopEnclave::class.java, mockConfiguration, enclaveKdsConfig)
+        enclaveHost.start(null, null, null, hostKdsConfig) { }
+
+        enclaveHost.deliverMail(createKdsPostOffice("name").encryptMail(byteArrayOf()), null)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(2)
+    }
+
     private fun createKdsPostOffice(
         keyName: String = "name",
         senderPrivateKey: PrivateKey = Curve25519PrivateKey.random()
     ): PostOffice {
-        val keySpec = KDSKeySpec(
-            keyName,
-            MasterKeyType.DEVELOPMENT,
-            "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
-        )
+        val keySpec = kdsKeySpec(keyName)
         return PostOfficeBuilder
             .usingKDS(mockKds.url, keySpec, enclaveKdsConfig.kdsEnclaveConstraint)
             .setSenderPrivateKey(senderPrivateKey)
             .build()
     }
 
+    private fun kdsKeySpec(keyName: String): KDSKeySpec {
+        return KDSKeySpec(
+            keyName,
+            MasterKeyType.DEVELOPMENT,
+            "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
+        )
+    }
+
     @Test
     fun corruption() {
         // Check the enclave correctly rejects messages with corrupted headers or bodies.
@@ -464,6 +664,9 @@ class EnclaveMailMockTest {
         host.deliverMail(buildMail(host, body = overload.toByteArray()), null)
     }
 
+    // The protocol ID is the first byte of the prologue, after its size.
+    private fun mailProtocolOf(mail: ByteArray): MailProtocol = MailProtocol.values()[mail[2].toInt()]
+
     private fun buildMail(
         host: EnclaveHost,
         topic: String = "topic-123",
@@ -489,6 +692,16 @@ class EnclaveMailMockTest {
         override fun receiveMail(mail: EnclaveMail, routingHint: String?) = Unit
     }
 
+    class KdsPrefetchEnclave : NoopEnclave() {
+        override val kdsPrefetchKeySpecs: Collection<KDSKeySpec> = listOf(
+            KDSKeySpec(
+                "prefetch",
+                MasterKeyType.DEVELOPMENT,
+                "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
+            )
+        )
+    }
+
     // Receives mail, decrypts it and gives the body back to the host.
     class MailEchoEnclave : Enclave() {
         override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
@@ -509,6 +722,26 @@ class EnclaveMailMockTest {
         override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray? = callUntrustedHost(bytes)
     }
 
+    // Replies to every mail and exposes the enclave's internal cache statistics.
+    class CacheStatisticsEnclave : Enclave() {
+        val statistics: Map<String, CacheStatistics> get() = getInternalCacheStatistics()
+
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+        }
+    }
+
+    // Keeps the first post office it gets for each sender and replies with both it and a newly looked up one.
+    class RetainedPostOfficeEnclave : Enclave() {
+        private val retainedPostOffices = HashMap<PublicKey, EnclavePostOffice>()
+
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            val retained = retainedPostOffices.computeIfAbsent(mail.authenticatedSender) { postOffice(mail) }
+            postMail(retained.encryptMail(mail.bodyAsBytes), routingHint)
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+        }
+    }
+
     abstract class MultipleCommandsEnclave : Enclave() {
         abstract override val threadSafe: Boolean
 
@@ -0,0 +1,129 @@
+package com.r3.conclave.host
+
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.internaltesting.threadWithFuture
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.CyclicBarrier
+import java.util.concurrent.TimeUnit.SECONDS
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.stream.IntStream
+import kotlin.streams.toList
+
+class ThreadSafeEnclaveMockTest {
+    private lateinit var host: EnclaveHost
+
+    @AfterEach
+    fun close() {
+        if (::host.isInitialized) {
+            host.close()
+        }
+    }
+
+    @Test
+    fun `concurrent calls into the enclave`() {
+        host = createMockHost(SummingEnclave::class.java)
+        host.start(null, null, null) { }
+
+        val n = 1000
+        val responses = IntStream.rangeClosed(1, n)
+            .parallel()
+            .mapToObj { host.callEnclave(ByteBuffer.allocate(4).putInt(it).array())!! }
+            .toList()
+
+        assertThat(responses).hasSize(n)
+        val enclave = host.mockEnclave as SummingEnclave
+        assertThat(enclave.sum.get()).isEqualTo((n * (n + 1)) / 2)
+    }
+
+    class SummingEnclave : Enclave() {
+        val sum = AtomicInteger()
+
+        override val threadSafe: Boolean get() = true
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray {
+            sum.addAndGet(ByteBuffer.wrap(bytes).int)
+            return bytes
+        }
+    }
+
+    @Test
+    fun `calls into a multi-threaded enclave are not serialised`() {
+        host = createMockHost(BarrierEnclave::class.java)
+        host.start(null, null, null) { }
+
+        // Each call waits at the barrier inside the enclave, which can only be passed if all the calls are executing
+        // at the same time.
+        val futures = (1..BarrierEnclave.PARTIES).map {
+            threadWithFuture { host.callEnclave(byteArrayOf()) }
+        }
+        futures.forEach { assertThat(it.get(10, SECONDS)).isEqualTo(byteArrayOf(1)) }
+    }
+
+    class BarrierEnclave : Enclave() {
+        companion object {
+            const val PARTIES = 8
+        }
+
+        private val barrier = CyclicBarrier(PARTIES)
+
+        override val threadSafe: Boolean get() = true
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray {
+            barrier.await(10, SECONDS)
+            return byteArrayOf(1)
+        }
+    }
+
+    @Test
+    fun `closing the enclave waits for executing calls to complete`() {
+        host = createMockHost(BlockingEnclave::class.java)
+        host.start(null, null, null) { }
+        val enclave = host.mockEnclave as BlockingEnclave
+
+        val callFuture = threadWithFuture { host.callEnclave(byteArrayOf()) }
+        assertThat(enclave.entered.await(10, SECONDS)).isTrue
+
+        val closeFuture = threadWithFuture { host.close() }
+        // The close must not be able to complete while the call is still in progress.
+        Thread.sleep(100)
+        assertThat(closeFuture).isNotDone
+        assertThat(enclave.onShutdownCalledWhileExecuting).isFalse
+
+        enclave.release.countDown()
+        assertThat(callFuture.get(10, SECONDS)).isEqualTo(byteArrayOf(2))
+        closeFuture.get(10, SECONDS)
+        assertThat(enclave.onShutdownCalled).isTrue
+        assertThat(enclave.onShutdownCalledWhileExecuting).isFalse
+    }
+
+    class BlockingEnclave : Enclave() {
+        val entered = CountDownLatch(1)
+        val release = CountDownLatch(1)
+        @Volatile
+        var executing = false
+        @Volatile
+        var onShutdownCalled = false
+        @Volatile
+        var onShutdownCalledWhileExecuting = false
+
+        override val threadSafe: Boolean get() = true
+
+        override fun receiveFromUntrustedHost(bytes: ByteArray): ByteArray {
+            executing = true
+            entered.countDown()
+            release.await()
+            executing = false
+            return byteArrayOf(2)
+        }
+
+        override fun onShutdown() {
+            onShutdownCalled = true
+            onShutdownCalledWhileExecuting = executing
+        }
+    }
+}
@@ -11,12 +11,16 @@ import com.r3.conclave.host.EnclaveHost
 import com.r3.conclave.host.EnclaveHostMockTest
 import org.assertj.core.api.Assertions.assertThat
 import org.assertj.core.api.Assertions.assertThatIllegalArgumentException
+import org.assertj.core.api.Assertions.assertThatIllegalStateException
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assumptions.assumeFalse
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.assertThrows
 import java.lang.Thread.sleep
+import java.time.Duration
+import java.util.concurrent.LinkedBlockingQueue
+import java.util.concurrent.TimeUnit.SECONDS
 
 class MockAttestationTest {
     private val enclaveHost: EnclaveHost = createMockHost(EnclaveInstanceInfoEnclave::class.java)
@@ -102,6 +106,27 @@ class MockAttestationTest {
         assertThat(attestationTimestampRun2).isAfter(attestationTimestampRun1)
     }
 
+    @Test
+    fun `listeners are notified of the new EnclaveInstanceInfo`() {
+        val updates = LinkedBlockingQueue<EnclaveInstanceInfo>()
+        enclaveHost.addEnclaveInstanceInfoListener { updates.add(it) }
+        enclaveHost.updateAttestation()
+        assertThat(updates.poll()).isSameAs(enclaveHost.enclaveInstanceInfo)
+    }
+
+    @Test
+    fun `attestation is refreshed in the background`() {
+        val initial = enclaveHost.enclaveInstanceInfo
+        val updates = LinkedBlockingQueue<EnclaveInstanceInfo>()
+        enclaveHost.addEnclaveInstanceInfoListener { updates.add(it) }
+        enclaveHost.startAttestationRefresh(Duration.ofMillis(10))
+        val first = updates.poll(10, SECONDS)
+        val second = updates.poll(10, SECONDS)
+        assertThat(first).isNotNull.isNotSameAs(initial)
+        assertThat(second).isNotNull.isNotSameAs(first)
+        assertThatIllegalStateException().isThrownBy { enclaveHost.startAttestationRefresh(Duration.ofMillis(10)) }
+    }
+
     @Test
     fun `ensure an exception is raised by createAttestationQuote if the report data does not have the correct size`() {
         createMockHost(SignedQuoteEnclave::class.java).use { host ->
@@ -0,0 +1,194 @@
+package com.r3.conclave.host.internal.gramine
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatIllegalArgumentException
+import org.assertj.core.api.Assertions.assertThatIllegalStateException
+import org.junit.jupiter.api.Assumptions.assumeTrue
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.ByteArrayOutputStream
+import java.net.URL
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.attribute.PosixFilePermissions
+import java.time.Duration
+import java.util.zip.GZIPOutputStream
+import java.util.zip.ZipEntry
+import java.util.zip.ZipOutputStream
+import kotlin.io.path.*
+import kotlin.random.Random
+
+class GramineBundleCacheTest {
+    @TempDir
+    lateinit var tempDir: Path
+
+    private val cache by lazy { GramineBundleCache(tempDir / "cache") }
+    private val largeFile = Random.nextBytes(5 * 1024 * 1024)
+
+    @Test
+    fun `extracts bundle and embedded tar file`() {
+        cache.getExtractedBundle(createBundle()).use { bundle ->
+            val extracted = bundle.directory
+            assertThat((extracted / "enclave.jar").readText()).isEqualTo("jar")
+            assertThat((extracted / "jre" / "bin" / "java").isExecutable()).isTrue
+            assertThat((extracted / "jre" / "lib" / "modules").readBytes()).isEqualTo(largeFile)
+            for (i in 0 until 100) {
+                assertThat((extracted / "jre" / "conf" / "file-$i").readText()).isEqualTo("content $i")
+            }
+        }
+    }
+
+    @Test
+    fun `same bundle is only extracted once`() {
+        val bundle = createBundle()
+        val first = cache.getExtractedBundle(bundle).use { it.directory }
+        val marker = first / "marker"
+        marker.writeText("not part of the bundle")
+        val second = cache.getExtractedBundle(bundle).use { it.directory }
+        assertThat(second).isEqualTo(first)
+        assertThat(marker).exists()
+    }
+
+    @Test
+    fun `files modified without changing their size or modification time are rejected`() {
+        val bundle = createBundle()
+        val extracted = cache.getExtractedBundle(bundle).use { it.directory }
+        val file = extracted / "jre" / "conf" / "file-1"
+        val lastModified = file.getLastModifiedTime()
+        file.writeText("content X")
+        file.setLastModifiedTime(lastModified)
+        cache.getExtractedBundle(bundle).use {
+            assertThat(it.directory).isNotEqualTo(extracted)
+            assertThat((it.directory / "jre" / "conf" / "file-1").readText()).isEqualTo("content 1")
+        }
+    }
+
+    @Test
+    fun `cache directory is only accessible by the current user`() {
+        assumeTrue("posix" in tempDir.fileSystem.supportedFileAttributeViews())
+        cache.getExtractedBundle(createBundle()).close()
+        assertThat((tempDir / "cache").getPosixFilePermissions()).isEqualTo(PosixFilePermissions.fromString("rwx------"))
+    }
+
+    @Test
+    fun `cache directory which other users can modify is refused`() {
+        assumeTrue("posix" in tempDir.fileSystem.supportedFileAttributeViews())
+        val cacheDirectory = (tempDir / "cache").createDirectory()
+        cacheDirectory.setPosixFilePermissions(PosixFilePermissions.fromString("rwxrwxrwx"))
+        assertThatIllegalStateException()
+            .isThrownBy { cache.getExtractedBundle(createBundle()) }
+            .withMessageContaining("can be modified by other users")
+        assertThat(bundleDirectories()).isEmpty()
+    }
+
+    @Test
+    fun `different bundles are extracted to different directories`() {
+        cache.getExtractedBundle(createBundle(jarContent = "jar 1")).use { first ->
+            cache.getExtractedBundle(createBundle(jarContent = "jar 2")).use { second ->
+                assertThat(second.directory).isNotEqualTo(first.directory)
+                assertThat((first.directory / "enclave.jar").readText()).isEqualTo("jar 1")
+                assertThat((second.directory / "enclave.jar").readText()).isEqualTo("jar 2")
+            }
+        }
+    }
+
+    @Test
+    fun `modified bundle is extracted again into a new directory`() {
+        val bundle = createBundle()
+        cache.getExtractedBundle(bundle).use { first ->
+            val tampered = first.directory / "jre" / "conf" / "file-1"
+            tampered.writeText("tampered")
+            (first.directory / "jre" / "conf" / "file-2").deleteExisting()
+
+            cache.getExtractedBundle(bundle).use { second ->
+                assertThat(second.directory).isNotEqualTo(first.directory)
+                assertThat((second.directory / "jre" / "conf" / "file-1").readText()).isEqualTo("content 1")
+                assertThat((second.directory / "jre" / "conf" / "file-2").readText()).isEqualTo("content 2")
+            }
+            // The old directory is still in use and so is left alone.
+            assertThat(tampered.readText()).isEqualTo("tampered")
+        }
+    }
+
+    @Test
+    fun `replaced directory is deleted once it is no longer in use`() {
+        val bundle = createBundle()
+        val first = cache.getExtractedBundle(bundle)
+        (first.directory / "jre" / "conf" / "file-1").writeText("tampered")
+        val second = cache.getExtractedBundle(bundle)
+        first.close()
+        second.close()
+
+        val third = cache.getExtractedBundle(bundle).use { it.directory }
+        assertThat(third).isEqualTo(second.directory)
+        assertThat(first.directory).doesNotExist()
+        assertThat(bundleDirectories()).containsExactly(third)
+    }
+
+    @Test
+    fun `directories which have not been used within the retention period are deleted`() {
+        val cache = GramineBundleCache(tempDir / "cache", retention = Duration.ZERO)
+        val old = cache.getExtractedBundle(createBundle(jarContent = "jar 1")).use { it.directory }
+        cache.getExtractedBundle(createBundle(jarContent = "jar 2")).use { current ->
+            assertThat(old).doesNotExist()
+            assertThat(bundleDirectories()).containsExactly(current.directory)
+        }
+    }
+
+    @Test
+    fun `directories in use are not deleted after the retention period`() {
+        val cache = GramineBundleCache(tempDir / "cache", retention = Duration.ZERO)
+        cache.getExtractedBundle(createBundle(jarContent = "jar 1")).use { first ->
+            cache.getExtractedBundle(createBundle(jarContent = "jar 2")).use { second ->
+                assertThat(bundleDirectories()).containsExactlyInAnyOrder(first.directory, second.directory)
+            }
+        }
+    }
+
+    @Test
+    fun `bundle entries outside of the bundle directory are rejected`() {
+        val bundle = tempDir / "bad-bundle.zip"
+        ZipOutputStream(bundle.outputStream()).use { zip ->
+            zip.putNextEntry(ZipEntry("../escaped"))
+            zip.write(byteArrayOf(1))
+        }
+        assertThatIllegalArgumentException().isThrownBy {
+            cache.getExtractedBundle(bundle.toUri().toURL())
+        }
+        assertThat(tempDir / "escaped").doesNotExist()
+        assertThat(bundleDirectories()).isEmpty()
+        assertThat((tempDir / "cache").listDirectoryEntries("*.lock")).isEmpty()
+    }
+
+    private fun bundleDirectories(): List<Path> = (tempDir / "cache").listDirectoryEntries().filter { it.isDirectory() }
+
+    private fun createBundle(jarContent: String = "jar"): URL {
+        val tarBytes = ByteArrayOutputStream()
+        TarArchiveOutputStream(GZIPOutputStream(tarBytes)).use { tar ->
+            tar.addFile("jre/bin/java", "#!/bin/sh".toByteArray())
+            tar.addFile("jre/lib/modules", largeFile)
+            for (i in 0 until 100) {
+                tar.addFile("jre/conf/file-$i", "content $i".toByteArray())
+            }
+        }
+
+        val bundle = Files.createTempFile(tempDir, "bundle", ".zip")
+        ZipOutputStream(bundle.outputStream()).use { zip ->
+            zip.putNextEntry(ZipEntry("enclave.jar"))
+            zip.write(jarContent.toByteArray())
+            zip.putNextEntry(ZipEntry("jre.tar.gz"))
+            zip.write(tarBytes.toByteArray())
+        }
+        return bundle.toUri().toURL()
+    }
+
+    private fun TarArchiveOutputStream.addFile(name: String, bytes: ByteArray) {
+        val entry = TarArchiveEntry(name)
+        entry.size = bytes.size.toLong()
+        putArchiveEntry(entry)
+        write(bytes)
+        closeArchiveEntry()
+    }
+}
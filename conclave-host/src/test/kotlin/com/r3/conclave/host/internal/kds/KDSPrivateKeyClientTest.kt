@@ -0,0 +1,78 @@
+package com.r3.conclave.host.internal.kds
+
+import com.r3.conclave.common.kds.KDSKeySpec
+import com.r3.conclave.common.kds.MasterKeyType
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.host.kds.KDSConfiguration
+import com.r3.conclave.internaltesting.kds.MockKDS
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatIOException
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.extension.RegisterExtension
+import java.time.Duration
+import java.util.concurrent.Callable
+import java.util.concurrent.Executors
+
+class KDSPrivateKeyClientTest {
+    @RegisterExtension
+    private val mockKds = MockKDS()
+    private val enclaveHost = createMockHost(NoopEnclave::class.java).apply { start(null, null, null) { } }
+    private val configuration = KDSConfiguration(mockKds.url.toString()).apply {
+        retryBackoff = Duration.ofMillis(10)
+    }
+    private val client = KDSPrivateKeyClient(configuration) { enclaveHost.enclaveInstanceInfo }
+    private val keySpec = KDSKeySpec(
+        "name",
+        MasterKeyType.DEVELOPMENT,
+        "S:0000000000000000000000000000000000000000000000000000000000000000 PROD:1 SEC:INSECURE"
+    )
+
+    @AfterEach
+    fun cleanUp() {
+        enclaveHost.close()
+    }
+
+    @Test
+    fun `concurrent requests for the same key spec are coalesced`() {
+        mockKds.privateKeyResponseDelay = Duration.ofMillis(500)
+        val executor = Executors.newFixedThreadPool(8)
+        try {
+            val responses = executor.invokeAll(List(8) { Callable { client.getPrivateKey(keySpec) } }).map { it.get() }
+            assertThat(responses.distinct()).hasSize(1)
+            assertThat(mockKds.privateKeyRequestCount).hasValue(1)
+        } finally {
+            executor.shutdown()
+        }
+
+        // Once the response has been received, the next request goes to the KDS again.
+        client.getPrivateKey(keySpec)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(2)
+    }
+
+    @Test
+    fun `server errors are retried`() {
+        mockKds.privateKeyRequestFailures.set(2)
+        client.getPrivateKey(keySpec)
+        assertThat(mockKds.privateKeyRequestCount).hasValue(3)
+    }
+
+    @Test
+    fun `server errors fail once the retries are exhausted`() {
+        configuration.maxRetries = 1
+        mockKds.privateKeyRequestFailures.set(2)
+        assertThatIOException().isThrownBy { client.getPrivateKey(keySpec) }
+        assertThat(mockKds.privateKeyRequestCount).hasValue(2)
+    }
+
+    @Test
+    fun `client errors are not retried`() {
+        mockKds.privateKeyRequestFailureCode = 400
+        mockKds.privateKeyRequestFailures.set(1)
+        assertThatIOException().isThrownBy { client.getPrivateKey(keySpec) }.withMessageContaining("400")
+        assertThat(mockKds.privateKeyRequestCount).hasValue(1)
+    }
+
+    class NoopEnclave : Enclave()
+}
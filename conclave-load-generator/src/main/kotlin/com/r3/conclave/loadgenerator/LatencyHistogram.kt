@@ -0,0 +1,109 @@
+package com.r3.conclave.loadgenerator
+
+import java.time.Duration
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.atomic.AtomicLongArray
+import kotlin.math.ceil
+
+/**
+ * A fixed-size histogram of latencies in nanoseconds which can be recorded to concurrently.
+ *
+ * In the same way as HdrHistogram, the values are grouped into log-linear buckets: values below 256ns are recorded
+ * exactly and every larger value is recorded with its top 8 significant bits. This means a percentile is reported to
+ * within 1% of the true value, whatever the magnitude of the latency, using a small fixed amount of memory.
+ */
+class LatencyHistogram {
+    private val counts = AtomicLongArray(BUCKET_COUNT)
+    private val _count = AtomicLong()
+    private val sum = AtomicLong()
+    private val _max = AtomicLong()
+
+    /**
+     * The number of recorded values.
+     */
+    val count: Long get() = _count.get()
+
+    /**
+     * The largest recorded value, or zero if the histogram is empty.
+     */
+    val max: Duration get() = Duration.ofNanos(_max.get())
+
+    /**
+     * The mean of the recorded values, or zero if the histogram is empty.
+     */
+    val mean: Duration get() {
+        val count = count
+        return if (count == 0L) Duration.ZERO else Duration.ofNanos(sum.get() / count)
+    }
+
+    fun record(latency: Duration) {
+        recordNanos(latency.toNanos())
+    }
+
+    fun recordNanos(nanos: Long) {
+        require(nanos >= 0) { "Latency cannot be negative" }
+        counts.incrementAndGet(bucketIndex(nanos))
+        sum.addAndGet(nanos)
+        _max.accumulateAndGet(nanos, Math::max)
+        _count.incrementAndGet()
+    }
+
+    /**
+     * Returns the value at the given percentile, which must be between 0 and 100. The value is the largest which is
+     * equivalent to the recorded ones in its bucket, capped at [max]. Zero is returned if the histogram is empty.
+     */
+    fun percentile(percentile: Double): Duration {
+        require(percentile in 0.0..100.0) { "Percentile must be between 0 and 100" }
+        val count = count
+        if (count == 0L) return Duration.ZERO
+        val target = ceil(percentile / 100 * count).toLong().coerceAtLeast(1)
+        var seen = 0L
+        for (index in 0 until BUCKET_COUNT) {
+            seen += counts.get(index)
+            if (seen >= target) {
+                return Duration.ofNanos(minOf(highestEquivalentValue(index), _max.get()))
+            }
+        }
+        return max
+    }
+
+    /**
+     * Add the values recorded in [other] to this histogram.
+     */
+    fun add(other: LatencyHistogram) {
+        for (index in 0 until BUCKET_COUNT) {
+            val otherCount = other.counts.get(index)
+            if (otherCount != 0L) {
+                counts.addAndGet(index, otherCount)
+            }
+        }
+        sum.addAndGet(other.sum.get())
+        _max.accumulateAndGet(other._max.get(), Math::max)
+        _count.addAndGet(other.count)
+    }
+
+    private companion object {
+        private const val SUB_BUCKET_BITS = 8
+        private const val SUB_BUCKET_COUNT = 1 shl SUB_BUCKET_BITS
+        private const val SUB_BUCKET_HALF_COUNT = SUB_BUCKET_COUNT / 2
+        // Values below SUB_BUCKET_COUNT are recorded exactly, and then there's a half-sized bucket for each of the
+        // remaining powers of two.
+        private const val BUCKET_COUNT = SUB_BUCKET_COUNT + (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKET_HALF_COUNT
+
+        private fun bucketIndex(value: Long): Int {
+            if (value < SUB_BUCKET_COUNT) return value.toInt()
+            val shift = 63 - java.lang.Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1)
+            val top = (value ushr shift).toInt()
+            return SUB_BUCKET_COUNT + (shift - 1) * SUB_BUCKET_HALF_COUNT + (top - SUB_BUCKET_HALF_COUNT)
+        }
+
+        private fun highestEquivalentValue(index: Int): Long {
+            if (index < SUB_BUCKET_COUNT) return index.toLong()
+            val shift = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_HALF_COUNT + 1
+            val top = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_HALF_COUNT + SUB_BUCKET_HALF_COUNT
+            val next = (top + 1).toLong() shl shift
+            // Guard against overflow for the very last bucket.
+            return if (next <= 0) Long.MAX_VALUE else next - 1
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.r3.conclave.loadgenerator
+
+import com.r3.conclave.client.EnclaveClient
+import com.r3.conclave.client.EnclaveTransport
+import com.r3.conclave.common.EnclaveConstraint
+import com.r3.conclave.mail.EnclaveMail
+import java.time.Duration
+import java.util.*
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.atomic.AtomicLong
+
+/**
+ * Generates load against an enclave by running a number of concurrent [EnclaveClient]s, each on its own thread, and
+ * measures the latencies they see.
+ *
+ * Each client repeatedly sends a mail of random bytes, cycling through its topics, and then polls for mail until its
+ * mailbox is empty, before waiting for the think time. Three latencies are recorded:
+ *
+ * - send: the time taken by [EnclaveClient.sendMail].
+ * - poll: the time taken by each call to [EnclaveClient.pollMail], including the final one which finds the mailbox
+ * empty.
+ * - round trip: the time from sending the mail to receiving the first response to it, whether that's returned by
+ * [EnclaveClient.sendMail] or picked up by polling. A mail whose response isn't available by the time the mailbox is
+ * empty isn't included.
+ *
+ * The load generator isn't tied to a particular host. Use a [com.r3.conclave.client.web.WebEnclaveTransport] for
+ * `conclave-web-host`, or see `LoadGeneratorCli` for running it from the command line.
+ *
+ * @property transport The transport the clients connect with.
+ * @property constraint The constraint the clients use to verify the enclave.
+ * @property config The shape of the load.
+ */
+class LoadGenerator(
+    val transport: EnclaveTransport,
+    val constraint: EnclaveConstraint,
+    val config: LoadGeneratorConfig
+) {
+    private val sendLatencies = LatencyHistogram()
+    private val pollLatencies = LatencyHistogram()
+    private val roundTripLatencies = LatencyHistogram()
+    private val mailSent = AtomicLong()
+    private val responsesReceived = AtomicLong()
+    private val errors = ConcurrentHashMap<String, AtomicLong>()
+
+    @Volatile
+    private var measureFrom = Long.MAX_VALUE
+
+    /**
+     * Run the load and return the report. The clients are started, and so will have verified the enclave's
+     * attestation, before any load is generated. Only the activity after the warm-up is included in the report.
+     *
+     * This method can only be called once.
+     */
+    fun run(): LoadReport {
+        check(measureFrom == Long.MAX_VALUE) { "The load generator has already been run" }
+        val clients = ArrayList<EnclaveClient>()
+        try {
+            repeat(config.clients) { clients += startClient() }
+            val start = CountDownLatch(1)
+            val threads = clients.mapIndexed { index, client ->
+                Thread({
+                    start.await()
+                    runClient(index, client)
+                }, "load-generator-$index").apply { start() }
+            }
+            val startNanos = System.nanoTime()
+            measureFrom = startNanos + config.warmUp.toNanos()
+            start.countDown()
+            threads.forEach { it.join() }
+            val elapsed = Duration.ofNanos(System.nanoTime() - measureFrom).coerceAtLeast(Duration.ZERO)
+            return LoadReport(
+                config,
+                elapsed,
+                mailSent.get(),
+                responsesReceived.get(),
+                errors.mapValuesTo(TreeMap()) { it.value.get() },
+                sendLatencies,
+                pollLatencies,
+                roundTripLatencies
+            )
+        } finally {
+            clients.forEach { it.close() }
+        }
+    }
+
+    private fun startClient(): EnclaveClient {
+        val client = EnclaveClient(constraint)
+        client.start(transport)
+        return client
+    }
+
+    private fun runClient(index: Int, client: EnclaveClient) {
+        val deadline = measureFrom + config.duration.toNanos()
+        val random = Random(index.toLong())
+        val body = ByteArray(config.mailSize)
+        var sent = 0L
+        while (sent < config.maxMailPerClient && System.nanoTime() < deadline) {
+            random.nextBytes(body)
+            val topic = "load-${sent % config.topics}"
+            val sendStart = System.nanoTime()
+            val measuring = sendStart >= measureFrom
+            sent++
+            if (measuring) mailSent.incrementAndGet()
+            var roundTripRecorded = false
+            try {
+                val response = client.sendMail(topic, body, null)
+                val sendEnd = System.nanoTime()
+                if (measuring) {
+                    sendLatencies.recordNanos(sendEnd - sendStart)
+                    if (response != null) {
+                        roundTripLatencies.recordNanos(sendEnd - sendStart)
+                        responsesReceived.incrementAndGet()
+                        roundTripRecorded = true
+                    }
+                }
+                while (true) {
+                    val pollStart = System.nanoTime()
+                    val polled: EnclaveMail? = client.pollMail()
+                    val pollEnd = System.nanoTime()
+                    if (measuring) {
+                        pollLatencies.recordNanos(pollEnd - pollStart)
+                        if (polled != null) {
+                            responsesReceived.incrementAndGet()
+                            if (!roundTripRecorded) {
+                                roundTripLatencies.recordNanos(pollEnd - sendStart)
+                                roundTripRecorded = true
+                            }
+                        }
+                    }
+                    if (polled == null) break
+                }
+            } catch (e: Exception) {
+                if (measuring) {
+                    errors.computeIfAbsent(e.javaClass.simpleName) { AtomicLong() }.incrementAndGet()
+                }
+            }
+            if (!config.thinkTime.isZero) {
+                Thread.sleep(config.thinkTime.toMillis(), (config.thinkTime.toNanos() % 1_000_000).toInt())
+            }
+        }
+    }
+}
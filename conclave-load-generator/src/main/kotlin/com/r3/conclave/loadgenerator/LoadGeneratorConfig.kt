@@ -0,0 +1,35 @@
+package com.r3.conclave.loadgenerator
+
+import java.time.Duration
+
+/**
+ * The shape of the load generated by [LoadGenerator].
+ *
+ * @property clients The number of concurrent clients.
+ * @property duration How long to generate load for after the warm-up. The clients stop earlier if they've each sent
+ * [maxMailPerClient] mail.
+ * @property mailSize The size in bytes of the body of each mail.
+ * @property topics The number of topics each client cycles through.
+ * @property thinkTime How long each client waits after receiving its responses before sending its next mail.
+ * @property warmUp How long to generate load for before measuring.
+ * @property maxMailPerClient The maximum number of mail each client sends, including during the warm-up.
+ */
+data class LoadGeneratorConfig @JvmOverloads constructor(
+    val clients: Int = 10,
+    val duration: Duration = Duration.ofSeconds(30),
+    val mailSize: Int = 1024,
+    val topics: Int = 1,
+    val thinkTime: Duration = Duration.ZERO,
+    val warmUp: Duration = Duration.ZERO,
+    val maxMailPerClient: Long = Long.MAX_VALUE
+) {
+    init {
+        require(clients > 0) { "There must be at least one client" }
+        require(!duration.isNegative) { "Duration cannot be negative" }
+        require(mailSize >= 0) { "Mail size cannot be negative" }
+        require(topics > 0) { "There must be at least one topic" }
+        require(!thinkTime.isNegative) { "Think time cannot be negative" }
+        require(!warmUp.isNegative) { "Warm-up cannot be negative" }
+        require(maxMailPerClient > 0) { "Maximum mail per client must be positive" }
+    }
+}
@@ -0,0 +1,76 @@
+package com.r3.conclave.loadgenerator
+
+import java.io.PrintStream
+import java.time.Duration
+
+/**
+ * The results of a [LoadGenerator] run, covering only the activity after the warm-up.
+ *
+ * @property config The config the load was generated with.
+ * @property elapsed How long the load was measured for.
+ * @property mailSent The number of mail sent, including those which failed.
+ * @property responsesReceived The number of response mail received, either from sending or polling.
+ * @property errors The number of failed requests, keyed by the simple name of the exception class.
+ * @property send The latencies of sending mail.
+ * @property poll The latencies of polling for mail.
+ * @property roundTrip The latencies from sending a mail to receiving its first response.
+ */
+class LoadReport(
+    val config: LoadGeneratorConfig,
+    val elapsed: Duration,
+    val mailSent: Long,
+    val responsesReceived: Long,
+    val errors: Map<String, Long>,
+    val send: LatencyHistogram,
+    val poll: LatencyHistogram,
+    val roundTrip: LatencyHistogram
+) {
+    /**
+     * The number of mail sent per second.
+     */
+    val throughput: Double get() = if (elapsed.isZero) 0.0 else mailSent * 1e9 / elapsed.toNanos()
+
+    /**
+     * The proportion of sent mail which failed, between 0 and 1.
+     */
+    val errorRate: Double get() = if (mailSent == 0L) 0.0 else errors.values.sum().toDouble() / mailSent
+
+    fun print(out: PrintStream) {
+        out.println("Clients: ${config.clients}, mail size: ${config.mailSize} bytes, topics: ${config.topics}, " +
+                "think time: ${config.thinkTime.toMillis()} ms")
+        out.println("Measured for %.1f s".format(elapsed.toNanos() / 1e9))
+        out.println("Mail sent: $mailSent (%.1f/s), responses received: $responsesReceived".format(throughput))
+        out.println("Errors: ${errors.values.sum()} (%.2f%%)".format(errorRate * 100))
+        for ((type, count) in errors) {
+            out.println("  $type: $count")
+        }
+        out.println()
+        out.println("%-12s%10s%10s%10s%10s%10s%10s%10s".format(
+            "Latency (ms)", "count", "mean", "p50", "p90", "p99", "p99.9", "max"
+        ))
+        printRow(out, "send", send)
+        printRow(out, "poll", poll)
+        printRow(out, "round trip", roundTrip)
+    }
+
+    private fun printRow(out: PrintStream, name: String, histogram: LatencyHistogram) {
+        val values = listOf(
+            histogram.mean,
+            histogram.percentile(50.0),
+            histogram.percentile(90.0),
+            histogram.percentile(99.0),
+            histogram.percentile(99.9),
+            histogram.max
+        )
+        out.print("%-12s%10d".format(name, histogram.count))
+        for (value in values) {
+            out.print("%10.3f".format(value.toNanos() / 1e6))
+        }
+        out.println()
+    }
+
+    override fun toString(): String {
+        return "LoadReport(mailSent=$mailSent, responsesReceived=$responsesReceived, errors=$errors, " +
+                "throughput=$throughput)"
+    }
+}
@@ -0,0 +1,127 @@
+package com.r3.conclave.loadgenerator.cli
+
+import com.r3.conclave.client.web.WebEnclaveTransport
+import com.r3.conclave.common.EnclaveConstraint
+import com.r3.conclave.loadgenerator.LoadGenerator
+import com.r3.conclave.loadgenerator.LoadGeneratorConfig
+import picocli.CommandLine
+import java.time.Duration
+import java.util.concurrent.Callable
+import kotlin.system.exitProcess
+
+fun main(args: Array<String>) {
+    exitProcess(CommandLine(LoadGeneratorCli()).execute(*args))
+}
+
+@CommandLine.Command(
+    name = "conclave-load-generator",
+    sortOptions = false,
+    mixinStandardHelpOptions = true,
+    header = ["Generates load against an enclave hosted by the Conclave web host and reports the throughput, " +
+            "latency percentiles and error rate."],
+    headerHeading = "%n",
+    synopsisHeading = "%nUsage:%n",
+    optionListHeading = "%n"
+)
+class LoadGeneratorCli : Callable<Int> {
+    @CommandLine.Option(
+        names = ["-u", "--url"],
+        required = true,
+        description = ["The URL of the web host.\n" +
+                "Example: http://localhost:8080"]
+    )
+    lateinit var url: String
+
+    @CommandLine.Option(
+        names = ["-c", "--constraint"],
+        required = true,
+        description = ["The enclave constraint the clients use to verify the enclave.\n" +
+                "Example: 'S:4924CA3A9C8241A3C0AA1A24A407AA86401D2B79FA9FF84932DA798A942166D4 PROD:1 SEC:INSECURE'"],
+        converter = [EnclaveConstraintConverter::class]
+    )
+    lateinit var constraint: EnclaveConstraint
+
+    @CommandLine.Option(
+        names = ["-n", "--clients"],
+        description = ["The number of concurrent clients.\n" +
+                "Default: \${DEFAULT-VALUE}"]
+    )
+    var clients: Int = 10
+
+    @CommandLine.Option(
+        names = ["-d", "--duration"],
+        description = ["How long to measure the load for, for example 30s or 5m.\n" +
+                "Default: \${DEFAULT-VALUE}"],
+        defaultValue = "30s",
+        converter = [DurationConverter::class]
+    )
+    lateinit var duration: Duration
+
+    @CommandLine.Option(
+        names = ["-w", "--warm-up"],
+        description = ["How long to generate load for before measuring it.\n" +
+                "Default: \${DEFAULT-VALUE}"],
+        defaultValue = "5s",
+        converter = [DurationConverter::class]
+    )
+    lateinit var warmUp: Duration
+
+    @CommandLine.Option(
+        names = ["-s", "--mail-size"],
+        description = ["The size in bytes of each mail body.\n" +
+                "Default: \${DEFAULT-VALUE}"]
+    )
+    var mailSize: Int = 1024
+
+    @CommandLine.Option(
+        names = ["-t", "--topics"],
+        description = ["The number of topics each client cycles through.\n" +
+                "Default: \${DEFAULT-VALUE}"]
+    )
+    var topics: Int = 1
+
+    @CommandLine.Option(
+        names = ["--think-time"],
+        description = ["How long each client waits between mail, for example 100ms.\n" +
+                "Default: \${DEFAULT-VALUE}"],
+        defaultValue = "0ms",
+        converter = [DurationConverter::class]
+    )
+    lateinit var thinkTime: Duration
+
+    override fun call(): Int {
+        val config = LoadGeneratorConfig(
+            clients = clients,
+            duration = duration,
+            mailSize = mailSize,
+            topics = topics,
+            thinkTime = thinkTime,
+            warmUp = warmUp
+        )
+        WebEnclaveTransport(url).use { transport ->
+            val report = LoadGenerator(transport, constraint, config).run()
+            report.print(System.out)
+        }
+        return 0
+    }
+}
+
+internal class EnclaveConstraintConverter : CommandLine.ITypeConverter<EnclaveConstraint> {
+    override fun convert(value: String): EnclaveConstraint = EnclaveConstraint.parse(value)
+}
+
+/**
+ * Converts durations such as `500ms`, `30s` and `5m`. A plain number is taken to be in seconds.
+ */
+internal class DurationConverter : CommandLine.ITypeConverter<Duration> {
+    override fun convert(value: String): Duration {
+        val amount = value.takeWhile { it.isDigit() }
+        require(amount.isNotEmpty()) { "Invalid duration '$value'" }
+        return when (value.substring(amount.length)) {
+            "ms" -> Duration.ofMillis(amount.toLong())
+            "", "s" -> Duration.ofSeconds(amount.toLong())
+            "m" -> Duration.ofMinutes(amount.toLong())
+            else -> throw IllegalArgumentException("Invalid duration '$value'")
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.r3.conclave.loadgenerator
+
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatIllegalArgumentException
+import org.assertj.core.data.Percentage.withPercentage
+import org.junit.jupiter.api.Test
+import java.time.Duration
+
+class LatencyHistogramTest {
+    private val histogram = LatencyHistogram()
+
+    @Test
+    fun `empty histogram`() {
+        assertThat(histogram.count).isZero
+        assertThat(histogram.mean).isZero
+        assertThat(histogram.max).isZero
+        assertThat(histogram.percentile(99.0)).isZero
+    }
+
+    @Test
+    fun `small values are recorded exactly`() {
+        for (value in 1L..100L) {
+            histogram.recordNanos(value)
+        }
+        assertThat(histogram.count).isEqualTo(100)
+        assertThat(histogram.percentile(50.0).toNanos()).isEqualTo(50)
+        assertThat(histogram.percentile(99.0).toNanos()).isEqualTo(99)
+        assertThat(histogram.percentile(100.0).toNanos()).isEqualTo(100)
+        assertThat(histogram.mean.toNanos()).isEqualTo(50)
+    }
+
+    @Test
+    fun `large values are within 1 percent`() {
+        for (millis in 1L..1000L) {
+            histogram.record(Duration.ofMillis(millis))
+        }
+        assertThat(histogram.percentile(50.0).toNanos()).isCloseTo(500_000_000, withPercentage(1.0))
+        assertThat(histogram.percentile(99.9).toNanos()).isCloseTo(999_000_000, withPercentage(1.0))
+        assertThat(histogram.max).isEqualTo(Duration.ofSeconds(1))
+        assertThat(histogram.percentile(100.0)).isEqualTo(Duration.ofSeconds(1))
+    }
+
+    @Test
+    fun `largest value`() {
+        histogram.recordNanos(Long.MAX_VALUE)
+        assertThat(histogram.percentile(50.0).toNanos()).isEqualTo(Long.MAX_VALUE)
+    }
+
+    @Test
+    fun add() {
+        val other = LatencyHistogram()
+        histogram.recordNanos(10)
+        other.recordNanos(1_000_000)
+        other.recordNanos(2_000_000)
+        histogram.add(other)
+        assertThat(histogram.count).isEqualTo(3)
+        assertThat(histogram.max.toNanos()).isEqualTo(2_000_000)
+        assertThat(histogram.percentile(50.0).toNanos()).isCloseTo(1_000_000, withPercentage(1.0))
+    }
+
+    @Test
+    fun `negative latency`() {
+        assertThatIllegalArgumentException().isThrownBy { histogram.recordNanos(-1) }
+    }
+}
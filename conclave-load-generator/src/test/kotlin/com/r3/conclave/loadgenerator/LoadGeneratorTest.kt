@@ -0,0 +1,106 @@
+package com.r3.conclave.loadgenerator
+
+import com.r3.conclave.common.EnclaveConstraint
+import com.r3.conclave.common.EnclaveException
+import com.r3.conclave.common.EnclaveSecurityInfo
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.internaltesting.MockEnclaveTransport
+import com.r3.conclave.mail.EnclaveMail
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import java.io.ByteArrayOutputStream
+import java.io.PrintStream
+import java.time.Duration
+import kotlin.reflect.KClass
+
+class LoadGeneratorTest {
+    private var transport: MockEnclaveTransport? = null
+
+    @AfterEach
+    fun close() {
+        transport?.close()
+    }
+
+    @Test
+    fun `responses returned when sending`() {
+        val report = runLoad(EchoEnclave::class, LoadGeneratorConfig(clients = 4, topics = 3, maxMailPerClient = 50))
+        assertThat(report.mailSent).isEqualTo(200)
+        assertThat(report.responsesReceived).isEqualTo(200)
+        assertThat(report.errors).isEmpty()
+        assertThat(report.send.count).isEqualTo(200)
+        assertThat(report.roundTrip.count).isEqualTo(200)
+        // Each client polls once after each mail to find its mailbox empty.
+        assertThat(report.poll.count).isEqualTo(200)
+        assertThat(report.roundTrip.percentile(50.0)).isPositive
+    }
+
+    @Test
+    fun `extra responses picked up by polling`() {
+        val report = runLoad(TwoResponsesEnclave::class, LoadGeneratorConfig(clients = 2, maxMailPerClient = 20))
+        assertThat(report.mailSent).isEqualTo(40)
+        assertThat(report.responsesReceived).isEqualTo(80)
+        assertThat(report.roundTrip.count).isEqualTo(40)
+        assertThat(report.poll.count).isEqualTo(80)
+    }
+
+    @Test
+    fun `errors are counted`() {
+        val report = runLoad(ThrowingEnclave::class, LoadGeneratorConfig(clients = 2, maxMailPerClient = 10))
+        assertThat(report.mailSent).isEqualTo(20)
+        assertThat(report.errors).isEqualTo(mapOf("EnclaveException" to 20L))
+        assertThat(report.errorRate).isEqualTo(1.0)
+        assertThat(report.roundTrip.count).isZero
+    }
+
+    @Test
+    fun `warm-up is not measured`() {
+        val config = LoadGeneratorConfig(
+            clients = 1,
+            duration = Duration.ZERO,
+            warmUp = Duration.ofMillis(200),
+            maxMailPerClient = 1000
+        )
+        val report = runLoad(EchoEnclave::class, config)
+        assertThat(report.mailSent).isZero
+        assertThat(report.send.count).isZero
+    }
+
+    @Test
+    fun `report can be printed`() {
+        val report = runLoad(EchoEnclave::class, LoadGeneratorConfig(clients = 1, maxMailPerClient = 10))
+        val output = ByteArrayOutputStream()
+        report.print(PrintStream(output))
+        assertThat(output.toString()).contains("Mail sent: 10", "round trip")
+    }
+
+    private fun runLoad(enclaveClass: KClass<out Enclave>, config: LoadGeneratorConfig): LoadReport {
+        val transport = MockEnclaveTransport(enclaveClass)
+        this.transport = transport
+        transport.startEnclave()
+        val constraint = EnclaveConstraint().apply {
+            acceptableCodeHashes += transport.enclaveHost.enclaveInstanceInfo.enclaveInfo.codeHash
+            minSecurityLevel = EnclaveSecurityInfo.Summary.INSECURE
+        }
+        return LoadGenerator(transport, constraint, config).run()
+    }
+
+    class EchoEnclave : Enclave() {
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+        }
+    }
+
+    class TwoResponsesEnclave : Enclave() {
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+            postMail(postOffice(mail).encryptMail(mail.bodyAsBytes), routingHint)
+        }
+    }
+
+    class ThrowingEnclave : Enclave() {
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            throw EnclaveException("Overloaded")
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package com.r3.conclave.mail.internal.noise.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+import java.security.Provider;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+import javax.crypto.KeyAgreement;
+
+/**
+ * Curve25519 using the "X25519" key agreement provided by the JDK from Java 11.
+ *
+ * The keys are given to the JDK in their DER encodings so that this class
+ * doesn't depend on any Java 11 APIs. The results are the same as
+ * {@link Curve25519#eval}, except that the JDK masks the top bit of the
+ * public key and rejects public keys which give an all-zero result. In
+ * those cases eval returns false so that the caller can fall back to
+ * {@link Curve25519} and get exactly the same result as the other party.
+ *
+ * The JDK isn't used inside a GraalVM native image, where the bundled
+ * implementation is used instead.
+ */
+public final class JCACurve25519 {
+
+	// DER encodings of the PKCS#8 and X.509 structures for X25519 keys (RFC 8410), up to the raw key bytes.
+	private static final byte[] PRIVATE_KEY_PREFIX = {
+		0x30, 0x2e, 0x02, 0x01, 0x00, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x04, 0x22, 0x04, 0x20
+	};
+	private static final byte[] PUBLIC_KEY_PREFIX = {
+		0x30, 0x2a, 0x30, 0x05, 0x06, 0x03, 0x2b, 0x65, 0x6e, 0x03, 0x21, 0x00
+	};
+	private static final byte[] BASE_POINT = new byte [32];
+
+	private static final boolean available;
+
+	// The providers are looked up once, as searching the installed
+	// providers on every evaluation is slow. They're null if the JDK's
+	// implementation isn't available.
+	private static final Provider keyAgreementProvider;
+	private static final Provider keyFactoryProvider;
+
+	static {
+		BASE_POINT[0] = 9;
+		Provider agreementProvider = null;
+		Provider factoryProvider = null;
+		if (System.getProperty("org.graalvm.nativeimage.imagecode") == null) {
+			try {
+				agreementProvider = KeyAgreement.getInstance("X25519").getProvider();
+				factoryProvider = KeyFactory.getInstance("X25519").getProvider();
+			} catch (NoSuchAlgorithmException e) {
+				agreementProvider = null;
+				factoryProvider = null;
+			}
+		}
+		keyAgreementProvider = agreementProvider;
+		keyFactoryProvider = factoryProvider;
+		available = agreementProvider != null && factoryProvider != null;
+	}
+
+	private JCACurve25519() {}
+
+	/**
+	 * Determine if the JDK's X25519 implementation can be used.
+	 *
+	 * @return true if it can be used, false if the runtime doesn't
+	 * provide it or is a GraalVM native image.
+	 */
+	public static boolean isAvailable()
+	{
+		return available;
+	}
+
+	/**
+	 * Evaluates the Curve25519 curve with the JDK, with the same parameters
+	 * as {@link Curve25519#eval}.
+	 *
+	 * @param result Buffer to place the result of the evaluation into.
+	 * @param offset Offset into the result buffer.
+	 * @param privateKey The private key to use in the evaluation.
+	 * @param publicKey The public key to use in the evaluation, or null
+	 * if the base point of the curve should be used.
+	 *
+	 * @return true if the result was calculated, or false if the caller
+	 * must use {@link Curve25519#eval} instead.
+	 */
+	public static boolean eval(byte[] result, int offset, byte[] privateKey, byte[] publicKey)
+	{
+		if (!available)
+			return false;
+		if (publicKey == null)
+			publicKey = BASE_POINT;
+		else if ((publicKey[31] & 0x80) != 0)
+			return false;
+		byte[] encodedPrivateKey = concat(PRIVATE_KEY_PREFIX, privateKey);
+		try {
+			KeyFactory keyFactory = KeyFactory.getInstance("X25519", keyFactoryProvider);
+			KeyAgreement keyAgreement = KeyAgreement.getInstance("X25519", keyAgreementProvider);
+			keyAgreement.init(keyFactory.generatePrivate(new PKCS8EncodedKeySpec(encodedPrivateKey)));
+			keyAgreement.doPhase(keyFactory.generatePublic(new X509EncodedKeySpec(concat(PUBLIC_KEY_PREFIX, publicKey))), true);
+			keyAgreement.generateSecret(result, offset);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		} finally {
+			Arrays.fill(encodedPrivateKey, (byte)0);
+		}
+	}
+
+	private static byte[] concat(byte[] prefix, byte[] key)
+	{
+		byte[] encoded = Arrays.copyOf(prefix, prefix.length + 32);
+		System.arraycopy(key, 0, encoded, prefix.length, 32);
+		return encoded;
+	}
+}
@@ -25,6 +25,7 @@ package com.r3.conclave.mail.internal.noise.protocol;
 import java.util.Arrays;
 
 import com.r3.conclave.mail.internal.noise.crypto.Curve25519;
+import com.r3.conclave.mail.internal.noise.crypto.JCACurve25519;
 
 /**
  * Implementation of the Curve25519 algorithm for the Noise protocol.
@@ -81,7 +82,7 @@ class Curve25519DHState implements DHState {
 		//
 		// Note: this does imply that there are a few private keys that are equivalent to each other, but this is
 		// not a problem in practice due to the huge keyspace.
-		Curve25519.eval(publicKey, 0, privateKey, null);
+		eval(publicKey, 0, privateKey, null);
 		mode = 0x03;
 	}
 
@@ -108,7 +109,7 @@ class Curve25519DHState implements DHState {
 		//
 		// Note: this does imply that there are a few private keys that are equivalent to each other, but this is
 		// not a problem in practice due to the huge keyspace.
-		Curve25519.eval(publicKey, 0, privateKey, null);
+		eval(publicKey, 0, privateKey, null);
 		mode = 0x03;
 	}
 
@@ -143,7 +144,17 @@ class Curve25519DHState implements DHState {
 	public void calculate(byte[] sharedKey, int offset, DHState publicDH) {
 		if (!(publicDH instanceof Curve25519DHState))
 			throw new IllegalArgumentException("Incompatible DH algorithms");
-		Curve25519.eval(sharedKey, offset, privateKey, ((Curve25519DHState)publicDH).publicKey);
+		eval(sharedKey, offset, privateKey, ((Curve25519DHState)publicDH).publicKey);
+	}
+
+	/**
+	 * Evaluates the curve with the JDK's X25519 implementation if there is
+	 * one, as it's faster than the bundled implementation on recent JDKs.
+	 */
+	private static void eval(byte[] result, int offset, byte[] privateKey, byte[] publicKey)
+	{
+		if (Noise.isForceFallbacks() || !JCACurve25519.eval(result, offset, privateKey, publicKey))
+			Curve25519.eval(result, offset, privateKey, publicKey);
 	}
 
 	@Override
@@ -49,6 +49,7 @@ public class HandshakeState implements Destroyable {
 	private int patternIndex;
 	private byte[] preSharedKey;
 	private byte[] prologue;
+	private StaticDHCache staticDHCache;
 
 	/**
 	 * Enumerated value that indicates that the handshake object
@@ -323,6 +324,16 @@ public class HandshakeState implements Destroyable {
 		this.prologue = Noise.copySubArray(prologue, offset, length);
 	}
 
+	/**
+	 * Sets the cache to use for the static-static DH calculation.
+	 *
+	 * @param staticDHCache The cache, or null to always calculate it.
+	 */
+	public void setStaticDHCache(StaticDHCache staticDHCache)
+	{
+		this.staticDHCache = staticDHCache;
+	}
+
 	/**
 	 * Gets the keypair object for the local static key.
 	 *
@@ -731,6 +742,31 @@ public class HandshakeState implements Destroyable {
 		}
 	}
 
+	/**
+	 * Mixes the result of the static-static Diffie-Hellman calculation into the
+	 * chaining key, using the cache if there is one.
+	 */
+	private void mixStaticDH()
+	{
+		if (staticDHCache == null) {
+			mixDH(localKeyPair, remotePublicKey);
+			return;
+		}
+		if (localKeyPair == null || remotePublicKey == null)
+			throw new IllegalStateException("Pattern definition error");
+		int len = localKeyPair.getSharedKeyLength();
+		byte[] shared = new byte [len];
+		try {
+			if (!staticDHCache.get(localKeyPair, remotePublicKey, shared)) {
+				localKeyPair.calculate(shared, 0, remotePublicKey);
+				staticDHCache.put(localKeyPair, remotePublicKey, shared);
+			}
+			symmetric.mixKey(shared, 0, len);
+		} finally {
+			Noise.destroy(shared);
+		}
+	}
+
 	/**
 	 * Writes a message payload during the handshake.
 	 *
@@ -862,7 +898,7 @@ public class HandshakeState implements Destroyable {
 					case Pattern.SS:
 					{
 						// DH operation with initiator and responder static keys.
-						mixDH(localKeyPair, remotePublicKey);
+						mixStaticDH();
 					}
 					break;
 
@@ -1068,7 +1104,7 @@ public class HandshakeState implements Destroyable {
 					case Pattern.SS:
 					{
 						// DH operation with initiator and responder static keys.
-						mixDH(localKeyPair, remotePublicKey);
+						mixStaticDH();
 					}
 					break;
 
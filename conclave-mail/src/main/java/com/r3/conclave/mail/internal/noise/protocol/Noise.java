@@ -75,6 +75,11 @@ public final class Noise {
 		forceFallbacks = force;
 	}
 
+	static boolean isForceFallbacks()
+	{
+		return forceFallbacks;
+	}
+
 	/**
 	 * Creates a Diffie-Hellman object from its Noise protocol name. You can use
 	 * "25519", "448" or "NewHope". The first two use the Curve25519 and Curve448
@@ -119,6 +124,45 @@ public final class Noise {
 		throw new NoSuchAlgorithmException("Unknown Noise cipher algorithm name: " + name);
 	}
 
+	// The JCA/JCE providers are only searched once for each hash
+	// algorithm, and each new digest is cloned from the one that was
+	// found, or is null if there isn't one. The prototypes are never
+	// updated, so they can be cloned from multiple threads.
+	private static final MessageDigest sha256Prototype = findDigest("SHA-256");
+	private static final MessageDigest sha512Prototype = findDigest("SHA-512");
+	// Bouncy Castle registers the BLAKE2b variant we
+	// want under the name "BLAKE2B-512".
+	private static final MessageDigest blake2bPrototype = findDigest("BLAKE2B-512");
+	// Bouncy Castle doesn't currently (June 2016) have an
+	// implementation of BLAKE2s, but look for the most
+	// obvious provider name in case one is added in the future.
+	private static final MessageDigest blake2sPrototype = findDigest("BLAKE2S-256");
+
+	private static MessageDigest findDigest(String algorithm)
+	{
+		try {
+			return MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+	private static MessageDigest newDigest(MessageDigest prototype)
+	{
+		if (prototype == null)
+			return null;
+		try {
+			return (MessageDigest)prototype.clone();
+		} catch (CloneNotSupportedException e) {
+			// Not all providers support cloning, so create a new instance from the same provider instead.
+			try {
+				return MessageDigest.getInstance(prototype.getAlgorithm(), prototype.getProvider());
+			} catch (NoSuchAlgorithmException e2) {
+				return null;
+			}
+		}
+	}
+
 	/**
 	 * Creates a hash object from its Noise protocol name.
 	 *
@@ -136,45 +180,21 @@ public final class Noise {
 		// use the fallback implementations in this library instead.
 		// The only algorithm that is required to be implemented by a
 		// JDK is "SHA-256", although "SHA-512" is fairly common as well.
+		MessageDigest digest;
 		switch (name) {
 			case "SHA256":
-				if (forceFallbacks)
-					return new SHA256MessageDigest();
-				try {
-					return MessageDigest.getInstance("SHA-256");
-				} catch (NoSuchAlgorithmException e) {
-					return new SHA256MessageDigest();
-				}
+				digest = forceFallbacks ? null : newDigest(sha256Prototype);
+				return digest != null ? digest : new SHA256MessageDigest();
 			case "SHA512":
-				if (forceFallbacks)
-					return new SHA512MessageDigest();
-				try {
-					return MessageDigest.getInstance("SHA-512");
-				} catch (NoSuchAlgorithmException e) {
-					return new SHA512MessageDigest();
-				}
+				digest = forceFallbacks ? null : newDigest(sha512Prototype);
+				return digest != null ? digest : new SHA512MessageDigest();
 			case "BLAKE2b":
-				// Bouncy Castle registers the BLAKE2b variant we
-				// want under the name "BLAKE2B-512".
-				if (forceFallbacks)
-					return new Blake2bMessageDigest();
-				try {
-					return MessageDigest.getInstance("BLAKE2B-512");
-				} catch (NoSuchAlgorithmException e) {
-					return new Blake2bMessageDigest();
-				}
+				digest = forceFallbacks ? null : newDigest(blake2bPrototype);
+				return digest != null ? digest : new Blake2bMessageDigest();
 			case "BLAKE2s":
 				// TODO: Remove BLAKE support.
-				// Bouncy Castle doesn't currently (June 2016) have an
-				// implementation of BLAKE2s, but look for the most
-				// obvious provider name in case one is added in the future.
-				if (forceFallbacks)
-					return new Blake2sMessageDigest();
-				try {
-					return MessageDigest.getInstance("BLAKE2S-256");
-				} catch (NoSuchAlgorithmException e) {
-					return new Blake2sMessageDigest();
-				}
+				digest = forceFallbacks ? null : newDigest(blake2sPrototype);
+				return digest != null ? digest : new Blake2sMessageDigest();
 		}
 		throw new NoSuchAlgorithmException("Unknown Noise hash algorithm name: " + name);
 	}
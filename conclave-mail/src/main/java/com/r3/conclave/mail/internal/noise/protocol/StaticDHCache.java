@@ -0,0 +1,33 @@
+package com.r3.conclave.mail.internal.noise.protocol;
+
+/**
+ * Cache of the results of the static-static ("ss") DH calculation during a handshake.
+ *
+ * The result of the ss calculation only depends on the two static keys, and so for a
+ * recipient which receives many handshakes from the same senders it can be cached
+ * rather than calculated for every handshake. Implementations must treat the cached
+ * results as secret keys, and wipe them when they are evicted.
+ */
+public interface StaticDHCache {
+
+	/**
+	 * Gets a cached ss result.
+	 *
+	 * @param local The local static key pair.
+	 * @param remote The remote static public key.
+	 * @param sharedKey Buffer to copy the cached result into.
+	 *
+	 * @return true if the result was cached and copied into sharedKey.
+	 */
+	boolean get(DHState local, DHState remote, byte[] sharedKey);
+
+	/**
+	 * Caches an ss result.
+	 *
+	 * @param local The local static key pair.
+	 * @param remote The remote static public key.
+	 * @param sharedKey The result of the calculation, which must be copied
+	 * as the caller will wipe it.
+	 */
+	void put(DHState local, DHState remote, byte[] sharedKey);
+}
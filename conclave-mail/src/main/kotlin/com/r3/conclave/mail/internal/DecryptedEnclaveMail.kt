@@ -11,7 +11,8 @@ class DecryptedEnclaveMail(
     private val _envelope: ByteArray?,
     val privateHeader: ByteArray?,
     private val _bodyAsBytes: ByteArray,
-    val kdsPrivateKey: PrivateKey?
+    val kdsPrivateKey: PrivateKey?,
+    val protocol: MailProtocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
 ) : EnclaveMail {
     override val envelope: ByteArray? get() = _envelope?.clone()
     override val bodyAsBytes: ByteArray get() = _bodyAsBytes.clone()
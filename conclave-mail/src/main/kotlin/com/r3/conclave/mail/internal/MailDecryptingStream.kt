@@ -6,6 +6,7 @@ import com.r3.conclave.mail.internal.noise.protocol.CipherState
 import com.r3.conclave.mail.internal.noise.protocol.CipherStatePair
 import com.r3.conclave.mail.internal.noise.protocol.HandshakeState
 import com.r3.conclave.mail.internal.noise.protocol.Noise
+import com.r3.conclave.mail.internal.noise.protocol.StaticDHCache
 import com.r3.conclave.utilities.internal.dataStream
 import com.r3.conclave.utilities.internal.readExactlyNBytes
 import java.io.DataInputStream
@@ -48,6 +49,12 @@ class MailDecryptingStream(
     // Remember the exception we threw so we can throw it again if the user keeps trying to use the stream.
     private var handshakeFailure: MailDecryptionException? = null
 
+    /**
+     * Optional cache of the static-static DH result, which saves a scalar multiplication for senders whose mail has
+     * been decrypted before. This must be set before the handshake.
+     */
+    var staticDHCache: StaticDHCache? = null
+
 
     private lateinit var _senderPublicKey: ByteArray
 
@@ -321,6 +328,7 @@ class MailDecryptingStream(
     private fun setupHandshake(prologue: Prologue): HandshakeState {
         val privateKey = checkNotNull(this.privateKey) { "Private key has not been provided to decrypt the stream." }
         val handshake = HandshakeState(prologue.protocol.noiseProtocolName, HandshakeState.RESPONDER)
+        handshake.setStaticDHCache(staticDHCache)
         val localKeyPair = handshake.localKeyPair
         localKeyPair.setPrivateKey(privateKey.encoded, 0)
         // The prologue ensures the protocol name, headers and extensions weren't tampered with.
@@ -333,7 +341,7 @@ class MailDecryptingStream(
             error("Premature end of stream during handshake")
         }
 
-        val payloadBuf = if (prologue.protocol == MailProtocol.SENDER_KEY_TRANSMITTED_V2) {
+        val payloadBuf = if (prologue.protocol >= MailProtocol.SENDER_KEY_TRANSMITTED_V2) {
             ByteArray(1)
         } else {
             ByteArray(0)
@@ -375,7 +383,8 @@ class MailDecryptingStream(
             header.envelope,
             privateHeader,
             mailBody,
-            privateKey.takeIf { isKdsKey }
+            privateKey.takeIf { isKdsKey },
+            prologue.protocol
         )
     }
 
@@ -35,6 +35,7 @@ import java.security.PublicKey
  * @param senderPrivateKey     Your private key. The recipient will receive your public key and be sure
  *                             you encrypted the message.
  * @param minSize              Pad the end of the stream to make sure the number of encrypted bytes is at least this amount.
+ * @param protocol             The mail protocol to use. The recipient must support it.
  */
 class MailEncryptingStream(
     out: OutputStream,
@@ -42,7 +43,8 @@ class MailEncryptingStream(
     private val header: EnclaveMailHeaderImpl,
     private val privateHeader: ByteArray?,
     private val senderPrivateKey: PrivateKey,
-    private val minSize: Int
+    private val minSize: Int,
+    private val protocol: MailProtocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
 ) : FilterOutputStream(out) {
 
     private val cipherState: CipherState
@@ -59,7 +61,6 @@ class MailEncryptingStream(
     // The other party isn't here to "handshake" with us but that's OK because this is a non-interactive protocol:
     // they will complete it when reading the stream.
     private fun handshake(): CipherState {
-        val protocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
         // Noise can be used in various modes, the protocol name is an ASCII string that identifies the settings.
         // We write it here. It looks like this: Noise_X_25519_AESGCM_SHA256
         return HandshakeState(protocol.noiseProtocolName, HandshakeState.INITIATOR).use { handshake ->
@@ -90,7 +91,7 @@ class MailEncryptingStream(
             // to encrypt with.
             val handshakeBytes = ByteArray(protocol.handshakeLength)
 
-            val handshakeLen = if (protocol == MailProtocol.SENDER_KEY_TRANSMITTED_V2) {
+            val handshakeLen = if (protocol >= MailProtocol.SENDER_KEY_TRANSMITTED_V2) {
                 // We specify a payload of a single zero byte. This is irrelevant because being able to provide bytes
                 // during the handshake is an optimisation mostly relevant for an interactive handshake where latency is
                 // a primary concern. Enclaves have bigger performance issues to worry about. However we specify one anyway
@@ -1,7 +1,8 @@
 package com.r3.conclave.mail.internal
 
-// For now we have one handshake. Any new ones will have to use the same ciphers. Adding new ciphers won't be forwards
-// compatible. The justification is as follows. Curve25519, AESGCM and SHA256 are by this point mature,
+// For now we have one handshake. Any new ones will have to use the same ciphers, with the exception of ChaChaPoly which
+// can be used in place of AESGCM. Adding new ciphers won't be forwards compatible, and so a sender only uses ChaChaPoly
+// if the recipient has said it supports it. The justification is as follows. Curve25519, AESGCM and SHA256 are by this point mature,
 // well tested algorithms that are widely deployed to protect all internet traffic. Although new ciphers
 // are regularly designed, in practice few are every deployed because elliptic curve crypto with AES and SHA2
 // have no known problems, there are none on the horizon beyond quantum computers, and the places where other
@@ -39,4 +40,13 @@ enum class MailProtocol(
      * We add additional byte to the handshake length for compatibility with browsers.
      */
     SENDER_KEY_TRANSMITTED_V2("Noise_X_25519_AESGCM_SHA256", 96 + 1),
+
+    /**
+     * Identical to SENDER_KEY_TRANSMITTED_V2 but uses ChaChaPoly instead of AESGCM. This is faster in runtimes which
+     * don't have hardware accelerated AES, such as a GraalVM native image. ChaChaPoly has the same size MAC tag as
+     * AESGCM and so the handshake is the same length.
+     *
+     * Enclaves advertise that they prefer this protocol in their EnclaveInstanceInfo. Older versions can't decrypt it.
+     */
+    SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY("Noise_X_25519_ChaChaPoly_SHA256", 96 + 1),
 }
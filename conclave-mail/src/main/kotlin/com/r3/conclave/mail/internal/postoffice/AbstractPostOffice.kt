@@ -16,6 +16,11 @@ abstract class AbstractPostOffice {
 
     protected var encryptCalled = false
 
+    /**
+     * The mail protocol to encrypt with. This must be one the recipient supports.
+     */
+    protected open val mailProtocol: MailProtocol get() = MailProtocol.SENDER_KEY_TRANSMITTED_V2
+
     private var _minSizePolicy: MinSizePolicy? = null
 
     // Moving average seems like a sensible compromise against largest seen's behaviour of bloating small mail if just
@@ -32,21 +37,36 @@ abstract class AbstractPostOffice {
         encryptCalled = true
         val header = EnclaveMailHeaderImpl(getAndIncrementSequenceNumber(), topic, envelope, keyDerivation)
         val minSize = minSizePolicy.getMinSize(body.size)
-        val output = ByteArrayOutputStream(getExpectedSize(header, minSize, body))
-        val stream = MailEncryptingStream(output, destinationPublicKey, header, privateHeader, senderPrivateKey, minSize)
+        // Read the protocol once, as it may be changed by another thread whilst the mail is being encrypted.
+        val mailProtocol = mailProtocol
+        val output = ByteArrayOutputStream(getExpectedSize(header, minSize, body, mailProtocol))
+        val stream = MailEncryptingStream(
+            output,
+            destinationPublicKey,
+            header,
+            privateHeader,
+            senderPrivateKey,
+            minSize,
+            mailProtocol
+        )
         stream.write(body)
         stream.close()
         return output.toByteArray()
     }
 
-    private fun getExpectedSize(header: EnclaveMailHeaderImpl, minSize: Int, body: ByteArray): Int {
+    private fun getExpectedSize(
+        header: EnclaveMailHeaderImpl,
+        minSize: Int,
+        body: ByteArray,
+        mailProtocol: MailProtocol
+    ): Int {
         // See MailEncryptingStream.maybeHandshake for the header format.
         // The 1 is for the single byte protocol ID.
         val prologueSize = 1 + header.encodedSize()
         val payloadSize = maxOf(body.size, minSize)
         val packetCount = (payloadSize / MAX_PACKET_PAYLOAD_LENGTH) + 1
         // The 2 is for the prologue size field.
-        return 2 + prologueSize + MailProtocol.SENDER_KEY_TRANSMITTED_V2.handshakeLength + (packetCount * PACKET_OVERHEAD) + payloadSize
+        return 2 + prologueSize + mailProtocol.handshakeLength + (packetCount * PACKET_OVERHEAD) + payloadSize
     }
 
     companion object {
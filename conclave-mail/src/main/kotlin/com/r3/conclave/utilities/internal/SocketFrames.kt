@@ -0,0 +1,60 @@
+package com.r3.conclave.utilities.internal
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.IOException
+
+/**
+ * The framing used between `SocketEnclaveTransport` and `EnclaveSocketHost`. Each frame is the size of the rest of
+ * the frame as an int, followed by the frame type byte, the request ID and the payload. A response frame has the same
+ * request ID as its request, which allows the client to pipeline requests. Frames pushed by the host have a request ID
+ * of zero.
+ */
+object SocketFrames {
+    const val MAX_FRAME_SIZE = 16 * 1024 * 1024
+    private const val HEADER_SIZE = 1 + Int.SIZE_BYTES
+
+    // Client to host
+    const val HELLO: Byte = 1
+    const val GET_ATTESTATION: Byte = 2
+    const val DELIVER_MAIL: Byte = 3
+    const val POLL_MAIL: Byte = 4
+
+    // Host to client
+    const val ATTESTATION: Byte = 0x41
+    const val DELIVERY_RESULT: Byte = 0x42
+    const val POLLED_MAIL: Byte = 0x43
+    const val ERROR: Byte = 0x44
+    const val ATTESTATION_UPDATED: Byte = 0x45
+
+    // Delivery result status
+    const val DELIVERED = 0
+    const val MAIL_DECRYPTION = 1
+    const val ENCLAVE_EXCEPTION = 2
+
+    class Frame(val type: Byte, val requestId: Int, val payload: ByteArray)
+
+    /** Returns null if the stream is at the end, i.e. the other side has closed the connection. */
+    fun DataInputStream.readFrame(): Frame? {
+        val size = try {
+            readInt()
+        } catch (e: EOFException) {
+            return null
+        }
+        if (size < HEADER_SIZE || size > MAX_FRAME_SIZE) {
+            throw IOException("Invalid frame size $size")
+        }
+        val type = readByte()
+        val requestId = readInt()
+        return Frame(type, requestId, readExactlyNBytes(size - HEADER_SIZE))
+    }
+
+    fun DataOutputStream.writeFrame(type: Byte, requestId: Int, payload: ByteArray) {
+        require(payload.size <= MAX_FRAME_SIZE - HEADER_SIZE) { "Frame payload is too large" }
+        writeInt(HEADER_SIZE + payload.size)
+        writeByte(type.toInt())
+        writeInt(requestId)
+        write(payload)
+    }
+}
@@ -23,10 +23,15 @@
 package com.r3.conclave.mail.internal.noise;
 
 import java.util.Arrays;
+import java.util.Random;
 import com.r3.conclave.mail.internal.noise.crypto.Curve25519;
+import com.r3.conclave.mail.internal.noise.crypto.JCACurve25519;
 import org.junit.jupiter.api.Test;
 
 import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
 public class Curve25519Tests {
 
@@ -57,4 +62,33 @@ public class Curve25519Tests {
 		assertArrayEquals(sharedSecret, output);
 	}
 
+	@Test
+	public void jcaMatchesFallback() {
+		// X25519 is only in the JDK from Java 11.
+		assumeTrue(JCACurve25519.isAvailable());
+		Random random = new Random(0);
+		byte[] privateKey = new byte [32];
+		byte[] publicKey = new byte [32];
+		byte[] expected = new byte [32];
+		byte[] output = new byte [32];
+		for (int i = 0; i < 100; ++i) {
+			random.nextBytes(privateKey);
+			random.nextBytes(publicKey);
+			Curve25519.eval(expected, 0, privateKey, null);
+			assertTrue(JCACurve25519.eval(output, 0, privateKey, null));
+			assertArrayEquals(expected, output);
+
+			publicKey[31] &= 0x7F;
+			Curve25519.eval(expected, 0, privateKey, publicKey);
+			assertTrue(JCACurve25519.eval(output, 0, privateKey, publicKey));
+			assertArrayEquals(expected, output);
+		}
+
+		// The JDK masks the top bit of the public key, which the fallback doesn't.
+		publicKey[31] |= (byte)0x80;
+		assertFalse(JCACurve25519.eval(output, 0, privateKey, publicKey));
+
+		// The JDK rejects points of small order, which give an all-zero result.
+		assertFalse(JCACurve25519.eval(output, 0, privateKey, new byte [32]));
+	}
 }
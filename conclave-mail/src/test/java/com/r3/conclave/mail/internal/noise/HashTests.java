@@ -110,6 +110,17 @@ public class HashTests {
 		testHash("SHA256", "abcdbcdecdefdefgefghfghighijhijkijkljklmklmnlmnomnopnopq", "0x248d6a61d20638b8e5c026930c3e6039a33ce45964ff2167f6ecedd419db06c1");
 	}
 
+	@Test
+	public void createdDigestsAreIndependent() throws NoSuchAlgorithmException {
+		MessageDigest first = Noise.createHash("SHA256");
+		first.update(TestUtils.stringToData("ab"));
+		MessageDigest second = Noise.createHash("SHA256");
+		assertNotSame(first, second);
+		testHash(second, "abc", "0xba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad");
+		first.update(TestUtils.stringToData("c"));
+		assertArrayEquals(TestUtils.stringToData("0xba7816bf8f01cfea414140de5dae2223b00361a396177a9cb410ff61f20015ad"), first.digest());
+	}
+
 	@Test
 	public void sha512() {
 		testHash("SHA512", "", "0xcf83e1357eefb8bdf1542850d66d8007d620e4050b5715dc83f4a921d36ce9ce47d0d13c5d85f2b0ff8318d2877eec2f63b931bd47417a81a538327af927da3e");
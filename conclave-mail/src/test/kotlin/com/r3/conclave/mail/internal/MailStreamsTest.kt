@@ -232,6 +232,15 @@ class MailStreamsTest {
         assertArrayEquals(senderDHState.publicKey, stream.senderPublicKey)
     }
 
+    @Test
+    fun `ChaChaPoly protocol`() {
+        val bytes = encryptMessage(protocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY)
+        assertThat(MailProtocol.values()[bytes[2].toInt()]).isEqualTo(MailProtocol.SENDER_KEY_TRANSMITTED_V2_CHACHAPOLY)
+        val stream = decrypt(bytes)
+        assertThat(stream.header).isEqualTo(header)
+        assertArrayEquals(privateHeader, stream.privateHeader)
+    }
+
     @Test
     fun headers() {
         val encrypted = encryptMessage()
@@ -331,10 +340,19 @@ class MailStreamsTest {
         header: EnclaveMailHeaderImpl = Companion.header,
         privateHeader: ByteArray? = Companion.privateHeader,
         minSize: Int = 0,
-        message: ByteArray = msg
+        message: ByteArray = msg,
+        protocol: MailProtocol = MailProtocol.SENDER_KEY_TRANSMITTED_V2
     ): ByteArray {
         val baos = ByteArrayOutputStream()
-        val encrypt = MailEncryptingStream(baos, receivingPrivateKey.publicKey, header, privateHeader, senderPrivateKey, minSize)
+        val encrypt = MailEncryptingStream(
+            baos,
+            receivingPrivateKey.publicKey,
+            header,
+            privateHeader,
+            senderPrivateKey,
+            minSize,
+            protocol
+        )
         encrypt.write(message)
         encrypt.close()
         return baos.toByteArray()
@@ -0,0 +1,139 @@
+package com.r3.conclave.client.socket
+
+import com.r3.conclave.utilities.internal.SocketFrames.ERROR
+import com.r3.conclave.utilities.internal.SocketFrames.Frame
+import com.r3.conclave.utilities.internal.SocketFrames.readFrame
+import com.r3.conclave.utilities.internal.SocketFrames.writeFrame
+import java.io.*
+import java.net.Socket
+import java.time.Duration
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ExecutionException
+import java.util.concurrent.TimeUnit.MILLISECONDS
+import java.util.concurrent.TimeoutException
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * A connection to `EnclaveSocketHost` over which requests can be pipelined. A background thread reads the responses
+ * and matches them to their requests using the request ID. Frames pushed by the host are passed to [onPush].
+ *
+ * Once the connection has failed it cannot be used again and a new one must be opened.
+ */
+internal class FramedConnection(
+    private val socket: Socket,
+    private val timeout: Duration,
+    private val onPush: (Frame) -> Unit
+) : Closeable {
+    private val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+    private val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+    private val pendingRequests = ConcurrentHashMap<Int, CompletableFuture<Frame>>()
+    private val lastRequestId = AtomicInteger()
+
+    @Volatile
+    private var failure: IOException? = null
+
+    init {
+        val reader = Thread(::readFrames, "enclave-socket-reader")
+        reader.isDaemon = true
+        reader.start()
+    }
+
+    val isOpen: Boolean get() = failure == null
+
+    /**
+     * Send a frame which the host doesn't respond to.
+     */
+    fun sendOneWay(type: Byte, payload: ByteArray) {
+        write { writeFrame(type, 0, payload) }
+    }
+
+    /**
+     * Send the requests in a single write and return the futures for their responses.
+     */
+    fun send(type: Byte, payloads: List<ByteArray>): List<CompletableFuture<Frame>> {
+        val requests = payloads.map { Pair(nextRequestId(), it) }
+        val futures = requests.map { (requestId, _) ->
+            CompletableFuture<Frame>().also { pendingRequests[requestId] = it }
+        }
+        // The reader may have failed before the futures were registered, in which case they would never complete.
+        failure?.let { failPendingRequests(it) }
+        write {
+            for ((requestId, payload) in requests) {
+                writeFrame(type, requestId, payload)
+            }
+        }
+        return futures
+    }
+
+    fun request(type: Byte, payload: ByteArray): Frame = await(send(type, listOf(payload)).single())
+
+    fun await(future: CompletableFuture<Frame>): Frame {
+        val response = try {
+            future.get(timeout.toMillis(), MILLISECONDS)
+        } catch (e: ExecutionException) {
+            throw IOException(e.cause)
+        } catch (e: TimeoutException) {
+            fail(IOException("Timed out waiting for a response from the host"))
+            throw checkNotNull(failure)
+        }
+        if (response.type == ERROR) {
+            throw IOException("Host was unable to process the request: ${String(response.payload)}")
+        }
+        return response
+    }
+
+    override fun close() {
+        fail(IOException("Connection has been closed"))
+    }
+
+    private fun nextRequestId(): Int {
+        // Zero is reserved for frames pushed by the host.
+        return lastRequestId.updateAndGet { if (it == Int.MAX_VALUE) 1 else it + 1 }
+    }
+
+    private fun write(block: DataOutputStream.() -> Unit) {
+        try {
+            synchronized(output) {
+                block(output)
+                output.flush()
+            }
+        } catch (e: IOException) {
+            fail(e)
+            throw e
+        }
+    }
+
+    private fun readFrames() {
+        try {
+            while (true) {
+                val frame = input.readFrame() ?: throw EOFException("Connection closed by the host")
+                if (frame.requestId == 0) {
+                    onPush(frame)
+                } else {
+                    pendingRequests.remove(frame.requestId)?.complete(frame)
+                }
+            }
+        } catch (e: IOException) {
+            fail(e)
+        }
+    }
+
+    private fun fail(e: IOException) {
+        synchronized(this) {
+            if (failure != null) return
+            failure = e
+        }
+        try {
+            socket.close()
+        } catch (ignored: IOException) {
+        }
+        failPendingRequests(e)
+    }
+
+    private fun failPendingRequests(e: IOException) {
+        for (requestId in pendingRequests.keys) {
+            pendingRequests.remove(requestId)?.completeExceptionally(e)
+        }
+    }
+}
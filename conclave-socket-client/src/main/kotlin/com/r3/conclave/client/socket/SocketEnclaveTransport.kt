@@ -0,0 +1,187 @@
+package com.r3.conclave.client.socket
+
+import com.r3.conclave.client.EnclaveClient
+import com.r3.conclave.client.EnclaveTransport
+import com.r3.conclave.client.EnclaveTransport.ClientConnection
+import com.r3.conclave.client.EnclaveTransport.MailDeliveryResult
+import com.r3.conclave.common.EnclaveException
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.common.SHA256Hash
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.utilities.internal.*
+import com.r3.conclave.utilities.internal.SocketFrames.ATTESTATION_UPDATED
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVERED
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVER_MAIL
+import com.r3.conclave.utilities.internal.SocketFrames.ENCLAVE_EXCEPTION
+import com.r3.conclave.utilities.internal.SocketFrames.Frame
+import com.r3.conclave.utilities.internal.SocketFrames.GET_ATTESTATION
+import com.r3.conclave.utilities.internal.SocketFrames.HELLO
+import com.r3.conclave.utilities.internal.SocketFrames.MAIL_DECRYPTION
+import com.r3.conclave.utilities.internal.SocketFrames.POLL_MAIL
+import java.io.Closeable
+import java.io.DataInputStream
+import java.io.IOException
+import java.net.InetSocketAddress
+import java.time.Duration
+import javax.net.SocketFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.SSLSocket
+
+/**
+ * An [EnclaveTransport] which connects to a host using `EnclaveSocketHost` from `conclave-socket-host`. Each connected
+ * client keeps a single long-lived TCP connection to the host, using a compact binary framing rather than HTTP, which
+ * makes this transport more efficient than [com.r3.conclave.client.web.WebEnclaveTransport] for small mail. Mail sent
+ * with [ClientConnection.sendMailBatch] are pipelined over the connection. Connections which fail are automatically
+ * re-opened on the next request.
+ *
+ * The host pushes any updates to the enclave's attestation over the connection, and so [enclaveInstanceInfo] only
+ * needs to download the [EnclaveInstanceInfo] from the host when it first connects.
+ *
+ * Pass an instance of this class to [EnclaveClient.start] to connect an [EnclaveClient] to the host. A single
+ * [SocketEnclaveTransport] can support multiple clients. When closing this transport, make sure all connected clients
+ * have first disconnected by calling [EnclaveClient.close].
+ *
+ * For TLS, use the socket factory of an [SSLContext]. The host name is verified against the host's certificate.
+ *
+ * @property host The host name of the enclave host.
+ * @property port The port the enclave host is listening on.
+ * @property timeout The connection timeout and the maximum time to wait for a response, defaults to 3 minutes.
+ *
+ * @see EnclaveClient
+ */
+class SocketEnclaveTransport @JvmOverloads constructor(
+    val host: String,
+    val port: Int,
+    val timeout: Duration = Duration.ofMinutes(3),
+    private val socketFactory: SocketFactory = SocketFactory.getDefault()
+) : EnclaveTransport, Closeable {
+    private var controlConnection: FramedConnection? = null
+    @Volatile
+    private var latestEnclaveInstanceInfo: EnclaveInstanceInfo? = null
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun enclaveInstanceInfo(): EnclaveInstanceInfo {
+        val existingConnection = controlConnection?.takeIf { it.isOpen }
+        if (existingConnection != null) {
+            // Whilst the connection is open the host will push any new attestation.
+            latestEnclaveInstanceInfo?.let { return it }
+            try {
+                return downloadEnclaveInstanceInfo(existingConnection)
+            } catch (e: IOException) {
+                // The connection may have failed without us noticing yet, for example if the host was restarted.
+                existingConnection.close()
+            }
+        }
+        val newConnection = openConnection()
+        controlConnection = newConnection
+        return downloadEnclaveInstanceInfo(newConnection)
+    }
+
+    private fun downloadEnclaveInstanceInfo(connection: FramedConnection): EnclaveInstanceInfo {
+        val enclaveInstanceInfo = EnclaveInstanceInfo.deserialize(connection.request(GET_ATTESTATION, emptyBytes).payload)
+        latestEnclaveInstanceInfo = enclaveInstanceInfo
+        return enclaveInstanceInfo
+    }
+
+    @Throws(IOException::class)
+    override fun connect(client: EnclaveClient): ClientConnection = ClientConnectionImpl(client)
+
+    @Throws(IOException::class)
+    @Synchronized
+    override fun close() {
+        controlConnection?.close()
+        controlConnection = null
+    }
+
+    private fun openConnection(): FramedConnection {
+        val socket = socketFactory.createSocket()
+        try {
+            socket.connect(InetSocketAddress(host, port), timeout.toMillis().toInt())
+            socket.tcpNoDelay = true
+            if (socket is SSLSocket) {
+                socket.sslParameters = socket.sslParameters.apply { endpointIdentificationAlgorithm = "HTTPS" }
+                socket.startHandshake()
+            }
+        } catch (e: IOException) {
+            socket.close()
+            throw e
+        }
+        return FramedConnection(socket, timeout, ::onPush)
+    }
+
+    private fun onPush(frame: Frame) {
+        if (frame.type == ATTESTATION_UPDATED) {
+            latestEnclaveInstanceInfo = EnclaveInstanceInfo.deserialize(frame.payload)
+        }
+    }
+
+    @Synchronized
+    private fun invalidateEnclaveInstanceInfo() {
+        latestEnclaveInstanceInfo = null
+    }
+
+    private inner class ClientConnectionImpl(client: EnclaveClient) : ClientConnection {
+        // Create a correlation ID that this is deterministic (so we don't have to worry about persisting it), unique
+        // to the client and which can't be guessed.
+        private val correlationId = SHA256Hash.hash(client.clientPrivateKey.encoded).toString().toByteArray()
+        private var connection: FramedConnection? = null
+
+        @Synchronized
+        private fun connection(): FramedConnection {
+            connection?.takeIf { it.isOpen }?.let { return it }
+            val newConnection = openConnection()
+            newConnection.sendOneWay(HELLO, correlationId)
+            // This is either the first connection or the previous one failed, possibly because the host was restarted.
+            // Either way, make sure the next EnclaveInstanceInfo is downloaded from the host.
+            invalidateEnclaveInstanceInfo()
+            connection = newConnection
+            return newConnection
+        }
+
+        override fun sendMail(encryptedMailBytes: ByteArray): ByteArray? {
+            val result = readDeliveryResult(connection().request(DELIVER_MAIL, encryptedMailBytes))
+            result.exception?.let { throw it }
+            return result.response
+        }
+
+        override fun sendMailBatch(encryptedMails: List<ByteArray>): List<MailDeliveryResult> {
+            val connection = connection()
+            val futures = connection.send(DELIVER_MAIL, encryptedMails)
+            return futures.map { readDeliveryResult(connection.await(it)) }
+        }
+
+        private fun readDeliveryResult(response: Frame): MailDeliveryResult {
+            return response.payload.deserialise {
+                when (val status = read()) {
+                    // Empty bytes represents no mail response.
+                    DELIVERED -> MailDeliveryResult(readIntLengthPrefixBytes().takeUnless { it.isEmpty() }, null)
+                    MAIL_DECRYPTION -> MailDeliveryResult(null, MailDecryptionException(readErrorMessage()))
+                    ENCLAVE_EXCEPTION -> MailDeliveryResult(null, EnclaveException(readErrorMessage()))
+                    else -> throw IOException("Received unknown delivery status ($status)")
+                }
+            }
+        }
+
+        private fun DataInputStream.readErrorMessage(): String? {
+            return nullableRead { String(readIntLengthPrefixBytes()) }
+        }
+
+        override fun pollMail(): ByteArray? = pollMailBatch(1).firstOrNull()
+
+        override fun pollMailBatch(maxMail: Int): List<ByteArray> {
+            val response = connection().request(POLL_MAIL, writeData { writeInt(maxMail) })
+            return response.payload.deserialise { readList { readIntLengthPrefixBytes() } }.asList()
+        }
+
+        @Synchronized
+        override fun disconnect() {
+            connection?.close()
+            connection = null
+        }
+    }
+
+    private companion object {
+        private val emptyBytes = ByteArray(0)
+    }
+}
@@ -0,0 +1,178 @@
+package com.r3.conclave.client.socket
+
+import com.r3.conclave.client.EnclaveClient
+import com.r3.conclave.common.EnclaveConstraint
+import com.r3.conclave.common.EnclaveException
+import com.r3.conclave.common.EnclaveSecurityInfo
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.EnclaveHost
+import com.r3.conclave.host.internal.EnclaveHostService
+import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.host.socket.EnclaveSocketHost
+import com.r3.conclave.mail.EnclaveMail
+import io.ktor.network.tls.certificates.*
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatExceptionOfType
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.nio.file.Path
+import java.security.KeyStore
+import java.time.Duration
+import javax.net.ssl.KeyManagerFactory
+import javax.net.ssl.SSLContext
+import javax.net.ssl.TrustManagerFactory
+import kotlin.io.path.div
+
+/**
+ * End to end tests of [SocketEnclaveTransport] against `EnclaveSocketHost` on localhost with a mock enclave.
+ */
+class SocketEnclaveTransportTest {
+    private var hostService = startHostService()
+    private var socketHost = EnclaveSocketHost(hostService, 0).apply { start() }
+    private var transport = SocketEnclaveTransport("localhost", socketHost.port)
+    private val clients = ArrayList<EnclaveClient>()
+
+    @AfterEach
+    fun close() {
+        clients.forEach { it.close() }
+        transport.close()
+        socketHost.close()
+        hostService.close()
+    }
+
+    @Test
+    fun `send mail with response`() {
+        val client = startClient()
+        assertThat(client.sendMail("Hello".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("Hello")
+        assertThat(client.sendMail("World".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("World")
+    }
+
+    @Test
+    fun `enclave exception`() {
+        val client = startClient()
+        assertThatExceptionOfType(EnclaveException::class.java).isThrownBy {
+            client.sendMail("throw".toByteArray())
+        }.withMessage("bang!")
+    }
+
+    @Test
+    fun `polling for mail`() {
+        val client = startClient()
+        assertThat(client.sendMail("two".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("first")
+        assertThat(client.pollMail()?.bodyAsBytes?.let(::String)).isEqualTo("second")
+        assertThat(client.pollMail()).isNull()
+    }
+
+    @Test
+    fun `batch of mail is pipelined over the connection`() {
+        val client = startClient()
+        val bodies = List(100) { "mail $it" }
+        val responses = client.sendMailBatch("default", bodies.map { it.toByteArray() })
+        assertThat(responses.map { it?.bodyAsBytes?.let(::String) }).isEqualTo(bodies)
+    }
+
+    @Test
+    fun `attestation updates are pushed to the client`() {
+        val first = transport.enclaveInstanceInfo()
+        socketHost.updateAttestation()
+        val updated = hostService.enclaveHost.enclaveInstanceInfo
+        assertThat(updated).isNotEqualTo(first)
+        val deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos()
+        while (transport.enclaveInstanceInfo() != updated && System.nanoTime() < deadline) {
+            Thread.sleep(10)
+        }
+        assertThat(transport.enclaveInstanceInfo()).isEqualTo(updated)
+    }
+
+    @Test
+    fun `client reconnects after the host is restarted`() {
+        val client = startClient()
+        client.sendMail("Hello".toByteArray())
+
+        val port = socketHost.port
+        socketHost.close()
+        hostService.close()
+        hostService = startHostService()
+        socketHost = EnclaveSocketHost(hostService, port).apply { start() }
+
+        assertThat(client.sendMail("World".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("World")
+        assertThat(client.enclaveInstanceInfo).isEqualTo(hostService.enclaveHost.enclaveInstanceInfo)
+    }
+
+    @Test
+    fun tls(@TempDir dir: Path) {
+        val keyStore = generateCertificate(
+            file = (dir / "keystore.jks").toFile(),
+            keyAlias = "alias",
+            keyPassword = "password",
+            jksPassword = "password"
+        )
+        val serverContext = SSLContext.getInstance("TLS").apply {
+            val keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm())
+            keyManagerFactory.init(keyStore, "password".toCharArray())
+            init(keyManagerFactory.keyManagers, null, null)
+        }
+        val clientTrustStore = KeyStore.getInstance(KeyStore.getDefaultType())
+        clientTrustStore.load(null)
+        clientTrustStore.setCertificateEntry("alias", keyStore.getCertificate("alias"))
+        val clientContext = SSLContext.getInstance("TLS").apply {
+            val trustManagerFactory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm())
+            trustManagerFactory.init(clientTrustStore)
+            init(null, trustManagerFactory.trustManagers, null)
+        }
+
+        EnclaveSocketHost(hostService, 0, serverContext.serverSocketFactory).use { tlsHost ->
+            tlsHost.start()
+            val tlsTransport = SocketEnclaveTransport(
+                "localhost",
+                tlsHost.port,
+                Duration.ofMinutes(1),
+                clientContext.socketFactory
+            )
+            tlsTransport.use {
+                val client = EnclaveClient(enclaveConstraint())
+                client.start(tlsTransport)
+                client.use {
+                    assertThat(client.sendMail("Hello".toByteArray())?.bodyAsBytes?.let(::String)).isEqualTo("Hello")
+                }
+            }
+        }
+    }
+
+    private fun startClient(): EnclaveClient {
+        val client = EnclaveClient(enclaveConstraint())
+        client.start(transport)
+        clients += client
+        return client
+    }
+
+    private fun enclaveConstraint(): EnclaveConstraint {
+        return EnclaveConstraint().apply {
+            acceptableCodeHashes += hostService.enclaveHost.enclaveInstanceInfo.enclaveInfo.codeHash
+            minSecurityLevel = EnclaveSecurityInfo.Summary.INSECURE
+        }
+    }
+
+    private fun startHostService(): EnclaveHostService {
+        val service = object : EnclaveHostService() {
+            override val enclaveHost: EnclaveHost = createMockHost(EchoEnclave::class.java)
+            override fun storeSealedState(sealedState: ByteArray) = Unit
+        }
+        service.start(null, null, null, null)
+        return service
+    }
+
+    class EchoEnclave : Enclave() {
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) {
+            when (val request = String(mail.bodyAsBytes)) {
+                "throw" -> throw EnclaveException("bang!")
+                "two" -> {
+                    postMail(postOffice(mail).encryptMail("first".toByteArray()), routingHint)
+                    postMail(postOffice(mail).encryptMail("second".toByteArray()), routingHint)
+                }
+                else -> postMail(postOffice(mail).encryptMail(request.toByteArray()), routingHint)
+            }
+        }
+    }
+}
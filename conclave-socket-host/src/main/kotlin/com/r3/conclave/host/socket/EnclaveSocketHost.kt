@@ -0,0 +1,354 @@
+package com.r3.conclave.host.socket
+
+import com.r3.conclave.common.EnclaveException
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.host.EnclaveHost
+import com.r3.conclave.host.internal.EnclaveHostService
+import com.r3.conclave.host.internal.loggerFor
+import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.utilities.internal.*
+import com.r3.conclave.utilities.internal.SocketFrames.ATTESTATION
+import com.r3.conclave.utilities.internal.SocketFrames.ATTESTATION_UPDATED
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVERED
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVERY_RESULT
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVER_MAIL
+import com.r3.conclave.utilities.internal.SocketFrames.ENCLAVE_EXCEPTION
+import com.r3.conclave.utilities.internal.SocketFrames.ERROR
+import com.r3.conclave.utilities.internal.SocketFrames.Frame
+import com.r3.conclave.utilities.internal.SocketFrames.GET_ATTESTATION
+import com.r3.conclave.utilities.internal.SocketFrames.HELLO
+import com.r3.conclave.utilities.internal.SocketFrames.MAIL_DECRYPTION
+import com.r3.conclave.utilities.internal.SocketFrames.POLLED_MAIL
+import com.r3.conclave.utilities.internal.SocketFrames.POLL_MAIL
+import com.r3.conclave.utilities.internal.SocketFrames.readFrame
+import com.r3.conclave.utilities.internal.SocketFrames.writeFrame
+import java.io.*
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketAddress
+import java.time.Duration
+import java.util.concurrent.*
+import java.util.concurrent.TimeUnit.NANOSECONDS
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.function.Consumer
+import javax.net.ServerSocketFactory
+import javax.net.ssl.SSLContext
+
+/**
+ * A host for an enclave which clients connect to using `SocketEnclaveTransport`. Unlike `conclave-web-host`, each
+ * client keeps a single long-lived connection to the host, over which requests are pipelined using a compact binary
+ * framing rather than HTTP. Updates to the enclave's attestation are pushed to the connected clients, whether they're
+ * made with [updateAttestation], by the [EnclaveHost] directly, or by its background refresh (see
+ * [EnclaveHost.startAttestationRefresh]).
+ *
+ * Requests on the same connection are processed in the order they're received, and each connection is served by its
+ * own thread. As each connection may be buffering a frame of up to 16 MB, the number of connections is limited by
+ * [maxConnections]. Once the limit is reached, further clients wait in the server socket's backlog until an existing
+ * connection is closed.
+ *
+ * Pushes are queued and written to each connection in the background, so a slow client never holds up the thread
+ * updating the attestation. A connection is closed if its queue of pushes is full, or if a write to it has been blocked
+ * for longer than [writeTimeout] because the client has stopped reading.
+ *
+ * For TLS, create the host with the server socket factory of an [SSLContext].
+ *
+ * @param enclaveHostService The service for the enclave. The enclave must be started before clients connect to the
+ * host. Closing the host does not close the service.
+ * @param port The port to listen on, or zero to use any free port. See [port].
+ * @param serverSocketFactory The factory for the server socket.
+ * @param maxConnections The maximum number of clients which can be connected at the same time.
+ * @param writeTimeout How long a write to a client can be blocked for before the connection is closed.
+ */
+class EnclaveSocketHost @JvmOverloads constructor(
+    val enclaveHostService: EnclaveHostService,
+    port: Int,
+    serverSocketFactory: ServerSocketFactory = ServerSocketFactory.getDefault(),
+    val maxConnections: Int = DEFAULT_MAX_CONNECTIONS,
+    val writeTimeout: Duration = DEFAULT_WRITE_TIMEOUT
+) : Closeable {
+    init {
+        require(maxConnections > 0) { "maxConnections must be at least 1" }
+        require(!writeTimeout.isNegative && !writeTimeout.isZero) { "writeTimeout must be positive" }
+    }
+
+    private val serverSocket: ServerSocket = serverSocketFactory.createServerSocket().apply {
+        // Allow the host to be restarted on the same port whilst connections from the previous instance are still in
+        // TIME_WAIT.
+        reuseAddress = true
+        bind(InetSocketAddress(port))
+    }
+    private val connections = ConcurrentHashMap.newKeySet<Connection>()
+    private val connectionPermits = Semaphore(maxConnections)
+    private val connectionCount = AtomicInteger()
+    private val acceptor = Thread(::acceptConnections, "enclave-socket-acceptor").apply { isDaemon = true }
+    private val attestationListener = Consumer<EnclaveInstanceInfo> { pushAttestation(it) }
+    // Writes the queued pushes. There's at most one task per connection at any time.
+    private val pushExecutor = Executors.newCachedThreadPool {
+        Thread(it, "enclave-socket-push").apply { isDaemon = true }
+    }
+    private val writeWatchdog = Executors.newSingleThreadScheduledExecutor {
+        Thread(it, "enclave-socket-write-watchdog").apply { isDaemon = true }
+    }
+
+    @Volatile
+    private var closed = false
+    @Volatile
+    private var cachedAttestation: Pair<EnclaveInstanceInfo, ByteArray>? = null
+
+    /**
+     * The port the host is listening on.
+     */
+    val port: Int get() = serverSocket.localPort
+
+    /**
+     * Start accepting connections from clients.
+     */
+    fun start() {
+        enclaveHostService.enclaveHost.addEnclaveInstanceInfoListener(attestationListener)
+        val checkPeriod = minOf(writeTimeout, MAX_WRITE_CHECK_PERIOD).toNanos()
+        writeWatchdog.scheduleWithFixedDelay(::closeStalledConnections, checkPeriod, checkPeriod, NANOSECONDS)
+        acceptor.start()
+        logger.info("Listening for enclave clients on port $port")
+    }
+
+    /**
+     * Perform a fresh attestation of the enclave (see [EnclaveHost.updateAttestation]) and push the new
+     * [EnclaveInstanceInfo] to all the connected clients.
+     */
+    fun updateAttestation() {
+        enclaveHostService.enclaveHost.updateAttestation()
+    }
+
+    /**
+     * Stop accepting connections and disconnect all the connected clients.
+     */
+    override fun close() {
+        closed = true
+        enclaveHostService.enclaveHost.removeEnclaveInstanceInfoListener(attestationListener)
+        serverSocket.close()
+        connections.forEach { it.close() }
+        pushExecutor.shutdownNow()
+        writeWatchdog.shutdownNow()
+    }
+
+    private fun acceptConnections() {
+        var backoffMillis = 0L
+        while (!closed) {
+            connectionPermits.acquireUninterruptibly()
+            val socket = try {
+                serverSocket.accept()
+            } catch (e: IOException) {
+                connectionPermits.release()
+                if (!closed) {
+                    // Failures such as running out of file descriptors are likely to repeat straight away, so back off
+                    // rather than spinning and flooding the log.
+                    backoffMillis = (backoffMillis * 2).coerceIn(MIN_ACCEPT_BACKOFF_MILLIS, MAX_ACCEPT_BACKOFF_MILLIS)
+                    logger.warn("Unable to accept connection, retrying in $backoffMillis ms", e)
+                    Thread.sleep(backoffMillis)
+                }
+                continue
+            }
+            backoffMillis = 0
+            socket.tcpNoDelay = true
+            val connection = Connection(socket)
+            connections += connection
+            val thread = Thread(connection::run, "enclave-socket-${connectionCount.incrementAndGet()}")
+            thread.isDaemon = true
+            thread.start()
+        }
+    }
+
+    private fun closeStalledConnections() {
+        val now = System.nanoTime()
+        for (connection in connections) {
+            if (connection.isWriteStalled(now)) {
+                logger.warn("Closing connection from {} as it has stopped reading", connection.remoteAddress)
+                connection.close()
+            }
+        }
+    }
+
+    private fun pushAttestation(enclaveInstanceInfo: EnclaveInstanceInfo) {
+        val attestationBytes = serializedAttestation(enclaveInstanceInfo)
+        for (connection in connections) {
+            connection.push(ATTESTATION_UPDATED, attestationBytes)
+        }
+    }
+
+    private fun currentAttestation(): ByteArray = serializedAttestation(enclaveHostService.enclaveHost.enclaveInstanceInfo)
+
+    private fun serializedAttestation(enclaveInstanceInfo: EnclaveInstanceInfo): ByteArray {
+        val cached = cachedAttestation
+        // EnclaveHost creates a new EnclaveInstanceInfo object whenever the attestation is updated.
+        if (cached != null && cached.first === enclaveInstanceInfo) {
+            return cached.second
+        }
+        val bytes = enclaveInstanceInfo.serialize()
+        cachedAttestation = Pair(enclaveInstanceInfo, bytes)
+        return bytes
+    }
+
+    private inner class Connection(private val socket: Socket) {
+        private val input = DataInputStream(BufferedInputStream(socket.getInputStream()))
+        private val output = DataOutputStream(BufferedOutputStream(socket.getOutputStream()))
+        private var correlationId: String? = null
+        private val pendingPushes = ArrayBlockingQueue<Pair<Byte, ByteArray>>(MAX_PENDING_PUSHES)
+        private val pushScheduled = AtomicBoolean()
+        // When the write in progress started, or zero if there isn't one.
+        @Volatile
+        private var writeStartNanos = 0L
+
+        val remoteAddress: SocketAddress? get() = socket.remoteSocketAddress
+
+        fun run() {
+            try {
+                while (true) {
+                    val request = input.readFrame() ?: break
+                    val (type, payload) = process(request) ?: continue
+                    timedWrite {
+                        output.writeFrame(type, request.requestId, payload)
+                        // Only flush once there are no more pipelined requests waiting, so that the responses can be
+                        // sent together.
+                        if (input.available() == 0) {
+                            output.flush()
+                        }
+                    }
+                }
+            } catch (e: IOException) {
+                if (!closed) {
+                    logger.debug("Connection from {} failed", socket.remoteSocketAddress, e)
+                }
+            } finally {
+                close()
+            }
+        }
+
+        private fun process(request: Frame): Pair<Byte, ByteArray>? {
+            return try {
+                when (request.type) {
+                    HELLO -> {
+                        check(correlationId == null) { "HELLO has already been received" }
+                        correlationId = String(request.payload)
+                        null
+                    }
+                    GET_ATTESTATION -> Pair(ATTESTATION, currentAttestation())
+                    DELIVER_MAIL -> Pair(DELIVERY_RESULT, deliverMail(request.payload))
+                    POLL_MAIL -> Pair(POLLED_MAIL, pollMail(request.payload))
+                    else -> Pair(ERROR, "Unknown frame type ${request.type}".toByteArray())
+                }
+            } catch (e: Exception) {
+                logger.warn("Unable to process request from ${socket.remoteSocketAddress}", e)
+                Pair(ERROR, (e.message ?: e.javaClass.name).toByteArray())
+            }
+        }
+
+        private fun deliverMail(encryptedMail: ByteArray): ByteArray {
+            val correlationId = checkHello()
+            val (status, message) = try {
+                val responseMail = enclaveHostService.deliverMail(encryptedMail, correlationId)
+                return writeData {
+                    writeByte(DELIVERED)
+                    // Empty bytes represents no mail response.
+                    writeIntLengthPrefixBytes(responseMail ?: ByteArray(0))
+                }
+            } catch (e: MailDecryptionException) {
+                Pair(MAIL_DECRYPTION, null)
+            } catch (e: EnclaveException) {
+                // EnclaveException might be used as a wrapper for more specific exceptions.
+                Pair(ENCLAVE_EXCEPTION, e.message ?: e.cause?.message)
+            }
+            return writeData {
+                writeByte(status)
+                nullableWrite(message) { writeIntLengthPrefixString(it) }
+            }
+        }
+
+        private fun pollMail(payload: ByteArray): ByteArray {
+            val correlationId = checkHello()
+            val maxMail = payload.deserialise { readInt() }.coerceIn(0, MAX_POLL_BATCH_SIZE)
+            val mails = enclaveHostService.pollMail(correlationId, maxMail)
+            return writeData { writeList(mails) { writeIntLengthPrefixBytes(it) } }
+        }
+
+        private fun checkHello(): String = checkNotNull(correlationId) { "HELLO has not been received" }
+
+        /**
+         * Queue the frame to be pushed to the client, without waiting for it to be written.
+         */
+        fun push(type: Byte, payload: ByteArray) {
+            if (!pendingPushes.offer(Pair(type, payload))) {
+                logger.warn("Closing connection from {} as it isn't keeping up with pushes", socket.remoteSocketAddress)
+                close()
+                return
+            }
+            if (pushScheduled.compareAndSet(false, true)) {
+                try {
+                    pushExecutor.execute(::writePushes)
+                } catch (e: RejectedExecutionException) {
+                    // The host has been closed.
+                }
+            }
+        }
+
+        private fun writePushes() {
+            do {
+                try {
+                    while (true) {
+                        val (type, payload) = pendingPushes.poll() ?: break
+                        timedWrite {
+                            output.writeFrame(type, 0, payload)
+                            output.flush()
+                        }
+                    }
+                } catch (e: IOException) {
+                    logger.debug("Unable to push to {}", socket.remoteSocketAddress, e)
+                    pendingPushes.clear()
+                    close()
+                }
+                pushScheduled.set(false)
+                // Carry on if a push was queued after the queue was found to be empty but before the flag was cleared.
+            } while (pendingPushes.isNotEmpty() && pushScheduled.compareAndSet(false, true))
+        }
+
+        private inline fun timedWrite(block: () -> Unit) {
+            synchronized(output) {
+                writeStartNanos = System.nanoTime()
+                try {
+                    block()
+                } finally {
+                    writeStartNanos = 0
+                }
+            }
+        }
+
+        fun isWriteStalled(now: Long): Boolean {
+            val start = writeStartNanos
+            return start != 0L && now - start > writeTimeout.toNanos()
+        }
+
+        fun close() {
+            // The connection can be closed more than once, but its permit must only be released the first time.
+            if (connections.remove(this)) {
+                connectionPermits.release()
+            }
+            try {
+                socket.close()
+            } catch (e: IOException) {
+                logger.debug("Unable to close connection", e)
+            }
+        }
+    }
+
+    private companion object {
+        private val logger = loggerFor<EnclaveSocketHost>()
+        private const val MAX_POLL_BATCH_SIZE = 1000
+        private const val DEFAULT_MAX_CONNECTIONS = 256
+        private const val MAX_PENDING_PUSHES = 16
+        private val DEFAULT_WRITE_TIMEOUT = Duration.ofSeconds(30)
+        private val MAX_WRITE_CHECK_PERIOD = Duration.ofSeconds(1)
+        private const val MIN_ACCEPT_BACKOFF_MILLIS = 10L
+        private const val MAX_ACCEPT_BACKOFF_MILLIS = 1000L
+    }
+}
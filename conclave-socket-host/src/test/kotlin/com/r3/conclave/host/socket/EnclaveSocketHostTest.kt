@@ -0,0 +1,205 @@
+package com.r3.conclave.host.socket
+
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.enclave.Enclave
+import com.r3.conclave.host.EnclaveHost
+import com.r3.conclave.host.internal.EnclaveHostService
+import com.r3.conclave.host.internal.createMockHost
+import com.r3.conclave.mail.EnclaveMail
+import com.r3.conclave.utilities.internal.SocketFrames.ATTESTATION
+import com.r3.conclave.utilities.internal.SocketFrames.ATTESTATION_UPDATED
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVERY_RESULT
+import com.r3.conclave.utilities.internal.SocketFrames.DELIVER_MAIL
+import com.r3.conclave.utilities.internal.SocketFrames.ERROR
+import com.r3.conclave.utilities.internal.SocketFrames.GET_ATTESTATION
+import com.r3.conclave.utilities.internal.SocketFrames.HELLO
+import com.r3.conclave.utilities.internal.SocketFrames.MAIL_DECRYPTION
+import com.r3.conclave.utilities.internal.SocketFrames.readFrame
+import com.r3.conclave.utilities.internal.SocketFrames.writeFrame
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatExceptionOfType
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Assertions.assertTimeoutPreemptively
+import org.junit.jupiter.api.Test
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.OutputStream
+import java.net.InetAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.net.SocketException
+import java.net.SocketTimeoutException
+import java.time.Duration
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+import javax.net.ServerSocketFactory
+
+/**
+ * Tests the host side of the framing directly. The end to end tests with the client are in `conclave-socket-client`.
+ */
+class EnclaveSocketHostTest {
+    private val hostService = object : EnclaveHostService() {
+        override val enclaveHost: EnclaveHost = createMockHost(NoOpEnclave::class.java)
+        override fun storeSealedState(sealedState: ByteArray) = Unit
+    }.apply { start(null, null, null, null) }
+    private val socketHost = EnclaveSocketHost(hostService, 0).apply { start() }
+    private val socket = Socket("localhost", socketHost.port)
+    private val input = DataInputStream(socket.getInputStream())
+    private val output = DataOutputStream(socket.getOutputStream())
+
+    @AfterEach
+    fun close() {
+        socket.close()
+        socketHost.close()
+        hostService.close()
+    }
+
+    @Test
+    fun `pipelined requests are responded to in order`() {
+        for (requestId in 1..10) {
+            output.writeFrame(GET_ATTESTATION, requestId, ByteArray(0))
+        }
+        output.flush()
+        for (requestId in 1..10) {
+            val response = input.readFrame()!!
+            assertThat(response.type).isEqualTo(ATTESTATION)
+            assertThat(response.requestId).isEqualTo(requestId)
+            assertThat(EnclaveInstanceInfo.deserialize(response.payload))
+                .isEqualTo(hostService.enclaveHost.enclaveInstanceInfo)
+        }
+    }
+
+    @Test
+    fun `mail cannot be delivered before HELLO`() {
+        output.writeFrame(DELIVER_MAIL, 1, ByteArray(10))
+        output.flush()
+        val response = input.readFrame()!!
+        assertThat(response.type).isEqualTo(ERROR)
+        assertThat(String(response.payload)).isEqualTo("HELLO has not been received")
+    }
+
+    @Test
+    fun `undecryptable mail`() {
+        output.writeFrame(HELLO, 0, "client".toByteArray())
+        output.writeFrame(DELIVER_MAIL, 1, ByteArray(100))
+        output.flush()
+        val response = input.readFrame()!!
+        assertThat(response.type).isEqualTo(DELIVERY_RESULT)
+        assertThat(response.payload[0].toInt()).isEqualTo(MAIL_DECRYPTION)
+    }
+
+    @Test
+    fun `attestation update is pushed`() {
+        // Make sure the connection has been accepted before updating the attestation.
+        output.writeFrame(GET_ATTESTATION, 1, ByteArray(0))
+        output.flush()
+        input.readFrame()
+
+        socketHost.updateAttestation()
+        val push = input.readFrame()!!
+        assertThat(push.type).isEqualTo(ATTESTATION_UPDATED)
+        assertThat(push.requestId).isZero
+        assertThat(EnclaveInstanceInfo.deserialize(push.payload)).isEqualTo(hostService.enclaveHost.enclaveInstanceInfo)
+    }
+
+    @Test
+    fun `attestation updates made directly on the enclave host are pushed`() {
+        output.writeFrame(GET_ATTESTATION, 1, ByteArray(0))
+        output.flush()
+        input.readFrame()
+
+        // This is what the background refresh does.
+        hostService.enclaveHost.updateAttestation()
+        val push = input.readFrame()!!
+        assertThat(push.type).isEqualTo(ATTESTATION_UPDATED)
+        assertThat(EnclaveInstanceInfo.deserialize(push.payload)).isEqualTo(hostService.enclaveHost.enclaveInstanceInfo)
+    }
+
+    @Test
+    fun `connection is closed on an invalid frame size`() {
+        output.writeInt(-1)
+        output.flush()
+        assertThat(input.read()).isEqualTo(-1)
+    }
+
+    @Test
+    fun `connections beyond the limit wait until another is closed`() {
+        EnclaveSocketHost(hostService, 0, maxConnections = 1).apply { start() }.use { limitedHost ->
+            Socket("localhost", limitedHost.port).use { first ->
+                val firstOutput = DataOutputStream(first.getOutputStream())
+                firstOutput.writeFrame(GET_ATTESTATION, 1, ByteArray(0))
+                firstOutput.flush()
+                assertThat(DataInputStream(first.getInputStream()).readFrame()!!.type).isEqualTo(ATTESTATION)
+
+                Socket("localhost", limitedHost.port).use { second ->
+                    val secondOutput = DataOutputStream(second.getOutputStream())
+                    secondOutput.writeFrame(GET_ATTESTATION, 1, ByteArray(0))
+                    secondOutput.flush()
+                    second.soTimeout = 500
+                    assertThatExceptionOfType(SocketTimeoutException::class.java).isThrownBy {
+                        DataInputStream(second.getInputStream()).readFrame()
+                    }
+
+                    first.close()
+                    second.soTimeout = 10_000
+                    assertThat(DataInputStream(second.getInputStream()).readFrame()!!.type).isEqualTo(ATTESTATION)
+                }
+            }
+        }
+    }
+
+    @Test
+    fun `connections which stop reading are closed without holding up attestation updates`() {
+        val accepted = CountDownLatch(1)
+        val serverSocketFactory = object : ServerSocketFactory() {
+            override fun createServerSocket(): ServerSocket = object : ServerSocket() {
+                override fun accept(): Socket {
+                    val socket = StalledSocket()
+                    implAccept(socket)
+                    accepted.countDown()
+                    return socket
+                }
+            }
+            override fun createServerSocket(port: Int): ServerSocket = throw UnsupportedOperationException()
+            override fun createServerSocket(port: Int, backlog: Int): ServerSocket = throw UnsupportedOperationException()
+            override fun createServerSocket(port: Int, backlog: Int, address: InetAddress): ServerSocket {
+                throw UnsupportedOperationException()
+            }
+        }
+        val stallingHost = EnclaveSocketHost(hostService, 0, serverSocketFactory, writeTimeout = Duration.ofMillis(200))
+        stallingHost.apply { start() }.use {
+            Socket("localhost", stallingHost.port).use { client ->
+                assertThat(accepted.await(10, SECONDS)).isTrue
+                // The first push never completes, but that mustn't block the thread updating the attestation.
+                assertTimeoutPreemptively(Duration.ofSeconds(10)) {
+                    repeat(3) { stallingHost.updateAttestation() }
+                }
+                client.soTimeout = 10_000
+                assertThat(client.getInputStream().read()).isEqualTo(-1)
+            }
+        }
+    }
+
+    /**
+     * A socket whose writes block until it's closed, as if the client had stopped reading.
+     */
+    private class StalledSocket : Socket() {
+        private val closed = CountDownLatch(1)
+
+        override fun getOutputStream(): OutputStream = object : OutputStream() {
+            override fun write(b: Int) {
+                closed.await()
+                throw SocketException("Socket closed")
+            }
+        }
+
+        override fun close() {
+            closed.countDown()
+            super.close()
+        }
+    }
+
+    class NoOpEnclave : Enclave() {
+        override fun receiveMail(mail: EnclaveMail, routingHint: String?) = Unit
+    }
+}
@@ -0,0 +1,39 @@
+package com.r3.conclave.client.web
+
+import com.r3.conclave.utilities.internal.writeData
+import com.r3.conclave.utilities.internal.writeIntLengthPrefixBytes
+import com.r3.conclave.utilities.internal.writeList
+import org.apache.hc.core5.http.ContentType
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity
+import java.io.ByteArrayInputStream
+import java.io.DataOutputStream
+import java.io.InputStream
+import java.io.OutputStream
+
+/**
+ * The request body for `/deliver-mail-batch`: the number of mail followed by each mail as int length-prefixed bytes.
+ * The mail are written directly to the connection, rather than first being concatenated into a single array, and
+ * the content length is known up front so that the host can read the body without buffering it.
+ */
+internal class MailBatchEntity(
+    private val encryptedMails: List<ByteArray>
+) : AbstractHttpEntity(ContentType.APPLICATION_OCTET_STREAM, null) {
+    override fun getContentLength(): Long = 4L + encryptedMails.sumOf { 4L + it.size }
+
+    override fun writeTo(outStream: OutputStream) {
+        val output = DataOutputStream(outStream)
+        output.writeList(encryptedMails) { writeIntLengthPrefixBytes(it) }
+        output.flush()
+    }
+
+    override fun getContent(): InputStream {
+        // Only used if the body is read rather than written, which the client doesn't do.
+        return ByteArrayInputStream(writeData { writeList(encryptedMails) { writeIntLengthPrefixBytes(it) } })
+    }
+
+    override fun isRepeatable(): Boolean = true
+
+    override fun isStreaming(): Boolean = false
+
+    override fun close() = Unit
+}
@@ -5,10 +5,12 @@ import com.fasterxml.jackson.databind.ObjectMapper
 import com.r3.conclave.client.EnclaveClient
 import com.r3.conclave.client.EnclaveTransport
 import com.r3.conclave.client.EnclaveTransport.ClientConnection
+import com.r3.conclave.client.EnclaveTransport.MailDeliveryResult
 import com.r3.conclave.common.EnclaveException
 import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.common.SHA256Hash
 import com.r3.conclave.mail.MailDecryptionException
+import com.r3.conclave.utilities.internal.*
 import org.apache.hc.client5.http.classic.methods.HttpGet
 import org.apache.hc.client5.http.classic.methods.HttpPost
 import org.apache.hc.client5.http.config.RequestConfig
@@ -18,10 +20,14 @@ import org.apache.hc.client5.http.impl.classic.HttpClientBuilder
 import org.apache.hc.client5.http.impl.io.PoolingHttpClientConnectionManagerBuilder
 import org.apache.hc.client5.http.ssl.SSLConnectionSocketFactory
 import org.apache.hc.core5.http.ClassicHttpRequest
+import org.apache.hc.core5.http.Header
+import org.apache.hc.core5.http.HttpEntity
+import org.apache.hc.core5.http.HttpHeaders
 import org.apache.hc.core5.http.HttpStatus
 import org.apache.hc.core5.http.io.entity.EntityUtils
 import org.apache.hc.core5.http.message.BasicHeader
 import java.io.Closeable
+import java.io.DataInputStream
 import java.io.IOException
 import java.net.URI
 import java.time.Duration
@@ -66,12 +72,43 @@ class WebEnclaveTransport(
             .build()
     }
 
+    /**
+     * Downloads the host's [EnclaveInstanceInfo]. The previous download is sent back as a conditional request so that,
+     * if the enclave hasn't been re-attested since, the host only needs to respond with 304 and the same
+     * [EnclaveInstanceInfo] object is returned without being verified again.
+     */
     @Throws(IOException::class)
     override fun enclaveInstanceInfo(): EnclaveInstanceInfo {
-        val bytes = doRequest(HttpGet(baseUri.resolve("/attestation")))
-        return EnclaveInstanceInfo.deserialize(bytes)
+        val attestation = downloadAttestation(cachedAttestation, null)
+        cachedAttestation = attestation
+        return attestation.enclaveInstanceInfo
     }
 
+    private fun downloadAttestation(cached: CachedAttestation?, correlationIdHeader: Header?): CachedAttestation {
+        val httpGet = HttpGet(baseUri.resolve("/attestation"))
+        if (correlationIdHeader != null) {
+            httpGet.addHeader(correlationIdHeader)
+        }
+        if (cached?.eTag != null) {
+            httpGet.addHeader(HttpHeaders.IF_NONE_MATCH, cached.eTag)
+        }
+        return httpClient.execute(httpGet).use { response ->
+            if (response.code == HttpStatus.SC_NOT_MODIFIED && cached != null) {
+                return cached
+            }
+            if (response.code != HttpStatus.SC_OK) {
+                throw IOException(EntityUtils.toString(response.entity))
+            }
+            val enclaveInstanceInfo = EnclaveInstanceInfo.deserialize(response.entity.readBytes())
+            CachedAttestation(response.getFirstHeader(HttpHeaders.ETAG)?.value, enclaveInstanceInfo)
+        }
+    }
+
+    private class CachedAttestation(val eTag: String?, val enclaveInstanceInfo: EnclaveInstanceInfo)
+
+    @Volatile
+    private var cachedAttestation: CachedAttestation? = null
+
     @Throws(IOException::class)
     override fun connect(client: EnclaveClient): ClientConnection = ClientConnectionImpl(client)
 
@@ -80,12 +117,15 @@ class WebEnclaveTransport(
         httpClient.close()
     }
 
+    @Volatile
+    private var batchEndpointsSupported = true
+
     private fun doRequest(request: ClassicHttpRequest): ByteArray {
         return httpClient.execute(request).use { response ->
             if (response.code != HttpStatus.SC_OK) {
                 throw IOException(EntityUtils.toString(response.entity))
             }
-            EntityUtils.toByteArray(response.entity)
+            response.entity.readBytes()
         }
     }
 
@@ -98,6 +138,20 @@ class WebEnclaveTransport(
             true  // Sensitive flag
         )
 
+        @Volatile
+        private var clientAttestation: CachedAttestation? = null
+
+        /**
+         * Downloads the [EnclaveInstanceInfo] of the enclave instance this client is routed to. A host which runs
+         * several instances of the enclave routes the client using its correlation ID, otherwise this is the same as
+         * [WebEnclaveTransport.enclaveInstanceInfo].
+         */
+        override fun enclaveInstanceInfo(): EnclaveInstanceInfo {
+            val attestation = downloadAttestation(clientAttestation, correlationIdHeader)
+            clientAttestation = attestation
+            return attestation.enclaveInstanceInfo
+        }
+
         override fun sendMail(encryptedMailBytes: ByteArray): ByteArray? {
             val httpPost = HttpPost(baseUri.resolve("/deliver-mail")).apply {
                 addHeader(correlationIdHeader)
@@ -105,7 +159,7 @@ class WebEnclaveTransport(
             }
 
             httpClient.execute(httpPost).use { response ->
-                val responseBytes = EntityUtils.toByteArray(response.entity)
+                val responseBytes = response.entity.readBytes()
                 if (response.code == HttpStatus.SC_OK) {
                     // Empty bytes represents no mail response.
                     return responseBytes.takeUnless { it.isEmpty() }
@@ -128,6 +182,68 @@ class WebEnclaveTransport(
             }
         }
 
+        /**
+         * Delivers the mail using a single request to the `/deliver-mail-batch` endpoint. If the host doesn't support
+         * batches then the mail are delivered one at a time.
+         */
+        override fun sendMailBatch(encryptedMails: List<ByteArray>): List<MailDeliveryResult> {
+            if (!batchEndpointsSupported) return super.sendMailBatch(encryptedMails)
+            val httpPost = HttpPost(baseUri.resolve("/deliver-mail-batch")).apply {
+                addHeader(correlationIdHeader)
+                entity = MailBatchEntity(encryptedMails)
+            }
+            val responseBytes = doBatchRequest(httpPost) ?: return super.sendMailBatch(encryptedMails)
+            val results = responseBytes.deserialise { readList { readDeliveryResult() } }
+            if (results.size != encryptedMails.size) {
+                throw IOException("Expected ${encryptedMails.size} delivery results but received ${results.size}")
+            }
+            return results.asList()
+        }
+
+        private fun DataInputStream.readDeliveryResult(): MailDeliveryResult {
+            return when (val status = readByte().toInt()) {
+                // Empty bytes represents no mail response.
+                0 -> MailDeliveryResult(readIntLengthPrefixBytes().takeUnless { it.isEmpty() }, null)
+                1 -> MailDeliveryResult(null, MailDecryptionException(readErrorMessage()))
+                2 -> MailDeliveryResult(null, EnclaveException(readErrorMessage()))
+                else -> throw IOException("Received unknown delivery status ($status)")
+            }
+        }
+
+        private fun DataInputStream.readErrorMessage(): String? {
+            return nullableRead { String(readIntLengthPrefixBytes()) }
+        }
+
+        /**
+         * Retrieves the mail using a single request to the `/poll-mail-batch` endpoint. If the host doesn't support
+         * batches then the mail are polled one at a time.
+         */
+        override fun pollMailBatch(maxMail: Int): List<ByteArray> {
+            if (!batchEndpointsSupported) return super.pollMailBatch(maxMail)
+            val httpPost = HttpPost(baseUri.resolve("/poll-mail-batch?max=$maxMail"))
+            httpPost.addHeader(correlationIdHeader)
+            val responseBytes = doBatchRequest(httpPost) ?: return super.pollMailBatch(maxMail)
+            return responseBytes.deserialise { readList { readIntLengthPrefixBytes() } }.asList()
+        }
+
+        /**
+         * Returns null if the host doesn't have the batch endpoints, i.e. it's using an older version of
+         * `conclave-web-host`.
+         */
+        private fun doBatchRequest(request: ClassicHttpRequest): ByteArray? {
+            return httpClient.execute(request).use { response ->
+                val responseBytes = response.entity.readBytes()
+                when (response.code) {
+                    HttpStatus.SC_OK -> responseBytes
+                    HttpStatus.SC_NOT_FOUND -> {
+                        batchEndpointsSupported = false
+                        null
+                    }
+                    else -> throw IOException("HTTP ${response.code}: ${String(responseBytes)}")
+                }
+            }
+        }
+
         override fun pollMail(): ByteArray? {
             val httpPost = HttpPost(baseUri.resolve("/poll-mail"))
             httpPost.addHeader(correlationIdHeader)
@@ -142,5 +258,17 @@ class WebEnclaveTransport(
 
     private companion object {
         private val objectMapper = ObjectMapper()
+
+        /**
+         * Read the body straight into an array of the exact size if its length is known, rather than buffering it and
+         * then copying it as [EntityUtils.toByteArray] does.
+         */
+        private fun HttpEntity.readBytes(): ByteArray {
+            val length = contentLength
+            if (length < 0 || length > Int.MAX_VALUE) {
+                return EntityUtils.toByteArray(this)
+            }
+            return content.use { it.readExactlyNBytes(length.toInt()) }
+        }
     }
 }
@@ -8,8 +8,11 @@ import com.r3.conclave.enclave.Enclave
 import com.r3.conclave.host.internal.createMockHost
 import com.r3.conclave.mail.MailDecryptionException
 import com.r3.conclave.mail.internal.noise.protocol.Noise
+import com.r3.conclave.utilities.internal.*
 import io.ktor.server.application.*
 import io.ktor.server.plugins.contentnegotiation.*
+import io.ktor.http.HttpHeaders
+import io.ktor.http.HttpStatusCode
 import io.ktor.http.HttpStatusCode.Companion.BadRequest
 import io.ktor.network.tls.certificates.*
 import io.ktor.server.request.*
@@ -88,6 +91,48 @@ class WebEnclaveTransportTest {
         assertThat(transport.enclaveInstanceInfo()).isEqualTo(enclaveHost.enclaveInstanceInfo)
     }
 
+    @Test
+    fun `attestation is only downloaded again if it has changed`() {
+        val ifNoneMatchHeaders = ArrayList<String?>()
+        var eTag = "\"1\""
+        server.application.install(Routing) {
+            get("/attestation") {
+                val ifNoneMatch = call.request.header(HttpHeaders.IfNoneMatch)
+                ifNoneMatchHeaders += ifNoneMatch
+                call.response.header(HttpHeaders.ETag, eTag)
+                if (ifNoneMatch == eTag) {
+                    call.respond(HttpStatusCode.NotModified)
+                } else {
+                    call.respondBytes(enclaveHost.enclaveInstanceInfo.serialize())
+                }
+            }
+        }
+
+        val first = transport.enclaveInstanceInfo()
+        assertThat(transport.enclaveInstanceInfo()).isSameAs(first)
+        eTag = "\"2\""
+        val third = transport.enclaveInstanceInfo()
+        assertThat(third).isNotSameAs(first).isEqualTo(first)
+        assertThat(ifNoneMatchHeaders).containsExactly(null, "\"1\"", "\"1\"")
+    }
+
+    @Test
+    fun `client connection downloads the attestation of the enclave instance it's routed to`() {
+        val correlationIdsUsed = ArrayList<String?>()
+        server.application.install(Routing) {
+            get("/attestation") {
+                correlationIdsUsed += call.request.header("Correlation-ID")
+                call.respondBytes(enclaveHost.enclaveInstanceInfo.serialize())
+            }
+        }
+
+        assertThat(transport.enclaveInstanceInfo()).isEqualTo(enclaveHost.enclaveInstanceInfo)
+        assertThat(connection.enclaveInstanceInfo()).isEqualTo(enclaveHost.enclaveInstanceInfo)
+        assertThat(correlationIdsUsed).hasSize(2)
+        assertThat(correlationIdsUsed[0]).isNull()
+        assertThat(correlationIdsUsed[1]).isNotNull
+    }
+
     @Test
     fun `sendMail with no response`() {
         server.application.install(Routing) {
@@ -114,6 +159,19 @@ class WebEnclaveTransportTest {
         assertThat(responseBytes?.let(::String)).isEqualTo("This is a response!")
     }
 
+    @Test
+    fun `sendMail with large response`() {
+        val response = ByteArray(4 * 1024 * 1024).also(Noise::random)
+
+        server.application.install(Routing) {
+            post("/deliver-mail") {
+                call.respondBytes(response)
+            }
+        }
+
+        assertThat(sendFakeMail()).isEqualTo(response)
+    }
+
     @Test
     fun `sendMail where server responds back with decryption error`() {
         server.application.install(Routing) {
@@ -191,6 +249,64 @@ class WebEnclaveTransportTest {
         assertThat(responseBytes?.let(::String)).isEqualTo("I am (not) mail!")
     }
 
+    @Test
+    fun `sendMailBatch returns the result of each mail`() {
+        server.application.install(Routing) {
+            post("/deliver-mail-batch") {
+                val mails = call.receive<ByteArray>().deserialise { readList { readIntLengthPrefixBytes() } }
+                check(mails.size == 4)
+                call.respondBytes(writeData {
+                    writeInt(4)
+                    writeByte(0)
+                    writeIntLengthPrefixBytes("response".toByteArray())
+                    writeByte(0)
+                    writeIntLengthPrefixBytes(ByteArray(0))
+                    writeByte(1)
+                    nullableWrite(null as String?) { }
+                    writeByte(2)
+                    nullableWrite("boom") { writeIntLengthPrefixString(it) }
+                })
+            }
+        }
+
+        val results = connection.sendMailBatch(List(4) { ByteArray(16).also(Noise::random) })
+        assertThat(results[0].response?.let(::String)).isEqualTo("response")
+        assertThat(results[0].exception).isNull()
+        assertThat(results[1].response).isNull()
+        assertThat(results[1].exception).isNull()
+        assertThat(results[2].exception).isInstanceOf(MailDecryptionException::class.java)
+        assertThat(results[3].exception).isInstanceOf(EnclaveException::class.java).hasMessage("boom")
+    }
+
+    @Test
+    fun `sendMailBatch falls back to single mail if the host doesn't support batches`() {
+        var deliverMailCount = 0
+        server.application.install(Routing) {
+            post("/deliver-mail") {
+                deliverMailCount++
+                call.respondBytes(ByteArray(0))
+            }
+        }
+
+        val results = connection.sendMailBatch(List(3) { ByteArray(16).also(Noise::random) })
+        assertThat(results).hasSize(3)
+        assertThat(deliverMailCount).isEqualTo(3)
+    }
+
+    @Test
+    fun `pollMailBatch returns mail`() {
+        server.application.install(Routing) {
+            post("/poll-mail-batch") {
+                val max = call.request.queryParameters["max"]!!.toInt()
+                call.respondBytes(writeData {
+                    writeList((1..max).toList()) { writeIntLengthPrefixBytes("mail $it".toByteArray()) }
+                })
+            }
+        }
+
+        assertThat(connection.pollMailBatch(2).map(::String)).containsExactly("mail 1", "mail 2")
+    }
+
     @Test
     fun `each connection uses a unique correlation ID`() {
         val correlationIdsUsed = ConcurrentHashMap.newKeySet<String?>()
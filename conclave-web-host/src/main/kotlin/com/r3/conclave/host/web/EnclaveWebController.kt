@@ -1,5 +1,7 @@
 package com.r3.conclave.host.web
 
+import com.r3.conclave.common.EnclaveException
+import com.r3.conclave.common.EnclaveInstanceInfo
 import com.r3.conclave.common.EnclaveMode
 import com.r3.conclave.common.MockConfiguration
 import com.r3.conclave.common.SHA256Hash
@@ -9,23 +11,44 @@ import com.r3.conclave.host.PlatformSupportException
 import com.r3.conclave.host.internal.EnclaveHostService
 import com.r3.conclave.host.internal.loggerFor
 import com.r3.conclave.host.kds.KDSConfiguration
+import com.r3.conclave.host.web.EnclaveWebHostExceptionHandler.ErrorType
+import com.r3.conclave.mail.MailDecryptionException
 import com.r3.conclave.utilities.internal.*
 import org.springframework.beans.factory.annotation.Value
+import org.springframework.http.HttpHeaders
+import org.springframework.http.HttpStatus
+import org.springframework.http.ResponseEntity
 import org.springframework.web.bind.annotation.*
+import org.springframework.web.context.request.WebRequest
+import org.springframework.web.server.ResponseStatusException
+import java.io.ByteArrayOutputStream
 import java.io.DataInputStream
 import java.io.DataOutputStream
+import java.io.EOFException
+import java.io.InputStream
 import java.nio.file.Path
 import java.time.Duration
+import java.util.concurrent.*
+import java.util.concurrent.atomic.AtomicInteger
 import javax.annotation.PostConstruct
 import javax.annotation.PreDestroy
+import javax.servlet.http.HttpServletRequest
 import javax.servlet.http.HttpServletResponse
 import kotlin.io.path.exists
 import kotlin.io.path.inputStream
-import kotlin.io.path.outputStream
 
 @RestController
 class EnclaveWebController {
-    lateinit var enclaveHostService: EnclaveHostService
+    /**
+     * The services for each instance of the enclave, see [enclaveInstances].
+     */
+    lateinit var enclaveHostServices: List<EnclaveHostService>
+
+    /**
+     * The service for the first instance of the enclave. This is the only one unless [enclaveInstances] is more
+     * than 1.
+     */
+    val enclaveHostService: EnclaveHostService get() = enclaveHostServices[0]
 
     /**
      * MockConfiguration parameters.
@@ -56,6 +79,26 @@ class EnclaveWebController {
     @Value("\${sealed.state.file:}")
     var sealedStateFile: Path? = null
 
+    /**
+     * If enabled, the sealed state is written to [sealedStateFile] on a background thread rather than on the thread
+     * which delivered the mail. Only the latest state is written if several are stored in quick succession. See
+     * [SealedStateStore] for the trade-off this makes.
+     */
+    @Value("\${sealed.state.write.behind:false}")
+    var sealedStateWriteBehind: Boolean = false
+
+    /**
+     * Whether to force each sealed state write to the storage device before it replaces the previous state.
+     */
+    @Value("\${sealed.state.fsync:true}")
+    var sealedStateFsync: Boolean = true
+
+    /**
+     * The number of previous sealed states to keep alongside [sealedStateFile], as `<file>.1`, `<file>.2`, etc.
+     */
+    @Value("\${sealed.state.generations:0}")
+    var sealedStateGenerations: Int = 0
+
     @Value("\${filesystem.file:}")
     var enclaveFileSystemFile: Path? = null
 
@@ -65,6 +108,58 @@ class EnclaveWebController {
     @Value("\${kds.connection.timeout.seconds:}")
     val kdsConnTimeoutInSec: Long? = null
 
+    @Value("\${kds.max.retries:}")
+    val kdsMaxRetries: Int? = null
+
+    /**
+     * The number of instances of the enclave to load. Each client is routed to one of the instances by hashing its
+     * `Correlation-ID` header, so that a client always talks to the same instance. Every instance has its own
+     * attestation, response queues and async enclave threads. The first instance uses [sealedStateFile] and
+     * [enclaveFileSystemFile] as given, and the others use the same paths with the instance number appended.
+     *
+     * This allows an enclave which isn't thread-safe to make use of more cores without running several hosts.
+     */
+    @Value("\${enclave.instances:1}")
+    var enclaveInstances: Int = 1
+
+    /**
+     * If enabled, mail is delivered to the enclave on a bounded pool of enclave threads rather than on the servlet
+     * container thread. The container thread is released whilst the enclave processes the mail, and requests are
+     * rejected with 503 and a Retry-After header when all the enclave threads are busy and the queue is full.
+     */
+    @Value("\${async.enabled:false}")
+    var asyncEnabled: Boolean = false
+
+    /**
+     * The number of threads delivering mail to the enclave in async mode. This should match the enclave's
+     * concurrency, i.e. 1 for an enclave which isn't thread-safe. Defaults to the number of CPU cores.
+     */
+    @Value("\${async.enclave.threads:0}")
+    var asyncEnclaveThreads: Int = 0
+
+    @Value("\${async.queue.capacity:100}")
+    var asyncQueueCapacity: Int = 100
+
+    @Value("\${async.retry.after.seconds:1}")
+    var asyncRetryAfterSeconds: Int = 1
+
+    /**
+     * The maximum size in bytes of the body of a `/deliver-mail` or `/deliver-mail-batch` request. Larger requests
+     * are rejected with 413.
+     */
+    @Value("\${mail.max.size:$DEFAULT_MAIL_MAX_SIZE}")
+    var mailMaxSize: Int = DEFAULT_MAIL_MAX_SIZE
+
+    /**
+     * If positive, each enclave is re-attested in the background at this interval, or sooner if the attestation's
+     * collateral is due to be updated. The new attestation is serialized on the background thread so that no
+     * `/attestation` request has to wait for it.
+     */
+    @Value("\${attestation.refresh.seconds:0}")
+    var attestationRefreshSeconds: Long = 0
+
+    private lateinit var instances: List<EnclaveInstance>
+
     @PostConstruct
     fun init() {
         if (EnclaveHost.isHardwareEnclaveSupported()) {
@@ -82,27 +177,105 @@ class EnclaveWebController {
             logger.info("This platform supports enclaves in mock mode only.")
         }
 
+        require(enclaveInstances > 0) { "enclave.instances must be at least 1" }
         val mockConfiguration = buildMockConfiguration()
-        enclaveHostService = object : EnclaveHostService() {
+        val kdsConfiguration = loadKdsConfiguration()
+        val started = ArrayList<EnclaveInstance>(enclaveInstances)
+        try {
+            repeat(enclaveInstances) { index -> started += startEnclaveInstance(index, mockConfiguration, kdsConfiguration) }
+        } catch (e: Exception) {
+            // shutdown() isn't called if init() fails, so close the instances which did start here.
+            for (instance in started) {
+                instance.executor?.shutdown()
+            }
+            for (instance in started) {
+                try {
+                    closeInstance(instance)
+                } catch (closeException: Exception) {
+                    e.addSuppressed(closeException)
+                }
+            }
+            throw e
+        }
+        instances = started
+        enclaveHostServices = instances.map { it.enclaveHostService }
+    }
+
+    private fun startEnclaveInstance(
+        index: Int,
+        mockConfiguration: MockConfiguration,
+        kdsConfiguration: KDSConfiguration?
+    ): EnclaveInstance {
+        val instanceSealedStateFile = sealedStateFile?.let { instanceFile(it, index) }
+        var sealedStateStore: SealedStateStore? = null
+        val enclaveHostService = object : EnclaveHostService() {
             override val enclaveHost: EnclaveHost = EnclaveHost.load(mockConfiguration)
             override fun storeSealedState(sealedState: ByteArray) {
-                val sealedStateFile = checkNotNull(sealedStateFile) { "sealed.state.file is not set" }
-                DataOutputStream(sealedStateFile.outputStream()).use {
-                    it.writeIntLengthPrefixBytes(sealedStateHeader)
-                    it.write(sealedState)
-                }
+                checkNotNull(sealedStateStore) { "sealed.state.file is not set" }.store(sealedState)
             }
         }
-        val sealedState = loadSealedState()
-        val kdsConfiguration = loadKdsConfiguration()
-        enclaveHostService.start(AttestationParameters.DCAP(), sealedState, enclaveFileSystemFile, kdsConfiguration)
+        val enclaveHost = enclaveHostService.enclaveHost
+        try {
+            if (instanceSealedStateFile != null) {
+                sealedStateStore = SealedStateStore(
+                    instanceSealedStateFile,
+                    sealedStateHeader(enclaveHost),
+                    sealedStateWriteBehind,
+                    sealedStateFsync,
+                    sealedStateGenerations
+                )
+            }
+            val sealedState = loadSealedState(instanceSealedStateFile, enclaveHost)
+            val instanceFileSystemFile = enclaveFileSystemFile?.let { instanceFile(it, index) }
+            enclaveHostService.start(AttestationParameters.DCAP(), sealedState, instanceFileSystemFile, kdsConfiguration)
 
-        logger.info("Enclave ${enclaveHost.enclaveClassName} started")
-        logger.info(enclaveHost.enclaveInstanceInfo.toString())
+            val name = if (enclaveInstances == 1) "Enclave" else "Enclave instance $index"
+            logger.info("$name ${enclaveHost.enclaveClassName} started")
+            logger.info(enclaveHost.enclaveInstanceInfo.toString())
+
+            val executor = if (asyncEnabled) createEnclaveExecutor(index) else null
+            val instance = EnclaveInstance(enclaveHostService, executor, sealedStateStore)
+            if (attestationRefreshSeconds > 0) {
+                enclaveHost.addEnclaveInstanceInfoListener { instance.cacheAttestation(it) }
+                enclaveHost.startAttestationRefresh(Duration.ofSeconds(attestationRefreshSeconds))
+            }
+            return instance
+        } catch (e: Exception) {
+            enclaveHostService.close()
+            sealedStateStore?.close()
+            throw e
+        }
     }
 
-    private val sealedStateHeader: ByteArray by lazy {
-        writeData {
+    /**
+     * The first instance uses the file as given so that the enclave's state is kept when going from one instance to
+     * several.
+     */
+    private fun instanceFile(file: Path, index: Int): Path {
+        return if (index == 0) file else file.resolveSibling("${file.fileName}.$index")
+    }
+
+    private fun instanceFor(correlationId: String): EnclaveInstance {
+        return instances[Math.floorMod(correlationId.hashCode(), instances.size)]
+    }
+
+    private fun createEnclaveExecutor(index: Int): ThreadPoolExecutor {
+        require(asyncEnclaveThreads >= 0) { "async.enclave.threads cannot be negative" }
+        require(asyncQueueCapacity >= 0) { "async.queue.capacity cannot be negative" }
+        val threads = if (asyncEnclaveThreads == 0) Runtime.getRuntime().availableProcessors() else asyncEnclaveThreads
+        // A queue capacity of zero means requests are only accepted if there's an idle enclave thread.
+        val queue = if (asyncQueueCapacity == 0) SynchronousQueue<Runnable>() else ArrayBlockingQueue(asyncQueueCapacity)
+        val threadCount = AtomicInteger()
+        logger.info("Delivering mail asynchronously using $threads enclave threads and a queue of $asyncQueueCapacity")
+        // Only include the instance number in the thread names if there's more than one instance.
+        val threadPrefix = if (enclaveInstances == 1) "enclave-mail" else "enclave-$index-mail"
+        return ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, queue) {
+            Thread(it, "$threadPrefix-${threadCount.incrementAndGet()}")
+        }
+    }
+
+    private fun sealedStateHeader(enclaveHost: EnclaveHost): ByteArray {
+        return writeData {
             write(1)  // Version
             write(enclaveHost.enclaveMode.ordinal)
         }
@@ -111,9 +284,7 @@ class EnclaveWebController {
     /**
      * sealed state file might not exist yet, return null then
      */
-    private fun loadSealedState(): ByteArray? {
-        val sealedStateFile = this.sealedStateFile
-
+    private fun loadSealedState(sealedStateFile: Path?, enclaveHost: EnclaveHost): ByteArray? {
         if (sealedStateFile == null) {
             logger.info("The sealed state file has not been provided. " +
                     "The enclave will not be able to use the persistent map if it has been enabled.")
@@ -123,13 +294,13 @@ class EnclaveWebController {
             return null
         } else {
             DataInputStream(sealedStateFile.inputStream()).use { stream ->
-                validateSealedStateFileHeader(stream.readIntLengthPrefixBytes(), sealedStateFile)
+                validateSealedStateFileHeader(stream.readIntLengthPrefixBytes(), sealedStateFile, enclaveHost)
                 return stream.readBytes()
             }
         }
     }
 
-    private fun validateSealedStateFileHeader(header: ByteArray, sealedStateFile: Path) {
+    private fun validateSealedStateFileHeader(header: ByteArray, sealedStateFile: Path, enclaveHost: EnclaveHost) {
         header.deserialise {
             val version = read()
             check(version == 1) { "Version $version of the sealed state file not supported" }
@@ -149,11 +320,17 @@ class EnclaveWebController {
             if (kdsConnTimeoutInSec != null) {
                 conf.timeout = Duration.ofSeconds(kdsConnTimeoutInSec)
             }
+            if (kdsMaxRetries != null) {
+                conf.maxRetries = kdsMaxRetries
+            }
             return conf
         }
         check(kdsConnTimeoutInSec == null) {
             "Invalid arguments. The flag '--kds.connection.timeout.seconds' must be used with '--kds.url'"
         }
+        check(kdsMaxRetries == null) {
+            "Invalid arguments. The flag '--kds.max.retries' must be used with '--kds.url'"
+        }
         return null
     }
 
@@ -161,20 +338,183 @@ class EnclaveWebController {
         response.addHeader("Cache-Control", "no-store,no-cache,must-revalidate")
     }
 
+    /**
+     * Returns the serialized [EnclaveInstanceInfo] with a strong ETag, which only changes when the enclave is
+     * re-attested. Clients can send the ETag back in `If-None-Match` to get a 304 if the attestation hasn't changed,
+     * and thus avoid downloading and verifying it again.
+     *
+     * If there are several enclave instances then the attestation is for the instance the `Correlation-ID` header is
+     * routed to, and requests without the header are rejected with 400, as the client would otherwise be given an
+     * attestation for an instance its mail may not be routed to.
+     */
     @GetMapping("/attestation")
-    fun attestation(response: HttpServletResponse): ByteArray {
-        addCacheControlHeaders(response)
-        return enclaveHost.enclaveInstanceInfo.serialize()
+    fun attestation(
+        @RequestHeader("Correlation-ID", required = false) correlationId: String?,
+        webRequest: WebRequest,
+        response: HttpServletResponse
+    ): ByteArray? {
+        // The response can be stored but must be revalidated each time.
+        response.addHeader("Cache-Control", "no-cache")
+        val instance = when {
+            correlationId != null -> instanceFor(correlationId)
+            instances.size == 1 -> instances[0]
+            else -> throw ResponseStatusException(
+                HttpStatus.BAD_REQUEST,
+                "Correlation-ID header is required as there are several enclave instances"
+            )
+        }
+        val attestation = instance.currentAttestation()
+        if (webRequest.checkNotModified(attestation.eTag, attestation.lastModified)) {
+            return null
+        }
+        return attestation.bytes
     }
 
+    private class CachedAttestation(
+        val enclaveInstanceInfo: EnclaveInstanceInfo,
+        val bytes: ByteArray,
+        val eTag: String,
+        val lastModified: Long
+    )
+
+    /**
+     * Deliver a single mail. The response is returned from the servlet container thread unless [asyncEnabled] is set,
+     * in which case the result is a future of the response. See [EnclaveInstance.runOnEnclaveThread].
+     */
     @PostMapping("/deliver-mail")
     fun deliverMail(
         @RequestHeader("Correlation-ID") correlationId: String,
-        @RequestBody encryptedMail: ByteArray,
+        request: HttpServletRequest,
         response: HttpServletResponse
-    ): ByteArray {
+    ): Any {
         addCacheControlHeaders(response)
-        return enclaveHostService.deliverMail(encryptedMail, correlationId) ?: emptyBytes
+        val encryptedMail = readMail(request)
+        val instance = instanceFor(correlationId)
+        return instance.runOnEnclaveThread {
+            ResponseEntity.ok(instance.enclaveHostService.deliverMail(encryptedMail, correlationId) ?: emptyBytes)
+        }
+    }
+
+    /**
+     * Deliver a batch of mail in a single request. The request body is the number of mail followed by each mail as
+     * int length-prefixed bytes. Every mail in the batch is delivered, in order, even if some of them fail, and the
+     * response contains the result of each delivery. See [writeDeliveryResult] for the format.
+     */
+    @PostMapping("/deliver-mail-batch")
+    fun deliverMailBatch(
+        @RequestHeader("Correlation-ID") correlationId: String,
+        request: HttpServletRequest,
+        response: HttpServletResponse
+    ): Any {
+        addCacheControlHeaders(response)
+        val encryptedMails = readMailBatch(request)
+        val instance = instanceFor(correlationId)
+        // The whole batch is delivered as one unit of work so that the mail are processed in order.
+        return instance.runOnEnclaveThread {
+            val results = writeData {
+                writeList(encryptedMails) { encryptedMail ->
+                    writeDeliveryResult(instance.enclaveHostService, encryptedMail, correlationId)
+                }
+            }
+            ResponseEntity.ok(results)
+        }
+    }
+
+    /**
+     * Read the mail straight from the servlet input stream into an array of the exact size. Binding the body with
+     * `@RequestBody` would buffer it in a growing array and then copy it, which is costly for large mail. The declared
+     * content length is only trusted up to [INITIAL_READ_SIZE] until the data has actually arrived.
+     */
+    private fun readMail(request: HttpServletRequest): ByteArray {
+        val contentLength = checkContentLength(request)
+        val input = request.inputStream
+        if (contentLength >= 0) {
+            return input.readDeclaredBytes(contentLength.toInt())
+        }
+        // The body is chunked and so its size isn't known up front.
+        val output = ByteArrayOutputStream()
+        val buffer = ByteArray(8192)
+        while (true) {
+            val count = input.read(buffer)
+            if (count == -1) break
+            if (output.size() + count > mailMaxSize) throw mailTooLarge()
+            output.write(buffer, 0, count)
+        }
+        return output.toByteArray()
+    }
+
+    /**
+     * Read the batch straight from the servlet input stream, without first buffering the whole body. The size of each
+     * mail is checked against what's left of [mailMaxSize] before it's read, so that the batch can't add up to more
+     * than a single large mail. Each mail is read with [readDeclaredBytes], so a client can't make the host allocate
+     * more memory than it has actually sent, plus [INITIAL_READ_SIZE].
+     */
+    private fun readMailBatch(request: HttpServletRequest): List<ByteArray> {
+        checkContentLength(request)
+        val input = DataInputStream(request.inputStream)
+        val count = input.readInt()
+        var remaining = mailMaxSize.toLong() - 4 - 4L * count
+        if (count < 0 || remaining < 0) throw mailTooLarge()
+        val encryptedMails = ArrayList<ByteArray>(minOf(count, 1024))
+        repeat(count) {
+            val size = input.readInt()
+            if (size < 0 || size > remaining) throw mailTooLarge()
+            remaining -= size
+            encryptedMails += input.readDeclaredBytes(size)
+        }
+        return encryptedMails
+    }
+
+    /**
+     * Reads exactly [size] bytes, where the size was declared by the client. The array starts at no more than
+     * [INITIAL_READ_SIZE] bytes and doubles as the data arrives, so the final array is still of the exact size.
+     */
+    private fun InputStream.readDeclaredBytes(size: Int): ByteArray {
+        var bytes = ByteArray(minOf(size, INITIAL_READ_SIZE))
+        var cursor = 0
+        while (cursor < size) {
+            if (cursor == bytes.size) {
+                bytes = bytes.copyOf(minOf(size.toLong(), bytes.size * 2L).toInt())
+            }
+            val count = read(bytes, cursor, bytes.size - cursor)
+            if (count < 0) throw EOFException()
+            cursor += count
+        }
+        return bytes
+    }
+
+    private fun checkContentLength(request: HttpServletRequest): Long {
+        val contentLength = request.contentLengthLong
+        if (contentLength > mailMaxSize) throw mailTooLarge()
+        return contentLength
+    }
+
+    private fun mailTooLarge(): ResponseStatusException {
+        return ResponseStatusException(HttpStatus.PAYLOAD_TOO_LARGE, "Mail is larger than $mailMaxSize bytes")
+    }
+
+    /**
+     * Writes a status byte followed by either the response mail as int length-prefixed bytes (empty for no response),
+     * or the nullable error message. The status is [DELIVERED] or one of the [EnclaveWebHostExceptionHandler.ErrorType]
+     * ordinals plus one.
+     */
+    private fun DataOutputStream.writeDeliveryResult(
+        enclaveHostService: EnclaveHostService,
+        encryptedMail: ByteArray,
+        correlationId: String
+    ) {
+        val (errorType, message) = try {
+            val responseMail = enclaveHostService.deliverMail(encryptedMail, correlationId)
+            writeByte(DELIVERED)
+            writeIntLengthPrefixBytes(responseMail ?: emptyBytes)
+            return
+        } catch (e: MailDecryptionException) {
+            Pair(ErrorType.MAIL_DECRYPTION, null)
+        } catch (e: EnclaveException) {
+            Pair(ErrorType.ENCLAVE_EXCEPTION, e.message ?: e.cause?.message)
+        }
+        writeByte(errorType.ordinal + 1)
+        nullableWrite(message) { writeIntLengthPrefixString(it) }
     }
 
     @PostMapping("/poll-mail")
@@ -183,13 +523,46 @@ class EnclaveWebController {
         response: HttpServletResponse
     ): ByteArray {
         addCacheControlHeaders(response)
-        return enclaveHostService.pollMail(correlationId) ?: emptyBytes
+        return instanceFor(correlationId).enclaveHostService.pollMail(correlationId) ?: emptyBytes
+    }
+
+    /**
+     * Retrieve up to `max` queued mail in a single request. The response body is the number of mail followed by each
+     * mail as int length-prefixed bytes.
+     */
+    @PostMapping("/poll-mail-batch")
+    fun pollMailBatch(
+        @RequestHeader("Correlation-ID") correlationId: String,
+        @RequestParam("max", defaultValue = "$DEFAULT_POLL_BATCH_SIZE") max: Int,
+        response: HttpServletResponse
+    ): ByteArray {
+        addCacheControlHeaders(response)
+        val enclaveHostService = instanceFor(correlationId).enclaveHostService
+        val mails = enclaveHostService.pollMail(correlationId, max.coerceIn(0, MAX_POLL_BATCH_SIZE))
+        return writeData { writeList(mails) { writeIntLengthPrefixBytes(it) } }
     }
 
     @PreDestroy
     fun shutdown() {
-        if (::enclaveHostService.isInitialized) {
-            enclaveHostService.close()
+        if (!::instances.isInitialized) return
+        for (instance in instances) {
+            instance.executor?.shutdown()
+        }
+        for (instance in instances) {
+            closeInstance(instance)
+        }
+    }
+
+    private fun closeInstance(instance: EnclaveInstance) {
+        instance.executor?.awaitTermination(30, TimeUnit.SECONDS)
+        instance.enclaveHostService.close()
+        // Closing the enclave may have stored a final state, so only close the store after it.
+        instance.sealedStateStore?.let { store ->
+            store.close()
+            logger.info("Wrote ${store.writes} sealed states to ${store.file} " +
+                    "(mean ${TimeUnit.NANOSECONDS.toMicros(store.meanWriteNanos)} µs, " +
+                    "max ${TimeUnit.NANOSECONDS.toMicros(store.maxWriteNanos)} µs, " +
+                    "${store.coalescedWrites} coalesced, ${store.failedWrites} failed)")
         }
     }
 
@@ -207,10 +580,60 @@ class EnclaveWebController {
         return mockConfiguration
     }
 
-    private val enclaveHost: EnclaveHost get() = enclaveHostService.enclaveHost
+    private inner class EnclaveInstance(
+        val enclaveHostService: EnclaveHostService,
+        val executor: ThreadPoolExecutor?,
+        val sealedStateStore: SealedStateStore?
+    ) {
+        @Volatile
+        private var cachedAttestation: CachedAttestation? = null
+
+        fun currentAttestation(): CachedAttestation {
+            val enclaveInstanceInfo = enclaveHostService.enclaveHost.enclaveInstanceInfo
+            val cached = cachedAttestation
+            // EnclaveHost creates a new EnclaveInstanceInfo object whenever the attestation is updated.
+            if (cached != null && cached.enclaveInstanceInfo === enclaveInstanceInfo) {
+                return cached
+            }
+            return cacheAttestation(enclaveInstanceInfo)
+        }
+
+        fun cacheAttestation(enclaveInstanceInfo: EnclaveInstanceInfo): CachedAttestation {
+            val bytes = enclaveInstanceInfo.serialize()
+            return CachedAttestation(
+                enclaveInstanceInfo,
+                bytes,
+                "\"${SHA256Hash.hash(bytes)}\"",
+                System.currentTimeMillis()
+            ).also { cachedAttestation = it }
+        }
+
+        /**
+         * Runs the task on the calling servlet container thread and returns its [ResponseEntity], unless async mode is
+         * enabled, in which case the task is run on an enclave thread and a [CompletableFuture] of the response is
+         * returned. Spring picks how to handle the return value from its runtime type, so synchronous requests don't
+         * pay for Spring's async request processing.
+         */
+        fun runOnEnclaveThread(task: () -> ResponseEntity<ByteArray>): Any {
+            val executor = executor ?: return task()
+            // Spring releases the container thread until the future is completed.
+            return try {
+                CompletableFuture.supplyAsync(task, executor)
+            } catch (e: RejectedExecutionException) {
+                ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                    .header(HttpHeaders.RETRY_AFTER, asyncRetryAfterSeconds.toString())
+                    .body(emptyBytes)
+            }
+        }
+    }
 
     private companion object {
         private val logger = loggerFor<EnclaveWebController>()
         private val emptyBytes = ByteArray(0)
+        private const val DELIVERED = 0
+        private const val DEFAULT_POLL_BATCH_SIZE = 100
+        private const val MAX_POLL_BATCH_SIZE = 1000
+        private const val DEFAULT_MAIL_MAX_SIZE = 64 * 1024 * 1024
+        private const val INITIAL_READ_SIZE = 64 * 1024
     }
 }
@@ -0,0 +1,196 @@
+package com.r3.conclave.host.web
+
+import com.r3.conclave.host.internal.loggerFor
+import java.io.Closeable
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.channels.FileChannel
+import java.nio.file.Files
+import java.nio.file.Path
+import java.nio.file.StandardCopyOption.ATOMIC_MOVE
+import java.nio.file.StandardCopyOption.REPLACE_EXISTING
+import java.nio.file.StandardOpenOption.*
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicLong
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.io.path.deleteIfExists
+import kotlin.io.path.exists
+
+/**
+ * Persists the enclave's sealed state to a file such that a crash can never leave it half written. Each state is
+ * written to a temporary file which is then atomically renamed over the previous one, optionally keeping the previous
+ * [generations] as `<file>.gen1`, `<file>.gen2`, etc. The `gen` prefix keeps them apart from the sealed state files of
+ * the other enclave instances in the web host, which are named `<file>.1`, `<file>.2`, etc.
+ *
+ * In write-behind mode [store] returns immediately and the state is written on a background thread. Only the latest
+ * state matters, and so a state which is superseded before it's written is skipped. Note, this means a state may not
+ * have been persisted by the time the enclave's response mail reach the clients. If the host then crashes the enclave
+ * is restarted with an older state, which the clients will see as a rollback.
+ *
+ * @param file The file to write the sealed state to.
+ * @param header Written before each sealed state.
+ * @param writeBehind Whether to write the states on a background thread.
+ * @param fsync Whether to force each write to the storage device before renaming it, and then the rename itself.
+ * @param generations The number of previous states to keep.
+ */
+class SealedStateStore(
+    val file: Path,
+    private val header: ByteArray,
+    val writeBehind: Boolean,
+    val fsync: Boolean,
+    val generations: Int
+) : Closeable {
+    init {
+        require(generations >= 0) { "generations cannot be negative" }
+    }
+
+    private val tempFile = file.resolveSibling("${file.fileName}.tmp")
+    private val lock = ReentrantLock()
+    private val pendingChanged = lock.newCondition()
+    private var pendingState: ByteArray? = null
+    private var closed = false
+    private val writer = if (writeBehind) {
+        Thread(::writeBehindLoop, "sealed-state-writer").apply { isDaemon = true; start() }
+    } else {
+        null
+    }
+
+    private val _writes = AtomicLong()
+    private val _coalescedWrites = AtomicLong()
+    private val _failedWrites = AtomicLong()
+    private val totalWriteNanos = AtomicLong()
+    private val _maxWriteNanos = AtomicLong()
+
+    /** The number of states which have been written. */
+    val writes: Long get() = _writes.get()
+
+    /** The number of states which were skipped in write-behind mode as a newer one arrived before they were written. */
+    val coalescedWrites: Long get() = _coalescedWrites.get()
+
+    /** The number of writes which failed. */
+    val failedWrites: Long get() = _failedWrites.get()
+
+    /** The mean time taken to write a state, in nanoseconds. */
+    val meanWriteNanos: Long get() = _writes.get().let { if (it == 0L) 0 else totalWriteNanos.get() / it }
+
+    /** The longest time taken to write a state, in nanoseconds. */
+    val maxWriteNanos: Long get() = _maxWriteNanos.get()
+
+    /** The number of states waiting to be written, which is at most 1 as they're coalesced. */
+    val queueDepth: Int get() = lock.withLock { if (pendingState != null) 1 else 0 }
+
+    /**
+     * Store the latest sealed state. In write-behind mode this returns immediately, otherwise the state has been
+     * written when this returns.
+     *
+     * @throws IOException If the state could not be written, unless in write-behind mode.
+     */
+    @Throws(IOException::class)
+    fun store(sealedState: ByteArray) {
+        if (!writeBehind) {
+            // The enclave may call this on several threads, and each write must complete before the next one starts.
+            lock.withLock { write(sealedState) }
+            return
+        }
+        lock.withLock {
+            check(!closed) { "Sealed state store has been closed" }
+            if (pendingState != null) {
+                _coalescedWrites.incrementAndGet()
+            }
+            pendingState = sealedState
+            pendingChanged.signalAll()
+        }
+    }
+
+    private fun writeBehindLoop() {
+        while (true) {
+            val state = lock.withLock {
+                while (pendingState == null && !closed) {
+                    pendingChanged.await()
+                }
+                val state = pendingState ?: return
+                pendingState = null
+                state
+            }
+            try {
+                write(state)
+            } catch (e: IOException) {
+                logger.error("Unable to write sealed state to $file", e)
+            }
+        }
+    }
+
+    private fun write(sealedState: ByteArray) {
+        val start = System.nanoTime()
+        try {
+            FileChannel.open(tempFile, CREATE, WRITE, TRUNCATE_EXISTING).use { channel ->
+                val lengthPrefix = ByteBuffer.allocate(4).putInt(0, header.size)
+                val buffers = arrayOf(lengthPrefix, ByteBuffer.wrap(header), ByteBuffer.wrap(sealedState))
+                while (buffers.any { it.hasRemaining() }) {
+                    channel.write(buffers)
+                }
+                if (fsync) {
+                    channel.force(true)
+                }
+            }
+            rotateGenerations()
+            Files.move(tempFile, file, ATOMIC_MOVE, REPLACE_EXISTING)
+            if (fsync) {
+                syncDirectory()
+            }
+        } catch (e: IOException) {
+            _failedWrites.incrementAndGet()
+            throw e
+        }
+        val nanos = System.nanoTime() - start
+        _writes.incrementAndGet()
+        totalWriteNanos.addAndGet(nanos)
+        _maxWriteNanos.accumulateAndGet(nanos, Math::max)
+        logger.debug("Wrote {} bytes of sealed state in {} µs", sealedState.size, TimeUnit.NANOSECONDS.toMicros(nanos))
+    }
+
+    private fun rotateGenerations() {
+        if (generations == 0 || !file.exists()) return
+        generationFile(generations).deleteIfExists()
+        for (generation in generations - 1 downTo 1) {
+            val from = generationFile(generation)
+            if (from.exists()) {
+                Files.move(from, generationFile(generation + 1), ATOMIC_MOVE)
+            }
+        }
+        // Copy rather than move the current state so that the file always exists, even if there's a crash before
+        // the new state is renamed over it.
+        Files.copy(file, generationFile(1), REPLACE_EXISTING)
+    }
+
+    private fun generationFile(generation: Int): Path = file.resolveSibling("${file.fileName}.gen$generation")
+
+    /**
+     * Make sure the rename is durable. Not all platforms support opening a directory, in which case this is skipped.
+     */
+    private fun syncDirectory() {
+        val directory = file.toAbsolutePath().parent ?: return
+        try {
+            FileChannel.open(directory, READ).use { it.force(true) }
+        } catch (e: IOException) {
+            logger.debug("Unable to sync directory {}", directory, e)
+        }
+    }
+
+    /**
+     * Wait for any pending state to be written and stop the background thread.
+     */
+    override fun close() {
+        val writer = writer ?: return
+        lock.withLock {
+            closed = true
+            pendingChanged.signalAll()
+        }
+        writer.join()
+    }
+
+    private companion object {
+        private val logger = loggerFor<SealedStateStore>()
+    }
+}
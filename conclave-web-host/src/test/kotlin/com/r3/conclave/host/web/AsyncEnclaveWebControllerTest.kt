@@ -0,0 +1,88 @@
+package com.r3.conclave.host.web
+
+import com.r3.conclave.host.web.EnclaveWebControllerTest.TestEnclave
+import com.r3.conclave.internaltesting.threadWithFuture
+import com.r3.conclave.mail.PostOffice
+import org.apache.hc.client5.http.classic.methods.HttpPost
+import org.apache.hc.client5.http.entity.EntityBuilder
+import org.apache.hc.client5.http.impl.classic.HttpClients
+import org.apache.hc.core5.http.HttpStatus
+import org.apache.hc.core5.http.io.entity.EntityUtils
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment
+import org.springframework.boot.web.server.LocalServerPort
+import java.util.*
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit.SECONDS
+
+@SpringBootTest(
+    webEnvironment = WebEnvironment.RANDOM_PORT,
+    properties = [
+        "async.enabled=true",
+        "async.enclave.threads=1",
+        "async.queue.capacity=0",
+        "async.retry.after.seconds=5"
+    ]
+)
+class AsyncEnclaveWebControllerTest {
+    @LocalServerPort
+    private var serverPort = 0
+    @Autowired
+    private lateinit var controller: EnclaveWebController
+
+    private val httpClient = HttpClients.createDefault()
+
+    @AfterEach
+    fun close() {
+        TestEnclave.blockRelease.countDown()
+        httpClient.close()
+    }
+
+    @Test
+    fun `delivering mail with synchronous response`() {
+        val postOffice = createPostOffice()
+        val (status, responseBytes) = deliverMail("ping", postOffice)
+        assertThat(status).isEqualTo(HttpStatus.SC_OK)
+        assertThat(String(postOffice.decryptMail(responseBytes).bodyAsBytes)).isEqualTo("pong")
+    }
+
+    @Test
+    fun `service unavailable when all the enclave threads are busy`() {
+        TestEnclave.blockEntered = CountDownLatch(1)
+        TestEnclave.blockRelease = CountDownLatch(1)
+        val blockedRequest = threadWithFuture { deliverMail("block") }
+        assertThat(TestEnclave.blockEntered.await(10, SECONDS)).isTrue
+
+        // Each request uses a new post office so that the rejected mail doesn't leave a gap in the sequence numbers.
+        httpClient.execute(createDeliverMailRequest("ping", createPostOffice())).use { response ->
+            assertThat(response.code).isEqualTo(HttpStatus.SC_SERVICE_UNAVAILABLE)
+            assertThat(response.getFirstHeader("Retry-After").value).isEqualTo("5")
+        }
+
+        TestEnclave.blockRelease.countDown()
+        assertThat(blockedRequest.get(10, SECONDS).first).isEqualTo(HttpStatus.SC_OK)
+        // The enclave thread is now free again.
+        assertThat(deliverMail("ping").first).isEqualTo(HttpStatus.SC_OK)
+    }
+
+    private fun createPostOffice(): PostOffice {
+        return controller.enclaveHostService.enclaveHost.enclaveInstanceInfo.createPostOffice()
+    }
+
+    private fun deliverMail(body: String, postOffice: PostOffice = createPostOffice()): Pair<Int, ByteArray> {
+        return httpClient.execute(createDeliverMailRequest(body, postOffice)).use { response ->
+            Pair(response.code, EntityUtils.toByteArray(response.entity))
+        }
+    }
+
+    private fun createDeliverMailRequest(body: String, postOffice: PostOffice): HttpPost {
+        return HttpPost("http://localhost:$serverPort/deliver-mail").apply {
+            addHeader("Correlation-ID", UUID.randomUUID().toString())
+            entity = EntityBuilder.create().setBinary(postOffice.encryptMail(body.toByteArray())).build()
+        }
+    }
+}
@@ -8,6 +8,7 @@ import com.r3.conclave.host.EnclaveHost
 import com.r3.conclave.host.internal.createMockHost
 import com.r3.conclave.internaltesting.threadWithFuture
 import com.r3.conclave.mail.EnclaveMail
+import com.r3.conclave.utilities.internal.*
 import org.apache.hc.client5.http.classic.methods.HttpGet
 import org.apache.hc.client5.http.classic.methods.HttpPost
 import org.apache.hc.client5.http.entity.EntityBuilder
@@ -15,6 +16,7 @@ import org.apache.hc.client5.http.impl.classic.HttpClients
 import org.apache.hc.core5.http.ContentType
 import org.apache.hc.core5.http.HttpStatus
 import org.apache.hc.core5.http.io.entity.EntityUtils
+import org.apache.hc.core5.http.io.entity.InputStreamEntity
 import org.assertj.core.api.Assertions.assertThat
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.BeforeEach
@@ -26,6 +28,7 @@ import org.springframework.boot.web.server.LocalServerPort
 import java.io.IOException
 import java.security.PublicKey
 import java.util.*
+import java.util.concurrent.CountDownLatch
 
 @SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT)
 class EnclaveWebControllerTest {
@@ -63,6 +66,26 @@ class EnclaveWebControllerTest {
         assertThat(downloadEnclaveInstanceInfo()).isEqualTo(secondEii)
     }
 
+    @Test
+    fun `attestation with conditional request`() {
+        val eTag = httpClient.execute(HttpGet(url("attestation"))).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
+            checkNotNull(it.getFirstHeader("ETag")).value
+        }
+        val conditionalRequest = HttpGet(url("attestation")).apply { addHeader("If-None-Match", eTag) }
+        httpClient.execute(conditionalRequest).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_NOT_MODIFIED)
+        }
+
+        enclaveHost.updateAttestation()
+        httpClient.execute(conditionalRequest).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
+            assertThat(it.getFirstHeader("ETag").value).isNotEqualTo(eTag)
+            assertThat(EnclaveInstanceInfo.deserialize(EntityUtils.toByteArray(it.entity)))
+                .isEqualTo(enclaveHost.enclaveInstanceInfo)
+        }
+    }
+
     @Test
     fun `delivering mail with no synchronous response`() {
         val requestBytes = client.postOffice.encryptMail("Hello".toByteArray())
@@ -147,6 +170,71 @@ class EnclaveWebControllerTest {
         assertThat(jsonResponse["message"]?.textValue()).isEqualTo("bang!")  // This is only available for non-release enclaves
     }
 
+    @Test
+    fun `delivering a batch of mail`() {
+        val mails = listOf("ping", "throw", "two").map { client.postOffice.encryptMail(it.toByteArray()) }
+        val response = httpPostBatch("deliver-mail-batch", client.correlationId, writeData {
+            writeList(mails) { writeIntLengthPrefixBytes(it) }
+        })
+        response.deserialise {
+            assertThat(readInt()).isEqualTo(3)
+            assertThat(read()).isEqualTo(0)
+            assertThat(client.decrypt(readIntLengthPrefixBytes())).isEqualTo("pong")
+            // The enclave exception doesn't stop the rest of the batch from being delivered.
+            assertThat(read()).isEqualTo(2)
+            assertThat(nullableRead { String(readIntLengthPrefixBytes()) }).isEqualTo("bang!")
+            assertThat(read()).isEqualTo(0)
+            assertThat(client.decrypt(readIntLengthPrefixBytes())).isEqualTo("first")
+        }
+    }
+
+    @Test
+    fun `polling a batch of mail`() {
+        repeat(3) { client.deliverMail("two") }
+        val polled = httpPostBatch("poll-mail-batch?max=2", client.correlationId, ByteArray(0)).deserialise {
+            readList { readIntLengthPrefixBytes() }
+        }
+        assertThat(polled.map(client::decrypt)).containsExactly("second", "second")
+        assertThat(client.pollMail()).isEqualTo("second")
+        assertThat(client.pollMail()).isNull()
+    }
+
+    @Test
+    fun `delivering mail with a chunked body`() {
+        val mailBytes = client.postOffice.encryptMail("ping".toByteArray())
+        val httpPost = HttpPost(url("deliver-mail")).apply {
+            addHeader("Correlation-ID", client.correlationId)
+            // An unknown length means the body is sent using chunked transfer encoding.
+            entity = InputStreamEntity(mailBytes.inputStream(), -1, ContentType.APPLICATION_OCTET_STREAM)
+        }
+        val responseBytes = httpClient.execute(httpPost).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
+            EntityUtils.toByteArray(it.entity)
+        }
+        assertThat(client.decrypt(responseBytes)).isEqualTo("pong")
+    }
+
+    @Test
+    fun `mail larger than the maximum size is rejected`() {
+        val mailBytes = client.postOffice.encryptMail("ping".toByteArray())
+        val previousMaxSize = controller.mailMaxSize
+        controller.mailMaxSize = mailBytes.size - 1
+        try {
+            val batch = writeData { writeList(listOf(mailBytes)) { writeIntLengthPrefixBytes(it) } }
+            for ((endPoint, body) in listOf("deliver-mail" to mailBytes, "deliver-mail-batch" to batch)) {
+                val httpPost = HttpPost(url(endPoint)).apply {
+                    addHeader("Correlation-ID", client.correlationId)
+                    entity = EntityBuilder.create().setBinary(body).build()
+                }
+                httpClient.execute(httpPost).use {
+                    assertThat(it.code).isEqualTo(HttpStatus.SC_REQUEST_TOO_LONG)
+                }
+            }
+        } finally {
+            controller.mailMaxSize = previousMaxSize
+        }
+    }
+
     private fun downloadEnclaveInstanceInfo(): EnclaveInstanceInfo {
         return httpClient.execute(HttpGet(url("attestation"))).use {
             assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
@@ -185,11 +273,30 @@ class EnclaveWebControllerTest {
         }
     }
 
+    private fun httpPostBatch(endPoint: String, correlationId: String, body: ByteArray): ByteArray {
+        val httpPost = HttpPost(url(endPoint)).apply {
+            addHeader("Correlation-ID", correlationId)
+            entity = EntityBuilder.create().setBinary(body).build()
+        }
+        return httpClient.execute(httpPost).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
+            EntityUtils.toByteArray(it.entity)
+        }
+    }
+
     private fun url(endPoint: String): String = "http://localhost:$serverPort/$endPoint"
 
     private val enclaveHost: EnclaveHost get() = controller.enclaveHostService.enclaveHost
 
     class TestEnclave : Enclave() {
+        companion object {
+            // Used by "block" requests to hold up the enclave until the test releases it.
+            @Volatile
+            var blockEntered = CountDownLatch(1)
+            @Volatile
+            var blockRelease = CountDownLatch(1)
+        }
+
         private lateinit var previousRequest: String
         private lateinit var previousSender: PublicKey
         private var previousRoutingHint: String? = null
@@ -205,6 +312,9 @@ class EnclaveWebControllerTest {
                 postMail(postOffice(mail).encryptMail("second".toByteArray()), routingHint)
             } else if (request == "throw") {
                 throw EnclaveException("bang!")
+            } else if (request == "block") {
+                blockEntered.countDown()
+                blockRelease.await()
             }
             previousRequest = request
             previousSender = mail.authenticatedSender
@@ -221,16 +331,16 @@ class EnclaveWebControllerTest {
             val responseBytes = httpDeliverMail(mailBytes, correlationId)
             // Empty bytes means no response
             if (responseBytes.isEmpty()) return null
-            val response = postOffice.decryptMail(responseBytes)
-            return String(response.bodyAsBytes)
+            return decrypt(responseBytes)
         }
 
         fun pollMail(): String? {
             val responseBytes = httpPollMail(correlationId)
             // Empty bytes means no response
             if (responseBytes.isEmpty()) return null
-            val response = postOffice.decryptMail(responseBytes)
-            return String(response.bodyAsBytes)
+            return decrypt(responseBytes)
         }
+
+        fun decrypt(responseBytes: ByteArray): String = String(postOffice.decryptMail(responseBytes).bodyAsBytes)
     }
 }
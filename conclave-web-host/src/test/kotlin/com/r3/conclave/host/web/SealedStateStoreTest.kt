@@ -0,0 +1,89 @@
+package com.r3.conclave.host.web
+
+import com.r3.conclave.utilities.internal.readIntLengthPrefixBytes
+import org.assertj.core.api.Assertions.assertThat
+import org.assertj.core.api.Assertions.assertThatIllegalStateException
+import org.junit.jupiter.api.Test
+import org.junit.jupiter.api.io.TempDir
+import java.io.DataInputStream
+import java.nio.file.Path
+import kotlin.io.path.exists
+import kotlin.io.path.inputStream
+
+class SealedStateStoreTest {
+    @TempDir
+    lateinit var dir: Path
+
+    private val file by lazy { dir.resolve("sealed-state") }
+    private val header = byteArrayOf(1, 2)
+
+    @Test
+    fun `state is written with header`() {
+        SealedStateStore(file, header, writeBehind = false, fsync = true, generations = 0).use { store ->
+            store.store(byteArrayOf(10, 11, 12))
+            assertThat(readState(file)).isEqualTo(byteArrayOf(10, 11, 12))
+            assertThat(store.writes).isEqualTo(1)
+            assertThat(store.maxWriteNanos).isPositive
+        }
+        assertThat(dir.resolve("sealed-state.tmp")).doesNotExist()
+    }
+
+    @Test
+    fun `previous generations are kept`() {
+        SealedStateStore(file, header, writeBehind = false, fsync = false, generations = 2).use { store ->
+            for (i in 1..4) {
+                store.store(byteArrayOf(i.toByte()))
+            }
+        }
+        assertThat(readState(file)).isEqualTo(byteArrayOf(4))
+        assertThat(readState(dir.resolve("sealed-state.gen1"))).isEqualTo(byteArrayOf(3))
+        assertThat(readState(dir.resolve("sealed-state.gen2"))).isEqualTo(byteArrayOf(2))
+        assertThat(dir.resolve("sealed-state.gen3").exists()).isFalse
+    }
+
+    @Test
+    fun `generations do not overwrite the state of other enclave instances`() {
+        // The web host names the sealed state file of enclave instance n as <file>.n.
+        val instance1File = dir.resolve("sealed-state.1")
+        SealedStateStore(file, header, writeBehind = false, fsync = false, generations = 2).use { instance0 ->
+            SealedStateStore(instance1File, header, writeBehind = false, fsync = false, generations = 2).use { instance1 ->
+                instance1.store(byteArrayOf(100))
+                for (i in 1..4) {
+                    instance0.store(byteArrayOf(i.toByte()))
+                }
+                instance1.store(byteArrayOf(101))
+            }
+        }
+        assertThat(readState(file)).isEqualTo(byteArrayOf(4))
+        assertThat(readState(dir.resolve("sealed-state.gen1"))).isEqualTo(byteArrayOf(3))
+        assertThat(readState(instance1File)).isEqualTo(byteArrayOf(101))
+        assertThat(readState(dir.resolve("sealed-state.1.gen1"))).isEqualTo(byteArrayOf(100))
+        assertThat(dir.resolve("sealed-state.2").exists()).isFalse
+    }
+
+    @Test
+    fun `write-behind writes the latest state by close`() {
+        val store = SealedStateStore(file, header, writeBehind = true, fsync = false, generations = 0)
+        for (i in 1..1000) {
+            store.store(byteArrayOf((i % 100).toByte()))
+        }
+        store.close()
+        assertThat(readState(file)).isEqualTo(byteArrayOf(0))
+        assertThat(store.writes + store.coalescedWrites).isEqualTo(1000)
+        assertThat(store.queueDepth).isZero
+    }
+
+    @Test
+    fun `cannot store after close in write-behind mode`() {
+        val store = SealedStateStore(file, header, writeBehind = true, fsync = false, generations = 0)
+        store.close()
+        assertThatIllegalStateException().isThrownBy { store.store(byteArrayOf(1)) }
+    }
+
+    private fun readState(file: Path): ByteArray {
+        return DataInputStream(file.inputStream()).use {
+            assertThat(it.readIntLengthPrefixBytes()).isEqualTo(header)
+            it.readBytes()
+        }
+    }
+}
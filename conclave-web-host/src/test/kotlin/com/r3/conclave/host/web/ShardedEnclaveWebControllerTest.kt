@@ -0,0 +1,97 @@
+package com.r3.conclave.host.web
+
+import com.fasterxml.jackson.databind.ObjectMapper
+import com.r3.conclave.common.EnclaveInstanceInfo
+import com.r3.conclave.host.web.EnclaveWebHostExceptionHandler.ErrorType
+import com.r3.conclave.mail.PostOffice
+import org.apache.hc.client5.http.classic.methods.HttpGet
+import org.apache.hc.client5.http.classic.methods.HttpPost
+import org.apache.hc.client5.http.entity.EntityBuilder
+import org.apache.hc.client5.http.impl.classic.HttpClients
+import org.apache.hc.core5.http.HttpStatus
+import org.apache.hc.core5.http.io.entity.EntityUtils
+import org.assertj.core.api.Assertions.assertThat
+import org.junit.jupiter.api.AfterEach
+import org.junit.jupiter.api.Test
+import org.springframework.beans.factory.annotation.Autowired
+import org.springframework.boot.test.context.SpringBootTest
+import org.springframework.boot.test.context.SpringBootTest.WebEnvironment
+import org.springframework.boot.web.server.LocalServerPort
+import java.util.*
+
+@SpringBootTest(webEnvironment = WebEnvironment.RANDOM_PORT, properties = ["enclave.instances=3"])
+class ShardedEnclaveWebControllerTest {
+    @LocalServerPort
+    private var serverPort = 0
+    @Autowired
+    private lateinit var controller: EnclaveWebController
+
+    private val httpClient = HttpClients.createDefault()
+
+    @AfterEach
+    fun close() {
+        httpClient.close()
+    }
+
+    @Test
+    fun `each instance has its own attestation`() {
+        val encryptionKeys = controller.enclaveHostServices.map { it.enclaveHost.enclaveInstanceInfo.encryptionKey }
+        assertThat(encryptionKeys).hasSize(3).doesNotHaveDuplicates()
+    }
+
+    @Test
+    fun `client is routed to the same instance as its attestation`() {
+        val instancesUsed = HashSet<EnclaveInstanceInfo>()
+        repeat(20) {
+            val correlationId = UUID.randomUUID().toString()
+            val enclaveInstanceInfo = downloadEnclaveInstanceInfo(correlationId)
+            assertThat(downloadEnclaveInstanceInfo(correlationId)).isEqualTo(enclaveInstanceInfo)
+            instancesUsed += enclaveInstanceInfo
+            val postOffice = enclaveInstanceInfo.createPostOffice()
+            val (status, responseBytes) = deliverMail("ping", postOffice, correlationId)
+            assertThat(status).isEqualTo(HttpStatus.SC_OK)
+            assertThat(String(postOffice.decryptMail(responseBytes).bodyAsBytes)).isEqualTo("pong")
+        }
+        // With 20 random clients it's extremely unlikely they're all routed to the same instance.
+        assertThat(instancesUsed).hasSizeGreaterThan(1)
+    }
+
+    @Test
+    fun `mail encrypted for a different instance cannot be decrypted`() {
+        val correlationId = UUID.randomUUID().toString()
+        val routedTo = downloadEnclaveInstanceInfo(correlationId)
+        val otherInstance = controller.enclaveHostServices
+            .map { it.enclaveHost.enclaveInstanceInfo }
+            .first { it != routedTo }
+        val (status, responseBytes) = deliverMail("ping", otherInstance.createPostOffice(), correlationId)
+        assertThat(status).isEqualTo(HttpStatus.SC_BAD_REQUEST)
+        assertThat(ObjectMapper().readTree(responseBytes)["error"].textValue()).isEqualTo(ErrorType.MAIL_DECRYPTION.name)
+    }
+
+    @Test
+    fun `attestation without a Correlation-ID is rejected`() {
+        httpClient.execute(HttpGet("http://localhost:$serverPort/attestation")).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_BAD_REQUEST)
+        }
+    }
+
+    private fun downloadEnclaveInstanceInfo(correlationId: String): EnclaveInstanceInfo {
+        val httpGet = HttpGet("http://localhost:$serverPort/attestation").apply {
+            addHeader("Correlation-ID", correlationId)
+        }
+        return httpClient.execute(httpGet).use {
+            assertThat(it.code).isEqualTo(HttpStatus.SC_OK)
+            EnclaveInstanceInfo.deserialize(EntityUtils.toByteArray(it.entity))
+        }
+    }
+
+    private fun deliverMail(body: String, postOffice: PostOffice, correlationId: String): Pair<Int, ByteArray> {
+        val httpPost = HttpPost("http://localhost:$serverPort/deliver-mail").apply {
+            addHeader("Correlation-ID", correlationId)
+            entity = EntityBuilder.create().setBinary(postOffice.encryptMail(body.toByteArray())).build()
+        }
+        return httpClient.execute(httpPost).use { response ->
+            Pair(response.code, EntityUtils.toByteArray(response.entity))
+        }
+    }
+}
@@ -11,17 +11,21 @@ import com.r3.conclave.mail.Curve25519PrivateKey
 import com.r3.conclave.utilities.internal.writeData
 import com.r3.conclave.utilities.internal.writeIntLengthPrefixString
 import com.r3.conclave.utilities.internal.writeShortLengthPrefixBytes
+import io.ktor.http.*
 import io.ktor.server.application.*
 import io.ktor.server.request.*
 import io.ktor.server.response.*
 import io.ktor.server.routing.*
 import io.ktor.util.pipeline.*
+import kotlinx.coroutines.delay
 import kotlinx.serialization.Serializable
 import org.junit.jupiter.api.extension.AfterEachCallback
 import org.junit.jupiter.api.extension.ExtensionContext
 import java.net.URL
 import java.security.MessageDigest
+import java.time.Duration
 import java.util.*
+import java.util.concurrent.atomic.AtomicInteger
 
 /**
  * A mock KDS for unit testing. The keys provided by this mock service do not match those of a real KDS, including
@@ -36,6 +40,16 @@ class MockKDS : AutoCloseable, AfterEachCallback {
     var privateKeyRequestModifier: PrivateKeyRequestModifier? = null
     var previousPublicKeyRequest: PublicKeyRequest? = null
     var previousPrivateKeyRequest: PrivateKeyRequest? = null
+    /** How long to wait before responding to a private key request. */
+    var privateKeyResponseDelay: Duration = Duration.ZERO
+    /** The number of upcoming private key requests to fail with [privateKeyRequestFailureCode]. */
+    val privateKeyRequestFailures = AtomicInteger()
+    var privateKeyRequestFailureCode = 503
+    val privateKeyRequestCount = AtomicInteger()
+    /** The most private key requests which have been in progress at the same time. */
+    val maxConcurrentPrivateKeyRequests = AtomicInteger()
+    private val concurrentPrivateKeyRequests = AtomicInteger()
+    val publicKeyRequestCount = AtomicInteger()
 
     init {
         kdsEnclaveMock.start(null, null, null) { }
@@ -62,6 +76,7 @@ class MockKDS : AutoCloseable, AfterEachCallback {
         server.installRoutes {
             post("/public") {
                 val httpRequestBody = extractHttpRequestBody<PublicKeyRequest>()
+                publicKeyRequestCount.incrementAndGet()
                 previousPublicKeyRequest = httpRequestBody
                 val httpResponseBody = processPublicKeyRequest(httpRequestBody)
                 sendResponse(httpResponseBody)
@@ -69,6 +84,17 @@ class MockKDS : AutoCloseable, AfterEachCallback {
 
             post("/private") {
                 val httpRequestBody = extractHttpRequestBody<PrivateKeyRequest>()
+                privateKeyRequestCount.incrementAndGet()
+                maxConcurrentPrivateKeyRequests.accumulateAndGet(concurrentPrivateKeyRequests.incrementAndGet(), ::maxOf)
+                try {
+                    delay(privateKeyResponseDelay.toMillis())
+                } finally {
+                    concurrentPrivateKeyRequests.decrementAndGet()
+                }
+                if (privateKeyRequestFailures.getAndUpdate { if (it > 0) it - 1 else 0 } > 0) {
+                    call.respond(HttpStatusCode.fromValue(privateKeyRequestFailureCode), "Mock failure")
+                    return@post
+                }
                 previousPrivateKeyRequest = httpRequestBody
                 val httpResponseBody = processPrivateKeyRequest(httpRequestBody)
                 sendResponse(httpResponseBody)
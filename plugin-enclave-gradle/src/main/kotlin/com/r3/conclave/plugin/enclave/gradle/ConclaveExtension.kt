@@ -29,6 +29,14 @@ open class ConclaveExtension @Inject constructor(objects: ObjectFactory) {
     @get:Input
     val persistentFileSystemSize: Property<String> = objects.property(String::class.java).convention("0")
     @get:Input
+    val maxClientCacheSize: Property<Int> = objects.property(Int::class.java).convention(0)
+    @get:Input
+    val clientCacheExpirySeconds: Property<Long> = objects.property(Long::class.java).convention(0L)
+    @get:Input
+    val evictedClientHistorySize: Property<Int> = objects.property(Int::class.java).convention(100_000)
+    @get:Input
+    val maxKdsKeyCacheSize: Property<Int> = objects.property(Int::class.java).convention(0)
+    @get:Input
     val maxThreads: Property<Int> = objects.property(Int::class.java).convention(100)
     @get:Input
     val deadlockTimeout: Property<Int> = objects.property(Int::class.java).convention(10)
@@ -118,6 +118,10 @@ open class GenerateEnclaveProperties @Inject constructor(objects: ObjectFactory)
             GenerateEnclaveConfig.getSizeBytes(conclave.inMemoryFileSystemSize.get()).toString()
         properties["persistentFileSystemSize"] =
             GenerateEnclaveConfig.getSizeBytes(conclave.persistentFileSystemSize.get()).toString()
+        properties["maxClientCacheSize"] = conclave.maxClientCacheSize.get().toString()
+        properties["clientCacheExpirySeconds"] = conclave.clientCacheExpirySeconds.get().toString()
+        properties["evictedClientHistorySize"] = conclave.evictedClientHistorySize.get().toString()
+        properties["maxKdsKeyCacheSize"] = conclave.maxKdsKeyCacheSize.get().toString()
 
         applyKDSConfig(properties)
 